@@ -0,0 +1,67 @@
+package org.ulord.hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.AccessControlException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * <p>This class exposes the OpenSSL SHA-256 and RIPEMD-160 that the native BitcoinjHello library links against, for
+ * the hashing done in bulk: transaction ids, merkle trees and hash160s.</p>
+ *
+ * <p>Unlike {@link CryptoHelloContext} the library is optional here. If it can't be loaded, or it is an older build
+ * without these functions, {@link #isEnabled()} returns false and callers fall back to their Java implementations.</p>
+ *
+ * <p>The native methods don't check their arguments, callers must make sure all ranges are within the arrays.</p>
+ */
+public class NativeHash {
+
+    private static final boolean enabled; // true if the library is loaded and gives the right hashes
+
+    private static final Logger log = LoggerFactory.getLogger(NativeHash.class);
+
+    static { // static initializer
+        boolean isEnabled = false;
+        try {
+            System.loadLibrary("BitcoinjHello");
+            // An older build of the library loads fine but fails on the first call, so try one up front and check it
+            // against the JDK before relying on it.
+            byte[] input = "ulordj".getBytes();
+            byte[] output = new byte[32];
+            sha256Twice(input, 0, input.length, output);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            isEnabled = Arrays.equals(output, digest.digest(digest.digest(input)));
+            if (!isEnabled)
+                log.warn("Native hashing gives wrong results, not using it");
+        } catch (UnsatisfiedLinkError e) {
+            log.info(e.toString());
+        } catch (AccessControlException e) {
+            log.debug(e.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        enabled = isEnabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Writes the SHA-256 hash of {@code length} bytes of {@code input} from {@code offset} to {@code output}. */
+    public static native void sha256(byte[] input, int offset, int length, byte[] output);
+
+    /** Writes the SHA-256 hash of the SHA-256 hash of the given range to {@code output}. */
+    public static native void sha256Twice(byte[] input, int offset, int length, byte[] output);
+
+    /**
+     * Hashes each of {@code count} consecutive items of {@code itemLength} bytes at the start of {@code input} twice
+     * with SHA-256, and writes the 32 byte hashes one after the other to {@code output}.
+     */
+    public static native void sha256TwiceEach(byte[] input, int itemLength, int count, byte[] output);
+
+    /** Writes the RIPEMD-160 hash of the SHA-256 hash of the given range to {@code output}. */
+    public static native void sha256hash160(byte[] input, int offset, int length, byte[] output);
+}
@@ -0,0 +1,70 @@
+#include <openssl/sha.h>
+#include <openssl/ripemd.h>
+
+#include "org_ulord_hello_NativeHash.h"
+
+/*
+ * The Java side checks all offsets and lengths before calling in. Inputs are read through
+ * GetPrimitiveArrayCritical so they are not copied, nothing else happens while they are held.
+ */
+
+JNIEXPORT void JNICALL Java_org_ulord_hello_NativeHash_sha256
+  (JNIEnv *jenv, jclass jclass, jbyteArray jinput, jint offset, jint length, jbyteArray joutput) {
+
+    unsigned char digest[SHA256_DIGEST_LENGTH];
+    unsigned char *input = (unsigned char *)(*jenv)->GetPrimitiveArrayCritical(jenv, jinput, 0);
+    if (input == NULL)
+        return;
+    SHA256(input + offset, (size_t)length, digest);
+    (*jenv)->ReleasePrimitiveArrayCritical(jenv, jinput, input, JNI_ABORT);
+    (*jenv)->SetByteArrayRegion(jenv, joutput, 0, SHA256_DIGEST_LENGTH, (jbyte *)digest);
+}
+
+JNIEXPORT void JNICALL Java_org_ulord_hello_NativeHash_sha256Twice
+  (JNIEnv *jenv, jclass jclass, jbyteArray jinput, jint offset, jint length, jbyteArray joutput) {
+
+    unsigned char first[SHA256_DIGEST_LENGTH];
+    unsigned char digest[SHA256_DIGEST_LENGTH];
+    unsigned char *input = (unsigned char *)(*jenv)->GetPrimitiveArrayCritical(jenv, jinput, 0);
+    if (input == NULL)
+        return;
+    SHA256(input + offset, (size_t)length, first);
+    (*jenv)->ReleasePrimitiveArrayCritical(jenv, jinput, input, JNI_ABORT);
+    SHA256(first, SHA256_DIGEST_LENGTH, digest);
+    (*jenv)->SetByteArrayRegion(jenv, joutput, 0, SHA256_DIGEST_LENGTH, (jbyte *)digest);
+}
+
+JNIEXPORT void JNICALL Java_org_ulord_hello_NativeHash_sha256TwiceEach
+  (JNIEnv *jenv, jclass jclass, jbyteArray jinput, jint itemLength, jint count, jbyteArray joutput) {
+
+    jint i;
+    unsigned char first[SHA256_DIGEST_LENGTH];
+    unsigned char *input = (unsigned char *)(*jenv)->GetPrimitiveArrayCritical(jenv, jinput, 0);
+    if (input == NULL)
+        return;
+    unsigned char *output = (unsigned char *)(*jenv)->GetPrimitiveArrayCritical(jenv, joutput, 0);
+    if (output == NULL) {
+        (*jenv)->ReleasePrimitiveArrayCritical(jenv, jinput, input, JNI_ABORT);
+        return;
+    }
+    for (i = 0; i < count; ++i) {
+        SHA256(input + (size_t)i * itemLength, (size_t)itemLength, first);
+        SHA256(first, SHA256_DIGEST_LENGTH, output + (size_t)i * SHA256_DIGEST_LENGTH);
+    }
+    (*jenv)->ReleasePrimitiveArrayCritical(jenv, joutput, output, 0);
+    (*jenv)->ReleasePrimitiveArrayCritical(jenv, jinput, input, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_org_ulord_hello_NativeHash_sha256hash160
+  (JNIEnv *jenv, jclass jclass, jbyteArray jinput, jint offset, jint length, jbyteArray joutput) {
+
+    unsigned char first[SHA256_DIGEST_LENGTH];
+    unsigned char digest[RIPEMD160_DIGEST_LENGTH];
+    unsigned char *input = (unsigned char *)(*jenv)->GetPrimitiveArrayCritical(jenv, jinput, 0);
+    if (input == NULL)
+        return;
+    SHA256(input + offset, (size_t)length, first);
+    (*jenv)->ReleasePrimitiveArrayCritical(jenv, jinput, input, JNI_ABORT);
+    RIPEMD160(first, SHA256_DIGEST_LENGTH, digest);
+    (*jenv)->SetByteArrayRegion(jenv, joutput, 0, RIPEMD160_DIGEST_LENGTH, (jbyte *)digest);
+}
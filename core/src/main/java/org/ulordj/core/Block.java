@@ -21,12 +21,14 @@ import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
 import org.ulordj.script.*;
+import org.ulordj.utils.*;
 import org.slf4j.*;
 
 import javax.annotation.*;
 import java.io.*;
 import java.math.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static org.ulordj.core.Coin.*;
 import static org.ulordj.core.Sha256Hash.*;
@@ -89,6 +91,11 @@ public class Block extends Message {
     /** Block version introduced in BIP 65: OP_CHECKLOCKTIMEVERIFY */
     public static final long BLOCK_VERSION_BIP65 = 4;
 
+    // Below this many transactions or tree nodes, hashing is done on the calling thread.
+    private static final int PARALLEL_HASHING_THRESHOLD = 256;
+    // The most transactions or tree nodes one fork/join task hashes.
+    private static final int HASHING_CHUNK_SIZE = 64;
+
     // Fields defined as part of the protocol format.
     private static final long CURRENT_VERSION = 1;
     private long version;
@@ -106,6 +113,9 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private Sha256Hash hash;
 
+    /** The whole merkle tree as built by {@link #buildMerkleTree()}, or null if it wasn't built since the last change. */
+    @Nullable private List<byte[]> merkleTree;
+
     protected boolean headerBytesValid;
     protected boolean transactionBytesValid;
     
@@ -240,8 +250,10 @@ public class Block extends Message {
 
         int numTransactions = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
-        transactions = new ArrayList<>(numTransactions);
+        final List<Transaction> transactions = new ArrayList<>(numTransactions);
+        final int[] offsets = new int[numTransactions + 1];
         for (int i = 0; i < numTransactions; i++) {
+            offsets[i] = cursor;
             Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
             // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
             tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
@@ -249,7 +261,25 @@ public class Block extends Message {
             cursor += tx.getMessageSize();
             optimalEncodingMessageSize += tx.getOptimalEncodingMessageSize();
         }
+        offsets[numTransactions] = cursor;
+        this.transactions = transactions;
         transactionBytesValid = serializer.isParseRetainMode();
+
+        // Hash the transactions straight from the bytes they were parsed from while we still have them, rather than
+        // serializing each of them again later. Those with witnesses are left to Transaction.getHash(), as the bytes
+        // hashed for the txid don't include the witnesses.
+        final byte[] payload = this.payload;
+        hashInChunks(numTransactions, new RangeHasher() {
+            @Override
+            public void hash(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    if (payload[offsets[i] + 4] == 0)
+                        continue; // Segwit marker.
+                    byte[] txid = hashTwice(payload, offsets[i], offsets[i + 1] - offsets[i]);
+                    transactions.get(i).setHash(wrapReversed(txid));
+                }
+            }
+        });
     }
 
     @Override
@@ -399,6 +429,7 @@ public class Block extends Message {
         unCacheHeader();
         // Clear merkleRoot last as it may end up being parsed during unCacheHeader().
         merkleRoot = null;
+        merkleTree = null;
     }
 
     /**
@@ -629,27 +660,106 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
+        //
+        // The tree is kept until the transactions change, for serving filtered blocks from it.
+        if (merkleTree != null)
+            return merkleTree;
+        final List<Transaction> transactions = new ArrayList<>(this.transactions); // May be a linked list.
+        final int numTransactions = transactions.size();
+        int numNodes = numTransactions;
+        for (int levelSize = numTransactions; levelSize > 1; levelSize = (levelSize + 1) / 2)
+            numNodes += (levelSize + 1) / 2;
+        final byte[][] tree = new byte[numNodes][];
+        // Start by adding all the hashes of the transactions as leaves of the tree. Those not hashed when the block was
+        // parsed are hashed here.
+        hashInChunks(numTransactions, new RangeHasher() {
+            @Override
+            public void hash(int from, int to) {
+                for (int i = from; i < to; i++)
+                    tree[i] = transactions.get(i).getHash().getBytes();
+            }
+        });
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
+        for (int levelSize = numTransactions; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            final int childOffset = levelOffset, childSize = levelSize, parentOffset = levelOffset + levelSize;
+            // For each range of pairs of nodes on that level, lay the pairs out one after the other so the whole range
+            // is hashed in one go.
+            hashInChunks((levelSize + 1) / 2, new RangeHasher() {
+                @Override
+                public void hash(int from, int to) {
+                    byte[] pairs = new byte[(to - from) * 64];
+                    for (int pair = from; pair < to; pair++) {
+                        // The right hand node can be the same as the left hand, in the case where we don't have enough
+                        // transactions.
+                        byte[] left = tree[childOffset + pair * 2];
+                        byte[] right = tree[childOffset + Math.min(pair * 2 + 1, childSize - 1)];
+                        int offset = (pair - from) * 64;
+                        for (int i = 0; i < 32; i++) {
+                            pairs[offset + i] = left[31 - i];
+                            pairs[offset + 32 + i] = right[31 - i];
+                        }
+                    }
+                    byte[] hashes = hashTwiceEach(pairs, 64, to - from);
+                    for (int pair = from; pair < to; pair++) {
+                        byte[] node = new byte[32];
+                        int offset = (pair - from) * 32;
+                        for (int i = 0; i < 32; i++)
+                            node[i] = hashes[offset + 31 - i];
+                        tree[parentOffset + pair] = node;
+                    }
+                }
+            });
             // Move to the next level.
             levelOffset += levelSize;
         }
-        return tree;
+        merkleTree = Collections.unmodifiableList(Arrays.asList(tree));
+        return merkleTree;
+    }
+
+    /**
+     * Returns the whole merkle tree of this block: the transaction hashes followed by each level of the tree up to the
+     * root, all in big endian form. It is built if necessary and is kept until the transactions change.
+     */
+    /* package private */ List<byte[]> getMerkleTree() {
+        return buildMerkleTree();
+    }
+
+    // Hashes one range of the transactions or of a level of the merkle tree.
+    private interface RangeHasher {
+        void hash(int from, int to);
+    }
+
+    /**
+     * Runs the hasher over {@code 0} to {@code count}, on the calling thread for small blocks and otherwise split in
+     * halves on {@link Threading#FORK_JOIN_POOL} until each range is small enough.
+     */
+    private static void hashInChunks(int count, RangeHasher hasher) {
+        if (count < PARALLEL_HASHING_THRESHOLD)
+            hasher.hash(0, count);
+        else
+            Threading.FORK_JOIN_POOL.invoke(new HashingTask(hasher, 0, count));
+    }
+
+    private static class HashingTask extends RecursiveAction {
+        private final RangeHasher hasher;
+        private final int from, to;
+
+        HashingTask(RangeHasher hasher, int from, int to) {
+            this.hasher = hasher;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= HASHING_CHUNK_SIZE) {
+                hasher.hash(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashingTask(hasher, from, middle), new HashingTask(hasher, middle, to));
+            }
+        }
     }
 
     /**
@@ -18,7 +18,6 @@
 package org.ulordj.core;
 
 import org.ulordj.script.Script;
-import org.ulordj.script.ScriptChunk;
 import org.ulordj.script.ScriptPattern;
 
 import com.google.common.base.Objects;
@@ -26,7 +25,6 @@ import com.google.common.collect.Lists;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -168,13 +166,18 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        return murmurHash3(data, nTweak, hashNum, object, 0, object.length);
+    }
+
+    /** Like {@link #murmurHash3(byte[], long, int, byte[])}, hashing length bytes of object starting at offset. */
+    public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object, int offset, int length) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = offset + (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for(int i = offset; i < numBlocks; i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
@@ -190,7 +193,7 @@ public class BloomFilter extends Message {
         }
         
         int k1 = 0;
-        switch(object.length & 3)
+        switch(length & 3)
         {
             case 3:
                 k1 ^= (object[numBlocks + 2] & 0xff) << 16;
@@ -208,7 +211,7 @@ public class BloomFilter extends Message {
         }
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
@@ -223,8 +226,12 @@ public class BloomFilter extends Message {
      * false-positive.
      */
     public synchronized boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    private boolean contains(byte[] object, int offset, int length) {
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object, offset, length)))
                 return false;
         }
         return true;
@@ -303,18 +310,18 @@ public class BloomFilter extends Message {
      */
     public synchronized FilteredBlock applyAndUpdate(Block block) {
         List<Transaction> txns = block.getTransactions();
-        List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = Lists.newArrayList();
         byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
         for (int i = 0; i < txns.size(); i++) {
             Transaction tx = txns.get(i);
-            txHashes.add(tx.getHash());
             if (applyAndUpdate(tx)) {
                 Utils.setBitLE(bits, i);
                 matched.add(tx);
             }
         }
-        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), bits, txHashes);
+        // The block keeps its merkle tree, so serving it to several filters hashes it only once.
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromTree(block.getParams(), bits, block.getMerkleTree(),
+                txns.size());
         FilteredBlock filteredBlock = new FilteredBlock(block.getParams(), block.cloneAsHeader(), pmt);
         for (Transaction transaction : matched)
             filteredBlock.provideTransaction(transaction);
@@ -328,10 +335,13 @@ public class BloomFilter extends Message {
         BloomUpdate flag = getUpdateFlag();
         for (TransactionOutput output : tx.getOutputs()) {
             Script script = output.getScriptPubKey();
-            for (ScriptChunk chunk : script.getChunks()) {
-                if (!chunk.isPushData())
+            // Look at the pushed data in place rather than creating the chunks.
+            byte[] scriptBytes = output.getScriptBytes();
+            for (int i = 0; i < script.getChunkCount(); i++) {
+                int offset = script.getChunkDataOffset(i);
+                if (offset == -1)
                     continue;
-                if (contains(chunk.data)) {
+                if (contains(scriptBytes, offset, script.getChunkDataLength(i))) {
                     boolean isSendingToPubKeys = ScriptPattern.isPayToPubKey(script) || ScriptPattern.isSentToMultisig(script);
                     if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))
                         insert(output.getOutPointFor().unsafeBitcoinSerialize());
@@ -344,8 +354,11 @@ public class BloomFilter extends Message {
             if (contains(input.getOutpoint().unsafeBitcoinSerialize())) {
                 return true;
             }
-            for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
-                if (chunk.isPushData() && contains(chunk.data))
+            Script script = input.getScriptSig();
+            byte[] scriptBytes = input.getScriptBytes();
+            for (int i = 0; i < script.getChunkCount(); i++) {
+                int offset = script.getChunkDataOffset(i);
+                if (offset != -1 && contains(scriptBytes, offset, script.getChunkDataLength(i)))
                     return true;
             }
         }
@@ -0,0 +1,178 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A compact block ("cmpctblock" message) carries a block header followed by a 6 byte short ID for every transaction
+ * in the block, instead of the transactions themselves. Most of those transactions were already relayed to us before
+ * the block was found, so the full block can usually be rebuilt locally with a {@link PartiallyDownloadedBlock},
+ * fetching only the few missing transactions with a {@link GetBlockTxnMessage}. Transactions the sender expects us
+ * not to have, like the coinbase, are sent along in full ("prefilled").</p>
+ *
+ * <p>Short IDs are calculated with SipHash-2-4 over the transaction hash, keyed with the SHA-256 of the block header and
+ * a random nonce chosen by the sender, so they can't be ground to collide in advance.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactBlock extends Message {
+    /** Number of bytes of a short transaction ID. */
+    public static final int SHORT_ID_LENGTH = 6;
+    private static final long SHORT_ID_MASK = 0xffffffffffffL;
+
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    // Absolute index of the transaction within the block -> transaction.
+    private SortedMap<Integer, Transaction> prefilledTransactions;
+
+    private transient HashFunction shortIdHasher;
+
+    public CompactBlock(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /**
+     * Creates a compact form of the given block, prefilling only the coinbase transaction.
+     */
+    public CompactBlock(NetworkParameters params, Block block, long nonce) {
+        super(params);
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+        this.header = block.cloneAsHeader();
+        this.nonce = nonce;
+        this.prefilledTransactions = new TreeMap<>();
+        this.prefilledTransactions.put(0, transactions.get(0));
+        this.shortIds = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++)
+            shortIds[i - 1] = getShortId(transactions.get(i).getHash());
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        header = params.getDefaultSerializer().makeBlock(readBytes(Block.HEADER_SIZE));
+        nonce = readInt64();
+        long numShortIds = readVarInt();
+        if (numShortIds < 0 || numShortIds * SHORT_ID_LENGTH > payload.length - cursor)
+            throw new ProtocolException("Too many short IDs: " + numShortIds);
+        shortIds = new long[(int) numShortIds];
+        for (int i = 0; i < shortIds.length; i++) {
+            long shortId = 0;
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                shortId |= (payload[cursor + j] & 0xffL) << (8 * j);
+            shortIds[i] = shortId;
+            cursor += SHORT_ID_LENGTH;
+        }
+        long numPrefilled = readVarInt();
+        if (numPrefilled < 0 || numPrefilled > payload.length - cursor)
+            throw new ProtocolException("Too many prefilled transactions: " + numPrefilled);
+        prefilledTransactions = new TreeMap<>();
+        long index = -1;
+        for (int i = 0; i < numPrefilled; i++) {
+            // Indexes are encoded as the difference to the previous index, minus one.
+            index += readVarInt() + 1;
+            if (index < 0 || index >= numShortIds + numPrefilled)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
+            cursor += tx.getMessageSize();
+            prefilledTransactions.put((int) index, tx);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        header.cloneAsHeader().bitcoinSerializeToStream(stream);
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        byte[] buf = new byte[SHORT_ID_LENGTH];
+        for (long shortId : shortIds) {
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                buf[j] = (byte) (shortId >>> (8 * j));
+            stream.write(buf);
+        }
+        stream.write(new VarInt(prefilledTransactions.size()).encode());
+        int lastIndex = -1;
+        for (Map.Entry<Integer, Transaction> entry : prefilledTransactions.entrySet()) {
+            stream.write(new VarInt(entry.getKey() - lastIndex - 1).encode());
+            entry.getValue().bitcoinSerialize(stream);
+            lastIndex = entry.getKey();
+        }
+    }
+
+    /** Returns the short ID a transaction with the given hash has within this compact block. */
+    public long getShortId(Sha256Hash txHash) {
+        if (shortIdHasher == null) {
+            byte[] headerAndNonce = new byte[Block.HEADER_SIZE + 8];
+            System.arraycopy(header.cloneAsHeader().bitcoinSerialize(), 0, headerAndNonce, 0, Block.HEADER_SIZE);
+            Utils.int64ToByteArrayLE(nonce, headerAndNonce, Block.HEADER_SIZE);
+            byte[] key = Sha256Hash.hash(headerAndNonce);
+            shortIdHasher = Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+        }
+        return shortIdHasher.hashBytes(txHash.getReversedBytes()).asLong() & SHORT_ID_MASK;
+    }
+
+    /** Returns the hash of the block this message describes. */
+    @Override
+    public Sha256Hash getHash() {
+        return header.getHash();
+    }
+
+    /** Returns the header of the block, without any transactions. */
+    public Block getHeader() {
+        return header;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short IDs of all transactions that aren't prefilled, in block order. */
+    public long[] getShortIds() {
+        return shortIds;
+    }
+
+    /** Returns the prefilled transactions, keyed by their index within the block. */
+    public SortedMap<Integer, Transaction> getPrefilledTransactions() {
+        return Collections.unmodifiableSortedMap(prefilledTransactions);
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledTransactions.size();
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock " + getHash() + ": " + getTransactionCount() + " transactions, "
+                + prefilledTransactions.size() + " prefilled";
+    }
+}
@@ -711,8 +711,16 @@ public class ECKey implements EncryptableItem {
             }
         }
 
-        ECDSASigner signer = new ECDSASigner();
         ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        return verify(data, signature, params);
+    }
+
+    /**
+     * Verifies the given signature with Bouncy Castle against an already decoded public key, so that
+     * {@link SignatureBatch} can decode each key only once.
+     */
+    static boolean verify(byte[] data, ECDSASignature signature, ECPublicKeyParameters params) {
+        ECDSASigner signer = new ECDSASigner();
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -170,9 +171,23 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         @Override
         public VerificationException call() throws Exception {
             try {
+                // Standard signatures are collected and verified together, remembering which input each came from.
+                SignatureBatch batch = new SignatureBatch();
+                List<Integer> batchInputs = new ArrayList<>();
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
                 for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags,
+                            batch);
+                    while (batchInputs.size() < batch.size())
+                        batchInputs.add(index);
+                }
+                BitSet failed = batch.verify();
+                if (!failed.isEmpty()) {
+                    // Check the input again on its own, for the exception saying what's wrong with it.
+                    int index = batchInputs.get(failed.nextSetBit(0));
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScripts.get(index),
+                            verifyFlags);
+                    return new VerificationException("Signature of input " + index + " failed to verify");
                 }
             } catch (VerificationException e) {
                 return e;
@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The "getblocktxn" message requests the transactions of a {@link CompactBlock} we couldn't find locally, by their
+ * index within the block. The peer answers with a {@link BlockTxnMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetBlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private ImmutableList<Integer> indexes;
+
+    /**
+     * @param indexes indexes of the requested transactions within the block, in ascending order
+     */
+    public GetBlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, List<Integer> indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = ImmutableList.copyOf(indexes);
+        for (int i = 1; i < this.indexes.size(); i++)
+            checkArgument(this.indexes.get(i) > this.indexes.get(i - 1), "Indexes must be ascending");
+    }
+
+    public GetBlockTxnMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numIndexes = readVarInt();
+        if (numIndexes < 0 || numIndexes > payload.length - cursor)
+            throw new ProtocolException("Too many indexes: " + numIndexes);
+        ImmutableList.Builder<Integer> list = ImmutableList.builder();
+        long index = -1;
+        for (int i = 0; i < numIndexes; i++) {
+            // Indexes are encoded as the difference to the previous index, minus one.
+            index += readVarInt() + 1;
+            if (index < 0 || index > Integer.MAX_VALUE)
+                throw new ProtocolException("Index out of range: " + index);
+            list.add((int) index);
+        }
+        indexes = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(indexes.size()).encode());
+        int lastIndex = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - lastIndex - 1).encode());
+            lastIndex = index;
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the indexes of the requested transactions within the block, in ascending order. */
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetBlockTxnMessage other = (GetBlockTxnMessage) o;
+        return blockHash.equals(other.blockHash) && indexes.equals(other.indexes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(blockHash, indexes);
+    }
+
+    @Override
+    public String toString() {
+        return "getblocktxn " + blockHash + ": " + indexes.size() + " transactions";
+    }
+}
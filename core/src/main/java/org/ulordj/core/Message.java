@@ -320,8 +320,8 @@ public abstract class Message {
     }
 
     protected BigInteger readUint64() throws ProtocolException {
-        // Java does not have an unsigned 64 bit type. So scrape it off the wire then flip.
-        return new BigInteger(Utils.reverseBytes(readBytes(8)));
+        // Java does not have an unsigned 64 bit type. The value keeps the sign of the top bit, as it always has.
+        return BigInteger.valueOf(readInt64());
     }
 
     protected long readVarInt() throws ProtocolException {
@@ -339,17 +339,26 @@ public abstract class Message {
     }
 
     protected byte[] readBytes(int length) throws ProtocolException {
+        int start = skipBytes(length);
+        byte[] b = new byte[length];
+        System.arraycopy(payload, start, b, 0, length);
+        return b;
+    }
+
+    /**
+     * Moves the cursor past {@code length} bytes without copying them, and returns the offset in the payload they start
+     * at. Subclasses use this to keep a view into the payload that they only copy out when it is needed.
+     */
+    protected int skipBytes(int length) throws ProtocolException {
         if (length > MAX_SIZE) {
             throw new ProtocolException("Claimed value length too large: " + length);
         }
-        try {
-            byte[] b = new byte[length];
-            System.arraycopy(payload, cursor, b, 0, length);
-            cursor += length;
-            return b;
-        } catch (IndexOutOfBoundsException e) {
-            throw new ProtocolException(e);
+        if (length < 0 || cursor + length > payload.length) {
+            throw new ProtocolException(new ArrayIndexOutOfBoundsException(cursor + length));
         }
+        int start = cursor;
+        cursor += length;
+        return start;
     }
     
     protected byte[] readByteArray() throws ProtocolException {
@@ -359,13 +368,20 @@ public abstract class Message {
 
     protected String readStr() throws ProtocolException {
         long length = readVarInt();
-        return length == 0 ? "" : new String(readBytes((int) length), StandardCharsets.UTF_8); // optimization for empty strings
+        if (length == 0)
+            return ""; // optimization for empty strings
+        int start = skipBytes((int) length);
+        return new String(payload, start, (int) length, StandardCharsets.UTF_8);
     }
 
     protected Sha256Hash readHash() throws ProtocolException {
-        // We have to flip it around, as it's been read off the wire in little endian.
-        // Not the most efficient way to do this but the clearest.
-        return Sha256Hash.wrapReversed(readBytes(32));
+        // We have to flip it around, as it's been read off the wire in little endian. Do it while copying it out of the
+        // payload so a hash costs a single array.
+        int start = skipBytes(32);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = payload[start + 31 - i];
+        return Sha256Hash.wrap(hash);
     }
 
     protected boolean hasMoreBytes() {
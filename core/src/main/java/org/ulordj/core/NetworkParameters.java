@@ -536,6 +536,8 @@ public abstract class NetworkParameters {
         MINIMUM(70103),
         PONG(60001),
         BLOOM_FILTER(70201),
+        SEND_HEADERS(70201),
+        COMPACT_BLOCKS(70201),
         WITNESS_VERSION(70103),
         CURRENT(70206);
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * <p>A compact, immutable map key for an outpoint: the transaction hash as four longs, the output index and a hash
+ * code computed up front. Unlike {@link TransactionOutPoint} it holds no network parameters, parent or connected
+ * transaction, and unlike a wrapped byte array it doesn't need to look at every byte to be hashed or compared.</p>
+ *
+ * <p>Use it for indexes that hold many outpoints, like sets of unspent outputs.</p>
+ */
+public final class OutPointKey {
+    private final long hash0, hash1, hash2, hash3;
+    private final int index;
+    private final int hashCode;
+
+    private OutPointKey(byte[] hash, int index) {
+        this.hash0 = Longs.fromBytes(hash[0], hash[1], hash[2], hash[3], hash[4], hash[5], hash[6], hash[7]);
+        this.hash1 = Longs.fromBytes(hash[8], hash[9], hash[10], hash[11], hash[12], hash[13], hash[14], hash[15]);
+        this.hash2 = Longs.fromBytes(hash[16], hash[17], hash[18], hash[19], hash[20], hash[21], hash[22], hash[23]);
+        this.hash3 = Longs.fromBytes(hash[24], hash[25], hash[26], hash[27], hash[28], hash[29], hash[30], hash[31]);
+        this.index = index;
+        // Like Sha256Hash, use the end of the hash, not the start which is often zeros in Bitcoin.
+        this.hashCode = 31 * (int) (hash3 ^ (hash3 >>> 32)) + index;
+    }
+
+    /** Returns the key of output {@code index} of the transaction with the given hash. */
+    public static OutPointKey of(Sha256Hash hash, long index) {
+        return new OutPointKey(hash.getBytes(), (int) index);
+    }
+
+    /** Returns the key of the output the given outpoint refers to. */
+    public static OutPointKey of(TransactionOutPoint outPoint) {
+        return of(outPoint.getHash(), outPoint.getIndex());
+    }
+
+    /** Returns the key of the given unspent output. */
+    public static OutPointKey of(UTXO utxo) {
+        return of(utxo.getHash(), utxo.getIndex());
+    }
+
+    /** The hash of the transaction the output is in. This is a new instance on every call. */
+    public Sha256Hash getHash() {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(Longs.toByteArray(hash0), 0, hash, 0, 8);
+        System.arraycopy(Longs.toByteArray(hash1), 0, hash, 8, 8);
+        System.arraycopy(Longs.toByteArray(hash2), 0, hash, 16, 8);
+        System.arraycopy(Longs.toByteArray(hash3), 0, hash, 24, 8);
+        return Sha256Hash.wrap(hash);
+    }
+
+    /** The index of the output in its transaction. */
+    public long getIndex() {
+        return index & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        OutPointKey other = (OutPointKey) o;
+        return hashCode == other.hashCode && index == other.index && hash3 == other.hash3 && hash2 == other.hash2
+                && hash1 == other.hash1 && hash0 == other.hash0;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return getHash() + ":" + getIndex();
+    }
+}
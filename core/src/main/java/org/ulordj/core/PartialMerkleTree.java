@@ -18,6 +18,7 @@
 
 package org.ulordj.core;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -87,13 +88,30 @@ public class PartialMerkleTree extends Message {
      * are calculated and a new PMT returned.
      */
     public static PartialMerkleTree buildFromLeaves(NetworkParameters params, byte[] includeBits, List<Sha256Hash> allLeafHashes) {
+        return build(params, includeBits, allLeafHashes, null);
+    }
+
+    /**
+     * Calculates a PMT like {@link #buildFromLeaves(NetworkParameters, byte[], List)}, but takes the interior hashes
+     * from the whole merkle tree of a block as returned by {@link Block#getMerkleTree()} instead of hashing them again.
+     */
+    /* package private */ static PartialMerkleTree buildFromTree(NetworkParameters params, byte[] includeBits,
+                                                                 List<byte[]> tree, int transactionCount) {
+        List<Sha256Hash> allLeafHashes = new ArrayList<>(transactionCount);
+        for (int i = 0; i < transactionCount; i++)
+            allLeafHashes.add(Sha256Hash.wrap(tree.get(i)));
+        return build(params, includeBits, allLeafHashes, tree);
+    }
+
+    private static PartialMerkleTree build(NetworkParameters params, byte[] includeBits,
+                                           List<Sha256Hash> allLeafHashes, @Nullable List<byte[]> tree) {
         // Calculate height of the tree.
         int height = 0;
         while (getTreeWidth(allLeafHashes.size(), height) > 1)
             height++;
         List<Boolean> bitList = new ArrayList<>();
         List<Sha256Hash> hashes = new ArrayList<>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
+        traverseAndBuild(height, 0, allLeafHashes, tree, includeBits, bitList, hashes);
         byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
         for (int i = 0; i < bitList.size(); i++)
             if (bitList.get(i))
@@ -129,7 +147,8 @@ public class PartialMerkleTree extends Message {
     }
 
     // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
+    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes,
+                                         @Nullable List<byte[]> tree, byte[] includeBits,
                                          List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
         boolean parentOfMatch = false;
         // Is this node a parent of at least one matched hash?
@@ -143,14 +162,17 @@ public class PartialMerkleTree extends Message {
         matchedChildBits.add(parentOfMatch);
         if (height == 0 || !parentOfMatch) {
             // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
+            if (tree != null)
+                resultHashes.add(Sha256Hash.wrap(tree.get(getNodeIndex(allLeafHashes.size(), height, pos))));
+            else
+                resultHashes.add(calcHash(height, pos, allLeafHashes));
         } else {
             // Otherwise descend into the subtrees.
             int h = height - 1;
             int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
+            traverseAndBuild(h, p, allLeafHashes, tree, includeBits, matchedChildBits, resultHashes);
             if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
+                traverseAndBuild(h, p + 1, allLeafHashes, tree, includeBits, matchedChildBits, resultHashes);
         }
     }
 
@@ -176,6 +198,14 @@ public class PartialMerkleTree extends Message {
     private static int getTreeWidth(int transactionCount, int height) {
         return (transactionCount + (1 << height) - 1) >> height;
     }
+
+    // index of a node in a whole merkle tree laid out level by level, starting with the leaves
+    private static int getNodeIndex(int transactionCount, int height, int pos) {
+        int index = pos;
+        for (int h = 0; h < height; h++)
+            index += getTreeWidth(transactionCount, h);
+        return index;
+    }
     
     private static class ValuesUsed {
         public int bitsUsed = 0, hashesUsed = 0;
@@ -0,0 +1,155 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Rebuilds a full {@link Block} from a {@link CompactBlock}. On construction the slots of the block are filled from
+ * the prefilled transactions and from the given candidates, usually transactions that were recently relayed to us.
+ * The remaining slots can be requested with a {@link GetBlockTxnMessage} and filled in with
+ * {@link #fillMissing(List)}.</p>
+ *
+ * <p>Short IDs are only 48 bits long, so reconstruction can go wrong: two transactions of the block can share a short
+ * ID, or a candidate can collide with a different transaction of the block. The former is detected upfront, see
+ * {@link #hasShortIdCollision()}; the latter shows as a merkle root mismatch in {@link #build()}. In both cases the
+ * caller should fall back to downloading the full block.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class PartiallyDownloadedBlock {
+    private final CompactBlock compactBlock;
+    private final Transaction[] transactions;
+    // Whether the transaction in a slot was taken from the candidates rather than received from the peer.
+    private final boolean[] fromCandidates;
+    private final boolean shortIdCollision;
+
+    public PartiallyDownloadedBlock(CompactBlock compactBlock, Iterable<Transaction> candidates) {
+        this.compactBlock = compactBlock;
+        this.transactions = new Transaction[compactBlock.getTransactionCount()];
+        this.fromCandidates = new boolean[transactions.length];
+        for (Map.Entry<Integer, Transaction> entry : compactBlock.getPrefilledTransactions().entrySet())
+            transactions[entry.getKey()] = entry.getValue();
+
+        // Short IDs are in block order, skipping over the prefilled slots.
+        long[] shortIds = compactBlock.getShortIds();
+        Map<Long, Integer> slots = new HashMap<>(shortIds.length * 2);
+        boolean collision = false;
+        int slot = 0;
+        for (long shortId : shortIds) {
+            while (transactions[slot] != null)
+                slot++;
+            if (slots.put(shortId, slot) != null)
+                collision = true;
+            slot++;
+        }
+        this.shortIdCollision = collision;
+        if (collision)
+            return;
+
+        // A candidate can collide with another candidate, in which case we can't know which one is right. Such slots
+        // are left empty so they get requested from the peer.
+        Set<Integer> ambiguous = new HashSet<>();
+        for (Transaction candidate : candidates) {
+            Integer index = slots.get(compactBlock.getShortId(candidate.getHash()));
+            if (index == null || ambiguous.contains(index))
+                continue;
+            Transaction existing = transactions[index];
+            if (existing == null) {
+                transactions[index] = candidate;
+                fromCandidates[index] = true;
+            } else if (!existing.getHash().equals(candidate.getHash())) {
+                transactions[index] = null;
+                fromCandidates[index] = false;
+                ambiguous.add(index);
+            }
+        }
+    }
+
+    /** Returns the compact block this reconstruction started from. */
+    public CompactBlock getCompactBlock() {
+        return compactBlock;
+    }
+
+    /** Returns true if two transactions of the block share a short ID, so the block can't be reconstructed. */
+    public boolean hasShortIdCollision() {
+        return shortIdCollision;
+    }
+
+    /** Returns the indexes of all transactions we don't have yet, in ascending order. */
+    public List<Integer> getMissingIndexes() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < transactions.length; i++)
+            if (transactions[i] == null)
+                missing.add(i);
+        return missing;
+    }
+
+    /** Returns true once all transactions of the block are known. */
+    public boolean isComplete() {
+        for (Transaction tx : transactions)
+            if (tx == null)
+                return false;
+        return true;
+    }
+
+    /**
+     * Fills the missing transactions, as received in a {@link BlockTxnMessage}. Returns false if the number of
+     * transactions doesn't match the number of missing ones.
+     */
+    public boolean fillMissing(List<Transaction> missingTransactions) {
+        List<Integer> missing = getMissingIndexes();
+        if (missing.size() != missingTransactions.size())
+            return false;
+        for (int i = 0; i < missing.size(); i++)
+            transactions[missing.get(i)] = missingTransactions.get(i);
+        return true;
+    }
+
+    /**
+     * Assembles the full block. Returns null if the transactions don't hash to the merkle root of the header, which
+     * means a short ID matched the wrong transaction.
+     */
+    @Nullable
+    public Block build() {
+        checkState(isComplete(), "Block is not complete yet");
+        Block header = compactBlock.getHeader();
+        Block block = header.cloneAsHeader();
+        MessageSerializer serializer = header.getParams().getDefaultSerializer();
+        for (int i = 0; i < transactions.length; i++) {
+            Transaction tx = transactions[i];
+            if (fromCandidates[i]) {
+                // Candidates may be owned by a wallet, so the block gets its own copies.
+                tx = serializer.makeTransaction(tx.bitcoinSerialize());
+            } else {
+                tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            }
+            block.addTransaction(tx, false);
+        }
+        if (!block.getMerkleRoot().equals(header.getMerkleRoot()))
+            return null;
+        return block;
+    }
+}
@@ -46,6 +46,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -106,6 +107,31 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
+    // Whether to ask the remote peer (see BIP 130) to announce new blocks with a "headers" message instead of an inv,
+    // which saves a round-trip for every newly solved block.
+    private volatile boolean vPreferHeaderAnnouncements = false;
+    // Set when we passed the fast catchup time and the last headers message was full, so the peer has more headers
+    // for us. The next getheaders starts after the header with this hash, while the bodies already queued stream in.
+    @GuardedBy("lock") @Nullable private Sha256Hash headersContinueHash;
+    // The hash the getheaders that is in flight for the headers after headersContinueHash starts after, if any.
+    @GuardedBy("lock") @Nullable private Sha256Hash headersRequestedAfter;
+    // Hashes of validated headers beyond the fast catchup time whose bodies are still to be requested. They are asked
+    // for a window at a time, topped up as requested blocks get connected.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> queuedBodyDownloads = new ArrayDeque<>();
+    // How many block bodies queued after a headers message may be in flight at once.
+    private static final int BODY_DOWNLOAD_WINDOW = 128;
+    // More headers are only asked for while fewer bodies than this are queued, which bounds the queue.
+    private static final int MAX_QUEUED_BODY_DOWNLOADS = HeadersMessage.MAX_HEADERS;
+    // Whether to use compact block relay (see BIP 152) for newly solved blocks when downloading full blocks.
+    private volatile boolean vUseCompactBlocks = false;
+    // Set once the remote peer told us it can serve compact blocks.
+    private volatile boolean vPeerSupportsCompactBlocks = false;
+    // Compact blocks we are waiting on a blocktxn message for, keyed by block hash, oldest first. Entries are dropped
+    // after COMPACT_BLOCK_TIMEOUT_MSEC, beyond MAX_PENDING_COMPACT_BLOCKS and when we stop downloading from the peer.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, PendingCompactBlock> pendingCompactBlocks =
+            new LinkedHashMap<>();
+    private static final int MAX_PENDING_COMPACT_BLOCKS = 8;
+    private static final long COMPACT_BLOCK_TIMEOUT_MSEC = 30 * 1000;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
@@ -148,6 +174,15 @@ public class Peer extends PeerSocketHandler {
         final Sha256Hash hash;
         final SettableFuture future;
     }
+    // A compact block we asked the missing transactions of with getblocktxn.
+    private static class PendingCompactBlock {
+        PendingCompactBlock(PartiallyDownloadedBlock partialBlock) {
+            this.partialBlock = partialBlock;
+            this.requestTimeMillis = Utils.currentTimeMillis();
+        }
+        final PartiallyDownloadedBlock partialBlock;
+        final long requestTimeMillis;
+    }
     // TODO: The types/locking should be rationalised a bit.
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
@@ -159,6 +194,12 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    // Measurements used to score this peer against others, see PeerScore.
+    private volatile long vConnectedAtMillis;
+    private final AtomicLong dataBytesReceived = new AtomicLong();
+    private final AtomicInteger stallCount = new AtomicInteger();
+    private final AtomicInteger misbehaviourCount = new AtomicInteger();
+
     private volatile VersionMessage vPeerVersionMessage;
 
     // A settable future which completes (with this) when the connection is open
@@ -437,6 +478,7 @@ public class Peer extends PeerSocketHandler {
         // from us until they send their version message back.
         PeerAddress address = getAddress();
         log.info("Announcing to {} as: {}", address == null ? "Peer" : address.toSocketAddress(), versionMessage.subVer);
+        vConnectedAtMillis = Utils.currentTimeMillis();
         sendMessage(versionMessage);
         connectionOpenFuture.set(this);
         // When connecting, the remote peer sends us a version message with various bits of
@@ -469,6 +511,11 @@ public class Peer extends PeerSocketHandler {
         }
         if (m == null) return;
 
+        // Only count the data we are actually interested in towards the throughput of this peer.
+        if ((m instanceof Block || m instanceof FilteredBlock || m instanceof Transaction || m instanceof HeadersMessage
+                || m instanceof CompactBlock || m instanceof BlockTxnMessage) && m.length != Message.UNKNOWN_LENGTH)
+            dataBytesReceived.addAndGet(m.length);
+
         // If we are in the middle of receiving transactions as part of a filtered block push from the remote node,
         // and we receive something that's not a transaction, then we're done.
         if (currentFilteredBlock != null && !(m instanceof Transaction)) {
@@ -515,6 +562,18 @@ public class Peer extends PeerSocketHandler {
             processVersionAck((VersionAck) m);
         } else if (m instanceof UTXOsMessage) {
             processUTXOMessage((UTXOsMessage) m);
+        } else if (m instanceof SendHeadersMessage) {
+            // We never announce blocks to remote peers, so their preference doesn't matter to us.
+            log.debug("{}: Peer prefers headers announcements", this);
+        } else if (m instanceof SendCmpctMessage) {
+            processSendCmpct((SendCmpctMessage) m);
+        } else if (m instanceof CompactBlock) {
+            processCompactBlock((CompactBlock) m);
+        } else if (m instanceof BlockTxnMessage) {
+            processBlockTxn((BlockTxnMessage) m);
+        } else if (m instanceof GetBlockTxnMessage) {
+            // We never announce blocks to remote peers, so there is nothing to serve.
+            log.debug("{}: Ignoring {}", this, m);
         } else if (m instanceof RejectMessage) {
             log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
         } else {
@@ -615,9 +674,155 @@ public class Peer extends PeerSocketHandler {
             log.warn("Connected to a peer speaking protocol version {} but need {}, closing",
                     vPeerVersionMessage.clientVersion, version);
             close();
+            return;
+        }
+        if (vPreferHeaderAnnouncements && blockChain != null && vPeerVersionMessage.isSendHeadersSupported())
+            sendMessage(new SendHeadersMessage());
+        if (vUseCompactBlocks && blockChain != null && vPeerVersionMessage.isCompactBlocksSupported())
+            sendMessage(new SendCmpctMessage(params, isCompactBlockHighBandwidth()));
+    }
+
+    /**
+     * Whether the remote peer should push new blocks to us as compact blocks straight away. That only pays off for the
+     * download peer, and only if we download full blocks rather than filtered ones.
+     */
+    private boolean isCompactBlockHighBandwidth() {
+        lock.lock();
+        try {
+            return vDownloadData && !(vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void processSendCmpct(SendCmpctMessage m) {
+        if (m.getVersion() == SendCmpctMessage.COMPACT_BLOCKS_VERSION) {
+            log.debug("{}: Peer supports compact blocks", this);
+            vPeerSupportsCompactBlocks = true;
         }
     }
 
+    protected void processCompactBlock(CompactBlock m) {
+        if (log.isDebugEnabled())
+            log.debug("{}: Received {}", getAddress(), m);
+        if (blockChain == null) {
+            log.debug("Received compact block but was not configured with an AbstractBlockChain");
+            return;
+        }
+        if (!vDownloadData) {
+            log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash());
+            return;
+        }
+        final Sha256Hash blockHash = m.getHash();
+        try {
+            if (blockChain.getBlockStore().get(blockHash) != null) {
+                pendingBlockDownloads.remove(blockHash);
+                return;
+            }
+            // Reconstruction is unlikely to succeed for a block that doesn't connect, so get that one in full. This
+            // also takes care of fetching the blocks in between.
+            if (blockChain.getBlockStore().get(m.getHeader().getPrevBlockHash()) == null) {
+                requestFullBlock(blockHash);
+                return;
+            }
+        } catch (BlockStoreException e) {
+            log.warn("{}: Failed to look up block store for compact block", getAddress(), e);
+            return;
+        }
+        List<Transaction> candidates = new ArrayList<>(context.getConfidenceTable().getRecentTransactions());
+        for (Wallet wallet : wallets)
+            candidates.addAll(wallet.getPendingTransactions());
+        PartiallyDownloadedBlock partialBlock = new PartiallyDownloadedBlock(m, candidates);
+        if (partialBlock.hasShortIdCollision()) {
+            log.info("{}: Short ID collision in compact block {}, downloading it in full", getAddress(), blockHash);
+            requestFullBlock(blockHash);
+        } else if (partialBlock.isComplete()) {
+            completeCompactBlock(partialBlock);
+        } else {
+            List<Integer> missing = partialBlock.getMissingIndexes();
+            log.debug("{}: Requesting {} of {} transactions of compact block {}", getAddress(), missing.size(),
+                    m.getTransactionCount(), blockHash);
+            lock.lock();
+            try {
+                expirePendingCompactBlocksLocked();
+                pendingCompactBlocks.put(blockHash, new PendingCompactBlock(partialBlock));
+                if (pendingCompactBlocks.size() > MAX_PENDING_COMPACT_BLOCKS)
+                    dropPendingCompactBlockLocked(pendingCompactBlocks.keySet().iterator().next());
+            } finally {
+                lock.unlock();
+            }
+            sendMessage(new GetBlockTxnMessage(params, blockHash, missing));
+        }
+    }
+
+    /** Forgets compact blocks the peer didn't send the missing transactions of in time. */
+    @GuardedBy("lock")
+    private void expirePendingCompactBlocksLocked() {
+        long cutoff = Utils.currentTimeMillis() - COMPACT_BLOCK_TIMEOUT_MSEC;
+        while (!pendingCompactBlocks.isEmpty()) {
+            Map.Entry<Sha256Hash, PendingCompactBlock> oldest = pendingCompactBlocks.entrySet().iterator().next();
+            if (oldest.getValue().requestTimeMillis > cutoff)
+                break;
+            log.info("{}: Timed out waiting for the transactions of compact block {}", getAddress(), oldest.getKey());
+            dropPendingCompactBlockLocked(oldest.getKey());
+        }
+    }
+
+    /** Forgets a compact block, so it can be downloaded again when it is announced. */
+    @GuardedBy("lock")
+    private void dropPendingCompactBlockLocked(Sha256Hash blockHash) {
+        pendingCompactBlocks.remove(blockHash);
+        pendingBlockDownloads.remove(blockHash);
+    }
+
+    protected void processBlockTxn(BlockTxnMessage m) {
+        PartiallyDownloadedBlock partialBlock;
+        lock.lock();
+        try {
+            PendingCompactBlock pending = pendingCompactBlocks.remove(m.getBlockHash());
+            partialBlock = pending != null ? pending.partialBlock : null;
+        } finally {
+            lock.unlock();
+        }
+        if (partialBlock == null) {
+            log.debug("{}: Received transactions for a block we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        if (!partialBlock.fillMissing(m.getTransactions())) {
+            log.warn("{}: Got {} transactions for compact block {} but asked for {}", getAddress(),
+                    m.getTransactions().size(), m.getBlockHash(), partialBlock.getMissingIndexes().size());
+            misbehaviourCount.incrementAndGet();
+            requestFullBlock(m.getBlockHash());
+            return;
+        }
+        completeCompactBlock(partialBlock);
+    }
+
+    private void completeCompactBlock(PartiallyDownloadedBlock partialBlock) {
+        Block block = partialBlock.build();
+        if (block == null) {
+            Sha256Hash blockHash = partialBlock.getCompactBlock().getHash();
+            log.info("{}: Reconstructed compact block {} doesn't match its merkle root, downloading it in full",
+                    getAddress(), blockHash);
+            requestFullBlock(blockHash);
+            return;
+        }
+        processBlock(block);
+    }
+
+    /** Requests the given block in full, regardless of whether it was requested before. */
+    private void requestFullBlock(Sha256Hash blockHash) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blockHash);
+        lock.lock();
+        try {
+            pendingBlockDownloads.add(blockHash);
+        } finally {
+            lock.unlock();
+        }
+        sendMessage(getdata);
+    }
+
     protected void startFilteredBlock(FilteredBlock m) {
         // Filtered blocks come before the data that they refer to, so stash it here and then fill it out as
         // messages stream in. We'll call endFilteredBlock when a non-tx message arrives (eg, another
@@ -670,10 +875,10 @@ public class Peer extends PeerSocketHandler {
     protected void processHeaders(HeadersMessage m) throws ProtocolException {
         // Runs in network loop thread for this peer.
         //
-        // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
-        // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
-        // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
-        // request the full blocks from that point on instead.
+        // This method can run if the peer announces a newly solved block (after we sent it a "sendheaders"), or when
+        // we've requested them as part of chain download using fast catchup. We need to add each block to the chain if
+        // it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and request the
+        // full blocks of the remaining headers instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
@@ -690,8 +895,13 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        if (downloadBlockBodies) {
+            if (!processHeadersContinuation(m))
+                processHeadersAnnouncement(m);
+            return;
+        }
+
         try {
-            checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -708,26 +918,53 @@ public class Peer extends PeerSocketHandler {
                     if (blockChain.add(header)) {
                         // The block was successfully linked into the chain. Notify the user of our progress.
                         invokeOnBlocksDownloaded(header, null);
+                    } else if (i == 0 && vPreferHeaderAnnouncements) {
+                        // A newly solved block announced whilst our getheaders request is still in flight. That
+                        // request will bring us up to date, so we can just drop it.
+                        log.info("{}: Ignoring unconnected header announcement {} during header download", this,
+                                header.getHashAsString());
+                        return;
                     } else {
                         // This block is unconnected - we don't know how to get from it back to the genesis block yet.
                         // That must mean that the peer is buggy or malicious because we specifically requested for
                         // headers that are part of the best chain.
+                        misbehaviourCount.incrementAndGet();
                         throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
                     }
                 } else {
+                    // We already know the hashes of the remaining blocks, so rather than going through another
+                    // getblocks/inv round-trip we ask for their bodies directly. The headers are checked to form a
+                    // chain with valid proof of work first, then their bodies are fetched a window at a time.
+                    verifyHeaderChain(m.getBlockHeaders(), i, null);
+                    GetDataMessage getdata = new GetDataMessage(params);
+                    boolean pingAfterGetData;
                     lock.lock();
                     try {
                         log.info(
-                                "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
+                                "Passed the fast catchup time ({}) at height {}, requesting bodies of the remaining {} headers",
                                 Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
                                 m.getBlockHeaders().size() - i);
                         this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
+                        // Prevent the next request being seen as a duplicate.
                         this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        queuedBodyDownloads.clear();
+                        for (int j = i; j < m.getBlockHeaders().size(); j++)
+                            queuedBodyDownloads.add(m.getBlockHeaders().get(j).getHash());
+                        pingAfterGetData = addQueuedBodiesToGetDataLocked(getdata);
+                        // If the peer had more headers to send, keep fetching them whilst the bodies come in.
+                        headersRequestedAfter = null;
+                        if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS)
+                            headersContinueHash = m.getBlockHeaders().get(m.getBlockHeaders().size() - 1).getHash();
+                        else
+                            headersContinueHash = null;
+                        maybeRequestMoreHeadersLocked();
                     } finally {
                         lock.unlock();
                     }
+                    if (!getdata.getItems().isEmpty())
+                        sendMessage(getdata);
+                    if (pingAfterGetData)
+                        sendMessage(new Ping(BigInteger.valueOf((long) (Math.random() * Long.MAX_VALUE))));
                     return;
                 }
             }
@@ -742,6 +979,7 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         } catch (VerificationException e) {
+            misbehaviourCount.incrementAndGet();
             log.warn("Block header verification failed", e);
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
@@ -749,6 +987,205 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Handles the answer to the getheaders sent by {@link #maybeRequestMoreHeadersLocked()}: the headers are checked to
+     * follow on from the last ones we queued, and their bodies are queued in turn. Returns false if the message is not
+     * that answer, for example a block announcement that arrived in the meantime.
+     */
+    private boolean processHeadersContinuation(HeadersMessage m) {
+        List<Block> headers = m.getBlockHeaders();
+        GetDataMessage getdata = new GetDataMessage(params);
+        boolean pingAfterGetData;
+        lock.lock();
+        try {
+            Sha256Hash requestedAfter = headersRequestedAfter;
+            if (requestedAfter == null)
+                return false;
+            if (headers.isEmpty()) {
+                // The peer has no headers after the ones we have, so the bodies already queued are all there is.
+                headersRequestedAfter = null;
+                headersContinueHash = null;
+                return true;
+            }
+            if (!requestedAfter.equals(headers.get(0).getPrevBlockHash()))
+                return false;
+            headersRequestedAfter = null;
+            if (!requestedAfter.equals(headersContinueHash) || !vDownloadData) {
+                // The download was restarted or handed to another peer since we asked.
+                return true;
+            }
+            try {
+                verifyHeaderChain(headers, 0, requestedAfter);
+            } catch (VerificationException e) {
+                misbehaviourCount.incrementAndGet();
+                log.warn("{}: Block header verification failed, requesting blocks instead", this, e);
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                return true;
+            }
+            for (Block header : headers)
+                queuedBodyDownloads.add(header.getHash());
+            headersContinueHash = headers.size() >= HeadersMessage.MAX_HEADERS
+                    ? headers.get(headers.size() - 1).getHash() : null;
+            pingAfterGetData = addQueuedBodiesToGetDataLocked(getdata);
+            maybeRequestMoreHeadersLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (!getdata.getItems().isEmpty())
+            sendMessage(getdata);
+        if (pingAfterGetData)
+            sendMessage(new Ping(BigInteger.valueOf((long) (Math.random() * Long.MAX_VALUE))));
+        return true;
+    }
+
+    /**
+     * Asks the peer for the headers after {@link #headersContinueHash}, unless there are none, we asked already or
+     * enough bodies are queued to keep the window busy for now.
+     */
+    @GuardedBy("lock")
+    private void maybeRequestMoreHeadersLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (headersContinueHash == null || headersRequestedAfter != null
+                || queuedBodyDownloads.size() >= MAX_QUEUED_BODY_DOWNLOADS)
+            return;
+        headersRequestedAfter = headersContinueHash;
+        sendMessage(new GetHeadersMessage(params, Collections.singletonList(headersContinueHash), Sha256Hash.ZERO_HASH));
+    }
+
+    /**
+     * Handles a headers message that arrived whilst we are downloading block bodies, which happens when the peer
+     * announces newly solved blocks to us as a result of {@link SendHeadersMessage}. We request the bodies of the
+     * announced blocks, or fall back to a getblocks if they don't connect to anything we know about.
+     */
+    private void processHeadersAnnouncement(HeadersMessage m) {
+        List<Block> headers = m.getBlockHeaders();
+        if (headers.isEmpty())
+            return;
+        BlockStore store = blockChain.getBlockStore();
+        if (!vDownloadData) {
+            // Just count the ones we don't have yet, so getBestChainHeight() stays accurate.
+            try {
+                for (Block header : headers)
+                    if (store.get(header.getHash()) == null)
+                        blocksAnnounced.incrementAndGet();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+        GetDataMessage getdata = new GetDataMessage(params);
+        boolean pingAfterGetData = false;
+        lock.lock();
+        try {
+            Sha256Hash prevHash = headers.get(0).getPrevBlockHash();
+            if (blockChain.getBlockStore().get(prevHash) == null && !blockChain.isOrphan(prevHash)) {
+                // We are missing blocks between our chain head and the announcement, so catch up the usual way.
+                log.info("{}: Header announcement {} does not connect, requesting blocks", this,
+                        headers.get(0).getHashAsString());
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                return;
+            }
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                // Another peer may have given us the block already.
+                if (store.get(hash) != null)
+                    continue;
+                if (!blockChain.isOrphan(hash))
+                    blocksAnnounced.incrementAndGet();
+                pingAfterGetData |= addBlockToGetDataLocked(getdata, hash);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        if (!getdata.getItems().isEmpty())
+            sendMessage(getdata);
+        if (pingAfterGetData)
+            sendMessage(new Ping(BigInteger.valueOf((long) (Math.random() * Long.MAX_VALUE))));
+    }
+
+    /**
+     * Adds a request for the given block to the getdata message, unless we already asked for it. Returns true if a
+     * filtered block was requested, in which case the caller has to send a ping after the getdata.
+     */
+    @GuardedBy("lock")
+    private boolean addBlockToGetDataLocked(GetDataMessage getdata, Sha256Hash blockHash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!pendingBlockDownloads.add(blockHash))
+            return false;
+        if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
+            getdata.addFilteredBlock(blockHash);
+            return true;
+        } else if (vUseCompactBlocks && vPeerSupportsCompactBlocks && blockChain != null
+                && getBestHeight() - blockChain.getBestChainHeight() <= 1) {
+            // Only newly solved blocks are likely to consist of transactions we've seen relayed already.
+            getdata.addCompactBlock(blockHash);
+            return false;
+        } else {
+            getdata.addBlock(blockHash);
+            return false;
+        }
+    }
+
+    /**
+     * Checks that the headers from {@code from} on are valid and each builds on the one before, and that the first of
+     * them builds on the given hash, else the header before it in the message or, if there is none, a block we know
+     * about.
+     */
+    private void verifyHeaderChain(List<Block> headers, int from, @Nullable Sha256Hash prevHash)
+            throws VerificationException {
+        if (prevHash == null && from > 0)
+            prevHash = headers.get(from - 1).getHash();
+        try {
+            if (prevHash == null && blockChain.getBlockStore().get(headers.get(from).getPrevBlockHash()) == null)
+                throw new VerificationException("Headers don't connect to our chain: " + headers.get(from).getHashAsString());
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        for (int i = from; i < headers.size(); i++) {
+            Block header = headers.get(i);
+            if (prevHash != null && !prevHash.equals(header.getPrevBlockHash()))
+                throw new VerificationException("Headers don't form a chain at " + header.getHashAsString());
+            header.verifyHeader();
+            prevHash = header.getHash();
+        }
+    }
+
+    /**
+     * Moves queued block bodies to the getdata message until the window of bodies in flight is full. Returns true if
+     * filtered blocks were requested, in which case the caller has to send a ping after the getdata.
+     */
+    @GuardedBy("lock")
+    private boolean addQueuedBodiesToGetDataLocked(GetDataMessage getdata) {
+        boolean pingAfterGetData = false;
+        while (!queuedBodyDownloads.isEmpty() && pendingBlockDownloads.size() < BODY_DOWNLOAD_WINDOW)
+            pingAfterGetData |= addBlockToGetDataLocked(getdata, queuedBodyDownloads.poll());
+        return pingAfterGetData;
+    }
+
+    /**
+     * Called when a requested block has been connected. Tops up the window of queued block bodies in flight, and asks
+     * for the next headers once the queue has drained far enough.
+     */
+    private void maybeContinueHeadersDownload() {
+        GetDataMessage getdata = new GetDataMessage(params);
+        boolean pingAfterGetData = false;
+        lock.lock();
+        try {
+            // Ask for more once half the window has arrived, so requests go out in batches.
+            if (!queuedBodyDownloads.isEmpty() && pendingBlockDownloads.size() <= BODY_DOWNLOAD_WINDOW / 2)
+                pingAfterGetData = addQueuedBodiesToGetDataLocked(getdata);
+            maybeRequestMoreHeadersLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (!getdata.getItems().isEmpty())
+            sendMessage(getdata);
+        if (pingAfterGetData)
+            sendMessage(new Ping(BigInteger.valueOf((long) (Math.random() * Long.MAX_VALUE))));
+    }
+
     protected void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<>();
@@ -770,6 +1207,8 @@ public class Peer extends PeerSocketHandler {
     protected void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        if (vUseCompactBlocks)
+            context.getConfidenceTable().addRecentTransaction(tx);
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
@@ -1001,6 +1440,7 @@ public class Peer extends PeerSocketHandler {
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m, null);
+                maybeContinueHeadersDownload();
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -1034,6 +1474,7 @@ public class Peer extends PeerSocketHandler {
             }
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
+            misbehaviourCount.incrementAndGet();
             log.warn("{}: Block verification failed", getAddress(), e);
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
@@ -1105,6 +1546,7 @@ public class Peer extends PeerSocketHandler {
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m.getBlockHeader(), m);
+                maybeContinueHeadersDownload();
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -1131,6 +1573,7 @@ public class Peer extends PeerSocketHandler {
             }
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
+            misbehaviourCount.incrementAndGet();
             log.warn("{}: FilteredBlock verification failed", getAddress(), e);
         } catch (PrunedException e) {
             // We pruned away some of the data we need to properly handle this block. We need to request the needed
@@ -1270,15 +1713,7 @@ public class Peer extends PeerSocketHandler {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But Bitcoin Core may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
-                            if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
-                                getdata.addFilteredBlock(item.hash);
-                                pingAfterGetData = true;
-                            } else {
-                                getdata.addItem(item);
-                            }
-                            pendingBlockDownloads.add(item.hash);
-                        }
+                        pingAfterGetData |= addBlockToGetDataLocked(getdata, item.hash);
                     }
                 }
                 // If we're downloading the chain, doing a getdata on the last block we were told about will cause the
@@ -1383,6 +1818,37 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * If set to true, the remote peer is asked during the version handshake to announce new blocks with a "headers"
+     * message instead of an inv (see <a href="https://github.com/bitcoin/bips/blob/master/bip-0130.mediawiki">BIP 130</a>),
+     * so the bodies of newly solved blocks can be requested straight away. Has to be set before connecting and only
+     * has an effect if the peer supports it.
+     */
+    public void setPreferHeaderAnnouncements(boolean preferHeaderAnnouncements) {
+        this.vPreferHeaderAnnouncements = preferHeaderAnnouncements;
+    }
+
+    /** Returns whether the remote peer will be asked to announce new blocks with headers. */
+    public boolean getPreferHeaderAnnouncements() {
+        return vPreferHeaderAnnouncements;
+    }
+
+    /**
+     * If set to true, newly solved blocks are downloaded using compact block relay (see
+     * <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>) when full blocks are
+     * downloaded. Such blocks are reconstructed from transactions we've seen relayed already, so only the missing
+     * ones are transferred. If this peer is the download peer, it's asked to push new blocks to us without announcing
+     * them first. Has to be set before connecting and only has an effect if the peer supports it.
+     */
+    public void setUseCompactBlocks(boolean useCompactBlocks) {
+        this.vUseCompactBlocks = useCompactBlocks;
+    }
+
+    /** Returns whether compact block relay will be used if the peer supports it. */
+    public boolean getUseCompactBlocks() {
+        return vUseCompactBlocks;
+    }
+
     /**
      * Links the given wallet to this peer. If you have multiple peers, you should use a {@link PeerGroup} to manage
      * them and use the {@link PeerGroup#addWallet(Wallet)} method instead of registering the wallet with each peer
@@ -1479,6 +1945,10 @@ public class Peer extends PeerSocketHandler {
         // block being solved during chain download.
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
+        // Any pending continuation after a headers message is covered by this request. An answer to a getheaders
+        // still in flight is recognised as such and dropped, see processHeadersContinuation.
+        headersContinueHash = null;
+        queuedBodyDownloads.clear();
 
         if (downloadBlockBodies) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
@@ -1615,6 +2085,43 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Returns the average rate, in bytes per second, at which this peer has served us blocks, headers and transactions
+     * since the connection was opened.
+     */
+    public long getBytesPerSecond() {
+        long connectedAt = vConnectedAtMillis;
+        if (connectedAt == 0)
+            return 0;
+        long elapsed = Math.max(1000, Utils.currentTimeMillis() - connectedAt);
+        return dataBytesReceived.get() * 1000 / elapsed;
+    }
+
+    /** Returns when the connection to this peer was opened, or zero if it wasn't yet. */
+    long getConnectedAtMillis() {
+        return vConnectedAtMillis;
+    }
+
+    /** Returns how many bytes of blocks, headers and transactions this peer has sent us. */
+    public long getDataBytesReceived() {
+        return dataBytesReceived.get();
+    }
+
+    /** Records that this peer served us the block chain unacceptably slowly. Called by {@link PeerGroup}. */
+    void recordStall() {
+        stallCount.incrementAndGet();
+    }
+
+    /** Returns how many times this peer stalled the chain download. */
+    public int getStallCount() {
+        return stallCount.get();
+    }
+
+    /** Returns how many times this peer sent us blocks or headers that failed verification. */
+    public int getMisbehaviourCount() {
+        return misbehaviourCount.get();
+    }
+
     private void processPing(Ping m) {
         if (m.hasNonce())
             sendMessage(new Pong(m.getNonce()));
@@ -1665,7 +2172,24 @@ public class Peer extends PeerSocketHandler {
      * a request to the remote peer for the contents of its memory pool, if Bloom filtering is active.
      */
     public void setDownloadData(boolean downloadData) {
+        boolean changed = this.vDownloadData != downloadData;
         this.vDownloadData = downloadData;
+        if (!downloadData) {
+            lock.lock();
+            try {
+                queuedBodyDownloads.clear();
+                headersContinueHash = null;
+                // Another peer downloads the chain now, it will get these blocks.
+                for (Sha256Hash blockHash : new ArrayList<>(pendingCompactBlocks.keySet()))
+                    dropPendingCompactBlockLocked(blockHash);
+            } finally {
+                lock.unlock();
+            }
+        }
+        // Move the remote peer in or out of high bandwidth compact block relay along with the download peer status.
+        if (changed && vUseCompactBlocks && blockChain != null && versionHandshakeFuture.isDone()
+                && !versionHandshakeFuture.isCancelled() && vPeerVersionMessage.isCompactBlocksSupported())
+            sendMessage(new SendCmpctMessage(params, isCompactBlockHighBandwidth()));
     }
 
     /** Returns version data announced by the remote peer. */
@@ -144,6 +144,10 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private int maxConnections;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion;
+    // Whether connected peers are asked to announce new blocks with headers rather than inv messages.
+    private volatile boolean vPreferHeaderAnnouncements = true;
+    // Whether newly solved blocks are fetched with compact block relay when downloading full blocks.
+    private volatile boolean vUseCompactBlocks = true;
 
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
@@ -160,6 +164,21 @@ public class PeerGroup implements TransactionBroadcaster {
     // peer can fetch them.
     private final PeerListener peerListener = new PeerListener();
 
+    // Remembers peer addresses across restarts, if set.
+    @Nullable private volatile PeerAddressDatabase vAddressDatabase;
+    // Saves the address database on our own thread, so network threads never wait for the disk.
+    @GuardedBy("lock") @Nullable private ListenableScheduledFuture<?> addressDatabaseSaveTask;
+    // Feeds addresses gossiped by peers into the address database.
+    private final PreMessageReceivedEventListener addressListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressDatabase addressDatabase = vAddressDatabase;
+            if (addressDatabase != null && m instanceof AddressMessage)
+                addressDatabase.addAddresses(((AddressMessage) m).getAddresses());
+            return m;
+        }
+    };
+
     private int minBroadcastConnections = 0;
     private final ScriptsChangeEventListener walletScriptEventListener = new ScriptsChangeEventListener() {
         @Override public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
@@ -931,6 +950,8 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             this.requiredServices = requiredServices;
             peerDiscoverers.clear();
+            if (vAddressDatabase != null)
+                peerDiscoverers.add(vAddressDatabase);
             addPeerDiscovery(MultiplexingDiscovery.forServices(params, requiredServices));
         } finally {
             lock.unlock();
@@ -957,6 +978,47 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Sets a database that remembers peer addresses across restarts. It is consulted before any other discovery
+     * source, and if it knows enough addresses the others aren't queried at all, so a restarted app can reconnect to
+     * its previous peers right away. It learns from addresses gossiped by peers and from the outcome of connections.
+     * It is saved on the peer group thread every {@link PeerAddressDatabase#SAVE_INTERVAL_MSEC} if it changed, and
+     * when the peer group is stopped.
+     */
+    public void setPeerAddressDatabase(PeerAddressDatabase addressDatabase) {
+        lock.lock();
+        try {
+            List<PeerDiscovery> others = new ArrayList<>(peerDiscoverers);
+            if (vAddressDatabase != null)
+                others.remove(vAddressDatabase);
+            vAddressDatabase = checkNotNull(addressDatabase);
+            peerDiscoverers.clear();
+            peerDiscoverers.add(addressDatabase);
+            peerDiscoverers.addAll(others);
+            if (addressDatabaseSaveTask == null) {
+                addressDatabaseSaveTask = executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        PeerAddressDatabase addressDatabase = vAddressDatabase;
+                        if (addressDatabase != null)
+                            addressDatabase.saveIfDirty();
+                    }
+                }, PeerAddressDatabase.SAVE_INTERVAL_MSEC, PeerAddressDatabase.SAVE_INTERVAL_MSEC,
+                        TimeUnit.MILLISECONDS);
+            }
+            if (getMaxConnections() == 0)
+                setMaxConnections(DEFAULT_CONNECTIONS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the peer address database, or null if none was set. */
+    @Nullable
+    public PeerAddressDatabase getPeerAddressDatabase() {
+        return vAddressDatabase;
+    }
+
     /** Returns number of discovered peers. */
     protected int discoverPeers() throws PeerDiscoveryException {
         // Don't hold the lock whilst doing peer discovery: it can take a long time and cause high API latency.
@@ -967,29 +1029,54 @@ public class PeerGroup implements TransactionBroadcaster {
         final List<PeerAddress> addressList = Lists.newLinkedList();
         for (PeerDiscovery peerDiscovery : peerDiscoverers /* COW */) {
             InetSocketAddress[] addresses;
-            addresses = peerDiscovery.getPeers(requiredServices, peerDiscoveryTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (peerDiscovery instanceof MultiplexingDiscovery) {
+                // Start connecting as soon as the fastest seeds filled our slots, the others are added as they come in.
+                int wanted = Math.max(1, getMaxConnections() - addressList.size());
+                addresses = ((MultiplexingDiscovery) peerDiscovery).getPeers(requiredServices,
+                        peerDiscoveryTimeoutMillis, TimeUnit.MILLISECONDS, wanted, lateDiscoveryListener);
+            } else {
+                addresses = peerDiscovery.getPeers(requiredServices, peerDiscoveryTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
             for (InetSocketAddress address : addresses) addressList.add(new PeerAddress(params, address));
             if (addressList.size() >= maxPeersToDiscoverCount) break;
+            // Remembered addresses are usually good enough to fill our slots, and don't need slow DNS lookups.
+            if (peerDiscovery == vAddressDatabase && addressList.size() >= getMaxConnections()) break;
         }
-        if (!addressList.isEmpty()) {
-            for (PeerAddress address : addressList) {
-                addInactive(address);
-            }
-            final ImmutableSet<PeerAddress> peersDiscoveredSet = ImmutableSet.copyOf(addressList);
-            for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onPeersDiscovered(peersDiscoveredSet);
-                    }
-                });
-            }
-        }
+        addDiscoveredPeers(addressList);
         watch.stop();
         log.info("Peer discovery took {} and returned {} items", watch, addressList.size());
         return addressList.size();
     }
 
+    private void addDiscoveredPeers(List<PeerAddress> addressList) {
+        if (addressList.isEmpty())
+            return;
+        for (PeerAddress address : addressList) {
+            addInactive(address);
+        }
+        final ImmutableSet<PeerAddress> peersDiscoveredSet = ImmutableSet.copyOf(addressList);
+        for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onPeersDiscovered(peersDiscoveredSet);
+                }
+            });
+        }
+    }
+
+    // Receives the addresses of seeds that answered after discoverPeers() already returned.
+    private final MultiplexingDiscovery.Listener lateDiscoveryListener = new MultiplexingDiscovery.Listener() {
+        @Override
+        public void onPeersDiscovered(PeerDiscovery seed, InetSocketAddress[] addresses) {
+            List<PeerAddress> addressList = Lists.newArrayList();
+            for (InetSocketAddress address : addresses) addressList.add(new PeerAddress(params, address));
+            addDiscoveredPeers(addressList);
+            if (vRunning)
+                triggerConnections();
+        }
+    };
+
     @VisibleForTesting
     void waitForJobQueue() {
         Futures.getUnchecked(executor.submit(Runnables.doNothing()));
@@ -1383,6 +1470,8 @@ public class PeerGroup implements TransactionBroadcaster {
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setPreferHeaderAnnouncements(vPreferHeaderAnnouncements);
+        peer.setUseCompactBlocks(vUseCompactBlocks);
         pendingPeers.add(peer);
 
         try {
@@ -1524,6 +1613,7 @@ public class PeerGroup implements TransactionBroadcaster {
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, peerListener);
             peer.addGetDataEventListener(Threading.SAME_THREAD, peerListener);
+            peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, addressListener);
 
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
             for (ListenerRegistration<BlocksDownloadedEventListener> registration : peersBlocksDownloadedEventListeners)
@@ -1543,6 +1633,13 @@ public class PeerGroup implements TransactionBroadcaster {
             lock.unlock();
         }
 
+        PeerAddressDatabase addressDatabase = vAddressDatabase;
+        if (addressDatabase != null) {
+            addressDatabase.recordSuccess(peer.getAddress().toSocketAddress());
+            // Ask the peer for more addresses to remember, they'll be picked up by the addressListener.
+            peer.getAddr();
+        }
+
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerConnectedEventListener> registration : peerConnectedEventListeners) {
             registration.executor.execute(new Runnable() {
@@ -1595,6 +1692,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (downloadListener != null) {
                     removeDataEventListenerFromPeer(downloadPeer, downloadListener);
                 }
+                // The old peer may stay connected, e.g. after a stall. Its announcements must not count towards the
+                // download speed any more, or they could hide a stall of the new download peer.
+                if (chainDownloadSpeedCalculator != null)
+                    downloadPeer.removeBlocksDownloadedEventListener(chainDownloadSpeedCalculator);
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
@@ -1657,10 +1758,11 @@ public class PeerGroup implements TransactionBroadcaster {
 
         int numPeers;
         int numConnectedPeers = 0;
+        boolean wasConnected;
         lock.lock();
         try {
             pendingPeers.remove(peer);
-            peers.remove(peer);
+            wasConnected = peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1700,8 +1802,19 @@ public class PeerGroup implements TransactionBroadcaster {
             lock.unlock();
         }
 
+        PeerAddressDatabase addressDatabase = vAddressDatabase;
+        if (addressDatabase != null) {
+            InetSocketAddress socketAddress = peer.getAddress().toSocketAddress();
+            if (wasConnected)
+                addressDatabase.recordDisconnect(socketAddress, Utils.currentTimeMillis() - peer.getConnectedAtMillis(),
+                        peer.getPingTime());
+            else
+                addressDatabase.recordFailure(socketAddress);
+        }
+
         peer.removeBlocksDownloadedEventListener(peerListener);
         peer.removeGetDataEventListener(peerListener);
+        peer.removePreMessageReceivedEventListener(addressListener);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
@@ -1810,6 +1923,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 lock.unlock();
             }
 
+            Peer stalledPeer = null;
             synchronized (this) {
                 if (samples == null || samples.length != period) {
                     samples = new long[period];
@@ -1846,9 +1960,8 @@ public class PeerGroup implements TransactionBroadcaster {
                                 // deal.
                                 log.warn("This network seems to be slower than the requested stall threshold - won't do stall disconnects any more.");
                             } else {
-                                Peer peer = getDownloadPeer();
-                                log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer));
-                                peer.close();
+                                stalledPeer = getDownloadPeer();
+                                log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec from %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, stalledPeer));
                                 // Reset the sample buffer and give the next peer time to get going.
                                 samples = null;
                                 warmupSeconds = period;
@@ -1866,8 +1979,36 @@ public class PeerGroup implements TransactionBroadcaster {
                 origTxnsInLastSecond = 0;
                 bytesInLastSecond = 0;
             }
+            if (stalledPeer != null)
+                handleStall(stalledPeer);
         }
     }
+
+    /**
+     * Called when the download peer served us the chain too slowly. Moves the download over to the best other peer
+     * if there is one, so the stalled peer can still be used for transaction relay. Otherwise the stalled peer is
+     * disconnected so we'll find a new one.
+     */
+    private void handleStall(Peer stalledPeer) {
+        stalledPeer.recordStall();
+        lock.lock();
+        try {
+            if (stalledPeer != downloadPeer)
+                return;
+            List<Peer> others = new ArrayList<>(peers);
+            others.remove(stalledPeer);
+            Peer newDownloadPeer = selectDownloadPeer(others);
+            if (newDownloadPeer != null && chain != null && chain.getBestChainHeight() < newDownloadPeer.getBestHeight()) {
+                log.info("Switching download peer from {} to {}", stalledPeer, newDownloadPeer);
+                startBlockChainDownloadFromPeer(newDownloadPeer);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.info("No better download peer than {}, disconnecting it", stalledPeer);
+        stalledPeer.close();
+    }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
     private void startBlockChainDownloadFromPeer(Peer peer) {
@@ -2147,6 +2288,34 @@ public class PeerGroup implements TransactionBroadcaster {
         return vMinRequiredProtocolVersion;
     }
 
+    /**
+     * Sets whether newly connected peers are asked to announce new blocks with a "headers" message instead of an inv,
+     * which saves a round-trip for every newly solved block. Defaults to true. See
+     * {@link Peer#setPreferHeaderAnnouncements(boolean)}.
+     */
+    public void setPreferHeaderAnnouncements(boolean preferHeaderAnnouncements) {
+        this.vPreferHeaderAnnouncements = preferHeaderAnnouncements;
+    }
+
+    /** Returns whether newly connected peers are asked to announce new blocks with headers. */
+    public boolean getPreferHeaderAnnouncements() {
+        return vPreferHeaderAnnouncements;
+    }
+
+    /**
+     * Sets whether newly connected peers use compact block relay for newly solved blocks, so that transactions we've
+     * already seen relayed don't have to be downloaded again. Only applies when full blocks are downloaded rather
+     * than filtered ones. Defaults to true. See {@link Peer#setUseCompactBlocks(boolean)}.
+     */
+    public void setUseCompactBlocks(boolean useCompactBlocks) {
+        this.vUseCompactBlocks = useCompactBlocks;
+    }
+
+    /** Returns whether newly connected peers use compact block relay. */
+    public boolean getUseCompactBlocks() {
+        return vUseCompactBlocks;
+    }
+
     /**
      * Returns our peers most commonly reported chain height. If multiple heights are tied, the highest is returned.
      * If no peers are connected, returns zero.
@@ -2181,7 +2350,9 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Randomly, to try and spread the load.
+        //  - Best score (latency, throughput, stalls and misbehaviour, see PeerScore)
+        //  - Randomly amongst peers scored within PeerScore.TIE_MARGIN of the best, to try and spread the load and so
+        //    that connecting first doesn't decide which peer we download from.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -2207,8 +2378,30 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
-        int index = (int) (Math.random() * candidates2.size());
-        return candidates2.get(index);
+        List<PeerScore> scores = new ArrayList<>(candidates2.size());
+        for (Peer peer : candidates2)
+            scores.add(PeerScore.of(peer));
+        Collections.sort(scores, PeerScore.BEST_FIRST);
+        int ties = 1;
+        while (ties < scores.size()
+                && scores.get(0).getScore() - scores.get(ties).getScore() <= PeerScore.TIE_MARGIN)
+            ties++;
+        PeerScore selected = scores.get((int) (Math.random() * ties));
+        log.debug("Selected download peer {}", selected);
+        return selected.getPeer();
+    }
+
+    /**
+     * Returns the scores of all connected peers, best first. This is what {@link #selectDownloadPeer(List)} bases its
+     * choice on once chain height and protocol version have been taken into account, so it can be used to see why a
+     * particular peer was chosen.
+     */
+    public List<PeerScore> getPeerScores() {
+        List<PeerScore> scores = new ArrayList<>();
+        for (Peer peer : getConnectedPeers())
+            scores.add(PeerScore.of(peer));
+        Collections.sort(scores, PeerScore.BEST_FIRST);
+        return scores;
     }
 
     /**
@@ -0,0 +1,123 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A snapshot of how well a {@link Peer} has been serving us, used by {@link PeerGroup} to pick the download peer.
+ * Higher scores are better. The score rewards throughput of block and transaction data and penalises round-trip
+ * latency, download stalls and misbehaviour such as sending blocks that fail verification.</p>
+ *
+ * <p>Peers we don't have measurements for yet are assumed to have a latency of {@link #DEFAULT_PING_TIME_MSEC} and no
+ * throughput, so a freshly connected peer doesn't win over one that has proven itself.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class PeerScore {
+    /** The latency assumed for peers that haven't answered a ping yet. */
+    public static final long DEFAULT_PING_TIME_MSEC = 1000;
+    /** Latency above this is not penalised any further. */
+    public static final long MAX_PING_TIME_MSEC = 10000;
+    /** How many points a single download stall costs. */
+    public static final double STALL_PENALTY = 10;
+    /** How many points a single instance of misbehaviour costs. */
+    public static final double MISBEHAVIOUR_PENALTY = 25;
+    /**
+     * Scores at most this far apart are considered equally good. Freshly connected peers all score the same, and small
+     * differences in latency are mostly noise.
+     */
+    public static final double TIE_MARGIN = 1;
+
+    /** Orders scores from best to worst. */
+    public static final Comparator<PeerScore> BEST_FIRST = new Comparator<PeerScore>() {
+        @Override
+        public int compare(PeerScore a, PeerScore b) {
+            return Double.compare(b.score, a.score);
+        }
+    };
+
+    private final Peer peer;
+    private final long pingTimeMsec;
+    private final long bytesPerSecond;
+    private final int stallCount;
+    private final int misbehaviourCount;
+    private final double score;
+
+    public PeerScore(Peer peer, long pingTimeMsec, long bytesPerSecond, int stallCount, int misbehaviourCount) {
+        this.peer = checkNotNull(peer);
+        this.pingTimeMsec = pingTimeMsec;
+        this.bytesPerSecond = bytesPerSecond;
+        this.stallCount = stallCount;
+        this.misbehaviourCount = misbehaviourCount;
+        this.score = calculateScore(pingTimeMsec, bytesPerSecond, stallCount, misbehaviourCount);
+    }
+
+    /** Takes a snapshot of the current measurements of the given peer. */
+    public static PeerScore of(Peer peer) {
+        return new PeerScore(peer, peer.getPingTime(), peer.getBytesPerSecond(), peer.getStallCount(),
+                peer.getMisbehaviourCount());
+    }
+
+    /**
+     * Calculates the score from its components: one point per doubling of throughput in KB/sec, minus one point per
+     * 100 msec of latency, minus the stall and misbehaviour penalties.
+     */
+    public static double calculateScore(long pingTimeMsec, long bytesPerSecond, int stallCount, int misbehaviourCount) {
+        long ping = pingTimeMsec == Long.MAX_VALUE ? DEFAULT_PING_TIME_MSEC : Math.min(pingTimeMsec, MAX_PING_TIME_MSEC);
+        double throughput = Math.log1p(Math.max(0, bytesPerSecond) / 1024.0) / Math.log(2);
+        return throughput - ping / 100.0 - stallCount * STALL_PENALTY - misbehaviourCount * MISBEHAVIOUR_PENALTY;
+    }
+
+    public Peer getPeer() {
+        return peer;
+    }
+
+    /** Moving average of the ping time, or {@link Long#MAX_VALUE} if the peer never answered a ping. */
+    public long getPingTimeMsec() {
+        return pingTimeMsec;
+    }
+
+    /** Average rate at which the peer served us block and transaction data since we connected. */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /** How many times the peer stalled the chain download. */
+    public int getStallCount() {
+        return stallCount;
+    }
+
+    /** How many times the peer sent us data that failed verification. */
+    public int getMisbehaviourCount() {
+        return misbehaviourCount;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: score %.2f (ping %s, %.2f KB/sec, %d stalls, %d misbehaviours)", peer,
+                score, pingTimeMsec == Long.MAX_VALUE ? "unknown" : pingTimeMsec + " msec", bytesPerSecond / 1024.0,
+                stallCount, misbehaviourCount);
+    }
+}
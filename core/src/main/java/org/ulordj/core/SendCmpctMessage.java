@@ -0,0 +1,89 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>The "sendcmpct" message tells the remote peer that we understand compact block relay. In high bandwidth mode the
+ * peer pushes new blocks to us as {@link CompactBlock} messages without announcing them first, otherwise it keeps
+ * announcing them with an inv or headers message and we can request the compact form with a getdata.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SendCmpctMessage extends Message {
+    /** The only version of compact block relay we speak, which uses txids rather than wtxids for short IDs. */
+    public static final long COMPACT_BLOCKS_VERSION = 1;
+
+    private boolean highBandwidth;
+    private long version;
+
+    public SendCmpctMessage(NetworkParameters params, boolean highBandwidth) {
+        super(params);
+        this.highBandwidth = highBandwidth;
+        this.version = COMPACT_BLOCKS_VERSION;
+    }
+
+    public SendCmpctMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        highBandwidth = readBytes(1)[0] != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(highBandwidth ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    /** Whether new blocks should be pushed to the sender without announcing them first. */
+    public boolean isHighBandwidth() {
+        return highBandwidth;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SendCmpctMessage other = (SendCmpctMessage) o;
+        return highBandwidth == other.highBandwidth && version == other.version;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(highBandwidth, version);
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: version " + version + (highBandwidth ? ", high bandwidth" : ", low bandwidth");
+    }
+}
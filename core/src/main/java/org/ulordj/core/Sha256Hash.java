@@ -20,12 +20,15 @@ package org.ulordj.core;
 import com.google.common.io.ByteStreams;
 import com.google.common.primitives.*;
 import org.ulord.hello.CryptoHelloContext;
+import org.ulord.hello.NativeHash;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -40,6 +43,23 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // Whether to hash through the native library, decided once when the class is loaded.
+    private static final boolean NATIVE = NativeHash.isEnabled();
+
+    // Digests are reused by each thread rather than created for every hash.
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+    private static final ThreadLocal<RIPEMD160Digest> RIPEMD160 = new ThreadLocal<RIPEMD160Digest>() {
+        @Override
+        protected RIPEMD160Digest initialValue() {
+            return new RIPEMD160Digest();
+        }
+    };
+
     private final byte[] bytes;
 
     // Used to convert byte[] to hex string
@@ -214,7 +234,13 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        checkRange(input, offset, length);
+        if (NATIVE) {
+            byte[] output = new byte[LENGTH];
+            NativeHash.sha256(input, offset, length, output);
+            return output;
+        }
+        MessageDigest digest = digest();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -240,7 +266,13 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        checkRange(input, offset, length);
+        if (NATIVE) {
+            byte[] output = new byte[LENGTH];
+            NativeHash.sha256Twice(input, offset, length, output);
+            return output;
+        }
+        MessageDigest digest = digest();
         digest.update(input, offset, length);
         return digest.digest(digest.digest());
     }
@@ -251,12 +283,73 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        checkRange(input1, offset1, length1);
+        checkRange(input2, offset2, length2);
+        MessageDigest digest = digest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the double SHA-256 hash of each of {@code count} consecutive items of {@code itemLength} bytes at the
+     * start of the array, for example the pairs of child hashes of a merkle tree level. With the native library all
+     * of them are hashed in a single call.
+     *
+     * @return the {@code count} hashes one after the other, each in big-endian order
+     */
+    public static byte[] hashTwiceEach(byte[] input, int itemLength, int count) {
+        checkArgument(itemLength >= 0 && count >= 0 && (long) itemLength * count <= input.length, "Bad arguments");
+        byte[] output = new byte[count * LENGTH];
+        if (NATIVE) {
+            NativeHash.sha256TwiceEach(input, itemLength, count, output);
+            return output;
+        }
+        MessageDigest digest = digest();
+        try {
+            for (int i = 0; i < count; i++) {
+                digest.update(input, i * itemLength, itemLength);
+                digest.update(digest.digest());
+                digest.digest(output, i * LENGTH, LENGTH);
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return output;
+    }
+
+    /**
+     * Calculates the RIPEMD-160 hash of the SHA-256 hash of the given byte range, as used for addresses. See also
+     * {@link Utils#sha256hash160(byte[])}.
+     */
+    public static byte[] hash160(byte[] input, int offset, int length) {
+        checkRange(input, offset, length);
+        byte[] output = new byte[20];
+        if (NATIVE) {
+            NativeHash.sha256hash160(input, offset, length, output);
+            return output;
+        }
+        byte[] sha256 = hash(input, offset, length);
+        RIPEMD160Digest digest = RIPEMD160.get();
+        digest.reset();
+        digest.update(sha256, 0, sha256.length);
+        digest.doFinal(output, 0);
+        return output;
+    }
+
+    // The digest of this thread, reset in case an earlier caller left it half used.
+    private static MessageDigest digest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    // Checks arguments the way MessageDigest does, so the native path fails the same way rather than reading outside
+    // the array.
+    private static void checkRange(byte[] input, int offset, int length) {
+        checkArgument(offset >= 0 && length >= 0 && length <= input.length - offset, "Bad arguments");
+    }
+
     public static byte[] cryptoHelloHash(byte[] input, int offset, int length) {
         byte[] newInput = Arrays.copyOfRange(input, offset, length);
         byte[] output = new byte[LENGTH];
@@ -0,0 +1,242 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.ulordj.core.Transaction.SigHash;
+import org.ulordj.crypto.TransactionSignature;
+import org.ulordj.script.Script;
+import org.ulordj.script.ScriptOpCodes;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Calculates the signature hashes of all inputs of a transaction without serializing the transaction again for each
+ * of them, like {@link Transaction#hashForSignatureWithCopy(int, byte[], byte)} does. The inputs without their scripts
+ * and the outputs are serialized once, and each signature hash is put together from those pieces. For
+ * {@link SigHash#ALL} the SHA-256 state after the inputs before the one being signed is kept as well, so only the rest
+ * of the transaction is hashed again.</p>
+ *
+ * <p>Transactions with witnesses are passed on to {@link Transaction}.</p>
+ *
+ * <p>The transaction must not be changed while the cache is used, except for input scripts, which are never part of the
+ * hash. {@link Transaction} drops the cache it keeps for itself whenever it's changed. The cache can be used from
+ * several threads at once.</p>
+ */
+public class SigHashCache {
+    // An input is serialized as the outpoint, the script and the sequence number. Without a script it's this long.
+    private static final int BLANK_INPUT_LENGTH = TransactionOutPoint.MESSAGE_LENGTH + 1 + 4;
+    // An input other than the one being signed, for SIGHASH_NONE and SIGHASH_SINGLE: no script and sequence number 0.
+    private static final byte[] BLANK_SCRIPT_ZERO_SEQUENCE = new byte[1 + 4];
+    // An output before the one being signed, for SIGHASH_SINGLE: a value of -1 and no script.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    // What Bitcoin Core returns for SIGHASH_SINGLE without a matching output, see Transaction.
+    private static final Sha256Hash SINGLE_WITHOUT_OUTPUT =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final Transaction tx;
+    private final boolean fastPath;
+    private final int numInputs;
+    // Version and input count.
+    private final byte[] prefix;
+    // All inputs with an empty script, in order.
+    private final byte[] blankInputs;
+    // Output count and outputs. Output i starts at outputOffsets[i], the last offset is the end.
+    private final byte[] outputs;
+    private final int[] outputOffsets;
+    private final byte[] lockTime;
+    // For SIGHASH_ALL: the state after the prefix, the inputs before input i and the outpoint of input i. Only as many
+    // as have been needed so far.
+    @GuardedBy("this") private final List<MessageDigest> midstates;
+    @GuardedBy("this") private final MessageDigest nextMidstate;
+
+    public SigHashCache(Transaction tx) {
+        this.tx = checkNotNull(tx);
+        this.fastPath = !tx.hasWitnesses();
+        this.numInputs = tx.getInputs().size();
+        if (!fastPath) {
+            prefix = blankInputs = outputs = lockTime = null;
+            outputOffsets = null;
+            midstates = null;
+            nextMidstate = null;
+            return;
+        }
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(16);
+            Utils.uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(new VarInt(numInputs).encode());
+            prefix = bos.toByteArray();
+
+            bos = new UnsafeByteArrayOutputStream(numInputs * BLANK_INPUT_LENGTH);
+            for (TransactionInput input : tx.getInputs()) {
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                Utils.uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            blankInputs = bos.toByteArray();
+
+            List<TransactionOutput> txOutputs = tx.getOutputs();
+            outputOffsets = new int[txOutputs.size() + 1];
+            bos = new UnsafeByteArrayOutputStream(256);
+            bos.write(new VarInt(txOutputs.size()).encode());
+            for (int i = 0; i < txOutputs.size(); i++) {
+                outputOffsets[i] = bos.size();
+                txOutputs.get(i).bitcoinSerialize(bos);
+            }
+            outputOffsets[txOutputs.size()] = bos.size();
+            outputs = bos.toByteArray();
+
+            bos = new UnsafeByteArrayOutputStream(4);
+            Utils.uint32ToByteStreamLE(tx.getLockTime(), bos);
+            lockTime = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        midstates = new ArrayList<>(numInputs);
+        nextMidstate = Sha256Hash.newDigest();
+        nextMidstate.update(prefix);
+    }
+
+    /** Returns the transaction the hashes are calculated for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Calculates the same hash as {@link Transaction#hashForSignature(int, byte[], byte)}.
+     *
+     * @param inputIndex input the signature is being calculated for.
+     * @param connectedScript the scriptPubKey of the output being spent, or the P2SH redeem script.
+     * @param sigHashType the signature hash type byte, as it is appended to signatures.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (!fastPath)
+            return tx.hashForSignatureWithCopy(inputIndex, connectedScript, sigHashType);
+        checkElementIndex(inputIndex, numInputs);
+        boolean none = (sigHashType & 0x1f) == SigHash.NONE.value;
+        boolean single = (sigHashType & 0x1f) == SigHash.SINGLE.value;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        if (single && inputIndex >= outputOffsets.length - 1)
+            return SINGLE_WITHOUT_OUTPUT;
+        byte[] script = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        int offset = inputIndex * BLANK_INPUT_LENGTH;
+        int sequenceOffset = offset + TransactionOutPoint.MESSAGE_LENGTH + 1;
+
+        MessageDigest digest;
+        if (anyoneCanPay) {
+            // Only the input being signed.
+            digest = Sha256Hash.newDigest();
+            digest.update(prefix, 0, 4);
+            digest.update((byte) 1);
+            digest.update(blankInputs, offset, TransactionOutPoint.MESSAGE_LENGTH);
+            updateScript(digest, script);
+            digest.update(blankInputs, sequenceOffset, 4);
+        } else if (none || single) {
+            // The other inputs have their sequence numbers set to 0.
+            digest = Sha256Hash.newDigest();
+            digest.update(prefix);
+            for (int i = 0; i < numInputs; i++) {
+                digest.update(blankInputs, i * BLANK_INPUT_LENGTH, TransactionOutPoint.MESSAGE_LENGTH);
+                if (i == inputIndex) {
+                    updateScript(digest, script);
+                    digest.update(blankInputs, sequenceOffset, 4);
+                } else {
+                    digest.update(BLANK_SCRIPT_ZERO_SEQUENCE);
+                }
+            }
+        } else {
+            digest = getMidstate(inputIndex);
+            updateScript(digest, script);
+            // Its sequence number and the inputs after it.
+            digest.update(blankInputs, sequenceOffset, blankInputs.length - sequenceOffset);
+        }
+
+        if (none) {
+            digest.update((byte) 0);
+        } else if (single) {
+            // The outputs up to the one at the same index as the input, all but that one nulled out.
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs, outputOffsets[inputIndex], outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+        } else {
+            digest.update(outputs);
+        }
+        digest.update(lockTime);
+        // The hash type is written as a uint32.
+        digest.update(new byte[] { sigHashType, 0, 0, 0 });
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
+
+    /**
+     * Calculates the same hash as {@link Transaction#hashForSignature(int, byte[], SigHash, boolean)}.
+     *
+     * @param inputIndex input the signature is being calculated for.
+     * @param connectedScript the scriptPubKey of the output being spent, or the P2SH redeem script.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, SigHash type, boolean anyoneCanPay) {
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+        return hashForSignature(inputIndex, connectedScript, sigHashType);
+    }
+
+    /** Like {@link #hashForSignature(int, byte[], SigHash, boolean)}. */
+    public Sha256Hash hashForSignature(int inputIndex, Script connectedScript, SigHash type, boolean anyoneCanPay) {
+        return hashForSignature(inputIndex, connectedScript.getProgram(), type, anyoneCanPay);
+    }
+
+    /**
+     * Calculates a signature like {@link Transaction#calculateSignature(int, ECKey, byte[], SigHash, boolean)}.
+     */
+    public TransactionSignature calculateSignature(int inputIndex, ECKey key, byte[] redeemScript, SigHash type,
+                                                   boolean anyoneCanPay) {
+        Sha256Hash hash = hashForSignature(inputIndex, redeemScript, type, anyoneCanPay);
+        return new TransactionSignature(key.sign(hash), type, anyoneCanPay);
+    }
+
+    /** Returns a copy of the SIGHASH_ALL state for the given input, hashing the inputs up to it if not done yet. */
+    private synchronized MessageDigest getMidstate(int inputIndex) {
+        while (midstates.size() <= inputIndex) {
+            int offset = midstates.size() * BLANK_INPUT_LENGTH;
+            if (offset > 0) {
+                // The rest of the previous input: its empty script and sequence number.
+                nextMidstate.update(blankInputs, offset - 5, 5);
+            }
+            nextMidstate.update(blankInputs, offset, TransactionOutPoint.MESSAGE_LENGTH);
+            midstates.add(copy(nextMidstate));
+        }
+        return copy(midstates.get(inputIndex));
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Cannot happen, SHA-256 digests can be cloned.
+        }
+    }
+
+    private static void updateScript(MessageDigest digest, byte[] script) {
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+    }
+}
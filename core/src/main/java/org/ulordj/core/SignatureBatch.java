@@ -0,0 +1,149 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.ulordj.core.ECKey.ECDSASignature;
+import com.google.common.base.Throwables;
+import com.google.protobuf.ByteString;
+import org.ulord.Secp256k1Context;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Collects ECDSA signature checks so they can be verified together rather than one at a time as they come up, for
+ * example while checking the inputs of a transaction. Each entry gives the same result as
+ * {@link ECKey#verify(byte[], ECDSASignature, byte[])}, except that an entry whose public key can't be decoded fails
+ * instead of throwing.</p>
+ *
+ * <p>Without the native secp256k1 library each distinct public key is decoded only once per batch, and all entries
+ * for it share the decoded point along with what Bouncy Castle precomputes for it.</p>
+ *
+ * <p>Entries can be added from several threads, but not while the batch is being verified.</p>
+ */
+public class SignatureBatch {
+    // How many entries one task verifies when the batch is spread over an executor.
+    private static final int ENTRIES_PER_TASK = 32;
+
+    private static class Entry {
+        final byte[] hash;
+        final ECDSASignature signature;
+        final byte[] pubKey;
+
+        Entry(byte[] hash, ECDSASignature signature, byte[] pubKey) {
+            this.hash = hash;
+            this.signature = signature;
+            this.pubKey = pubKey;
+        }
+    }
+
+    @GuardedBy("this") private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Adds a check of the signature over the hash by the given public key.
+     *
+     * @return the index of the entry in this batch.
+     */
+    public synchronized int add(byte[] hash, ECDSASignature signature, byte[] pubKey) {
+        entries.add(new Entry(checkNotNull(hash), checkNotNull(signature), checkNotNull(pubKey)));
+        return entries.size() - 1;
+    }
+
+    /** Returns the number of entries added so far. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Verifies all entries on the calling thread and returns the indexes of those that failed. */
+    public BitSet verify() {
+        return verify(null);
+    }
+
+    /**
+     * Verifies all entries and returns the indexes of those that failed. If an executor is given, the entries are
+     * split into tasks for it and this method waits for all of them.
+     */
+    public BitSet verify(@Nullable ExecutorService executor) {
+        final List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(this.entries);
+        }
+        final ConcurrentMap<ByteString, ECPublicKeyParameters> keys = new ConcurrentHashMap<>();
+        BitSet failed = new BitSet(entries.size());
+        if (executor == null || entries.size() <= ENTRIES_PER_TASK) {
+            for (int i = 0; i < entries.size(); i++)
+                if (!verify(entries.get(i), keys))
+                    failed.set(i);
+            return failed;
+        }
+        try {
+            List<Future<BitSet>> futures = new ArrayList<>();
+            for (int start = 0; start < entries.size(); start += ENTRIES_PER_TASK) {
+                final int taskStart = start;
+                final int taskEnd = Math.min(start + ENTRIES_PER_TASK, entries.size());
+                futures.add(executor.submit(new Callable<BitSet>() {
+                    @Override
+                    public BitSet call() {
+                        BitSet taskFailed = new BitSet(taskEnd);
+                        for (int i = taskStart; i < taskEnd; i++)
+                            if (!verify(entries.get(i), keys))
+                                taskFailed.set(i);
+                        return taskFailed;
+                    }
+                }));
+            }
+            for (Future<BitSet> future : futures)
+                failed.or(future.get());
+            return failed;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static boolean verify(Entry entry, ConcurrentMap<ByteString, ECPublicKeyParameters> keys) {
+        try {
+            if (ECKey.FAKE_SIGNATURES || Secp256k1Context.isEnabled())
+                return ECKey.verify(entry.hash, entry.signature, entry.pubKey);
+            ByteString pubKey = ByteString.copyFrom(entry.pubKey);
+            ECPublicKeyParameters params = keys.get(pubKey);
+            if (params == null) {
+                params = new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(entry.pubKey), ECKey.CURVE);
+                ECPublicKeyParameters existing = keys.putIfAbsent(pubKey, params);
+                if (existing != null)
+                    params = existing;
+            }
+            return ECKey.verify(entry.hash, entry.signature, params);
+        } catch (IllegalArgumentException e) {
+            // The public key couldn't be decoded, or the native library rejected the input.
+            return false;
+        }
+    }
+}
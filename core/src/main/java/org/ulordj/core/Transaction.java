@@ -41,6 +41,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 import static org.ulordj.core.Utils.*;
@@ -144,6 +145,12 @@ public class Transaction extends ChildMessage {
     // inputs via outpoints.
     private Sha256Hash hash;
 
+    // This is an in memory helper only. It holds the serialized pieces signature hashes are made of, so verifying all
+    // inputs doesn't serialize the transaction again for each of them. Only weakly held, so transactions kept around
+    // after they were signed or verified, like the ones in a wallet, don't keep it alive.
+    // Dropped by unCache(), like the hash, whenever the transaction changes.
+    @Nullable private volatile WeakReference<SigHashCache> sigHashCache;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
 
@@ -531,6 +538,7 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashCache = null;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -634,7 +642,7 @@ public class Transaction extends ChildMessage {
         for (int i = 0; i < numWitnesses; i++) {
             long pushCount = readVarInt();
             TransactionWitness witness = new TransactionWitness((int) pushCount);
-            getInput(i).setWitness(witness);
+            getInput(i).setParsedWitness(witness);
             optimalEncodingMessageSize += VarInt.sizeOf(pushCount);
             for (int y = 0; y < pushCount; y++) {
                 long pushSize = readVarInt();
@@ -1105,6 +1113,20 @@ public class Transaction extends ChildMessage {
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
     public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        WeakReference<SigHashCache> ref = sigHashCache;
+        SigHashCache cache = ref == null ? null : ref.get();
+        if (cache == null) {
+            cache = new SigHashCache(this);
+            sigHashCache = new WeakReference<>(cache);
+        }
+        return cache.hashForSignature(inputIndex, connectedScript, sigHashType);
+    }
+
+    /**
+     * Calculates a signature hash by copying the transaction and changing the copy as the signature hash type says.
+     * {@link SigHashCache} does the same without copying, but falls back to this for transactions with witnesses.
+     */
+    /* package private */ Sha256Hash hashForSignatureWithCopy(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
@@ -1300,6 +1322,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
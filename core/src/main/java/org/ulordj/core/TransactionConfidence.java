@@ -31,8 +31,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -57,8 +55,12 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>Once attached to a {@link ChainHeight} via {@link #setChainHeight(ChainHeight)}, the depth of a BUILDING
+ * transaction is derived from the height it appeared at and the height of the best chain, so nothing has to touch
+ * the confidence object when a new block arrives. As confidence objects are shared through the
+ * {@link TxConfidenceTable}, a transaction in several wallets is attached to the chain height of each of them, and
+ * the highest of those counts. Without a chain height the depth is whatever was last set with
+ * {@link #setDepthInBlocks(int)} or {@link #incrementDepthInBlocks()}.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -76,8 +78,65 @@ public class TransactionConfidence {
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. Only used as long as
+    // the depth can't be derived from the chain height.
     private int depth;
+    // The best chain heights as seen by the owners of this object, usually wallets. Replaced rather than modified
+    // whilst holding the lock on this object, so it can be iterated without.
+    private volatile ChainHeight[] chainHeights = NO_CHAIN_HEIGHTS;
+    private static final ChainHeight[] NO_CHAIN_HEIGHTS = new ChainHeight[0];
+
+    /**
+     * <p>The height of the best chain as seen by the owner of a set of confidence objects, usually a {@link Wallet}.
+     * Confidence objects attached to it derive their depth from it, and it keeps track of which of them have event
+     * listeners other than the owner's own, so the owner can tell only those about new blocks.</p>
+     *
+     * <p>This class is thread safe.</p>
+     */
+    public static class ChainHeight {
+        private volatile int height = -1;
+        @Nullable private final Listener ownerListener;
+        private final Set<TransactionConfidence> subscribed =
+                Collections.synchronizedSet(new HashSet<TransactionConfidence>());
+
+        /**
+         * @param ownerListener A listener the owner registers on all its confidence objects, which doesn't count as a
+         *                      subscription.
+         */
+        public ChainHeight(@Nullable Listener ownerListener) {
+            this.ownerListener = ownerListener;
+        }
+
+        /** Returns the height of the best chain, or -1 if no block was seen yet. */
+        public int get() {
+            return height;
+        }
+
+        public void set(int height) {
+            this.height = height;
+        }
+
+        /** Returns a snapshot of the attached confidence objects that have event listeners other than the owner's. */
+        public List<TransactionConfidence> getSubscribed() {
+            synchronized (subscribed) {
+                return new ArrayList<>(subscribed);
+            }
+        }
+
+        private void update(TransactionConfidence confidence) {
+            boolean hasListeners = false;
+            for (ListenerRegistration<Listener> registration : confidence.listeners) {
+                if (registration.listener != ownerListener) {
+                    hasListeners = true;
+                    break;
+                }
+            }
+            if (hasListeners)
+                subscribed.add(confidence);
+            else
+                subscribed.remove(confidence);
+        }
+    }
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -211,6 +270,8 @@ public class TransactionConfidence {
         checkNotNull(listener);
         listeners.addIfAbsent(new ListenerRegistration<>(listener, executor));
         pinnedConfidenceObjects.add(this);
+        for (ChainHeight chainHeight : chainHeights)
+            chainHeight.update(this);
     }
 
     /**
@@ -232,9 +293,58 @@ public class TransactionConfidence {
         boolean removed = ListenerRegistration.removeFromList(listener, listeners);
         if (listeners.isEmpty())
             pinnedConfidenceObjects.remove(this);
+        for (ChainHeight chainHeight : chainHeights)
+            chainHeight.update(this);
         return removed;
     }
 
+    /**
+     * Attaches this confidence object to the given chain height, from then on the depth of a BUILDING transaction is
+     * derived from it. If the height the transaction appeared at isn't known, it's inferred from the current depth.
+     * A transaction that is in several wallets is attached to the chain height of each of them, and its depth is
+     * derived from the highest one, as not all wallets may have been told about the latest block yet.
+     */
+    public void setChainHeight(ChainHeight chainHeight) {
+        checkNotNull(chainHeight);
+        synchronized (this) {
+            for (ChainHeight attached : chainHeights)
+                if (attached == chainHeight)
+                    return;
+            if (chainHeights.length == 0 && confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight < 0
+                    && chainHeight.get() >= 0 && depth > 0)
+                appearedAtChainHeight = Math.max(0, chainHeight.get() - depth + 1);
+            ChainHeight[] attached = Arrays.copyOf(chainHeights, chainHeights.length + 1);
+            attached[chainHeights.length] = chainHeight;
+            chainHeights = attached;
+        }
+        chainHeight.update(this);
+    }
+
+    /**
+     * Detaches this confidence object from the given chain height, if it follows it. Once the last one is detached,
+     * the depth it had at that moment is kept, as if it was set with {@link #setDepthInBlocks(int)}.
+     */
+    public void clearChainHeight(ChainHeight chainHeight) {
+        checkNotNull(chainHeight);
+        synchronized (this) {
+            int index = Arrays.asList(chainHeights).indexOf(chainHeight);
+            if (index < 0)
+                return;
+            if (chainHeights.length == 1)
+                depth = getDepthInBlocks();
+            ChainHeight[] attached = new ChainHeight[chainHeights.length - 1];
+            System.arraycopy(chainHeights, 0, attached, 0, index);
+            System.arraycopy(chainHeights, index + 1, attached, index, attached.length - index);
+            chainHeights = attached;
+        }
+        chainHeight.subscribed.remove(this);
+    }
+
+    /** Returns the chain heights this confidence object derives its depth from, usually one per wallet. */
+    public List<ChainHeight> getChainHeights() {
+        return Collections.unmodifiableList(Arrays.asList(chainHeights));
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -366,8 +476,9 @@ public class TransactionConfidence {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * Updates the internal counter that tracks how deeply buried the block is, for confidence objects that aren't
+     * attached to a {@link ChainHeight}. For attached ones the depth is derived from the chain height instead, which
+     * makes calling this pointless.
      *
      * @return the new depth
      */
@@ -386,11 +497,19 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (chainHeights.length > 0 && confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0) {
+            int height = -1;
+            for (ChainHeight chainHeight : chainHeights)
+                height = Math.max(height, chainHeight.get());
+            // The owners may not have seen the block the transaction appeared in as their best block yet.
+            return Math.max(1, height - appearedAtChainHeight + 1);
+        }
         return depth;
     }
 
-    /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+    /**
+     * Set the depth in blocks. Having one block confirmation is a depth of one. This has no effect on the depth of
+     * BUILDING transactions that is derived from a {@link ChainHeight}.
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
@@ -441,6 +560,8 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            // The copy doesn't follow the chain height, so it keeps the depth of this moment.
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
@@ -73,7 +73,11 @@ public class TransactionInput extends ChildMessage {
     // The "script bytes" might not actually be a script. In coinbase transactions where new coins are minted there
     // is no input transaction, so instead the scriptBytes contains some extra stuff (like a rollover nonce) that we
     // don't care about much. The bytes are turned into a Script object (cached below) on demand via a getter.
-    private byte[] scriptBytes;
+    private volatile byte[] scriptBytes;
+    // In parse retain mode the script bytes are left in the payload until someone asks for them, and scriptBytes is
+    // null until then. No initializers, as parse() sets these before field initializers would run.
+    private int scriptOffset;
+    private int scriptLen;
     // The Script object obtained from parsing scriptBytes. Only filled in on demand and if the transaction is not
     // coinbase.
     private WeakReference<Script> scriptSig;
@@ -151,14 +155,41 @@ public class TransactionInput extends ChildMessage {
     protected void parse() throws ProtocolException {
         outpoint = new TransactionOutPoint(params, payload, cursor, this, serializer);
         cursor += outpoint.getMessageSize();
-        int scriptLen = (int) readVarInt();
+        scriptLen = (int) readVarInt();
         length = cursor - offset + scriptLen + 4;
-        scriptBytes = readBytes(scriptLen);
+        if (serializer.isParseRetainMode()) {
+            scriptOffset = skipBytes(scriptLen);
+        } else {
+            scriptBytes = readBytes(scriptLen);
+        }
         sequence = readUint32();
     }
 
+    /**
+     * Returns the script bytes, copying them out of the payload the first time if they are still in there. Readers on
+     * several threads may each make a copy, all of them the same.
+     */
+    private byte[] scriptBytes() {
+        byte[] scriptBytes = this.scriptBytes;
+        if (scriptBytes != null)
+            return scriptBytes;
+        byte[] payload = this.payload;
+        if (payload == null)
+            return this.scriptBytes; // Never parsed, or unCache() just took the script out.
+        this.scriptBytes = scriptBytes = Arrays.copyOfRange(payload, scriptOffset, scriptOffset + scriptLen);
+        return scriptBytes;
+    }
+
+    @Override
+    protected void unCache() {
+        // The payload goes away, so take the script out of it first.
+        scriptBytes();
+        super.unCache();
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        byte[] scriptBytes = scriptBytes();
         outpoint.bitcoinSerialize(stream);
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
@@ -182,7 +213,7 @@ public class TransactionInput extends ChildMessage {
         // parameter is overloaded to be something totally different.
         Script script = scriptSig == null ? null : scriptSig.get();
         if (script == null) {
-            script = new Script(scriptBytes);
+            script = new Script(scriptBytes());
             scriptSig = new WeakReference<>(script);
         }
         return script;
@@ -231,7 +262,7 @@ public class TransactionInput extends ChildMessage {
      * @return the scriptBytes
      */
     public byte[] getScriptBytes() {
-        return scriptBytes;
+        return scriptBytes();
     }
 
     /** Clear input scripts, e.g. in preparation for signing. */
@@ -243,10 +274,10 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
-        unCache();
+        super.unCache(); // No need to copy out a script that is about to be replaced.
+        this.scriptBytes = scriptBytes;
         this.scriptSig = null;
         int oldLength = length;
-        this.scriptBytes = scriptBytes;
         // 40 = previous_outpoint (36) + sequence (4)
         int newLength = 40 + (scriptBytes == null ? 1 : VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
         adjustLength(newLength - oldLength);
@@ -280,6 +311,12 @@ public class TransactionInput extends ChildMessage {
      * Set the transaction witness of an input.
      */
     public void setWitness(TransactionWitness witness) {
+        unCache();
+        this.witness = witness;
+    }
+
+    // Used while the parent transaction is parsed, when its payload must not be dropped.
+    /* package private */ void setParsedWitness(TransactionWitness witness) {
         this.witness = witness;
     }
 
@@ -509,12 +546,12 @@ public class TransactionInput extends ChildMessage {
         if (o == null || getClass() != o.getClass()) return false;
         TransactionInput other = (TransactionInput) o;
         return sequence == other.sequence && parent == other.parent
-            && outpoint.equals(other.outpoint) && Arrays.equals(scriptBytes, other.scriptBytes);
+            && outpoint.equals(other.outpoint) && Arrays.equals(scriptBytes(), other.scriptBytes());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(sequence, outpoint, Arrays.hashCode(scriptBytes));
+        return Objects.hashCode(sequence, outpoint, Arrays.hashCode(scriptBytes()));
     }
 
     /**
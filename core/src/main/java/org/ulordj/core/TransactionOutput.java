@@ -43,7 +43,7 @@ public class TransactionOutput extends ChildMessage {
 
     // A transaction output has a script used for authenticating that the redeemer is allowed to spend
     // this output.
-    private byte[] scriptBytes;
+    private volatile byte[] scriptBytes;
 
     // The script bytes are parsed and turned into a Script on demand.
     private Script scriptPubKey;
@@ -57,6 +57,11 @@ public class TransactionOutput extends ChildMessage {
 
     private int scriptLen;
 
+    // In parse retain mode the script is left in the payload until someone asks for it, scriptOffset is where it
+    // starts and scriptBytes is null until then. These have no initializers as they are set by parse(), which runs
+    // before field initializers would.
+    private int scriptOffset;
+
     /**
      * Deserializes a transaction output message. This is usually part of a transaction message.
      */
@@ -114,7 +119,7 @@ public class TransactionOutput extends ChildMessage {
 
     public Script getScriptPubKey() throws ScriptException {
         if (scriptPubKey == null) {
-            scriptPubKey = new Script(scriptBytes);
+            scriptPubKey = new Script(scriptBytes());
         }
         return scriptPubKey;
     }
@@ -141,12 +146,38 @@ public class TransactionOutput extends ChildMessage {
         value = readInt64();
         scriptLen = (int) readVarInt();
         length = cursor - offset + scriptLen;
-        scriptBytes = readBytes(scriptLen);
+        if (serializer.isParseRetainMode()) {
+            scriptOffset = skipBytes(scriptLen);
+        } else {
+            scriptBytes = readBytes(scriptLen);
+        }
+    }
+
+    /**
+     * Returns the script bytes, copying them out of the payload the first time if they are still in there. Readers on
+     * several threads may each make a copy, all of them the same.
+     */
+    private byte[] scriptBytes() {
+        byte[] scriptBytes = this.scriptBytes;
+        if (scriptBytes != null)
+            return scriptBytes;
+        byte[] payload = this.payload;
+        if (payload == null)
+            return this.scriptBytes; // Never parsed, or unCache() just took the script out.
+        this.scriptBytes = scriptBytes = Arrays.copyOfRange(payload, scriptOffset, scriptOffset + scriptLen);
+        return scriptBytes;
+    }
+
+    @Override
+    protected void unCache() {
+        // The payload goes away, so take the script out of it first.
+        scriptBytes();
+        super.unCache();
     }
 
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        checkNotNull(scriptBytes);
+        byte[] scriptBytes = checkNotNull(scriptBytes());
         Utils.int64ToByteStreamLE(value, stream);
         // TODO: Move script serialization into the Script class, where it belongs.
         stream.write(new VarInt(scriptBytes.length).encode());
@@ -271,7 +302,7 @@ public class TransactionOutput extends ChildMessage {
      * @return the scriptBytes
     */
     public byte[] getScriptBytes() {
-        return scriptBytes;
+        return scriptBytes();
     }
 
     /**
@@ -391,6 +422,7 @@ public class TransactionOutput extends ChildMessage {
 
     /** Returns a copy of the output detached from its containing transaction, if need be. */
     public TransactionOutput duplicateDetached() {
+        byte[] scriptBytes = scriptBytes();
         return new TransactionOutput(params, null, Coin.valueOf(value), Arrays.copyOf(scriptBytes, scriptBytes.length));
     }
 
@@ -400,11 +432,11 @@ public class TransactionOutput extends ChildMessage {
         if (o == null || getClass() != o.getClass()) return false;
         TransactionOutput other = (TransactionOutput) o;
         return value == other.value && (parent == null || (parent == other.parent && getIndex() == other.getIndex()))
-                && Arrays.equals(scriptBytes, other.scriptBytes);
+                && Arrays.equals(scriptBytes(), other.scriptBytes());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(value, parent, Arrays.hashCode(scriptBytes));
+        return Objects.hashCode(value, parent, Arrays.hashCode(scriptBytes()));
     }
 }
@@ -55,6 +55,10 @@ public class TxConfidenceTable {
     // if our peers flood us with invs but the MAX_SIZE param caps this.
     private ReferenceQueue<TransactionConfidence> referenceQueue;
 
+    // The most recently relayed transactions, kept so that compact blocks can be reconstructed without downloading
+    // transactions we've already seen. Bounded like the table itself.
+    private LinkedHashMap<Sha256Hash, Transaction> recentTransactions;
+
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
@@ -73,6 +77,12 @@ public class TxConfidenceTable {
             }
         };
         referenceQueue = new ReferenceQueue<>();
+        recentTransactions = new LinkedHashMap<Sha256Hash, Transaction>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> entry) {
+                return size() > size;
+            }
+        };
     }
 
     /**
@@ -192,4 +202,27 @@ public class TxConfidenceTable {
             lock.unlock();
         }
     }
+
+    /**
+     * Remembers a transaction that was relayed to us, so it's available for reconstructing compact blocks. Only the
+     * most recent transactions are kept, up to the size of the table.
+     */
+    public void addRecentTransaction(Transaction tx) {
+        lock.lock();
+        try {
+            recentTransactions.put(tx.getHash(), tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of the transactions remembered by {@link #addRecentTransaction(Transaction)}. */
+    public List<Transaction> getRecentTransactions() {
+        lock.lock();
+        try {
+            return new ArrayList<>(recentTransactions.values());
+        } finally {
+            lock.unlock();
+        }
+    }
 }
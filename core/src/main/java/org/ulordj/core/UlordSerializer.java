@@ -73,6 +73,10 @@ public class UlordSerializer extends MessageSerializer {
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
         names.put(SendHeadersMessage.class, "sendheaders");
+        names.put(SendCmpctMessage.class, "sendcmpct");
+        names.put(CompactBlock.class, "cmpctblock");
+        names.put(GetBlockTxnMessage.class, "getblocktxn");
+        names.put(BlockTxnMessage.class, "blocktxn");
     }
 
     /**
@@ -233,6 +237,14 @@ public class UlordSerializer extends MessageSerializer {
             return new GetUTXOsMessage(params, payloadBytes);
         } else if (command.equals("sendheaders")) {
             return new SendHeadersMessage(params, payloadBytes);
+        } else if (command.equals("sendcmpct")) {
+            return new SendCmpctMessage(params, payloadBytes);
+        } else if (command.equals("cmpctblock")) {
+            message = new CompactBlock(params, payloadBytes);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTxnMessage(params, payloadBytes);
+        } else if (command.equals("blocktxn")) {
+            message = new BlockTxnMessage(params, payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
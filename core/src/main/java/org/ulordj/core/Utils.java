@@ -28,8 +28,6 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import org.spongycastle.crypto.digests.RIPEMD160Digest;
-
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
@@ -212,9 +210,14 @@ public class Utils {
 
     /** Parse 32 bytes from the byte array (starting at the offset) as unsigned 256-bit integer in little endian format. */
     public static BigInteger readUint256(byte[] bytes, int offset) {
-        byte[] newBytes = Arrays.copyOfRange(bytes, offset, offset + 32);
-        Sha256Hash data = Sha256Hash.wrapReversed(newBytes);
-        return new BigInteger(Sha256Hash.bytesToHex(data.getBytes()), 16);
+        if (offset < 0 || offset > bytes.length)
+            throw new ArrayIndexOutOfBoundsException(offset);
+        // Bytes past the end of the array read as zeros, pings and pongs rely on that for their 8 byte nonces.
+        int end = Math.min(offset + 32, bytes.length);
+        byte[] bigEndian = new byte[32];
+        for (int i = offset; i < end; i++)
+            bigEndian[31 - (i - offset)] = bytes[i];
+        return new BigInteger(1, bigEndian);
     }
 
     /** Parse 4 bytes from the byte array (starting at the offset) as unsigned 32-bit integer in big endian format. */
@@ -269,12 +272,7 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        byte[] sha256 = Sha256Hash.hash(input);
-        RIPEMD160Digest digest = new RIPEMD160Digest();
-        digest.update(sha256, 0, sha256.length);
-        byte[] out = new byte[20];
-        digest.doFinal(out, 0);
-        return out;
+        return Sha256Hash.hash160(input, 0, input.length);
     }
 
     /**
@@ -287,6 +287,19 @@ public class VersionMessage extends Message {
         return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.BLOOM_FILTER);
     }
 
+    /**
+     * Returns true if the peer understands the "sendheaders" message and will announce new blocks to us with headers
+     * once we have sent it.
+     */
+    public boolean isSendHeadersSupported() {
+        return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.SEND_HEADERS);
+    }
+
+    /** Returns true if the peer may understand the compact block relay messages, starting with "sendcmpct". */
+    public boolean isCompactBlocksSupported() {
+        return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS);
+    }
+
     /** Returns true if the protocol version and service bits both indicate support for the getutxos message. */
     public boolean isGetUTXOsSupported() {
         return clientVersion >= GetUTXOsMessage.MIN_PROTOCOL_VERSION &&
@@ -18,6 +18,7 @@ package org.ulordj.crypto;
 
 import com.google.common.collect.*;
 import org.ulordj.core.*;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.*;
 
 import java.math.*;
@@ -156,6 +157,55 @@ public final class HDKeyDerivation {
         }
     }
 
+    /**
+     * <p>Derives the public keys of the non-hardened children {@code firstChild} to {@code firstChild + count - 1} of
+     * the given parent. This gives the same keys as calling {@link #deriveChildKey(DeterministicKey, ChildNumber)} for
+     * each child on the public key of the parent, but is faster for more than a handful of keys: the parent is
+     * encoded and the HMAC keyed only once, and the derived points are normalized together so the whole call does a
+     * single field inversion rather than one per key.</p>
+     *
+     * <p>The returned keys never have a private key, even if the parent does, and their public keys are already
+     * encoded. Children whose derivation is invalid are left out, so the result may be shorter than requested.</p>
+     */
+    public static List<DeterministicKey> derivePublicChildKeys(DeterministicKey parent, int firstChild, int count) {
+        checkArgument(firstChild >= 0 && count >= 0 && (long) firstChild + count <= (long) Integer.MAX_VALUE + 1,
+                "Can only derive non-hardened children: %s + %s", firstChild, count);
+        ECPoint parentPoint = parent.getPubKeyPoint();
+        byte[] parentPublicKey = parentPoint.getEncoded(true);
+        checkState(parentPublicKey.length == 33, "Parent pubkey must be 33 bytes, but is " + parentPublicKey.length);
+        HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+        ByteBuffer data = ByteBuffer.allocate(37);
+        data.put(parentPublicKey);
+        ECPoint[] points = new ECPoint[count];
+        byte[][] chainCodes = new byte[count][];
+        for (int n = 0; n < count; n++) {
+            data.putInt(33, firstChild + n);
+            byte[] i = HDUtils.hmacSha512(hmac, data.array());
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+            if (ilInt.compareTo(ECKey.CURVE.getN()) > 0)
+                continue; // Illegal derived key: I_L >= n
+            // Left in projective coordinates, they are normalized together below.
+            ECPoint Ki = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+            if (Ki.isInfinity())
+                continue; // Illegal derived key: derived public key equals infinity.
+            points[n] = Ki;
+            chainCodes[n] = Arrays.copyOfRange(i, 32, 64);
+        }
+        ECKey.CURVE.getCurve().normalizeAll(points);
+        List<DeterministicKey> keys = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            if (points[n] == null)
+                continue;
+            keys.add(new DeterministicKey(
+                    HDUtils.append(parent.getPath(), new ChildNumber(firstChild + n)),
+                    chainCodes[n],
+                    new LazyECPoint(ECKey.CURVE.getCurve(), points[n].getEncoded(true)),
+                    null,
+                    parent));
+        }
+        return keys;
+    }
+
     public static RawKeyBytes deriveChildKeyBytesFromPrivate(DeterministicKey parent,
                                                               ChildNumber childNumber) throws HDDerivationException {
         checkArgument(parent.hasPrivKey(), "Parent key must have private key bytes for this method.");
@@ -343,7 +343,10 @@ public class WalletAppKit extends AbstractIdleService {
                 vPeerGroup.setMaxConnections(peerAddresses.length);
                 peerAddresses = null;
             } else if (!params.getId().equals(NetworkParameters.ID_REGTEST)) {
-                vPeerGroup.addPeerDiscovery(discovery != null ? discovery : new DnsDiscovery(params));
+                vPeerGroup.addPeerDiscovery(discovery != null ? discovery
+                        : new DnsDiscovery(params, new DiscoveryCache(new File(directory, filePrefix + ".seeds"))));
+                if (discovery == null)
+                    vPeerGroup.setPeerAddressDatabase(new PeerAddressDatabase(new File(directory, filePrefix + ".peers")));
             }
             vChain.addWallet(vWallet);
             vPeerGroup.addWallet(vWallet);
@@ -0,0 +1,250 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.net.discovery;
+
+import org.ulordj.core.Utils;
+import org.ulordj.utils.Threading;
+
+import com.google.common.net.InetAddresses;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Caches the results of peer discoveries on disk, so that restarting an app doesn't have to wait for DNS or HTTP
+ * seeds again. Wrap a discovery with {@link #wrap(PeerDiscovery)}: as long as its cached result is younger than the
+ * time to live it's returned without asking the seed. Once the result expired the seed is asked again, and if that
+ * fails the expired result is returned instead, as old addresses are better than none.</p>
+ *
+ * <p>Results are keyed by the string representation of the wrapped discovery and the requested services, so each seed
+ * should have a unique and stable {@link Object#toString()}.</p>
+ */
+public class DiscoveryCache {
+    private static final Logger log = LoggerFactory.getLogger(DiscoveryCache.class);
+
+    private static final String HEADER = "# ulordj discovery cache v1";
+    /** How long results are used without asking the seed again, by default. */
+    public static final long DEFAULT_TTL_MSEC = TimeUnit.HOURS.toMillis(1);
+
+    private final File file;
+    private final long ttlMillis;
+    private final ReentrantLock lock = Threading.lock("discoverycache");
+    @GuardedBy("lock") private final Map<String, Entry> entries = new HashMap<>();
+
+    private static class Entry {
+        final long expiryTimeMillis;
+        final InetSocketAddress[] addresses;
+
+        Entry(long expiryTimeMillis, InetSocketAddress[] addresses) {
+            this.expiryTimeMillis = expiryTimeMillis;
+            this.addresses = addresses;
+        }
+    }
+
+    /** Creates a cache stored in the given file, using {@link #DEFAULT_TTL_MSEC}. */
+    public DiscoveryCache(File file) {
+        this(file, DEFAULT_TTL_MSEC);
+    }
+
+    /**
+     * Creates a cache stored in the given file. If the file already exists, the results in it are loaded. A corrupt or
+     * unreadable file is ignored.
+     * @param ttlMillis How long results are used without asking the seed again.
+     */
+    public DiscoveryCache(File file, long ttlMillis) {
+        checkArgument(ttlMillis >= 0);
+        this.file = checkNotNull(file);
+        this.ttlMillis = ttlMillis;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read discovery cache " + file + ", starting with an empty one", e);
+                lock.lock();
+                try {
+                    entries.clear();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Returns a discovery that answers from this cache where possible and asks the given discovery otherwise. */
+    public PeerDiscovery wrap(PeerDiscovery discovery) {
+        return new CachingDiscovery(discovery);
+    }
+
+    /** Returns the cached result for the given key, or null if there is none or it expired. */
+    @Nullable
+    public InetSocketAddress[] get(String key) {
+        return get(key, false);
+    }
+
+    @Nullable
+    private InetSocketAddress[] get(String key, boolean allowExpired) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null || (!allowExpired && entry.expiryTimeMillis <= Utils.currentTimeMillis()))
+                return null;
+            return entry.addresses.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stores a result under the given key and writes the cache to disk. */
+    public void put(String key, InetSocketAddress[] addresses) {
+        lock.lock();
+        try {
+            entries.put(key, new Entry(Utils.currentTimeMillis() + ttlMillis, addresses.clone()));
+            try {
+                saveLocked();
+            } catch (IOException e) {
+                log.warn("Could not save discovery cache", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void saveLocked() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("seeds", null, directory);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                StandardCharsets.UTF_8))) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                StringBuilder line = new StringBuilder();
+                line.append(entry.getKey()).append('\t').append(entry.getValue().expiryTimeMillis).append('\t');
+                for (InetSocketAddress address : entry.getValue().addresses) {
+                    if (address.getAddress() == null)
+                        continue;
+                    line.append(InetAddresses.toAddrString(address.getAddress())).append(',')
+                            .append(address.getPort()).append(' ');
+                }
+                writer.write(line.toString().trim());
+                writer.write('\n');
+            }
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header))
+                throw new IOException("Unknown discovery cache format: " + header);
+            lock.lock();
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 3)
+                        throw new IOException("Malformed line: " + line);
+                    String[] tokens = fields[2].isEmpty() ? new String[0] : fields[2].split(" ");
+                    InetSocketAddress[] addresses = new InetSocketAddress[tokens.length];
+                    for (int i = 0; i < tokens.length; i++) {
+                        String[] parts = tokens[i].split(",");
+                        if (parts.length != 2)
+                            throw new IOException("Malformed address: " + tokens[i]);
+                        addresses[i] = new InetSocketAddress(InetAddresses.forString(parts[0]),
+                                Integer.parseInt(parts[1]));
+                    }
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), addresses));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Answers from the cache where possible. */
+    private class CachingDiscovery implements PeerDiscovery {
+        private final PeerDiscovery discovery;
+
+        CachingDiscovery(PeerDiscovery discovery) {
+            this.discovery = checkNotNull(discovery);
+        }
+
+        @Override
+        public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit)
+                throws PeerDiscoveryException {
+            String key = discovery + "/" + services;
+            InetSocketAddress[] cached = get(key, false);
+            if (cached != null) {
+                log.info("Seed {}: using {} cached addresses", discovery, cached.length);
+                return cached;
+            }
+            try {
+                InetSocketAddress[] addresses = discovery.getPeers(services, timeoutValue, timeoutUnit);
+                if (addresses.length > 0)
+                    put(key, addresses);
+                return addresses;
+            } catch (PeerDiscoveryException e) {
+                InetSocketAddress[] expired = get(key, true);
+                if (expired == null || expired.length == 0)
+                    throw e;
+                log.info("Seed {}: lookup failed, using {} expired cached addresses: {}", discovery, expired.length,
+                        e.getMessage());
+                return expired;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            discovery.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            return discovery.toString();
+        }
+    }
+}
@@ -20,6 +20,7 @@ package org.ulordj.net.discovery;
 import org.ulordj.core.*;
 import org.ulordj.utils.*;
 
+import javax.annotation.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -52,14 +53,33 @@ public class DnsDiscovery extends MultiplexingDiscovery {
      * @param params Network parameters to be used for port information.
      */
     public DnsDiscovery(String[] dnsSeeds, NetworkParameters params) {
-        super(params, buildDiscoveries(params, dnsSeeds));
+        this(dnsSeeds, params, null);
     }
 
-    private static List<PeerDiscovery> buildDiscoveries(NetworkParameters params, String[] seeds) {
+    /**
+     * Supports finding peers through DNS A records, remembering the results in the given cache so they can be reused
+     * across restarts.
+     *
+     * @param params Network parameters to be used for port information.
+     * @param cache Cache for the results of the lookups.
+     */
+    public DnsDiscovery(NetworkParameters params, DiscoveryCache cache) {
+        this(params.getDnsSeeds(), params, cache);
+    }
+
+    private DnsDiscovery(String[] dnsSeeds, NetworkParameters params, @Nullable DiscoveryCache cache) {
+        super(params, buildDiscoveries(params, dnsSeeds, cache));
+    }
+
+    private static List<PeerDiscovery> buildDiscoveries(NetworkParameters params, String[] seeds,
+                                                        @Nullable DiscoveryCache cache) {
         List<PeerDiscovery> discoveries = new ArrayList<>();
-        if (seeds != null)
-            for (String seed : seeds)
-                discoveries.add(new DnsSeedDiscovery(params, seed));
+        if (seeds != null) {
+            for (String seed : seeds) {
+                PeerDiscovery discovery = new DnsSeedDiscovery(params, seed);
+                discoveries.add(cache != null ? cache.wrap(discovery) : discovery);
+            }
+        }
         return discoveries;
     }
 
@@ -73,14 +93,33 @@ public class DnsDiscovery extends MultiplexingDiscovery {
             return Executors.newFixedThreadPool(seeds.size(), new DaemonThreadFactory("DNS seed lookups"));
     }
 
+    /** Looks up the addresses of a host name. Can be replaced by a stand-in for testing. */
+    public interface Resolver {
+        InetAddress[] resolve(String hostname) throws UnknownHostException;
+    }
+
+    /** Resolves host names using the resolver of the operating system. */
+    public static final Resolver SYSTEM_RESOLVER = new Resolver() {
+        @Override
+        public InetAddress[] resolve(String hostname) throws UnknownHostException {
+            return InetAddress.getAllByName(hostname);
+        }
+    };
+
     /** Implements discovery from a single DNS host. */
     public static class DnsSeedDiscovery implements PeerDiscovery {
         private final String hostname;
         private final NetworkParameters params;
+        private final Resolver resolver;
 
         public DnsSeedDiscovery(NetworkParameters params, String hostname) {
+            this(params, hostname, SYSTEM_RESOLVER);
+        }
+
+        public DnsSeedDiscovery(NetworkParameters params, String hostname, Resolver resolver) {
             this.hostname = hostname;
             this.params = params;
+            this.resolver = resolver;
         }
 
         @Override
@@ -88,7 +127,7 @@ public class DnsDiscovery extends MultiplexingDiscovery {
             if (services != 0)
                 throw new PeerDiscoveryException("DNS seeds cannot filter by services: " + services);
             try {
-                InetAddress[] response = InetAddress.getAllByName(hostname);
+                InetAddress[] response = resolver.resolve(hostname);
                 InetSocketAddress[] result = new InetSocketAddress[response.length];
                 for (int i = 0; i < response.length; i++)
                     result[i] = new InetSocketAddress(response[i], params.getPort());
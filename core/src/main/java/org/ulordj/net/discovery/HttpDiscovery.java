@@ -93,7 +93,12 @@ public class HttpDiscovery implements PeerDiscovery {
             request.url(url.build());
             request.addHeader("User-Agent", VersionMessage.LIBRARY_SUBVER); // TODO Add main version.
             log.info("Requesting seeds from {}", url);
-            Response response = client.newCall(request.build()).execute();
+            // Don't let a slow seed hold up discovery beyond the timeout.
+            OkHttpClient timeoutClient = timeoutValue <= 0 ? client : client.newBuilder()
+                    .connectTimeout(timeoutValue, timeoutUnit)
+                    .readTimeout(timeoutValue, timeoutUnit)
+                    .build();
+            Response response = timeoutClient.newCall(request.build()).execute();
             if (!response.isSuccessful())
                 throw new PeerDiscoveryException("HTTP request failed: " + response.code() + " " + response.message());
             InputStream stream = response.body().byteStream();
@@ -136,4 +141,9 @@ public class HttpDiscovery implements PeerDiscovery {
     @Override
     public void shutdown() {
     }
+
+    @Override
+    public String toString() {
+        return details.uri.toString();
+    }
 }
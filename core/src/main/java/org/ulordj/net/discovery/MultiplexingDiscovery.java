@@ -26,6 +26,7 @@ import org.ulordj.utils.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -37,9 +38,13 @@ import okhttp3.OkHttpClient;
 import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * MultiplexingDiscovery queries multiple PeerDiscovery objects, shuffles their responses and then returns the results,
- * thus selecting randomly between them and reducing the influence of any particular seed. Any that don't respond
- * within the timeout are ignored. Backends are queried in parallel. Backends may block.
+ * <p>MultiplexingDiscovery queries multiple PeerDiscovery objects, shuffles their responses and then returns the
+ * results, thus selecting randomly between them and reducing the influence of any particular seed. Any that don't
+ * respond within the timeout are ignored. Backends are queried in parallel. Backends may block.</p>
+ *
+ * <p>{@link #getPeers(long, long, TimeUnit, int, Listener)} doesn't wait for all backends: it returns as soon as enough
+ * addresses came in, and hands the results of slower backends to a listener when they arrive. This lets a
+ * {@link org.ulordj.core.PeerGroup} start connecting after the fastest seed answered.</p>
  */
 public class MultiplexingDiscovery implements PeerDiscovery {
     private static final Logger log = LoggerFactory.getLogger(MultiplexingDiscovery.class);
@@ -48,6 +53,11 @@ public class MultiplexingDiscovery implements PeerDiscovery {
     protected final NetworkParameters netParams;
     private volatile ExecutorService vThreadPool;
 
+    /** Receives the results of backends that answered after {@link #getPeers(long, long, TimeUnit, int, Listener)} returned. */
+    public interface Listener {
+        void onPeersDiscovered(PeerDiscovery seed, InetSocketAddress[] addresses);
+    }
+
     /**
      * Builds a suitable set of peer discoveries. Will query them in parallel before producing a merged response.
      * If specific services are required, DNS is not used as the protocol can't handle it.
@@ -55,6 +65,15 @@ public class MultiplexingDiscovery implements PeerDiscovery {
      * @param services Required services as a bitmask, e.g. {@link VersionMessage#NODE_NETWORK}.
      */
     public static MultiplexingDiscovery forServices(NetworkParameters params, long services) {
+        return forServices(params, services, null);
+    }
+
+    /**
+     * Builds a suitable set of peer discoveries like {@link #forServices(NetworkParameters, long)}, answering from the
+     * given cache where possible.
+     */
+    public static MultiplexingDiscovery forServices(NetworkParameters params, long services,
+                                                    @Nullable DiscoveryCache cache) {
         List<PeerDiscovery> discoveries = Lists.newArrayList();
         HttpDiscovery.Details[] httpSeeds = params.getHttpSeeds();
         if (httpSeeds != null) {
@@ -69,6 +88,9 @@ public class MultiplexingDiscovery implements PeerDiscovery {
                 for (String dnsSeed : dnsSeeds)
                     discoveries.add(new DnsSeedDiscovery(params, dnsSeed));
         }
+        if (cache != null)
+            for (int i = 0; i < discoveries.size(); i++)
+                discoveries.set(i, cache.wrap(discoveries.get(i)));
         return new MultiplexingDiscovery(params, discoveries);
     }
 
@@ -83,44 +105,103 @@ public class MultiplexingDiscovery implements PeerDiscovery {
 
     @Override
     public InetSocketAddress[] getPeers(final long services, final long timeoutValue, final TimeUnit timeoutUnit) throws PeerDiscoveryException {
-        vThreadPool = createExecutor();
-        try {
-            List<Callable<InetSocketAddress[]>> tasks = Lists.newArrayList();
-            for (final PeerDiscovery seed : seeds) {
-                tasks.add(new Callable<InetSocketAddress[]>() {
-                    @Override
-                    public InetSocketAddress[] call() throws Exception {
-                        return seed.getPeers(services, timeoutValue,  timeoutUnit);
+        return getPeers(services, timeoutValue, timeoutUnit, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Queries all backends in parallel, but returns as soon as at least the given number of addresses were found, all
+     * backends answered or the timeout expired, whichever comes first. Backends that are still running when this
+     * method returns early keep running in the background and pass their results to the listener.
+     */
+    public InetSocketAddress[] getPeers(final long services, final long timeoutValue, final TimeUnit timeoutUnit,
+                                        int minAddresses, @Nullable Listener lateListener) throws PeerDiscoveryException {
+        final ExecutorService threadPool = createExecutor();
+        vThreadPool = threadPool;
+        final Collector collector = new Collector(seeds.size(), lateListener);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (final PeerDiscovery seed : seeds) {
+            futures.add(threadPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    InetSocketAddress[] addresses = null;
+                    try {
+                        addresses = seed.getPeers(services, timeoutValue, timeoutUnit);
+                    } catch (PeerDiscoveryException | RuntimeException e) {
+                        log.warn("Seed {}: failed to look up: {}", seed, e.getMessage());
+                    } finally {
+                        collector.onResult(seed, addresses);
                     }
-                });
-            }
-            final List<Future<InetSocketAddress[]>> futures = vThreadPool.invokeAll(tasks, timeoutValue, timeoutUnit);
-            ArrayList<InetSocketAddress> addrs = Lists.newArrayList();
+                }
+            }));
+        }
+        // Let the pool wind down by itself once the submitted lookups are done.
+        threadPool.shutdown();
+        List<InetSocketAddress> addrs;
+        try {
+            addrs = collector.await(minAddresses, timeoutUnit.toNanos(timeoutValue));
+        } catch (InterruptedException e) {
+            threadPool.shutdownNow();
+            throw new PeerDiscoveryException(e);
+        }
+        if (!collector.isComplete() && addrs.size() < minAddresses) {
             for (int i = 0; i < futures.size(); i++) {
-                Future<InetSocketAddress[]> future = futures.get(i);
-                if (future.isCancelled()) {
+                if (!futures.get(i).isDone()) {
                     log.warn("Seed {}: timed out", seeds.get(i));
-                    continue;  // Timed out.
+                    futures.get(i).cancel(true);
                 }
-                final InetSocketAddress[] inetAddresses;
-                try {
-                    inetAddresses = future.get();
-                } catch (ExecutionException e) {
-                    log.warn("Seed {}: failed to look up: {}", seeds.get(i), e.getMessage());
-                    continue;
+            }
+        }
+        if (addrs.size() == 0)
+            throw new PeerDiscoveryException("No peer discovery returned any results in "
+                    + timeoutUnit.toMillis(timeoutValue) + "ms. Check internet connection?");
+        Collections.shuffle(addrs);
+        return addrs.toArray(new InetSocketAddress[addrs.size()]);
+    }
+
+    /** Gathers the results of the backends, and forwards them to the listener once the caller stopped waiting. */
+    private static class Collector {
+        private final List<InetSocketAddress> addresses = new ArrayList<>();
+        @Nullable private final Listener lateListener;
+        private int pending;
+        private boolean returned;
+
+        Collector(int pending, @Nullable Listener lateListener) {
+            this.pending = pending;
+            this.lateListener = lateListener;
+        }
+
+        void onResult(PeerDiscovery seed, @Nullable InetSocketAddress[] result) {
+            boolean late;
+            synchronized (this) {
+                pending--;
+                late = returned;
+                if (!late && result != null)
+                    Collections.addAll(addresses, result);
+                notifyAll();
+            }
+            if (late && result != null && result.length > 0 && lateListener != null) {
+                log.info("Seed {}: returned {} addresses after discovery finished", seed, result.length);
+                lateListener.onPeersDiscovered(seed, result);
+            }
+        }
+
+        synchronized List<InetSocketAddress> await(int minAddresses, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            try {
+                while (pending > 0 && addresses.size() < minAddresses) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
                 }
-                Collections.addAll(addrs, inetAddresses);
+                return new ArrayList<>(addresses);
+            } finally {
+                returned = true;
             }
-            if (addrs.size() == 0)
-                throw new PeerDiscoveryException("No peer discovery returned any results in "
-                        + timeoutUnit.toMillis(timeoutValue) + "ms. Check internet connection?");
-            Collections.shuffle(addrs);
-            vThreadPool.shutdownNow();
-            return addrs.toArray(new InetSocketAddress[addrs.size()]);
-        } catch (InterruptedException e) {
-            throw new PeerDiscoveryException(e);
-        } finally {
-            vThreadPool.shutdown();
+        }
+
+        synchronized boolean isComplete() {
+            return pending == 0;
         }
     }
 
@@ -132,6 +213,6 @@ public class MultiplexingDiscovery implements PeerDiscovery {
     public void shutdown() {
         ExecutorService tp = vThreadPool;
         if (tp != null)
-            tp.shutdown();
+            tp.shutdownNow();
     }
 }
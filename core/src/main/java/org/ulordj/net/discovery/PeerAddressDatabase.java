@@ -0,0 +1,481 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.net.discovery;
+
+import org.ulordj.core.PeerAddress;
+import org.ulordj.core.Utils;
+import org.ulordj.utils.Threading;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.net.InetAddresses;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, so that a {@link org.ulordj.core.PeerGroup} can reconnect to
+ * good peers straight away instead of waiting for DNS seeds. It is fed with addresses gossiped by peers and learns
+ * from every connection how reliable, long lived and fast each peer was.</p>
+ *
+ * <p>Addresses are kept in two tables: <i>tried</i> addresses that we have successfully connected to at least once,
+ * and <i>new</i> addresses that we only heard about. {@link #getPeers(long, long, TimeUnit)} returns tried addresses
+ * first. Within each table addresses are grouped into buckets by network (/16 for IPv4, /32 for IPv6) and the buckets
+ * are interleaved, so a single network can't dominate our connections. Within a bucket addresses are ordered randomly
+ * but weighted by their success rate, total uptime and ping time.</p>
+ *
+ * <p>The database is written to disk by {@link #save()}. A {@link org.ulordj.core.PeerGroup} using it calls
+ * {@link #saveIfDirty()} every {@link #SAVE_INTERVAL_MSEC} on its own thread, and saves it when it is stopped, so
+ * network threads recording connections never wait for the disk.</p>
+ */
+public class PeerAddressDatabase implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressDatabase.class);
+
+    private static final String HEADER = "# ulordj peer address database v1";
+    /** Maximum number of addresses that are remembered. */
+    public static final int MAX_ADDRESSES = 10000;
+    /** Maximum number of addresses returned by a single call to {@link #getPeers(long, long, TimeUnit)}. */
+    public static final int MAX_RETURNED_ADDRESSES = 256;
+    /** How often a peer group saves the database if it changed. */
+    public static final long SAVE_INTERVAL_MSEC = TimeUnit.MINUTES.toMillis(1);
+    /** Maximum number of addresses we didn't know yet that a single call to {@link #addAddresses(Collection)} adds. */
+    public static final int MAX_NEW_ADDRESSES_PER_CALL = 100;
+    // Ping time assumed for addresses we never measured.
+    private static final long DEFAULT_PING_TIME_MSEC = 1000;
+
+    private final File file;
+    private final ReentrantLock lock = Threading.lock("peeraddressdb");
+    // Held whilst writing the file, so saves don't overlap. The database lock is only held to take a snapshot.
+    private final ReentrantLock saveLock = Threading.lock("peeraddressdb-save");
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> entries = new LinkedHashMap<>();
+    // The addresses that were never tried, the one we heard about least recently first. This is the eviction order.
+    @GuardedBy("lock") private final TreeSet<Entry> untried = new TreeSet<>(Entry.BY_LAST_SEEN);
+    @GuardedBy("lock") private long nextSequence;
+    @GuardedBy("lock") private boolean dirty;
+    private final Random random = new Random();
+
+    /** What we know about a single address. */
+    @VisibleForTesting
+    static class Entry {
+        static final Comparator<Entry> BY_LAST_SEEN = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int result = Long.compare(a.lastSeenSecs, b.lastSeenSecs);
+                return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+            }
+        };
+
+        final InetSocketAddress address;
+        // Distinguishes entries seen at the same time in the eviction order.
+        final long sequence;
+        long services;
+        long lastSeenSecs;
+        int attempts;
+        int successes;
+        long lastSuccessSecs;
+        long uptimeSecs;
+        long pingTimeMsec = Long.MAX_VALUE;
+
+        Entry(InetSocketAddress address, long sequence) {
+            this.address = address;
+            this.sequence = sequence;
+        }
+
+        boolean isTried() {
+            return successes > 0;
+        }
+
+        double weight() {
+            // Laplace smoothed success rate, so one failure doesn't rule out an address forever.
+            double reliability = (successes + 1.0) / (attempts + 2.0);
+            double uptimeHours = uptimeSecs / 3600.0;
+            long ping = pingTimeMsec == Long.MAX_VALUE ? DEFAULT_PING_TIME_MSEC : pingTimeMsec;
+            return reliability * (1 + Math.log1p(uptimeHours)) / (1 + ping / 100.0);
+        }
+    }
+
+    /**
+     * Creates a database that is stored in the given file. If the file already exists, the addresses in it are
+     * loaded. A corrupt or unreadable file is ignored, as the addresses can always be rediscovered.
+     */
+    public PeerAddressDatabase(File file) {
+        this.file = checkNotNull(file);
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read peer address database " + file + ", starting with an empty one", e);
+                lock.lock();
+                try {
+                    entries.clear();
+                    untried.clear();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds addresses gossiped by a peer, for example from an {@link org.ulordj.core.AddressMessage}. Known addresses
+     * are all updated, but at most {@link #MAX_NEW_ADDRESSES_PER_CALL} new ones are added, so a single peer can't
+     * flush the database with addresses of its choosing.
+     */
+    public void addAddresses(Collection<PeerAddress> addresses) {
+        lock.lock();
+        try {
+            int added = 0;
+            for (PeerAddress address : addresses) {
+                InetSocketAddress socketAddress = address.toSocketAddress();
+                if (!entries.containsKey(socketAddress) && added++ >= MAX_NEW_ADDRESSES_PER_CALL)
+                    continue;
+                long time = address.getTime() > 0 ? address.getTime() : Utils.currentTimeSeconds();
+                addAddressLocked(socketAddress, address.getServices().longValue(), time);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a single address, for example one found by DNS discovery. */
+    public void addAddress(InetSocketAddress address, long services) {
+        lock.lock();
+        try {
+            addAddressLocked(address, services, Utils.currentTimeSeconds());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Entry addAddressLocked(InetSocketAddress address, long services, long seenSecs) {
+        if (address.getAddress() == null)
+            return null; // Unresolved, e.g. a Tor hidden service, which we can't bucket.
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            if (entries.size() >= MAX_ADDRESSES && !evictLocked())
+                return null;
+            entry = new Entry(address, nextSequence++);
+            entries.put(address, entry);
+        } else if (!entry.isTried()) {
+            // Take it out whilst its position in the eviction order changes.
+            untried.remove(entry);
+        }
+        if (services != 0)
+            entry.services = services;
+        entry.lastSeenSecs = Math.max(entry.lastSeenSecs, seenSecs);
+        if (!entry.isTried())
+            untried.add(entry);
+        dirty = true;
+        return entry;
+    }
+
+    // Makes room by forgetting the new address we heard about least recently. Returns false if all are tried.
+    @GuardedBy("lock")
+    private boolean evictLocked() {
+        Entry oldest = untried.pollFirst();
+        if (oldest == null)
+            return false;
+        entries.remove(oldest.address);
+        return true;
+    }
+
+    /** Records that the version handshake with the given address succeeded. */
+    public void recordSuccess(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = addAddressLocked(address, 0, Utils.currentTimeSeconds());
+            if (entry == null)
+                return;
+            untried.remove(entry);
+            entry.attempts++;
+            entry.successes++;
+            entry.lastSuccessSecs = Utils.currentTimeSeconds();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that we could not connect to the given address, or the connection died before the handshake. */
+    public void recordFailure(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            if (entry == null)
+                return;
+            entry.attempts++;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that an established connection to the given address was closed.
+     *
+     * @param uptimeMillis how long the connection was open
+     * @param pingTimeMsec the average ping time we measured, or {@link Long#MAX_VALUE} if unknown
+     */
+    public void recordDisconnect(InetSocketAddress address, long uptimeMillis, long pingTimeMsec) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            if (entry == null)
+                return;
+            entry.uptimeSecs += Math.max(0, uptimeMillis / 1000);
+            if (pingTimeMsec != Long.MAX_VALUE) {
+                // Exponential moving average, so a single slow session doesn't ruin a good peer.
+                entry.pingTimeMsec = entry.pingTimeMsec == Long.MAX_VALUE ? pingTimeMsec
+                        : (entry.pingTimeMsec * 3 + pingTimeMsec) / 4;
+            }
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the selection weight of the given address, or zero if it is unknown. Higher is better. */
+    public double getWeight(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            return entry == null ? 0 : entry.weight();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses in the database. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns known addresses in the order they should be tried, see the class documentation. Addresses whose
+     * services are known and don't include the required ones are left out. This method never blocks on the network.
+     */
+    @Override
+    public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) {
+        List<Entry> tried = new ArrayList<>();
+        List<Entry> fresh = new ArrayList<>();
+        Map<Entry, Double> keys = new HashMap<>();
+        lock.lock();
+        try {
+            for (Entry entry : entries.values()) {
+                if (entry.services != 0 && (entry.services & services) != services)
+                    continue;
+                // Weighted random sampling (Efraimidis-Spirakis): a higher weight makes a higher key more likely.
+                keys.put(entry, Math.pow(random.nextDouble(), 1.0 / Math.max(entry.weight(), 1e-9)));
+                (entry.isTried() ? tried : fresh).add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<InetSocketAddress> result = new ArrayList<>();
+        interleaveBuckets(tried, keys, result);
+        interleaveBuckets(fresh, keys, result);
+        if (result.size() > MAX_RETURNED_ADDRESSES)
+            result = result.subList(0, MAX_RETURNED_ADDRESSES);
+        return result.toArray(new InetSocketAddress[result.size()]);
+    }
+
+    private static void interleaveBuckets(List<Entry> entries, final Map<Entry, Double> keys,
+                                          List<InetSocketAddress> result) {
+        Comparator<Entry> byKey = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(keys.get(b), keys.get(a));
+            }
+        };
+        Collections.sort(entries, byKey);
+        // Entries are sorted, so buckets are created in the order of their best entry.
+        Map<String, List<Entry>> buckets = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            String group = networkGroup(entry.address.getAddress());
+            List<Entry> bucket = buckets.get(group);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                buckets.put(group, bucket);
+            }
+            bucket.add(entry);
+        }
+        for (int round = 0; !buckets.isEmpty(); round++) {
+            boolean any = false;
+            for (List<Entry> bucket : buckets.values()) {
+                if (round < bucket.size()) {
+                    result.add(bucket.get(round).address);
+                    any = true;
+                }
+            }
+            if (!any)
+                break;
+        }
+    }
+
+    @VisibleForTesting
+    static String networkGroup(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefix = bytes.length == 4 ? 2 : 4;
+        return Utils.HEX.encode(bytes, 0, prefix);
+    }
+
+    /** Saves the database if it changed since it was last saved or loaded. Errors are logged. */
+    public void saveIfDirty() {
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            log.warn("Could not save peer address database", e);
+        }
+    }
+
+    /**
+     * Writes the database to disk, atomically replacing the previous file. The database is only locked whilst a
+     * snapshot is taken, not whilst the file is written.
+     */
+    public void save() throws IOException {
+        saveLock.lock();
+        try {
+            StringBuilder contents = new StringBuilder();
+            lock.lock();
+            try {
+                contents.append(HEADER).append('\n');
+                for (Entry entry : entries.values()) {
+                    contents.append(InetAddresses.toAddrString(entry.address.getAddress())).append(' ')
+                            .append(entry.address.getPort()).append(' ').append(entry.services).append(' ')
+                            .append(entry.lastSeenSecs).append(' ').append(entry.attempts).append(' ')
+                            .append(entry.successes).append(' ').append(entry.lastSuccessSecs).append(' ')
+                            .append(entry.uptimeSecs).append(' ').append(entry.pingTimeMsec).append('\n');
+                }
+                dirty = false;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                write(contents.toString());
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    dirty = true;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    private void write(String contents) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("peers", null, directory);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                StandardCharsets.UTF_8))) {
+            writer.write(contents);
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header))
+                throw new IOException("Unknown peer address database format: " + header);
+            lock.lock();
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length != 9)
+                        throw new IOException("Malformed line: " + line);
+                    InetSocketAddress address = new InetSocketAddress(InetAddresses.forString(fields[0]),
+                            Integer.parseInt(fields[1]));
+                    Entry entry = new Entry(address, nextSequence++);
+                    entry.services = Long.parseLong(fields[2]);
+                    entry.lastSeenSecs = Long.parseLong(fields[3]);
+                    entry.attempts = Integer.parseInt(fields[4]);
+                    entry.successes = Integer.parseInt(fields[5]);
+                    entry.lastSuccessSecs = Long.parseLong(fields[6]);
+                    entry.uptimeSecs = Long.parseLong(fields[7]);
+                    entry.pingTimeMsec = Long.parseLong(fields[8]);
+                    Entry previous = entries.put(address, entry);
+                    if (previous != null)
+                        untried.remove(previous);
+                    if (!entry.isTried())
+                        untried.add(entry);
+                }
+                dirty = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+        log.info("Loaded {} peer addresses from {}", size(), file);
+    }
+
+    /** Saves the database if it has changed. */
+    @Override
+    public void shutdown() {
+        saveIfDirty();
+    }
+}
@@ -27,7 +27,6 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -89,28 +88,27 @@ public class Script {
 
     private static final Logger log = LoggerFactory.getLogger(Script.class);
     public static final long MAX_SCRIPT_ELEMENT_SIZE = 520;  // bytes
-    private static final int MAX_OPS_PER_SCRIPT = 201;
-    private static final int MAX_STACK_SIZE = 1000;
-    private static final int MAX_PUBKEYS_PER_MULTISIG = 20;
+    /* package private */ static final int MAX_OPS_PER_SCRIPT = 201;
+    /* package private */ static final int MAX_STACK_SIZE = 1000;
+    /* package private */ static final int MAX_PUBKEYS_PER_MULTISIG = 20;
     private static final int MAX_SCRIPT_SIZE = 10000;
     public static final int SIG_SIZE = 75;
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
-    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
-    protected List<ScriptChunk> chunks;
+    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]. Scripts read
+    // off the wire only create them when asked for, so this is null until then. Read it through chunks().
+    private volatile List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
     // must preserve the exact bytes that we read off the wire, along with the parsed form.
     protected byte[] program;
+    // Where each chunk starts in the program, followed by the length of the program. This is all pattern matching
+    // needs to look at a script, see ScriptPattern.
+    private volatile int[] chunkOffsets;
 
     // Creation time of the associated keys in seconds since the epoch.
     private long creationTimeSeconds;
 
-    /** Creates an empty script that serializes to nothing. */
-    private Script() {
-        chunks = Lists.newArrayList();
-    }
-
     // Used from ScriptBuilder.
     Script(List<ScriptChunk> chunks) {
         this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
@@ -118,19 +116,19 @@ public class Script {
     }
 
     /**
-     * Construct a Script that copies and wraps the programBytes array. The array is parsed and checked for syntactic
-     * validity.
+     * Construct a Script that wraps the programBytes array. The array is checked for syntactic validity, but the
+     * chunks are only created when needed.
      * @param programBytes Array of program bytes from a transaction.
      */
     public Script(byte[] programBytes) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        chunkOffsets = findChunks(programBytes, false);
         creationTimeSeconds = 0;
     }
 
     public Script(byte[] programBytes, long creationTimeSeconds) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        chunkOffsets = findChunks(programBytes, false);
         this.creationTimeSeconds = creationTimeSeconds;
     }
 
@@ -147,7 +145,7 @@ public class Script {
      */
     @Override
     public String toString() {
-        return Utils.SPACE_JOINER.join(chunks);
+        return Utils.SPACE_JOINER.join(chunks());
     }
 
     /** Returns the serialized program as a newly created byte array. */
@@ -157,7 +155,7 @@ public class Script {
             if (program != null)
                 return Arrays.copyOf(program, program.length);
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            for (ScriptChunk chunk : chunks) {
+            for (ScriptChunk chunk : chunks()) {
                 chunk.write(bos);
             }
             program = bos.toByteArray();
@@ -167,9 +165,61 @@ public class Script {
         }
     }
 
-    /** Returns an immutable list of the scripts parsed form. Each chunk is either an opcode or data element. */
+    /**
+     * Returns an immutable list of the scripts parsed form. Each chunk is either an opcode or data element. Scripts read
+     * off the wire create their chunks on the first call, so subclasses should use this rather than keeping their own.
+     */
     public List<ScriptChunk> getChunks() {
-        return Collections.unmodifiableList(chunks);
+        return chunks();
+    }
+
+    /** Returns the number of chunks in the program. Unlike {@link #getChunks()}, this doesn't create them. */
+    public int getChunkCount() {
+        return chunkOffsets().length - 1;
+    }
+
+    /** Returns the opcode of the chunk at the given index, which for data pushes is the push opcode. */
+    public int getChunkOpcode(int index) {
+        int[] offsets = chunkOffsets();
+        checkElementIndex(index, offsets.length - 1);
+        return getQuickProgram()[offsets[index]] & 0xff;
+    }
+
+    /**
+     * Returns where the data pushed by the chunk at the given index starts in the program, or -1 if the chunk is an
+     * opcode. Together with {@link #getChunkDataLength(int)} this lets the data be looked at in place.
+     */
+    public int getChunkDataOffset(int index) {
+        int opcode = getChunkOpcode(index);
+        return opcode > OP_PUSHDATA4 ? -1 : chunkOffsets()[index] + getPushPrefixLength(opcode);
+    }
+
+    /** Returns the length of the data pushed by the chunk at the given index, or -1 if the chunk is an opcode. */
+    public int getChunkDataLength(int index) {
+        int offset = getChunkDataOffset(index);
+        return offset == -1 ? -1 : chunkOffsets()[index + 1] - offset;
+    }
+
+    /** Returns a copy of the data pushed by the chunk at the given index, or null if the chunk is an opcode. */
+    @Nullable
+    public byte[] getChunkData(int index) {
+        int offset = getChunkDataOffset(index);
+        return offset == -1 ? null : Arrays.copyOfRange(getQuickProgram(), offset, chunkOffsets()[index + 1]);
+    }
+
+    /** Returns the chunks of the program, creating them if they weren't yet. Same as {@link #getChunks()}. */
+    List<ScriptChunk> chunks() {
+        List<ScriptChunk> chunks = this.chunks;
+        if (chunks == null)
+            this.chunks = chunks = parse(program, chunkOffsets);
+        return chunks;
+    }
+
+    private int[] chunkOffsets() {
+        int[] chunkOffsets = this.chunkOffsets;
+        if (chunkOffsets == null)
+            this.chunkOffsets = chunkOffsets = findChunks(getQuickProgram(), false);
+        return chunkOffsets;
     }
 
     private static final ScriptChunk[] STANDARD_TRANSACTION_SCRIPT_CHUNKS = {
@@ -188,48 +238,92 @@ public class Script {
      * This is necessary to render the to/from addresses of transactions in a user interface.
      * Bitcoin Core does something similar.</p>
      */
-    private void parse(byte[] program) throws ScriptException {
-        chunks = new ArrayList<>(5);   // Common size.
-        ByteArrayInputStream bis = new ByteArrayInputStream(program);
-        int initialSize = bis.available();
-        while (bis.available() > 0) {
-            int startLocationInProgram = initialSize - bis.available();
-            int opcode = bis.read();
+    private static List<ScriptChunk> parse(byte[] program, int[] chunkOffsets) {
+        List<ScriptChunk> chunks = new ArrayList<>(chunkOffsets.length - 1);
+        for (int i = 0; i < chunkOffsets.length - 1; i++) {
+            int startLocationInProgram = chunkOffsets[i];
+            int opcode = program[startLocationInProgram] & 0xff;
+            ScriptChunk chunk;
+            if (opcode > OP_PUSHDATA4) {
+                chunk = new ScriptChunk(opcode, null, startLocationInProgram);
+            } else {
+                int dataOffset = startLocationInProgram + getPushPrefixLength(opcode);
+                byte[] data = Arrays.copyOfRange(program, dataOffset, chunkOffsets[i + 1]);
+                chunk = new ScriptChunk(opcode, data, startLocationInProgram);
+            }
+            // Save some memory by eliminating redundant copies of the same chunk objects.
+            for (ScriptChunk c : STANDARD_TRANSACTION_SCRIPT_CHUNKS) {
+                if (c.equals(chunk)) chunk = c;
+            }
+            chunks.add(chunk);
+        }
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Walks the program without copying anything out of it, returning where each chunk starts followed by where the
+     * last one ends. If lenient, a malformed chunk ends the program instead of causing an exception.
+     */
+    private static int[] findChunks(byte[] program, boolean lenient) throws ScriptException {
+        int[] offsets = new int[8];
+        int count = 0;
+        int cursor = 0;
+        while (cursor < program.length) {
+            if (count + 1 == offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[count] = cursor;
+            int opcode = program[cursor] & 0xff;
+            int available = program.length - cursor - 1;
 
             long dataToRead = -1;
-            if (opcode >= 0 && opcode < OP_PUSHDATA1) {
+            if (opcode < OP_PUSHDATA1) {
                 // Read some bytes of data, where how many is the opcode value itself.
                 dataToRead = opcode;
             } else if (opcode == OP_PUSHDATA1) {
-                if (bis.available() < 1) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
-                dataToRead = bis.read();
+                if (available >= 1)
+                    dataToRead = program[cursor + 1] & 0xff;
             } else if (opcode == OP_PUSHDATA2) {
                 // Read a short, then read that many bytes of data.
-                if (bis.available() < 2) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
-                dataToRead = Utils.readUint16FromStream(bis);
+                if (available >= 2)
+                    dataToRead = Utils.readUint16(program, cursor + 1);
             } else if (opcode == OP_PUSHDATA4) {
                 // Read a uint32, then read that many bytes of data.
                 // Though this is allowed, because its value cannot be > 520, it should never actually be used
-                if (bis.available() < 4) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
-                dataToRead = Utils.readUint32FromStream(bis);
+                if (available >= 4)
+                    dataToRead = Utils.readUint32(program, cursor + 1);
             }
 
-            ScriptChunk chunk;
-            if (dataToRead == -1) {
-                chunk = new ScriptChunk(opcode, null, startLocationInProgram);
+            if (opcode > OP_PUSHDATA4) {
+                cursor++;
+            } else if (dataToRead == -1) {
+                if (lenient)
+                    break;
+                throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
             } else {
-                if (dataToRead > bis.available())
+                int prefixLength = getPushPrefixLength(opcode);
+                if (dataToRead > available - (prefixLength - 1)) {
+                    if (lenient)
+                        break;
                     throw new ScriptException(ScriptError.SCRIPT_ERR_BAD_OPCODE, "Push of data element that is larger than remaining data");
-                byte[] data = new byte[(int)dataToRead];
-                checkState(dataToRead == 0 || bis.read(data, 0, (int)dataToRead) == dataToRead);
-                chunk = new ScriptChunk(opcode, data, startLocationInProgram);
-            }
-            // Save some memory by eliminating redundant copies of the same chunk objects.
-            for (ScriptChunk c : STANDARD_TRANSACTION_SCRIPT_CHUNKS) {
-                if (c.equals(chunk)) chunk = c;
+                }
+                cursor += prefixLength + (int) dataToRead;
             }
-            chunks.add(chunk);
+            count++;
         }
+        offsets[count] = cursor;
+        return Arrays.copyOf(offsets, count + 1);
+    }
+
+    /** Returns how many bytes the push opcode and its length take up before the pushed data. */
+    private static int getPushPrefixLength(int opcode) {
+        if (opcode < OP_PUSHDATA1)
+            return 1;
+        else if (opcode == OP_PUSHDATA1)
+            return 2;
+        else if (opcode == OP_PUSHDATA2)
+            return 3;
+        else
+            return 5;
     }
 
     @Deprecated
@@ -417,6 +511,7 @@ public class Script {
      * a P2SH scriptSig.
      */
     public int getSigInsertionIndex(Sha256Hash hash, ECKey signingKey) {
+        List<ScriptChunk> chunks = chunks();
         // Iterate over existing signatures, skipping the initial OP_0, the final redeem script
         // and any placeholder OP_0 sigs.
         List<ScriptChunk> existingChunks = chunks.subList(1, chunks.size() - 1);
@@ -440,6 +535,7 @@ public class Script {
     }
 
     private int findKeyInRedeem(ECKey key) {
+        List<ScriptChunk> chunks = chunks();
         checkArgument(chunks.get(0).isOpCode()); // P2SH scriptSig
         int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
         for (int i = 0 ; i < numKeys ; i++) {
@@ -460,6 +556,8 @@ public class Script {
         if (!ScriptPattern.isSentToMultisig(this))
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Only usable for multisig scripts.");
 
+        List<ScriptChunk> chunks = chunks();
+
         ArrayList<ECKey> result = Lists.newArrayList();
         int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
         for (int i = 0 ; i < numKeys ; i++)
@@ -468,6 +566,7 @@ public class Script {
     }
 
     private int findSigInRedeem(byte[] signatureBytes, Sha256Hash hash) {
+        List<ScriptChunk> chunks = chunks();
         checkArgument(chunks.get(0).isOpCode()); // P2SH scriptSig
         int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
         TransactionSignature signature = TransactionSignature.decodeFromBitcoin(signatureBytes, true);
@@ -535,30 +634,20 @@ public class Script {
      * Gets the count of regular SigOps in the script program (counting multisig ops as 20)
      */
     public static int getSigOpCount(byte[] program) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(program);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
-        }
-        return getSigOpCount(script.chunks, false);
+        // Ignore errors and count up to the parse-able length
+        return getSigOpCount(parse(program, findChunks(program, true)), false);
     }
     
     /**
      * Gets the count of P2SH Sig Ops in the Script scriptSig
      */
     public static long getP2SHSigOpCount(byte[] scriptSig) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(scriptSig);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
-        }
-        for (int i = script.chunks.size() - 1; i >= 0; i--)
-            if (!script.chunks.get(i).isOpCode()) {
-                Script subScript =  new Script();
-                subScript.parse(script.chunks.get(i).data);
-                return getSigOpCount(subScript.chunks, true);
+        // Ignore errors and count up to the parse-able length
+        List<ScriptChunk> chunks = parse(scriptSig, findChunks(scriptSig, true));
+        for (int i = chunks.size() - 1; i >= 0; i--)
+            if (!chunks.get(i).isOpCode()) {
+                byte[] subScript = chunks.get(i).data;
+                return getSigOpCount(parse(subScript, findChunks(subScript, false)), true);
             }
         return 0;
     }
@@ -569,7 +658,7 @@ public class Script {
     public int getNumberOfSignaturesRequiredToSpend() {
         if (ScriptPattern.isSentToMultisig(this)) {
             // for N of M CHECKMULTISIG script we will need N signatures to spend
-            ScriptChunk nChunk = chunks.get(0);
+            ScriptChunk nChunk = chunks().get(0);
             return Script.decodeFromOpN(nChunk.opcode);
         } else if (ScriptPattern.isPayToPubKeyHash(this) || ScriptPattern.isPayToPubKey(this)) {
             // P2PKH and P2PK require single sig
@@ -673,7 +762,7 @@ public class Script {
     
     ////////////////////// Script verification and helpers ////////////////////////////////
     
-    private static boolean castToBool(byte[] data) {
+    /* package private */ static boolean castToBool(byte[] data) {
         for (int i = 0; i < data.length; i++)
         {
             // "Can be negative zero" - Bitcoin Core (see OpenSSL's BN_bn2mpi)
@@ -690,7 +779,7 @@ public class Script {
      * sizes.
      * @throws ScriptException if the chunk is longer than 4 bytes.
      */
-    private static BigInteger castToBigInteger(byte[] chunk, final boolean requireMinimal) throws ScriptException {
+    /* package private */ static BigInteger castToBigInteger(byte[] chunk, final boolean requireMinimal) throws ScriptException {
         return castToBigInteger(chunk, 4, requireMinimal);
     }
 
@@ -704,6 +793,50 @@ public class Script {
      * @throws ScriptException if the chunk is longer than the specified maximum.
      */
     /* package private */ static BigInteger castToBigInteger(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkScriptNumber(chunk, maxLength, requireMinimal);
+        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+    }
+
+    /**
+     * Cast a script chunk to a long, like {@link #castToBigInteger(byte[], int, boolean)} does to a BigInteger. Script
+     * numbers are never longer than 5 bytes, so this is what the interpreter uses.
+     *
+     * @param maxLength the maximum length in bytes, at most 8.
+     * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
+     * @throws ScriptException if the chunk is longer than the specified maximum.
+     */
+    /* package private */ static long castToLong(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkArgument(maxLength <= 8);
+        checkScriptNumber(chunk, maxLength, requireMinimal);
+        if (chunk.length == 0)
+            return 0;
+        // Little endian magnitude with the sign in the top bit of the last byte.
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (chunk[i] & 0xFFL) << (8 * i);
+        long signBit = 0x80L << (8 * (chunk.length - 1));
+        return (result & signBit) != 0 ? -(result & ~signBit) : result;
+    }
+
+    /**
+     * Encodes a number the way the interpreter pushes it onto the stack: little endian magnitude with the sign in the
+     * top bit of the last byte, and zero as the empty array.
+     */
+    /* package private */ static byte[] encodeScriptNumber(long value) {
+        if (value == 0)
+            return new byte[] {};
+        long magnitude = Math.abs(value);
+        int length = (64 - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+        // An extra byte is needed if the top bit of the magnitude is taken.
+        byte[] result = new byte[(magnitude >>> (8 * length - 1)) != 0 ? length + 1 : length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (magnitude >>> (8 * i));
+        if (value < 0)
+            result[result.length - 1] |= 0x80;
+        return result;
+    }
+
+    private static void checkScriptNumber(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
         if (chunk.length > maxLength)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
 
@@ -725,8 +858,6 @@ public class Script {
                 }
             }
         }
-
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
 
     @Deprecated
@@ -763,14 +894,33 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptStack scriptStack = new ScriptStack(stack, script.chunks().size());
+        try {
+            executeScript(txContainingThis, index, script, scriptStack, verifyFlags);
+        } finally {
+            scriptStack.copyTo(stack);
+        }
+    }
+
+    /**
+     * The interpreter itself. Script numbers are at most 4 bytes for arithmetic and 5 bytes for the lock time checks,
+     * so they are worked on as longs. Whether a chunk is executed is decided by counting the false conditionals it's
+     * nested in rather than searching the conditional stack for every chunk.
+     */
+    static void executeScript(@Nullable Transaction txContainingThis, long index,
+                              Script script, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
         int opCount = 0;
         int lastCodeSepLocation = 0;
-        
-        LinkedList<byte[]> altstack = new LinkedList<>();
-        LinkedList<Boolean> ifStack = new LinkedList<>();
-        
-        for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+
+        ScriptStack altstack = new ScriptStack(0);
+        // Conditionals can't be nested deeper than the script has chunks.
+        boolean[] ifStack = null;
+        int ifStackSize = 0;
+        int ifStackFalseCount = 0;
+
+        for (ScriptChunk chunk : script.chunks()) {
+            boolean shouldExecute = ifStackFalseCount == 0;
             int opcode = chunk.opcode;
 
             // Check stack element size
@@ -793,48 +943,48 @@ public class Script {
 
             if (shouldExecute && OP_0 <= opcode && opcode <= OP_PUSHDATA4) {
                 // Check minimal push
-                if (verifyFlags.contains(VerifyFlag.MINIMALDATA) && !chunk.isShortestPossiblePushData())
+                if (requireMinimal && !chunk.isShortestPossiblePushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
 
                 if (opcode == OP_0)
-                    stack.add(new byte[]{});
+                    stack.push(new byte[]{});
                 else
-                    stack.add(chunk.data);
+                    stack.push(chunk.data);
             } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)){
 
                 switch (opcode) {
                 case OP_IF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
-                    }
-                    if (stack.size() < 1)
-                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
-                    continue;
                 case OP_NOTIF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
+                    boolean condition = false;
+                    if (shouldExecute) {
+                        if (stack.size() < 1)
+                            throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL,
+                                    opcode == OP_IF ? "Attempted OP_IF on an empty stack" : "Attempted OP_NOTIF on an empty stack");
+                        condition = castToBool(stack.pop()) == (opcode == OP_IF);
                     }
-                    if (stack.size() < 1)
-                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    if (ifStack == null)
+                        ifStack = new boolean[script.chunks().size()];
+                    ifStack[ifStackSize++] = condition;
+                    if (!condition)
+                        ifStackFalseCount++;
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (ifStackSize == 0)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    condition = !ifStack[ifStackSize - 1];
+                    ifStack[ifStackSize - 1] = condition;
+                    ifStackFalseCount += condition ? -1 : 1;
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (ifStackSize == 0)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    if (!ifStack[--ifStackSize])
+                        ifStackFalseCount--;
                     continue;
 
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeScriptNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -852,14 +1002,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeScriptNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -867,158 +1017,115 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    stack.push(stack.remove(5));
+                    stack.push(stack.remove(5));
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    stack.push(stack.remove(3));
+                    stack.push(stack.remove(3));
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeScriptNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek(0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+                    long val = castToLong(stack.pop(), 4, requireMinimal);
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                    stack.push(opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    stack.push(stack.remove(2));
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    stack.push(stack.remove(1));
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(stack.peek(1));
                     break;
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeScriptNumber(stack.peek(0).length));
                     break;
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUAL on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? new byte[] {1} : new byte[] {});
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1029,39 +1136,33 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                                        
+                    long numericOPnum = castToLong(stack.pop(), 4, requireMinimal);
+
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        if (numericOPnum < 0)
+                            numericOPnum = -numericOPnum;
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
-                    
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+
+                    stack.push(encodeScriptNumber(numericOPnum));
                     break;
                 case OP_ADD:
                 case OP_SUB:
@@ -1077,118 +1178,85 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    long numericOPnum2 = castToLong(stack.pop(), 4, requireMinimal);
+                    long numericOPnum1 = castToLong(stack.pop(), 4, requireMinimal);
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
-                    
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+
+                    stack.push(encodeScriptNumber(numericOPresult));
                     break;
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop(), 4, requireMinimal);
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop(), 4, requireMinimal);
+
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop(), 4, requireMinimal);
+                    long OPWITHINnum2 = castToLong(stack.pop(), 4, requireMinimal);
+                    long OPWITHINnum1 = castToLong(stack.pop(), 4, requireMinimal);
+                    stack.push(encodeScriptNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1196,17 +1264,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hash(stack.pollLast()));
+                    stack.push(Sha256Hash.hash(stack.pop()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                    stack.push(Sha256Hash.hashTwice(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
@@ -1261,36 +1329,36 @@ public class Script {
                 }
             }
             
-            if (stack.size() + altstack.size() > MAX_STACK_SIZE || stack.size() + altstack.size() < 0)
+            if (stack.size() + altstack.size() > MAX_STACK_SIZE)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_STACK_SIZE, "Stack size exceeded range");
         }
         
-        if (!ifStack.isEmpty())
+        if (ifStackSize != 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
+        final long nLockTime = castToLong(stack.peek(0), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
-        if (nLockTime.compareTo(BigInteger.ZERO) < 0)
+        if (nLockTime < 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
 
         // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
         if (!(
-            ((txContainingThis.getLockTime() <  Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) < 0) ||
-            ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) >= 0))
+            ((txContainingThis.getLockTime() <  Transaction.LOCKTIME_THRESHOLD) && (nLockTime < Transaction.LOCKTIME_THRESHOLD)) ||
+            ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime >= Transaction.LOCKTIME_THRESHOLD)))
         )
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement type mismatch");
 
         // Now that we know we're comparing apples-to-apples, the
         // comparison is a simple numeric one.
-        if (nLockTime.compareTo(BigInteger.valueOf(txContainingThis.getLockTime())) > 0)
+        if (nLockTime > txContainingThis.getLockTime())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement not satisfied");
 
         // Finally the nLockTime feature can be disabled and thus
@@ -1307,7 +1375,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
 
@@ -1320,7 +1388,7 @@ public class Script {
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums, which are good until 2**39-1, well
         // beyond the 2**32-1 limit of the nSequence field itself.
-        final long nSequence = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+        final long nSequence = castToLong(stack.peek(0), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
         // In the rare event that the argument may be < 0 due to
         // some arithmetic being done first, you can always use
@@ -1338,7 +1406,7 @@ public class Script {
         checkSequence(nSequence, txContainingThis, index);
     }
 
-    private static void checkSequence(long nSequence, Transaction txContainingThis, int index) {
+    /* package private */ static void checkSequence(long nSequence, Transaction txContainingThis, int index) {
         // Relative lock times are supported by comparing the passed
         // in operand to the sequence number of the input.
         long txToSequence = txContainingThis.getInput(index).getSequenceNumber();
@@ -1379,20 +1447,43 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode, 
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
-        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
-            || verifyFlags.contains(VerifyFlag.DERSIG)
-            || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        boolean sigValid = checkSignature(txContainingThis, index, connectedScript, sigBytes, pubKey, verifyFlags);
 
+        if (opcode == OP_CHECKSIG)
+            stack.push(sigValid ? new byte[] {1} : new byte[] {});
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
+    }
+
+    /**
+     * Checks a single signature as OP_CHECKSIG does, against the script code from the last OP_CODESEPARATOR on.
+     */
+    /* package private */ static boolean checkSignature(Transaction txContainingThis, int index, byte[] connectedScript,
+                                          byte[] sigBytes, byte[] pubKey, Set<VerifyFlag> verifyFlags) {
+        return checkSignature(txContainingThis, index, connectedScript, sigBytes, pubKey, verifyFlags, null);
+    }
+
+    /**
+     * Like {@link #checkSignature(Transaction, int, byte[], byte[], byte[], Set)}, but if a batch is given a signature
+     * that decodes is added to it and taken to be valid for now.
+     */
+    private static boolean checkSignature(Transaction txContainingThis, int index, byte[] connectedScript,
+                                          byte[] sigBytes, byte[] pubKey, Set<VerifyFlag> verifyFlags,
+                                          @Nullable SignatureBatch batch) {
+        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
+            || verifyFlags.contains(VerifyFlag.DERSIG)
+            || verifyFlags.contains(VerifyFlag.LOW_S);
         UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
         try {
             writeBytes(outStream, sigBytes);
@@ -1409,7 +1500,12 @@ public class Script {
 
             // TODO: Should check hash type is known
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            if (batch != null) {
+                batch.add(hash.getBytes(), sig, pubKey);
+                sigValid = true;
+            } else {
+                sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            }
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1422,23 +1518,15 @@ public class Script {
                 // http://jawspeak.com/2010/05/26/hotspot-caused-exceptions-to-lose-their-stack-traces-in-production-and-the-fix/
                 log.warn("Signature checking failed!", e1);
         }
-
-        if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {});
-        else if (opcode == OP_CHECKSIGVERIFY)
-            if (!sigValid)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
+        return sigValid;
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode, 
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
-        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
-            || verifyFlags.contains(VerifyFlag.DERSIG)
-            || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop(), 4, verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (pubKeyCount < 0 || pubKeyCount > MAX_PUBKEYS_PER_MULTISIG)
             throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1449,11 +1537,11 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = stack.pop();
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int sigCount = (int) castToLong(stack.pop(), 4, verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1461,13 +1549,38 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = stack.pop();
             sigs.add(sig);
         }
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        boolean valid = checkMultiSigSignatures(txContainingThis, index, connectedScript, sigs, pubkeys, verifyFlags);
+
+        // We uselessly remove a stack object to emulate a Bitcoin Core bug.
+        byte[] nullDummy = stack.pop();
+        if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.push(valid ? new byte[] {1} : new byte[] {});
+        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
+            if (!valid)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
 
+    /**
+     * Checks signatures as OP_CHECKMULTISIG does. Both lists are in the order they are popped off the stack and are
+     * consumed by the check.
+     */
+    /* package private */ static boolean checkMultiSigSignatures(Transaction txContainingThis, int index, byte[] connectedScript,
+                                                   LinkedList<byte[]> sigs, LinkedList<byte[]> pubkeys,
+                                                   Set<VerifyFlag> verifyFlags) {
+        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
+            || verifyFlags.contains(VerifyFlag.DERSIG)
+            || verifyFlags.contains(VerifyFlag.LOW_S);
         for (byte[] sig : sigs) {
             UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
             try {
@@ -1498,19 +1611,7 @@ public class Script {
                 break;
             }
         }
-
-        // We uselessly remove a stack object to emulate a Bitcoin Core bug.
-        byte[] nullDummy = stack.pollLast();
-        if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
-            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
-
-        if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {});
-        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
-            if (!valid)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
-        }
-        return opCount;
+        return valid;
     }
 
     /**
@@ -1541,6 +1642,30 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        if (correctlySpendsTemplate(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, null))
+            return;
+        correctlySpendsInterpreted(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+    }
+
+    /**
+     * Like {@link #correctlySpends(Transaction, long, Script, Set)}, except that the signature of a P2PKH spend is
+     * added to the given batch instead of being verified. Such a spend is only correct if the batch verifies the
+     * signature too. If it doesn't, {@link #correctlySpends(Transaction, long, Script, Set)} tells what is wrong.
+     * Signatures checked by the interpreter can't be deferred, as scripts may go on when they fail.
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                Set<VerifyFlag> verifyFlags, SignatureBatch batch) throws ScriptException {
+        if (correctlySpendsTemplate(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, checkNotNull(batch)))
+            return;
+        correctlySpendsInterpreted(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+    }
+
+    /**
+     * Verifies the spend by running both scripts through the interpreter. This is what
+     * {@link #correctlySpends(Transaction, long, Script, Set)} falls back to for anything but the common templates.
+     */
+    void correctlySpendsInterpreted(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                    Set<VerifyFlag> verifyFlags) throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1551,18 +1676,18 @@ public class Script {
         if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
         
-        LinkedList<byte[]> stack = new LinkedList<>();
-        LinkedList<byte[]> p2shStack = null;
+        ScriptStack stack = new ScriptStack(chunks().size() + scriptPubKey.chunks().size());
+        ScriptStack p2shStack = null;
         
         executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<>(stack);
+            p2shStack = new ScriptStack(stack);
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
         
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
         
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.pop()))
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1579,11 +1704,11 @@ public class Script {
 
         // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
         if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isPayToScriptHash(scriptPubKey)) {
-            for (ScriptChunk chunk : chunks)
+            for (ScriptChunk chunk : chunks())
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
             executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
@@ -1591,13 +1716,93 @@ public class Script {
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH script execution resulted in a non-true stack");
         }
     }
 
+    /**
+     * Verifies P2PKH and P2SH multisig spends without running the interpreter: the hash of the pushed public key or
+     * redeem script is compared directly and the signatures are checked exactly as OP_CHECKSIG and OP_CHECKMULTISIG
+     * check them. Returns true only if the interpreter accepts the spend as well. Anything else, including every
+     * failure, returns false so that the interpreter runs and reports the precise error. If a batch is given, the
+     * signature of a P2PKH spend is added to it rather than verified.
+     */
+    boolean correctlySpendsTemplate(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                    Set<VerifyFlag> verifyFlags, @Nullable SignatureBatch batch) {
+        if (getQuickProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getQuickProgram().length > MAX_SCRIPT_SIZE)
+            return false;
+        byte[][] pushes = getTemplatePushes(chunks(), verifyFlags);
+        if (pushes == null)
+            return false;
+        int index = (int) scriptSigIndex;
+
+        // <sig> <pubkey> | DUP HASH160 <pubkey hash> EQUALVERIFY CHECKSIG
+        if (ScriptPattern.isPayToPubKeyHash(scriptPubKey)) {
+            if (pushes.length != 2 || scriptPubKey.chunks().get(2).opcode != LegacyAddress.LENGTH)
+                return false;
+            if (!Arrays.equals(Utils.sha256hash160(pushes[1]), ScriptPattern.extractHashFromPayToPubKeyHash(scriptPubKey)))
+                return false;
+            return checkSignature(txContainingThis, index, scriptPubKey.getProgram(), pushes[0], pushes[1], verifyFlags,
+                    batch);
+        }
+
+        // OP_0 <sig>... <m <pubkey>... n CHECKMULTISIG> | HASH160 <script hash> EQUAL
+        if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isPayToScriptHash(scriptPubKey)) {
+            if (pushes.length < 3 || pushes[0].length != 0)
+                return false;
+            byte[] redeemScriptBytes = pushes[pushes.length - 1];
+            if (!Arrays.equals(Utils.sha256hash160(redeemScriptBytes), ScriptPattern.extractHashFromPayToScriptHash(scriptPubKey)))
+                return false;
+            Script redeemScript;
+            try {
+                redeemScript = new Script(redeemScriptBytes);
+            } catch (ScriptException e) {
+                return false;
+            }
+            if (!ScriptPattern.isSentToMultisig(redeemScript))
+                return false;
+            List<ScriptChunk> redeemChunks = redeemScript.chunks();
+            if (!redeemChunks.get(redeemChunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG))
+                return false;
+            int sigCount = decodeFromOpN(redeemChunks.get(0).opcode);
+            byte[][] pubKeys = getTemplatePushes(redeemChunks.subList(1, redeemChunks.size() - 2), verifyFlags);
+            if (pubKeys == null || sigCount > pubKeys.length || pushes.length != sigCount + 2)
+                return false;
+            // OP_CHECKMULTISIG pops both off the stack, so it sees them last to first.
+            LinkedList<byte[]> sigs = new LinkedList<>();
+            for (int i = sigCount; i >= 1; i--)
+                sigs.add(pushes[i]);
+            LinkedList<byte[]> pubkeys = new LinkedList<>();
+            for (int i = pubKeys.length - 1; i >= 0; i--)
+                pubkeys.add(pubKeys[i]);
+            return checkMultiSigSignatures(txContainingThis, index, redeemScriptBytes, sigs, pubkeys, verifyFlags);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the data the given chunks push onto the stack, or null if any of them is not a data push or would be
+     * rejected by the interpreter.
+     */
+    @Nullable
+    private static byte[][] getTemplatePushes(List<ScriptChunk> chunks, Set<VerifyFlag> verifyFlags) {
+        byte[][] pushes = new byte[chunks.size()][];
+        for (int i = 0; i < pushes.length; i++) {
+            ScriptChunk chunk = chunks.get(i);
+            if (chunk.opcode > OP_PUSHDATA4)
+                return null;
+            if (chunk.data != null && chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return null;
+            if (verifyFlags.contains(VerifyFlag.MINIMALDATA) && !chunk.isShortestPossiblePushData())
+                return null;
+            pushes[i] = chunk.opcode == OP_0 ? new byte[] {} : chunk.data;
+        }
+        return pushes;
+    }
+
     // Utility that doesn't copy for internal use
-    private byte[] getQuickProgram() {
+    /* package private */ byte[] getQuickProgram() {
         if (program != null)
             return program;
         return getProgram();
@@ -24,7 +24,6 @@ import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
 import java.util.Arrays;
-import java.util.List;
 
 import static org.ulordj.script.Script.decodeFromOpN;
 import static org.ulordj.script.ScriptOpCodes.*;
@@ -40,21 +39,17 @@ public class ScriptPattern {
      * way to make payments due to the short and recognizable base58 form addresses come in.
      */
     public static boolean isPayToPubKeyHash(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        if (chunks.size() != 5)
+        if (script.getChunkCount() != 5)
             return false;
-        if (!chunks.get(0).equalsOpCode(OP_DUP))
+        if (script.getChunkOpcode(0) != OP_DUP)
             return false;
-        if (!chunks.get(1).equalsOpCode(OP_HASH160))
+        if (script.getChunkOpcode(1) != OP_HASH160)
             return false;
-        byte[] chunk2data = chunks.get(2).data;
-        if (chunk2data == null)
+        if (script.getChunkDataLength(2) != LegacyAddress.LENGTH)
             return false;
-        if (chunk2data.length != LegacyAddress.LENGTH)
+        if (script.getChunkOpcode(3) != OP_EQUALVERIFY)
             return false;
-        if (!chunks.get(3).equalsOpCode(OP_EQUALVERIFY))
-            return false;
-        if (!chunks.get(4).equalsOpCode(OP_CHECKSIG))
+        if (script.getChunkOpcode(4) != OP_CHECKSIG)
             return false;
         return true;
     }
@@ -64,7 +59,7 @@ public class ScriptPattern {
      * will want to guard calls to this method with {@link #isPayToPubKeyHash(Script)}.
      */
     public static byte[] extractHashFromPayToPubKeyHash(Script script) {
-        return script.chunks.get(2).data;
+        return script.getChunkData(2);
     }
 
     /**
@@ -78,25 +73,20 @@ public class ScriptPattern {
      * </p>
      */
     public static boolean isPayToScriptHash(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
         // We check for the effective serialized form because BIP16 defines a P2SH output using an exact byte
         // template, not the logical program structure. Thus you can have two programs that look identical when
         // printed out but one is a P2SH script and the other isn't! :(
         // We explicitly test that the op code used to load the 20 bytes is 0x14 and not something logically
         // equivalent like {@code OP_HASH160 OP_PUSHDATA1 0x14 <20 bytes of script hash> OP_EQUAL}
-        if (chunks.size() != 3)
-            return false;
-        if (!chunks.get(0).equalsOpCode(OP_HASH160))
+        if (script.getChunkCount() != 3)
             return false;
-        ScriptChunk chunk1 = chunks.get(1);
-        if (chunk1.opcode != 0x14)
+        if (script.getChunkOpcode(0) != OP_HASH160)
             return false;
-        byte[] chunk1data = chunk1.data;
-        if (chunk1data == null)
+        if (script.getChunkOpcode(1) != 0x14)
             return false;
-        if (chunk1data.length != LegacyAddress.LENGTH)
+        if (script.getChunkDataLength(1) != LegacyAddress.LENGTH)
             return false;
-        if (!chunks.get(2).equalsOpCode(OP_EQUAL))
+        if (script.getChunkOpcode(2) != OP_EQUAL)
             return false;
         return true;
     }
@@ -106,7 +96,7 @@ public class ScriptPattern {
      * will want to guard calls to this method with {@link #isPayToScriptHash(Script)}.
      */
     public static byte[] extractHashFromPayToScriptHash(Script script) {
-        return script.chunks.get(1).data;
+        return script.getChunkData(1);
     }
 
     /**
@@ -116,18 +106,12 @@ public class ScriptPattern {
      * useful more exotic types of transaction, but today most payments are to addresses.
      */
     public static boolean isPayToPubKey(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        if (chunks.size() != 2)
-            return false;
-        ScriptChunk chunk0 = chunks.get(0);
-        if (chunk0.isOpCode())
-            return false;
-        byte[] chunk0data = chunk0.data;
-        if (chunk0data == null)
+        if (script.getChunkCount() != 2)
             return false;
-        if (chunk0data.length <= 1)
+        // Also false if chunk 0 is an opcode, which has a data length of -1.
+        if (script.getChunkDataLength(0) <= 1)
             return false;
-        if (!chunks.get(1).equalsOpCode(OP_CHECKSIG))
+        if (script.getChunkOpcode(1) != OP_CHECKSIG)
             return false;
         return true;
     }
@@ -137,7 +121,7 @@ public class ScriptPattern {
      * want to guard calls to this method with {@link #isPayToPubKey(Script)}.
      */
     public static byte[] extractKeyFromPayToPubKey(Script script) {
-        return script.chunks.get(0).data;
+        return script.getChunkData(0);
     }
 
     /**
@@ -145,16 +129,13 @@ public class ScriptPattern {
      * two script types were introduced with segwit.
      */
     public static boolean isPayToWitnessHash(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        if (chunks.size() != 2)
+        if (script.getChunkCount() != 2)
             return false;
-        if (!chunks.get(0).equalsOpCode(OP_0))
+        if (script.getChunkOpcode(0) != OP_0)
             return false;
-        byte[] chunk1data = chunks.get(1).data;
-        if (chunk1data == null)
-            return false;
-        if (chunk1data.length != SegwitAddress.WITNESS_PROGRAM_LENGTH_PKH
-                && chunk1data.length != SegwitAddress.WITNESS_PROGRAM_LENGTH_SH)
+        int chunk1length = script.getChunkDataLength(1);
+        if (chunk1length != SegwitAddress.WITNESS_PROGRAM_LENGTH_PKH
+                && chunk1length != SegwitAddress.WITNESS_PROGRAM_LENGTH_SH)
             return false;
         return true;
     }
@@ -166,11 +147,7 @@ public class ScriptPattern {
     public static boolean isPayToWitnessPubKeyHash(Script script) {
         if (!isPayToWitnessHash(script))
             return false;
-        List<ScriptChunk> chunks = script.chunks;
-        if (!chunks.get(0).equalsOpCode(OP_0))
-            return false;
-        byte[] chunk1data = chunks.get(1).data;
-        return chunk1data != null && chunk1data.length == SegwitAddress.WITNESS_PROGRAM_LENGTH_PKH;
+        return script.getChunkDataLength(1) == SegwitAddress.WITNESS_PROGRAM_LENGTH_PKH;
     }
 
     /**
@@ -180,11 +157,7 @@ public class ScriptPattern {
     public static boolean isPayToWitnessScriptHash(Script script) {
         if (!isPayToWitnessHash(script))
             return false;
-        List<ScriptChunk> chunks = script.chunks;
-        if (!chunks.get(0).equalsOpCode(OP_0))
-            return false;
-        byte[] chunk1data = chunks.get(1).data;
-        return chunk1data != null && chunk1data.length == SegwitAddress.WITNESS_PROGRAM_LENGTH_SH;
+        return script.getChunkDataLength(1) == SegwitAddress.WITNESS_PROGRAM_LENGTH_SH;
     }
 
     /**
@@ -193,7 +166,7 @@ public class ScriptPattern {
      * {@link #isPayToWitnessHash(Script)}.
      */
     public static byte[] extractHashFromPayToWitnessHash(Script script) {
-        return script.chunks.get(1).data;
+        return script.getChunkData(1);
     }
 
     /**
@@ -201,23 +174,22 @@ public class ScriptPattern {
      * {@code [n] [keys...] [m] CHECKMULTISIG}
      */
     public static boolean isSentToMultisig(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        if (chunks.size() < 4) return false;
-        ScriptChunk chunk = chunks.get(chunks.size() - 1);
+        int size = script.getChunkCount();
+        if (size < 4) return false;
+        int opcode = script.getChunkOpcode(size - 1);
         // Must end in OP_CHECKMULTISIG[VERIFY].
-        if (!chunk.isOpCode()) return false;
-        if (!(chunk.equalsOpCode(OP_CHECKMULTISIG) || chunk.equalsOpCode(OP_CHECKMULTISIGVERIFY))) return false;
+        if (!(opcode == OP_CHECKMULTISIG || opcode == OP_CHECKMULTISIGVERIFY)) return false;
         try {
             // Second to last chunk must be an OP_N opcode and there should be that many data chunks (keys).
-            ScriptChunk m = chunks.get(chunks.size() - 2);
-            if (!m.isOpCode()) return false;
-            int numKeys = decodeFromOpN(m.opcode);
-            if (numKeys < 1 || chunks.size() != 3 + numKeys) return false;
-            for (int i = 1; i < chunks.size() - 2; i++) {
-                if (chunks.get(i).isOpCode()) return false;
+            int m = script.getChunkOpcode(size - 2);
+            if (m <= OP_PUSHDATA4) return false;
+            int numKeys = decodeFromOpN(m);
+            if (numKeys < 1 || size != 3 + numKeys) return false;
+            for (int i = 1; i < size - 2; i++) {
+                if (script.getChunkOpcode(i) > OP_PUSHDATA4) return false;
             }
             // First chunk must be an OP_N opcode too.
-            if (decodeFromOpN(chunks.get(0).opcode) < 1) return false;
+            if (decodeFromOpN(script.getChunkOpcode(0)) < 1) return false;
         } catch (IllegalStateException e) {
             return false;   // Not an OP_N opcode.
         }
@@ -228,19 +200,18 @@ public class ScriptPattern {
      * Returns whether this script matches the format used for LOCKTIMEVERIFY transactions.
      */
     public static boolean isSentToCltvPaymentChannel(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        if (chunks.size() != 10) return false;
+        if (script.getChunkCount() != 10) return false;
         // Check that opcodes match the pre-determined format.
-        if (!chunks.get(0).equalsOpCode(OP_IF)) return false;
+        if (script.getChunkOpcode(0) != OP_IF) return false;
         // chunk[1] = recipient pubkey
-        if (!chunks.get(2).equalsOpCode(OP_CHECKSIGVERIFY)) return false;
-        if (!chunks.get(3).equalsOpCode(OP_ELSE)) return false;
+        if (script.getChunkOpcode(2) != OP_CHECKSIGVERIFY) return false;
+        if (script.getChunkOpcode(3) != OP_ELSE) return false;
         // chunk[4] = locktime
-        if (!chunks.get(5).equalsOpCode(OP_CHECKLOCKTIMEVERIFY)) return false;
-        if (!chunks.get(6).equalsOpCode(OP_DROP)) return false;
-        if (!chunks.get(7).equalsOpCode(OP_ENDIF)) return false;
+        if (script.getChunkOpcode(5) != OP_CHECKLOCKTIMEVERIFY) return false;
+        if (script.getChunkOpcode(6) != OP_DROP) return false;
+        if (script.getChunkOpcode(7) != OP_ENDIF) return false;
         // chunk[8] = sender pubkey
-        if (!chunks.get(9).equalsOpCode(OP_CHECKSIG)) return false;
+        if (script.getChunkOpcode(9) != OP_CHECKSIG) return false;
         return true;
     }
 
@@ -250,7 +221,7 @@ public class ScriptPattern {
      * {@link #isSentToCltvPaymentChannel(Script)}.
      */
     public static byte[] extractSenderPubKeyFromCltvPaymentChannel(Script script) {
-        return script.chunks.get(8).data;
+        return script.getChunkData(8);
     }
 
     /**
@@ -259,7 +230,7 @@ public class ScriptPattern {
      * {@link #isSentToCltvPaymentChannel(Script)}.
      */
     public static byte[] extractRecipientPubKeyFromCltvPaymentChannel(Script script) {
-        return script.chunks.get(1).data;
+        return script.getChunkData(1);
     }
 
     /**
@@ -267,15 +238,14 @@ public class ScriptPattern {
      * so you will want to guard calls to this method with {@link #isSentToCltvPaymentChannel(Script)}.
      */
     public static BigInteger extractExpiryFromCltvPaymentChannel(Script script) {
-        return Script.castToBigInteger(script.chunks.get(4).data, 5, false);
+        return Script.castToBigInteger(script.getChunkData(4), 5, false);
     }
 
     /**
      * Returns whether this script is using OP_RETURN to store arbitrary data.
      */
     public static boolean isOpReturn(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        return chunks.size() > 0 && chunks.get(0).equalsOpCode(ScriptOpCodes.OP_RETURN);
+        return script.getChunkCount() > 0 && script.getChunkOpcode(0) == ScriptOpCodes.OP_RETURN;
     }
 
     private static final byte[] SEGWIT_COMMITMENT_HEADER = Hex.decode("aa21a9ed");
@@ -285,16 +255,17 @@ public class ScriptPattern {
      * transaction).
      */
     public static boolean isSegwitCommitment(Script script) {
-        List<ScriptChunk> chunks = script.chunks;
-        if (chunks.size() < 2)
-            return false;
-        if (!chunks.get(0).equalsOpCode(ScriptOpCodes.OP_RETURN))
+        if (script.getChunkCount() < 2)
             return false;
-        byte[] chunkData = chunks.get(1).data;
-        if (chunkData == null || chunkData.length != 36)
+        if (script.getChunkOpcode(0) != ScriptOpCodes.OP_RETURN)
             return false;
-        if (!Arrays.equals(Arrays.copyOfRange(chunkData, 0, 4), SEGWIT_COMMITMENT_HEADER))
+        if (script.getChunkDataLength(1) != 36)
             return false;
+        byte[] program = script.getQuickProgram();
+        int offset = script.getChunkDataOffset(1);
+        for (int i = 0; i < SEGWIT_COMMITMENT_HEADER.length; i++)
+            if (program[offset + i] != SEGWIT_COMMITMENT_HEADER[i])
+                return false;
         return true;
     }
 
@@ -302,6 +273,6 @@ public class ScriptPattern {
      * Retrieves the hash from a segwit commitment (in an output of the coinbase transaction).
      */
     public static Sha256Hash extractSegwitCommitmentHash(Script script) {
-        return Sha256Hash.wrap(Arrays.copyOfRange(script.chunks.get(1).data, 4, 36));
+        return Sha256Hash.wrap(Arrays.copyOfRange(script.getChunkData(1), 4, 36));
     }
 }
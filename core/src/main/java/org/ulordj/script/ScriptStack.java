@@ -0,0 +1,95 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.script;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.ulordj.core.Utils.HEX;
+
+/**
+ * The array backed stack the script interpreter works on. Elements are addressed by their depth, 0 being the top of
+ * the stack. Bounds are not checked beyond what the array does: the interpreter checks the stack size before each
+ * operation so it can report the right {@link ScriptError}.
+ */
+final class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack(int capacity) {
+        elements = new byte[Math.max(capacity, 4)][];
+    }
+
+    ScriptStack(Collection<byte[]> elements, int extraCapacity) {
+        this(elements.size() + extraCapacity);
+        for (byte[] element : elements)
+            this.elements[size++] = element;
+    }
+
+    ScriptStack(ScriptStack other) {
+        elements = Arrays.copyOf(other.elements, other.elements.length);
+        size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    /** Returns the element at the given depth without removing it. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth, moving the ones above it down. */
+    byte[] remove(int depth) {
+        int i = size - 1 - depth;
+        byte[] element = elements[i];
+        System.arraycopy(elements, i + 1, elements, i, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Replaces the contents of the given list with the contents of this stack, bottom first. */
+    void copyTo(List<byte[]> list) {
+        list.clear();
+        list.addAll(Arrays.asList(elements).subList(0, size));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(HEX.encode(elements[i]));
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -16,8 +16,16 @@
 
 package org.ulordj.signers;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.ulordj.core.ECKey;
+import org.ulordj.core.SigHashCache;
 import org.ulordj.core.Transaction;
 import org.ulordj.core.TransactionInput;
 import org.ulordj.crypto.DeterministicKey;
@@ -30,6 +38,10 @@ import org.ulordj.wallet.RedeemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
+import javax.annotation.Nullable;
+
 /**
  * <p>{@link TransactionSigner} implementation for signing inputs using keys from provided {@link KeyBag}.</p>
  * <p>This signer doesn't create input scripts for tx inputs. Instead it expects inputs to contain scripts with
@@ -40,7 +52,10 @@ import org.slf4j.LoggerFactory;
  * {@link TransactionSigner.ProposedTransaction} object that will be also passed then to the next signer in chain. This allows other
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
- * <p>This signer always uses {@link Transaction.SigHash#ALL} signing mode.</p>
+ * <p>This signer always uses {@link Transaction.SigHash#ALL} signing mode. Signature hashes are calculated with a
+ * {@link SigHashCache}, so the transaction is serialized once rather than once per input. Given an executor, the
+ * signatures of the inputs are calculated on it in parallel, which speeds up signing transactions with many inputs,
+ * see {@link org.ulordj.wallet.Wallet#setSigningExecutor(ExecutorService)}.</p>
  */
 public class LocalTransactionSigner implements TransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -52,15 +67,46 @@ public class LocalTransactionSigner implements TransactionSigner {
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
         VerifyFlag.NULLDUMMY);
 
+    @Nullable private final ExecutorService executor;
+
+    /** Creates a signer that calculates signatures on the calling thread. */
+    public LocalTransactionSigner() {
+        this(null);
+    }
+
+    /**
+     * Creates a signer that calculates the signatures of transactions with more than one input on the given executor,
+     * or on the calling thread if it's null. The executor isn't shut down by the signer.
+     */
+    public LocalTransactionSigner(@Nullable ExecutorService executor) {
+        this.executor = executor;
+    }
+
     @Override
     public boolean isReady() {
         return true;
     }
 
+    // An input we have a key for, but no signature yet.
+    private static class Job {
+        final int index;
+        final ECKey key;
+        final Script scriptPubKey;
+        final byte[] script;
+
+        Job(int index, ECKey key, Script scriptPubKey, byte[] script) {
+            this.index = index;
+            this.key = key;
+            this.scriptPubKey = scriptPubKey;
+            this.script = script;
+        }
+    }
+
     @Override
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        List<Job> jobs = new ArrayList<>();
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -99,31 +145,76 @@ public class LocalTransactionSigner implements TransactionSigner {
                 continue;
             }
 
-            Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for P2PKH or P2PK inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
-            try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
-
-                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
-                // have calculated the signature using the local key and now need to insert it in the correct place
-                // within inputScript. For P2PKH and P2PK script there is only one signature and it always
-                // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
-                // position relative to other signers.  Since we don't have that information at this point, and since
-                // we always run first, we have to depend on the other signers rearranging the signatures as needed.
-                // Therefore, always place as first signature.
-                int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
-                txIn.setScriptSig(inputScript);
-            } catch (ECKey.KeyIsEncryptedException e) {
-                throw e;
-            } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
-            }
+            jobs.add(new Job(i, key, scriptPubKey, redeemData.redeemScript.getProgram()));
+        }
 
+        // Input scripts aren't part of the signature hash, so the cache stays valid while signatures are inserted.
+        SigHashCache cache = new SigHashCache(tx);
+        List<TransactionSignature> signatures = calculateSignatures(cache, jobs);
+        for (int j = 0; j < jobs.size(); j++) {
+            Job job = jobs.get(j);
+            TransactionSignature signature = signatures.get(j);
+            if (signature == null)
+                continue;
+            TransactionInput txIn = tx.getInput(job.index);
+            // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
+            // have calculated the signature using the local key and now need to insert it in the correct place
+            // within inputScript. For P2PKH and P2PK script there is only one signature and it always
+            // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
+            // position relative to other signers.  Since we don't have that information at this point, and since
+            // we always run first, we have to depend on the other signers rearranging the signatures as needed.
+            // Therefore, always place as first signature.
+            int sigIndex = 0;
+            Script inputScript = job.scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(),
+                    signature.encodeToBitcoin(), sigIndex);
+            txIn.setScriptSig(inputScript);
         }
         return true;
     }
 
+    // Returns the signatures in the order of the jobs, null where the key turned out to have no private key.
+    private List<TransactionSignature> calculateSignatures(final SigHashCache cache, List<Job> jobs) {
+        List<TransactionSignature> signatures = new ArrayList<>(jobs.size());
+        if (executor == null || jobs.size() < 2) {
+            for (Job job : jobs)
+                signatures.add(calculateSignature(cache, job));
+            return signatures;
+        }
+        List<Future<TransactionSignature>> futures = new ArrayList<>(jobs.size());
+        try {
+            for (final Job job : jobs) {
+                futures.add(executor.submit(new Callable<TransactionSignature>() {
+                    @Override
+                    public TransactionSignature call() {
+                        return calculateSignature(cache, job);
+                    }
+                }));
+            }
+            for (Future<TransactionSignature> future : futures)
+                signatures.add(future.get());
+            return signatures;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<TransactionSignature> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    @Nullable
+    private static TransactionSignature calculateSignature(SigHashCache cache, Job job) {
+        try {
+            return cache.calculateSignature(job.index, job.key, job.script, Transaction.SigHash.ALL, false);
+        } catch (ECKey.KeyIsEncryptedException e) {
+            throw e;
+        } catch (ECKey.MissingPrivateKeyException e) {
+            log.warn("No private key in keypair for input {}", job.index);
+            return null;
+        }
+    }
+
 }
@@ -33,6 +33,7 @@ import org.ulordj.core.AddressFormatException;
 import org.ulordj.core.ECKey;
 import org.ulordj.core.LegacyAddress;
 import org.ulordj.core.NetworkParameters;
+import org.ulordj.core.OutPointKey;
 import org.ulordj.core.Sha256Hash;
 import org.ulordj.core.StoredBlock;
 import org.ulordj.core.StoredUndoableBlock;
@@ -92,11 +93,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // ONLY used for performance benchmarking.
 
     // LRU Cache for getTransactionOutput
-    protected Map<ByteBuffer, UTXO> utxoCache;
+    protected Map<OutPointKey, UTXO> utxoCache;
     // Additional cache to cope with case when transactions are rolled back
     // e.g. when block fails to verify.
-    protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
-    protected Set<ByteBuffer> utxoUncommittedDeletedCache;
+    protected Map<OutPointKey, UTXO> utxoUncommittedCache;
+    protected Set<OutPointKey> utxoUncommittedDeletedCache;
 
     // Database folder
     protected String filename;
@@ -125,7 +126,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     static final int OPENOUT_CACHE_DEFAULT = 100000;
 
     // LRUCache
-    public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
+    public class LRUCache extends LinkedHashMap<OutPointKey, UTXO> {
         private static final long serialVersionUID = 1L;
         private int capacity;
 
@@ -135,7 +136,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UTXO> eldest) {
+        protected boolean removeEldestEntry(Map.Entry<OutPointKey, UTXO> eldest) {
             return size() > this.capacity;
         }
     }
@@ -706,14 +707,14 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             UTXO result = null;
-            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
+            OutPointKey cacheKey = OutPointKey.of(hash, index);
             // Use cache
             if (autoCommit) {
                 // Simple case of auto commit on so cache is consistent.
-                result = utxoCache.get(ByteBuffer.wrap(key));
+                result = utxoCache.get(cacheKey);
             } else {
                 // Check if we have an uncommitted delete.
-                if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
+                if (utxoUncommittedDeletedCache.contains(cacheKey)) {
                     // has been deleted so return null;
                     hit++;
                     if (instrument)
@@ -721,9 +722,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                     return result;
                 }
                 // Check if we have an uncommitted entry
-                result = utxoUncommittedCache.get(ByteBuffer.wrap(key));
+                result = utxoUncommittedCache.get(cacheKey);
                 if (result == null)
-                    result = utxoCache.get(ByteBuffer.wrap(key));
+                    result = utxoCache.get(cacheKey);
                 // And lastly above check if we have a committed cached entry
 
             }
@@ -735,7 +736,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             }
             miss++;
             // If we get here have to hit the database.
-            byte[] inbytes = batchGet(key);
+            byte[] inbytes = batchGet(getTxKey(KeyType.OPENOUT_ALL, hash, (int) index));
             if (inbytes == null) {
                 if (instrument)
                     endMethod("getTransactionOutput");
@@ -777,13 +778,14 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
         batchPut(key, bos.toByteArray());
 
+        OutPointKey cacheKey = OutPointKey.of(out);
         if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
+            utxoCache.put(cacheKey, out);
         } else {
-            utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
+            utxoUncommittedCache.put(cacheKey, out);
             // leveldb just stores the last key/value added.
             // So if we do an add must remove any previous deletes.
-            utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
+            utxoUncommittedDeletedCache.remove(cacheKey);
         }
 
         // Could run this in parallel with above too.
@@ -868,11 +870,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
 
+        OutPointKey cacheKey = OutPointKey.of(out);
         if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
+            utxoCache.remove(cacheKey);
         } else {
-            utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
-            utxoUncommittedCache.remove(ByteBuffer.wrap(key));
+            utxoUncommittedDeletedCache.add(cacheKey);
+            utxoUncommittedCache.remove(cacheKey);
         }
 
         batchDelete(key);
@@ -1058,12 +1061,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // order of these is not important as we only allow entry to be in one
         // or the other.
         // must update cache with uncommitted adds/deletes.
-        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
+        for (Map.Entry<OutPointKey, UTXO> entry : utxoUncommittedCache.entrySet()) {
 
             utxoCache.put(entry.getKey(), entry.getValue());
         }
         utxoUncommittedCache = null;
-        for (ByteBuffer entry : utxoUncommittedDeletedCache) {
+        for (OutPointKey entry : utxoUncommittedDeletedCache) {
             utxoCache.remove(entry);
         }
         utxoUncommittedDeletedCache = null;
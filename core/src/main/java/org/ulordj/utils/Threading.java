@@ -196,4 +196,10 @@ public class Threading {
                 }
             })
     );
+
+    /**
+     * A fork/join pool for CPU bound work that splits up well, like hashing the transactions of a large block. Its
+     * threads are daemons as well.
+     */
+    public static ForkJoinPool FORK_JOIN_POOL = new ForkJoinPool();
 }
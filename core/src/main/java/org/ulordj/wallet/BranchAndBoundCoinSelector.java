@@ -0,0 +1,213 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.wallet;
+
+import org.ulordj.core.Coin;
+import org.ulordj.core.Transaction;
+import org.ulordj.core.TransactionOutput;
+
+import com.google.common.base.Stopwatch;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that looks for outputs adding up to the target so closely that no change is needed. That
+ * makes the transaction smaller and doesn't leave another output to spend later, which matters for wallets that
+ * already have a lot of them. The search is a depth first walk through the candidates from the largest value down,
+ * like the branch and bound selection of Bitcoin Core, limited by a number of tries and a time budget.</p>
+ *
+ * <p>If no such set is found, the smallest output that covers the target on its own is selected, or otherwise the
+ * largest outputs until the target is reached, to keep the number of inputs low.</p>
+ *
+ * <p>Only outputs that {@link DefaultCoinSelector#isSelectable(Transaction)} are considered.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** The default number of steps the search may take. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+    /** The default time the search may take. */
+    public static final long DEFAULT_TIME_BUDGET_MSEC = 100;
+
+    private final Coin maxExcess;
+    private final int maxTries;
+    private final long timeBudgetMillis;
+
+    /**
+     * Creates a selector that accepts up to {@link Transaction#MIN_NONDUST_OUTPUT} more than the target without
+     * change, as the wallet adds such small change to the fee anyway.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT, DEFAULT_MAX_TRIES, DEFAULT_TIME_BUDGET_MSEC);
+    }
+
+    /**
+     * @param maxExcess How much more than the target a selection without change may gather. The excess goes to the
+     *                  miners, so this should be about what a change output would cost.
+     * @param maxTries How many steps the search may take before falling back.
+     * @param timeBudgetMillis How long the search may take before falling back.
+     */
+    public BranchAndBoundCoinSelector(Coin maxExcess, int maxTries, long timeBudgetMillis) {
+        checkArgument(maxExcess.signum() >= 0);
+        checkArgument(maxTries > 0);
+        checkArgument(timeBudgetMillis >= 0);
+        this.maxExcess = maxExcess;
+        this.maxTries = maxTries;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    private static final class Candidate {
+        final TransactionOutput output;
+        final long value;
+
+        Candidate(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_VALUE_DESCENDING = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Long.compare(b.value, a.value);
+        }
+    };
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        List<Candidate> sorted = new ArrayList<>(candidates.size());
+        long available = 0;
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output.getParentTransaction()))
+                continue;
+            Candidate candidate = new Candidate(output);
+            sorted.add(candidate);
+            available += candidate.value;
+        }
+        if (available <= target.value) {
+            // Everything or not enough, the caller finds out which.
+            List<TransactionOutput> all = new ArrayList<>(sorted.size());
+            for (Candidate candidate : sorted)
+                all.add(candidate.output);
+            return new CoinSelection(Coin.valueOf(available), all);
+        }
+        Collections.sort(sorted, BY_VALUE_DESCENDING);
+        long[] values = new long[sorted.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = sorted.get(i).value;
+
+        boolean[] selected = search(values, target.value, target.value + maxExcess.value);
+        if (selected == null)
+            selected = fallback(values, target.value);
+        List<TransactionOutput> gathered = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (selected[i]) {
+                gathered.add(sorted.get(i).output);
+                total += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+
+    /** Sub-classes can override this to customize whether transactions are usable. */
+    protected boolean shouldSelect(@Nullable Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+
+    /**
+     * Walks through the selections of the given values, sorted in descending order, including each value before
+     * excluding it, and returns the one adding up to between min and max with the least excess, or null if there is
+     * none or the budget ran out before one was found.
+     */
+    @Nullable
+    private boolean[] search(long[] values, long min, long max) {
+        int n = values.length;
+        // What the values from an index on add up to, to give up on branches that can't reach the target anymore.
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        boolean[] current = new boolean[n];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long total = 0;
+        // The values below this index are decided.
+        int depth = 0;
+        for (int tries = 0; tries < maxTries; tries++) {
+            boolean backtrack;
+            if (total > max || total + remaining[depth] < min) {
+                backtrack = true;
+            } else if (total >= min) {
+                long excess = total - min;
+                if (excess < bestExcess) {
+                    best = current.clone();
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                // Adding more can only increase the excess.
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+            if (backtrack) {
+                // Exclude the last value that was included, and continue with the ones after it.
+                while (depth > 0 && !current[depth - 1])
+                    depth--;
+                if (depth == 0)
+                    break; // Tried everything.
+                current[depth - 1] = false;
+                total -= values[depth - 1];
+            } else if (depth > 0 && !current[depth - 1] && values[depth] == values[depth - 1]) {
+                // Including this value would give the same selections as including the equal one that was just
+                // excluded, so skip it.
+                depth++;
+            } else {
+                current[depth] = true;
+                total += values[depth];
+                depth++;
+            }
+            if (tries % 1000 == 999 && stopwatch.elapsed(TimeUnit.MILLISECONDS) >= timeBudgetMillis)
+                break;
+        }
+        return best;
+    }
+
+    /** Selects the smallest value that covers the target, or the largest values until the target is reached. */
+    private boolean[] fallback(long[] values, long target) {
+        boolean[] selected = new boolean[values.length];
+        for (int i = values.length - 1; i >= 0; i--) {
+            if (values[i] >= target) {
+                selected[i] = true;
+                return selected;
+            }
+        }
+        long total = 0;
+        for (int i = 0; i < values.length && total < target; i++) {
+            selected[i] = true;
+            total += values[i];
+        }
+        return selected;
+    }
+}
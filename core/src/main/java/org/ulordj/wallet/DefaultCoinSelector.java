@@ -35,20 +35,26 @@ public class DefaultCoinSelector implements CoinSelector {
     @Override
     public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
         ArrayList<TransactionOutput> selected = new ArrayList<>();
-        // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
-        ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates);
+        long total = 0;
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
         // TODO: Take in network parameters when instanatiated, and then test against the current network. Or just have a boolean parameter for "give me everything"
-        if (!target.equals(NetworkParameters.MAX_MONEY)) {
-            sortOutputs(sortedOutputs);
+        if (target.equals(NetworkParameters.MAX_MONEY)) {
+            for (TransactionOutput output : candidates) {
+                if (total >= target.value) break;
+                if (!shouldSelect(output.getParentTransaction())) continue;
+                selected.add(output);
+                total += output.getValue().value;
+            }
+            return new CoinSelection(Coin.valueOf(total), selected);
         }
-        // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
-        // bit over (excessive value will be change).
-        long total = 0;
-        for (TransactionOutput output : sortedOutputs) {
-            if (total >= target.value) break;
+        // Take the inputs by age*value so we get the highest "coindays" spent. Usually only a few of them are needed,
+        // so rather than sorting all of them they are put into a heap, which takes linear time, and taken out until
+        // we have got as close to the target as possible or a little bit over (excessive value will be change). The
+        // order depends on the chain height, so it can't be kept between calls.
+        PriorityQueue<SortKey> heap = new PriorityQueue<>(sortKeys(candidates));
+        while (total < target.value && !heap.isEmpty()) {
+            TransactionOutput output = heap.poll().output;
             // Only pick chain-included transactions, or transactions that are ours and pending.
             if (!shouldSelect(output.getParentTransaction())) continue;
             selected.add(output);
@@ -60,26 +66,46 @@ public class DefaultCoinSelector implements CoinSelector {
     }
 
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
-            }
-        });
+        List<SortKey> keys = sortKeys(outputs);
+        Collections.sort(keys);
+        for (int i = 0; i < keys.size(); i++)
+            outputs.set(i, keys.get(i).output);
+    }
+
+    private static List<SortKey> sortKeys(List<TransactionOutput> outputs) {
+        List<SortKey> keys = new ArrayList<>(outputs.size());
+        for (TransactionOutput output : outputs)
+            keys.add(new SortKey(output));
+        return keys;
+    }
+
+    // The ordering of an output, calculated once rather than on each comparison.
+    private static final class SortKey implements Comparable<SortKey> {
+        final TransactionOutput output;
+        final long value;
+        final BigInteger coinDepth;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+            this.coinDepth = BigInteger.valueOf(value)
+                    .multiply(BigInteger.valueOf(output.getParentTransactionDepthInBlocks()));
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            int c1 = other.coinDepth.compareTo(coinDepth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = Long.compare(other.value, value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            BigInteger aHash = output.getParentTransactionHash().toBigInteger();
+            BigInteger bHash = other.output.getParentTransactionHash().toBigInteger();
+            int c3 = aHash.compareTo(bHash);
+            if (c3 != 0) return c3;
+            return Integer.compare(output.getIndex(), other.output.getIndex());
+        }
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
@@ -22,10 +22,12 @@ import org.ulordj.core.NetworkParameters;
 import org.ulordj.core.Utils;
 import org.ulordj.crypto.*;
 import org.ulordj.script.Script;
+import org.ulordj.utils.ContextPropagatingThreadFactory;
 import org.ulordj.utils.Threading;
 import org.ulordj.wallet.listeners.KeyChainEventListener;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
@@ -38,7 +40,12 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -130,6 +137,10 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // regenerations, which are expensive and will (in future) trigger chain download stalls/retries. One third
     // is an efficiency tradeoff.
     protected int lookaheadThreshold = calcDefaultLookaheadThreshold();
+    // Lookahead keys are derived on several threads, in batches of this many, once at least the threshold number of
+    // keys is needed. Below that the thread pool costs more than it saves.
+    private static final int PARALLEL_LOOKAHEAD_THRESHOLD = 64;
+    private static final int LOOKAHEAD_BATCH_SIZE = 16;
 
     private int calcDefaultLookaheadThreshold() {
         return lookaheadSize / 3;
@@ -1242,9 +1253,14 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
         int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        for (DeterministicKey key : deriveLookaheadKeys(parent, nextChild, needed)) {
+            hierarchy.putKey(key);
+            result.add(key);
+            nextChild = key.getChildNumber().num() + 1;
+        }
+        // Derivations that came out invalid were skipped above, top up with the children that follow them.
+        while (result.size() < needed) {
+            DeterministicKey key = toLookaheadKey(HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild));
             hierarchy.putKey(key);
             result.add(key);
             nextChild = key.getChildNumber().num() + 1;
@@ -1254,6 +1270,66 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return result;
     }
 
+    /**
+     * Derives the public keys of the children {@code first} to {@code first + count - 1} of the given parent with
+     * {@link HDKeyDerivation#derivePublicChildKeys(DeterministicKey, int, int)}, in batches on a temporary thread pool
+     * when there are enough of them, as each costs an EC point multiply. The result is in child order and leaves out
+     * the rare children whose derivation is invalid, so it may be shorter than requested.
+     */
+    private static List<DeterministicKey> deriveLookaheadKeys(final DeterministicKey parent, int first, int count) {
+        int batches = (count + LOOKAHEAD_BATCH_SIZE - 1) / LOOKAHEAD_BATCH_SIZE;
+        int threads = Math.min(batches, Runtime.getRuntime().availableProcessors());
+        if (count < PARALLEL_LOOKAHEAD_THRESHOLD || threads <= 1)
+            return toLookaheadKeys(HDKeyDerivation.derivePublicChildKeys(parent, first, count));
+        // Decode the parent point up front rather than racing to do it on every thread.
+        parent.getPubKeyPoint();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Key derivation"));
+        try {
+            List<Future<List<DeterministicKey>>> futures = new ArrayList<>(batches);
+            for (int start = first; start < first + count; start += LOOKAHEAD_BATCH_SIZE) {
+                final int batchStart = start;
+                final int batchEnd = Math.min(start + LOOKAHEAD_BATCH_SIZE, first + count);
+                futures.add(executor.submit(new Callable<List<DeterministicKey>>() {
+                    @Override
+                    public List<DeterministicKey> call() {
+                        return toLookaheadKeys(HDKeyDerivation.derivePublicChildKeys(parent, batchStart,
+                                batchEnd - batchStart));
+                    }
+                }));
+            }
+            List<DeterministicKey> result = new ArrayList<>(count);
+            for (Future<List<DeterministicKey>> future : futures)
+                result.addAll(future.get());
+            return result;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Strips the private key of a freshly derived lookahead key and keeps its public key in encoded form, with the
+     * hash160 already computed. The Bloom filter, the key lookup maps and the wallet file then reuse both instead of
+     * encoding and hashing the point again.
+     */
+    private static DeterministicKey toLookaheadKey(DeterministicKey key) {
+        DeterministicKey result = new DeterministicKey(key.getPath(), key.getChainCode(),
+                new LazyECPoint(ECKey.CURVE.getCurve(), key.getPubKey()), null, key.getParent());
+        result.getPubKeyHash();
+        return result;
+    }
+
+    /** Computes the hash160 of keys from {@link HDKeyDerivation#derivePublicChildKeys}, which are already stripped. */
+    private static List<DeterministicKey> toLookaheadKeys(List<DeterministicKey> keys) {
+        for (DeterministicKey key : keys)
+            key.getPubKeyHash();
+        return keys;
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
@@ -21,7 +21,9 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.ulord.protocols.payments.Protos.PaymentDetails;
 import org.ulordj.core.Address;
@@ -152,6 +154,12 @@ public class SendRequest {
      */
     public boolean recipientsPayFees = false;
 
+    /**
+     * The number of bytes the outputs of a request created by {@link #toMany(NetworkParameters, List)} may take up.
+     * This leaves room for the inputs and the change within {@link Transaction#MAX_STANDARD_TX_SIZE}.
+     */
+    public static final int MAX_BATCH_OUTPUT_BYTES = Transaction.MAX_STANDARD_TX_SIZE / 4;
+
     // Tracks if this has been passed to wallet.completeTx already: just a safety check.
     boolean completed;
 
@@ -187,6 +195,32 @@ public class SendRequest {
         return req;
     }
 
+    /**
+     * <p>Creates requests paying the given outputs, for example the withdrawals of many users, to be completed and
+     * committed together with {@link Wallet#sendCoinsOffline(List)}. The outputs are packed in order into as few
+     * transactions as possible, each with outputs of up to {@link #MAX_BATCH_OUTPUT_BYTES}. The given outputs become
+     * part of the transactions of the requests.</p>
+     *
+     * <p>The returned requests use the defaults and can be customized before they are completed.</p>
+     */
+    public static List<SendRequest> toMany(NetworkParameters params, List<TransactionOutput> outputs) {
+        List<SendRequest> requests = new ArrayList<>();
+        SendRequest req = null;
+        int size = 0;
+        for (TransactionOutput output : outputs) {
+            int outputSize = output.unsafeBitcoinSerialize().length;
+            if (req == null || size + outputSize > MAX_BATCH_OUTPUT_BYTES) {
+                req = new SendRequest();
+                req.tx = new Transaction(params);
+                requests.add(req);
+                size = 0;
+            }
+            req.tx.addOutput(output);
+            size += outputSize;
+        }
+        return requests;
+    }
+
     /** Simply wraps a pre-built incomplete transaction provided by you. */
     public static SendRequest forTx(Transaction tx) {
         SendRequest req = new SendRequest();
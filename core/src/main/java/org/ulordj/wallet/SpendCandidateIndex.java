@@ -0,0 +1,246 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.wallet;
+
+import org.ulordj.core.Coin;
+import org.ulordj.core.Transaction;
+import org.ulordj.core.TransactionConfidence;
+import org.ulordj.core.TransactionConfidence.ConfidenceType;
+import org.ulordj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Sorts the outputs a {@link Wallet} could spend into buckets by what it takes for them to become spendable, and
+ * keeps running totals of them, so balances can be calculated without looking at every output:</p>
+ *
+ * <ul>
+ * <li>Confirmed outputs belong to a mature transaction in the best chain. They stay spendable until they are spent or
+ *     there is a re-org, in which case the wallet rebuilds the index.</li>
+ * <li>Immature outputs belong to a coinbase transaction in the best chain and are keyed by the height at which they
+ *     mature, see {@link #onNewBestHeight(int)}.</li>
+ * <li>Unconfirmed outputs belong to all other transactions. Whether they can be spent depends on confidence data that
+ *     is updated by the network, so they are checked each time they are asked for. There are usually few of them.</li>
+ * </ul>
+ *
+ * <p>Whether the wallet can sign for an output is remembered too. Call {@link #invalidateSignable()} whenever keys
+ * are added or removed.</p>
+ *
+ * <p>This class is not thread safe, it's guarded by the wallet lock, except for {@link #invalidateSignable()}.</p>
+ */
+class SpendCandidateIndex {
+    private final Wallet wallet;
+
+    // Output -> whether we can sign for it, or null if that has to be determined again.
+    private final Map<TransactionOutput, Boolean> outputs = new HashMap<>();
+    private final Set<TransactionOutput> confirmed = new LinkedHashSet<>();
+    private final TreeMap<Integer, Set<TransactionOutput>> immature = new TreeMap<>();
+    private final Set<TransactionOutput> unconfirmed = new LinkedHashSet<>();
+    // Keys are changed under the key chain group lock only, so this may be cleared without holding the wallet lock.
+    private volatile boolean signableValid = true;
+
+    private long total, signableTotal, confirmedTotal, confirmedSignableTotal;
+
+    SpendCandidateIndex(Wallet wallet) {
+        this.wallet = checkNotNull(wallet);
+    }
+
+    /** Adds an output the wallet could spend. Its parent transaction must already have its final confidence. */
+    void add(TransactionOutput output) {
+        if (outputs.containsKey(output))
+            return;
+        Transaction tx = checkNotNull(output.getParentTransaction());
+        boolean known = signableValid;
+        boolean signable = known && wallet.canSignFor(output.getScriptPubKey());
+        outputs.put(output, known ? signable : null);
+        long value = output.getValue().value;
+        total += value;
+        if (signable)
+            signableTotal += value;
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING) {
+            unconfirmed.add(output);
+        } else if (tx.isMature()) {
+            confirmed.add(output);
+            confirmedTotal += value;
+            if (signable)
+                confirmedSignableTotal += value;
+        } else {
+            int maturityHeight = confidence.getAppearedAtChainHeight()
+                    + tx.getParams().getSpendableCoinbaseDepth() - 1;
+            Set<TransactionOutput> set = immature.get(maturityHeight);
+            if (set == null) {
+                set = new HashSet<>();
+                immature.put(maturityHeight, set);
+            }
+            set.add(output);
+        }
+    }
+
+    /** Removes an output, for example because it got spent. */
+    void remove(TransactionOutput output) {
+        if (!outputs.containsKey(output))
+            return;
+        boolean signable = Boolean.TRUE.equals(outputs.remove(output));
+        long value = output.getValue().value;
+        total -= value;
+        if (signable)
+            signableTotal -= value;
+        if (confirmed.remove(output)) {
+            confirmedTotal -= value;
+            if (signable)
+                confirmedSignableTotal -= value;
+        } else if (!unconfirmed.remove(output)) {
+            removeImmature(output);
+        }
+    }
+
+    private boolean removeImmature(TransactionOutput output) {
+        for (Iterator<Set<TransactionOutput>> it = immature.values().iterator(); it.hasNext(); ) {
+            Set<TransactionOutput> set = it.next();
+            if (set.remove(output)) {
+                if (set.isEmpty())
+                    it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Sorts the outputs of the given transaction into the right bucket again, after its confidence changed. */
+    void update(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (outputs.containsKey(output)) {
+                remove(output);
+                add(output);
+            }
+        }
+    }
+
+    /** Moves the coinbase outputs that matured at the given height of the best chain to the confirmed bucket. */
+    void onNewBestHeight(int height) {
+        List<TransactionOutput> matured = new ArrayList<>();
+        for (Set<TransactionOutput> set : immature.headMap(height, true).values())
+            matured.addAll(set);
+        for (TransactionOutput output : matured) {
+            // Adding it again checks the maturity of the transaction itself.
+            remove(output);
+            add(output);
+        }
+    }
+
+    /** Drops everything and adds the given outputs again, for example after a re-org. */
+    void rebuild(Iterable<TransactionOutput> outputs) {
+        clear();
+        for (TransactionOutput output : outputs)
+            add(output);
+    }
+
+    void clear() {
+        outputs.clear();
+        confirmed.clear();
+        immature.clear();
+        unconfirmed.clear();
+        total = signableTotal = confirmedTotal = confirmedSignableTotal = 0;
+        signableValid = true;
+    }
+
+    /** Marks whether we can sign for the outputs as unknown, it's determined again when needed. */
+    void invalidateSignable() {
+        signableValid = false;
+    }
+
+    private void revalidateSignable() {
+        if (signableValid)
+            return;
+        signableValid = true;
+        signableTotal = confirmedSignableTotal = 0;
+        for (Map.Entry<TransactionOutput, Boolean> entry : outputs.entrySet()) {
+            TransactionOutput output = entry.getKey();
+            boolean signable = wallet.canSignFor(output.getScriptPubKey());
+            entry.setValue(signable);
+            if (signable) {
+                signableTotal += output.getValue().value;
+                if (confirmed.contains(output))
+                    confirmedSignableTotal += output.getValue().value;
+            }
+        }
+    }
+
+    /** Returns the value of all outputs, see {@link Wallet.BalanceType#ESTIMATED}. */
+    Coin getEstimatedBalance(boolean onlySignable) {
+        if (!onlySignable)
+            return Coin.valueOf(total);
+        revalidateSignable();
+        return Coin.valueOf(signableTotal);
+    }
+
+    /**
+     * Returns the value of all outputs the {@link DefaultCoinSelector} would select, see
+     * {@link Wallet.BalanceType#AVAILABLE}.
+     */
+    Coin getAvailableBalance(boolean onlySignable) {
+        if (onlySignable)
+            revalidateSignable();
+        long value = onlySignable ? confirmedSignableTotal : confirmedTotal;
+        for (TransactionOutput output : unconfirmed) {
+            if (onlySignable && !outputs.get(output))
+                continue;
+            Transaction tx = output.getParentTransaction();
+            if (tx.isMature() && DefaultCoinSelector.isSelectable(tx))
+                value += output.getValue().value;
+        }
+        return Coin.valueOf(value);
+    }
+
+    /** Returns the outputs that could be spent, see {@link Wallet#calculateAllSpendCandidates(boolean, boolean)}. */
+    List<TransactionOutput> getCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        if (excludeUnsignable)
+            revalidateSignable();
+        List<TransactionOutput> candidates = new ArrayList<>(outputs.size());
+        for (TransactionOutput output : confirmed) {
+            if (!excludeUnsignable || outputs.get(output))
+                candidates.add(output);
+        }
+        for (TransactionOutput output : unconfirmed) {
+            if (excludeUnsignable && !outputs.get(output))
+                continue;
+            if (excludeImmatureCoinbases && !output.getParentTransaction().isMature())
+                continue;
+            candidates.add(output);
+        }
+        if (!excludeImmatureCoinbases) {
+            for (Set<TransactionOutput> set : immature.values()) {
+                for (TransactionOutput output : set) {
+                    if (!excludeUnsignable || outputs.get(output))
+                        candidates.add(output);
+                }
+            }
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.wallet;
+
+import org.ulordj.core.Address;
+import org.ulordj.core.Block;
+import org.ulordj.core.Sha256Hash;
+import org.ulordj.core.Transaction;
+import org.ulordj.core.TransactionConfidence;
+import org.ulordj.core.TransactionConfidence.ConfidenceType;
+import org.ulordj.core.TransactionInput;
+import org.ulordj.core.TransactionOutput;
+import org.ulordj.script.Script;
+import org.ulordj.script.ScriptBuilder;
+import org.ulordj.utils.Threading;
+
+import com.google.common.base.Objects;
+import com.google.protobuf.ByteString;
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>The transaction history of a {@link Wallet}, kept in the order it's usually displayed in: by update time, by
+ * chain height and by update time per script. The orderings are updated as transactions are added to the wallet or
+ * appear in blocks, so reading a page of history costs time proportional to the size of the page rather than to the
+ * size of the wallet.</p>
+ *
+ * <p>History is read page by page. Pass the {@link Cursor} of the previous {@link Page} to get the next one, or null
+ * to start with the newest transactions. Cursors stay valid while the wallet changes: the next page starts right after
+ * the position of the last transaction of the previous page.</p>
+ *
+ * <p>Reading doesn't take the wallet lock, so it doesn't wait for block processing. Pages are weakly consistent: a
+ * transaction that is added or moved while a page is read may or may not be on it. Update times and confidences
+ * changed by other code than the wallet are noticed when the transaction is read, at which point it's moved to its
+ * new position. Moving it only takes the lock of the index itself, which is never held while calling into the
+ * wallet.</p>
+ *
+ * <p>Scripts are indexed as recognised by the wallet when a transaction was last indexed: the outputs that are mine
+ * or watched, and the outputs of the wallet that are spent.</p>
+ */
+public class TransactionHistory {
+    /**
+     * A position in one of the orderings. Newer transactions come first; transactions with the same time or height
+     * are ordered by hash.
+     */
+    public static final class Cursor {
+        private final long key;
+        private final Sha256Hash hash;
+
+        private Cursor(long key, Sha256Hash hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Cursor other = (Cursor) o;
+            return key == other.key && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key, hash);
+        }
+
+        @Override
+        public String toString() {
+            return key + "/" + hash;
+        }
+    }
+
+    private static final Comparator<Cursor> ORDER = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor c1, Cursor c2) {
+            if (c1.key != c2.key)
+                return c1.key > c2.key ? -1 : 1;
+            return c1.hash.compareTo(c2.hash);
+        }
+    };
+
+    /** A page of transactions, plus the cursor to read the next page from. */
+    public static final class Page {
+        private final List<Transaction> transactions;
+        @Nullable private final Cursor next;
+
+        private Page(List<Transaction> transactions, @Nullable Cursor next) {
+            this.transactions = Collections.unmodifiableList(transactions);
+            this.next = next;
+        }
+
+        /** Returns the transactions on this page, newest first. */
+        public List<Transaction> getTransactions() {
+            return transactions;
+        }
+
+        /** Returns the cursor to read the next page from, or null if this was the last page. */
+        @Nullable
+        public Cursor getNext() {
+            return next;
+        }
+    }
+
+    // Where a transaction was indexed. Immutable, it's replaced when the transaction is indexed again.
+    private static final class Entry {
+        final Transaction tx;
+        final boolean dead;
+        final Cursor time;
+        final Cursor height;
+        final Set<ByteString> scripts;
+
+        Entry(Transaction tx, boolean dead, Set<ByteString> scripts) {
+            this.tx = tx;
+            this.dead = dead;
+            this.time = new Cursor(timeOf(tx), tx.getHash());
+            this.height = new Cursor(heightOf(tx), tx.getHash());
+            this.scripts = scripts;
+        }
+    }
+
+    private interface Ordering {
+        long currentKey(Transaction tx);
+    }
+
+    private static final Ordering BY_TIME = new Ordering() {
+        @Override
+        public long currentKey(Transaction tx) {
+            return timeOf(tx);
+        }
+    };
+
+    private static final Ordering BY_HEIGHT = new Ordering() {
+        @Override
+        public long currentKey(Transaction tx) {
+            return heightOf(tx);
+        }
+    };
+
+    private final Wallet wallet;
+    // Guards the index against the wallet and readers moving stale entries at the same time. The wallet takes it
+    // while holding its own lock, so this one must never be held while calling into the wallet.
+    private final ReentrantLock lock = Threading.lock("transactionhistory");
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Entry> entries = new HashMap<>();
+    private final ConcurrentSkipListMap<Cursor, Entry> byTime = new ConcurrentSkipListMap<>(ORDER);
+    private final ConcurrentSkipListMap<Cursor, Entry> byHeight = new ConcurrentSkipListMap<>(ORDER);
+    private final ConcurrentHashMap<ByteString, ConcurrentSkipListMap<Cursor, Entry>> byScript =
+            new ConcurrentHashMap<>();
+
+    TransactionHistory(Wallet wallet) {
+        this.wallet = checkNotNull(wallet);
+    }
+
+    private static long timeOf(Transaction tx) {
+        return tx.getUpdateTime().getTime();
+    }
+
+    private static long heightOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING
+                ? confidence.getAppearedAtChainHeight() : Block.BLOCK_HEIGHT_UNKNOWN;
+    }
+
+    /**
+     * Returns a page of transactions ordered by update time, newest first, like
+     * {@link Transaction#SORT_TX_BY_UPDATE_TIME}.
+     * @param after The cursor of the previous page, or null to start at the newest transaction.
+     * @param includeDead Whether to include transactions that were overridden by double spends.
+     */
+    public Page getByTime(@Nullable Cursor after, int pageSize, boolean includeDead) {
+        return page(byTime, BY_TIME, after, pageSize, includeDead);
+    }
+
+    /**
+     * Returns a page of transactions ordered by the height they appeared at, highest first, like
+     * {@link Transaction#SORT_TX_BY_HEIGHT}. Unconfirmed transactions come last.
+     * @param after The cursor of the previous page, or null to start at the highest transaction.
+     * @param includeDead Whether to include transactions that were overridden by double spends.
+     */
+    public Page getByHeight(@Nullable Cursor after, int pageSize, boolean includeDead) {
+        return page(byHeight, BY_HEIGHT, after, pageSize, includeDead);
+    }
+
+    /**
+     * Returns a page of the transactions paying to or spending from the given script, ordered by update time, newest
+     * first.
+     * @param after The cursor of the previous page, or null to start at the newest transaction.
+     * @param includeDead Whether to include transactions that were overridden by double spends.
+     */
+    public Page getForScript(Script script, @Nullable Cursor after, int pageSize, boolean includeDead) {
+        ConcurrentSkipListMap<Cursor, Entry> index = byScript.get(ByteString.copyFrom(script.getProgram()));
+        if (index == null) {
+            checkArgument(pageSize > 0);
+            return new Page(new ArrayList<Transaction>(), null);
+        }
+        return page(index, BY_TIME, after, pageSize, includeDead);
+    }
+
+    /** Like {@link #getForScript(Script, Cursor, int, boolean)}, for the output script of the given address. */
+    public Page getForAddress(Address address, @Nullable Cursor after, int pageSize, boolean includeDead) {
+        return getForScript(ScriptBuilder.createOutputScript(address), after, pageSize, includeDead);
+    }
+
+    private Page page(ConcurrentSkipListMap<Cursor, Entry> index, Ordering ordering, @Nullable Cursor after,
+                      int pageSize, boolean includeDead) {
+        checkArgument(pageSize > 0);
+        while (true) {
+            ConcurrentNavigableMap<Cursor, Entry> view = after == null ? index : index.tailMap(after, false);
+            List<Transaction> transactions = new ArrayList<>(Math.min(pageSize, 64));
+            Cursor last = null;
+            boolean stale = false;
+            for (Map.Entry<Cursor, Entry> mapEntry : view.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (ordering.currentKey(entry.tx) != mapEntry.getKey().key) {
+                    // Changed behind the wallet's back. Move it and read the page again, it may belong earlier.
+                    reindex(entry);
+                    stale = true;
+                    break;
+                }
+                if (entry.dead && !includeDead)
+                    continue;
+                transactions.add(entry.tx);
+                last = mapEntry.getKey();
+                if (transactions.size() == pageSize)
+                    break;
+            }
+            if (!stale)
+                return new Page(transactions, transactions.size() == pageSize ? last : null);
+        }
+    }
+
+    private void reindex(Entry stale) {
+        lock.lock();
+        try {
+            if (entries.get(stale.tx.getHash()) == stale)
+                putLocked(stale.tx, stale.dead, stale.scripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Indexes the given transaction of the wallet, or moves it if it was indexed before. */
+    void put(Transaction tx, boolean dead) {
+        Set<ByteString> scripts = new HashSet<>();
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isMineOrWatched(wallet))
+                scripts.add(ByteString.copyFrom(output.getScriptBytes()));
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null && connected.isMineOrWatched(wallet))
+                scripts.add(ByteString.copyFrom(connected.getScriptBytes()));
+        }
+        lock.lock();
+        try {
+            putLocked(tx, dead, scripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void putLocked(Transaction tx, boolean dead, Set<ByteString> scripts) {
+        Entry entry = new Entry(tx, dead, scripts);
+        // Put the new entry first, so readers don't miss the transaction while it's moved.
+        byTime.put(entry.time, entry);
+        byHeight.put(entry.height, entry);
+        for (ByteString script : scripts) {
+            ConcurrentSkipListMap<Cursor, Entry> index = byScript.get(script);
+            if (index == null) {
+                index = new ConcurrentSkipListMap<>(ORDER);
+                byScript.put(script, index);
+            }
+            index.put(entry.time, entry);
+        }
+        Entry previous = entries.put(tx.getHash(), entry);
+        if (previous != null)
+            unindex(previous);
+    }
+
+    /** Removes the given transaction. */
+    void remove(Transaction tx) {
+        lock.lock();
+        try {
+            Entry previous = entries.remove(tx.getHash());
+            if (previous != null)
+                unindex(previous);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes the positions of the given entry. Positions its replacement took over already hold the replacement, so
+    // they are left alone.
+    @GuardedBy("lock")
+    private void unindex(Entry entry) {
+        byTime.remove(entry.time, entry);
+        byHeight.remove(entry.height, entry);
+        for (ByteString script : entry.scripts) {
+            ConcurrentSkipListMap<Cursor, Entry> index = byScript.get(script);
+            if (index == null)
+                continue;
+            index.remove(entry.time, entry);
+            if (index.isEmpty())
+                byScript.remove(script);
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            byTime.clear();
+            byHeight.clear();
+            byScript.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
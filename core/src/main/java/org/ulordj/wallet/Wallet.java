@@ -37,6 +37,7 @@ import org.ulordj.core.InsufficientMoneyException;
 import org.ulordj.core.LegacyAddress;
 import org.ulordj.core.Message;
 import org.ulordj.core.NetworkParameters;
+import org.ulordj.core.OutPointKey;
 import org.ulordj.core.Peer;
 import org.ulordj.core.PeerFilterProvider;
 import org.ulordj.core.PeerGroup;
@@ -50,10 +51,12 @@ import org.ulordj.core.TransactionConfidence;
 import org.ulordj.core.TransactionInput;
 import org.ulordj.core.TransactionOutPoint;
 import org.ulordj.core.TransactionOutput;
+import org.ulordj.core.TransactionWitness;
 import org.ulordj.core.UTXO;
 import org.ulordj.core.UTXOProvider;
 import org.ulordj.core.UTXOProviderException;
 import org.ulordj.core.Utils;
+import org.ulordj.core.VarInt;
 import org.ulordj.core.VerificationException;
 import org.ulordj.core.TransactionConfidence.*;
 import org.ulordj.crypto.*;
@@ -159,6 +162,20 @@ public class Wallet extends BaseTaggableObject
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // The same outputs sorted by whether they can be spent yet, with running totals for the balances. Changes to
+    // myUnspents must go through addMyUnspent() and removeMyUnspent() to keep it up to date.
+    private final SpendCandidateIndex spendCandidates = new SpendCandidateIndex(this);
+    // All transactions ordered for display, see getTransactionHistory().
+    private final TransactionHistory history = new TransactionHistory(this);
+
+    // The transactions in the wallet by the outpoints their inputs spend, so double spends and dependent transactions
+    // can be found without scanning the pools. More than one transaction can spend the same outpoint, for example a
+    // pending one and the dead one it double spent.
+    private final SetMultimap<OutPointKey, Transaction> spendsByOutPoint = HashMultimap.create();
+
+    // Signs the transactions of a batch in parallel, one transaction per task, see sendCoinsOffline(List). Created on
+    // first use.
+    @GuardedBy("lock") @Nullable private ThreadPoolExecutor batchSigningExecutor;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -207,8 +224,14 @@ public class Wallet extends BaseTaggableObject
 
     // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
+    // it sent transactions to the wallet, without this we'd tell listeners about the same block twice.
     private HashSet<Sha256Hash> ignoreNextNewBlock;
+    // The best chain height as seen by this wallet. The confidence objects of our transactions derive their depth from
+    // it, and it knows which of them have event listeners, so only those need to be told about new blocks.
+    private TransactionConfidence.ChainHeight chainHeight;
+    // BUILDING transactions that aren't buried below the event horizon yet, keyed by the height they appeared at.
+    // Entries are checked when used, as transactions may have left the best chain or the wallet in the meantime.
+    private TreeMap<Integer, Set<Transaction>> unburiedTransactions;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -222,6 +245,9 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // What changed since the wallet was last saved to its WalletJournal, or null if it isn't journaled. Only replaced
+    // holding both lock and keyChainGroupLock.
+    @Nullable private volatile WalletJournal.Changes journalChanges;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -377,6 +403,8 @@ public class Wallet extends BaseTaggableObject
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                // Without taking the lock, as this can run on behalf of another wallet sharing the confidence object.
+                markTransactionChanged(confidence.getTransactionHash());
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -396,6 +424,9 @@ public class Wallet extends BaseTaggableObject
                 }
             }
         };
+        chainHeight = new TransactionConfidence.ChainHeight(txConfidenceListener);
+        chainHeight.set(lastBlockSeenHeight);
+        unburiedTransactions = new TreeMap<>();
         acceptRiskyTransactions = false;
     }
 
@@ -428,6 +459,26 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Sets the executor the signatures of inputs with local keys are calculated on, in parallel, or null to calculate
+     * them on the thread completing the transaction. This replaces the {@link LocalTransactionSigner} that is added to
+     * every wallet. The executor isn't shut down by the wallet.
+     */
+    public void setSigningExecutor(@Nullable ExecutorService executor) {
+        lock.lock();
+        try {
+            for (int i = 0; i < signers.size(); i++) {
+                if (signers.get(i).getClass() == LocalTransactionSigner.class) {
+                    signers.set(i, new LocalTransactionSigner(executor));
+                    return;
+                }
+            }
+            signers.add(0, new LocalTransactionSigner(executor));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public List<TransactionSigner> getTransactionSigners() {
         lock.lock();
         try {
@@ -451,8 +502,12 @@ public class Wallet extends BaseTaggableObject
     public DeterministicKey currentKey(KeyChain.KeyPurpose purpose) {
         keyChainGroupLock.lock();
         try {
+            long size = keyChainGroupSize();
             maybeUpgradeToHD();
-            return keyChainGroup.currentKey(purpose);
+            DeterministicKey key = keyChainGroup.currentKey(purpose);
+            if (keyChainGroupSize() != size)
+                markKeysChanged();
+            return key;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -472,8 +527,12 @@ public class Wallet extends BaseTaggableObject
     public Address currentAddress(KeyChain.KeyPurpose purpose) {
         keyChainGroupLock.lock();
         try {
+            long size = keyChainGroupSize();
             maybeUpgradeToHD();
-            return keyChainGroup.currentAddress(purpose);
+            Address address = keyChainGroup.currentAddress(purpose);
+            if (keyChainGroupSize() != size)
+                markKeysChanged();
+            return address;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -513,6 +572,7 @@ public class Wallet extends BaseTaggableObject
         try {
             maybeUpgradeToHD();
             keys = keyChainGroup.freshKeys(purpose, numberOfKeys);
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -538,6 +598,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             address = keyChainGroup.freshAddress(purpose);
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -589,6 +650,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            markKeysChanged();
+            spendCandidates.invalidateSignable();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -647,7 +710,11 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            if (removed)
+                markNeedsCompaction();
+            spendCandidates.invalidateSignable();
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -716,6 +783,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            markKeysChanged();
+            spendCandidates.invalidateSignable();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -746,7 +815,10 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            int result = keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            markKeysChanged();
+            spendCandidates.invalidateSignable();
+            return result;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -767,6 +839,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            markKeysChanged();
+            spendCandidates.invalidateSignable();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -777,6 +851,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.setLookaheadSize(lookaheadSize);
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -798,6 +873,7 @@ public class Wallet extends BaseTaggableObject
         try {
             maybeUpgradeToHD();
             keyChainGroup.setLookaheadThreshold(num);
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -914,6 +990,9 @@ public class Wallet extends BaseTaggableObject
                 watchedScripts.add(script);
                 added++;
             }
+            WalletJournal.Changes changes = journalChanges;
+            if (changes != null)
+                changes.scriptsAdded(scripts);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -962,6 +1041,7 @@ public class Wallet extends BaseTaggableObject
                     continue;
 
                 watchedScripts.remove(script);
+                markNeedsCompaction();
             }
 
             queueOnScriptsChanged(scripts, false);
@@ -1077,6 +1157,7 @@ public class Wallet extends BaseTaggableObject
     private void markKeysAsUsed(Transaction tx) {
         keyChainGroupLock.lock();
         try {
+            long size = keyChainGroupSize();
             for (TransactionOutput o : tx.getOutputs()) {
                 try {
                     Script script = o.getScriptPubKey();
@@ -1096,11 +1177,22 @@ public class Wallet extends BaseTaggableObject
                     log.warn("Could not parse tx output script: {}", e.toString());
                 }
             }
+            if (keyChainGroupSize() != size)
+                markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
     }
 
+    // Changes whenever keys are added or handed out, so callers can tell whether the keys need saving again.
+    @GuardedBy("keyChainGroupLock")
+    private long keyChainGroupSize() {
+        long issued = 0;
+        for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+            issued += chain.getIssuedExternalKeys() + chain.getIssuedInternalKeys();
+        return ((long) keyChainGroup.numKeys() << 32) + issued;
+    }
+
     /**
      * Returns the immutable seed for the current active HD chain.
      * @throws org.ulordj.core.ECKey.MissingPrivateKeyException if the seed is unavailable (watching wallet)
@@ -1141,6 +1233,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1159,6 +1252,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1175,6 +1269,7 @@ public class Wallet extends BaseTaggableObject
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1191,6 +1286,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            markKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1515,10 +1611,19 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with a {@link WalletJournal}, the changes in it are applied too.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists()) {
+            Wallet wallet = WalletJournal.loadFromFile(file, walletExtensions);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
+        }
         try {
             FileInputStream stream = null;
             try {
@@ -1826,24 +1931,15 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // For each outpoint spent by tx, see if any of the candidates spends it too.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            if (p.equals(tx))
-                continue;
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
-                    doubleSpendTxns.add(p);
-                }
+        for (TransactionInput input : tx.getInputs()) {
+            // Outpoints from two different inputs that point to the same output have the same key.
+            for (Transaction p : spendsByOutPoint.get(OutPointKey.of(input.getOutpoint()))) {
+                if (p.equals(tx) || !candidates.containsKey(p.getHash()))
+                    continue;
+                // It does, it's a double spend against the candidates, which makes it relevant.
+                doubleSpendTxns.add(p);
             }
         }
         return doubleSpendTxns;
@@ -1851,29 +1947,82 @@ public class Wallet extends BaseTaggableObject
 
     /**
      * Adds to txSet all the txns in txPool spending outputs of txns in txSet,
-     * and all txns spending the outputs of those txns, recursively.
+     * and all txns spending the outputs of those txns, recursively. Only transactions in the wallet are found.
      */
     void addTransactionsDependingOn(Set<Transaction> txSet, Set<Transaction> txPool) {
+        lock.lock();
+        try {
+            addDependingTransactionsLocked(txSet, txPool);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds to txSet all the txns in the pools of the wallet, including dead ones, spending outputs of txns in txSet,
+     * and all txns spending the outputs of those txns, recursively.
+     */
+    private void addTransactionsDependingOn(Set<Transaction> txSet) {
+        addDependingTransactionsLocked(txSet, null);
+    }
+
+    private void addDependingTransactionsLocked(Set<Transaction> txSet, @Nullable Set<Transaction> txPool) {
+        checkState(lock.isHeldByCurrentThread());
         Map<Sha256Hash, Transaction> txQueue = new LinkedHashMap<>();
         for (Transaction tx : txSet) {
             txQueue.put(tx.getHash(), tx);
         }
         while(!txQueue.isEmpty()) {
             Transaction tx = txQueue.remove(txQueue.keySet().iterator().next());
-            for (Transaction anotherTx : txPool) {
-                if (anotherTx.equals(tx)) continue;
-                for (TransactionInput input : anotherTx.getInputs()) {
-                    if (input.getOutpoint().getHash().equals(tx.getHash())) {
-                        if (txQueue.get(anotherTx.getHash()) == null) {
-                            txQueue.put(anotherTx.getHash(), anotherTx);
-                            txSet.add(anotherTx);
-                        }
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                for (Transaction anotherTx : spendsByOutPoint.get(OutPointKey.of(tx.getHash(), i))) {
+                    if (anotherTx.equals(tx)) continue;
+                    if (txPool != null ? !txPool.contains(anotherTx) : !isInPool(anotherTx)) continue;
+                    if (txQueue.get(anotherTx.getHash()) == null) {
+                        txQueue.put(anotherTx.getHash(), anotherTx);
+                        txSet.add(anotherTx);
                     }
                 }
             }
         }
     }
 
+    private boolean isInPool(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        return unspent.containsKey(hash) || spent.containsKey(hash) || pending.containsKey(hash)
+                || dead.containsKey(hash);
+    }
+
+    private boolean addMyUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        spendCandidates.add(output);
+        return true;
+    }
+
+    private boolean removeMyUnspent(TransactionOutput output) {
+        if (!myUnspents.remove(output))
+            return false;
+        spendCandidates.remove(output);
+        return true;
+    }
+
+    /** Adds the inputs of a transaction that was put into {@link #transactions} to the outpoint index. */
+    private void addToSpendIndex(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs())
+            spendsByOutPoint.put(OutPointKey.of(input.getOutpoint()), tx);
+    }
+
+    /** Removes the inputs of a transaction that was removed from {@link #transactions} from the outpoint index. */
+    private void removeFromSpendIndex(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs())
+            spendsByOutPoint.remove(OutPointKey.of(input.getOutpoint()), tx);
+    }
+
     /**
      * Called by the {@link BlockChain} when we receive a new block that sends coins to one of our addresses or
      * spends coins from one of our addresses (note that a single transaction can do both).<p>
@@ -1955,7 +2104,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addMyUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -1986,17 +2135,23 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            markTransactionChanged(txHash);
+            // That may have changed the update time and height of the tx.
+            if (transactions.get(txHash) == tx)
+                history.put(tx, dead.containsKey(txHash));
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
-                // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
+                // this method has been called by BlockChain for all relevant transactions, as its type change is
+                // already queued.
                 ignoreNextNewBlock.add(txHash);
+                addUnburiedTransactionLocked(tx);
+                spendCandidates.update(tx);
 
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies);
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2128,30 +2283,12 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
-                }
-            }
+            // BUILDING transactions derive their depth from the height we just stored, so only the ones that got
+            // buried below the event horizon by this block and the ones somebody listens to need touching.
+            buryTransactionsLocked(block.getHeight());
+            queueDepthChangesLocked();
+            ignoreNextNewBlock.clear();
+            spendCandidates.onNewBestHeight(block.getHeight());
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2168,6 +2305,82 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Erases the set of seen peers of transactions that are buried deeper than the event horizon at the given height.
+     */
+    private void buryTransactionsLocked(int height) {
+        checkState(lock.isHeldByCurrentThread());
+        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go pending again. We could
+        // clear this data the moment a tx is seen in the block chain, but in cases where the chain re-orgs, this would
+        // mean that wallets would perceive a newly pending tx has zero confidence at all, which would not be right: we
+        // expect it to be included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+        // but this way is backwards compatible with existing software, and the new state probably wouldn't mean
+        // anything different to just remembering peers anyway.
+        Iterator<Map.Entry<Integer, Set<Transaction>>> it =
+                unburiedTransactions.headMap(height - context.getEventHorizon(), true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Set<Transaction>> entry = it.next();
+            for (Transaction tx : entry.getValue()) {
+                if (isUnburiedLocked(tx, entry.getKey()))
+                    tx.getConfidence().clearBroadcastBy();
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * Queues a depth change for the transactions whose confidence objects have event listeners and, if there are
+     * wallet wide confidence listeners, for the BUILDING transactions that aren't buried below the event horizon yet.
+     * The depth of all others is derived from the chain height when it's read, so a new block doesn't cost time
+     * proportional to the size of the wallet.
+     */
+    private void queueDepthChangesLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        for (TransactionConfidence confidence : chainHeight.getSubscribed())
+            queueDepthChangeLocked(transactions.get(confidence.getTransactionHash()));
+        if (!transactionConfidenceListeners.isEmpty()) {
+            // Buried transactions were just removed from the index by buryTransactionsLocked.
+            for (Map.Entry<Integer, Set<Transaction>> entry : unburiedTransactions.entrySet()) {
+                for (Transaction tx : entry.getValue()) {
+                    if (isUnburiedLocked(tx, entry.getKey()))
+                        queueDepthChangeLocked(tx);
+                }
+            }
+        }
+    }
+
+    private void queueDepthChangeLocked(@Nullable Transaction tx) {
+        // Transactions that appeared in the new block already had their type change queued in receive().
+        if (tx == null || ignoreNextNewBlock.contains(tx.getHash()) || confidenceChanged.containsKey(tx))
+            return;
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
+            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+    }
+
+    /** Adds a BUILDING transaction to the index of transactions that aren't buried below the event horizon yet. */
+    private void addUnburiedTransactionLocked(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+            return;
+        if (confidence.getDepthInBlocks() > context.getEventHorizon() && confidence.numBroadcastPeers() == 0)
+            return;
+        int height = confidence.getAppearedAtChainHeight();
+        Set<Transaction> txns = unburiedTransactions.get(height);
+        if (txns == null) {
+            txns = new HashSet<>();
+            unburiedTransactions.put(height, txns);
+        }
+        txns.add(tx);
+    }
+
+    private boolean isUnburiedLocked(Transaction tx, int appearedAtHeight) {
+        if (transactions.get(tx.getHash()) != tx)
+            return false;
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING
+                && confidence.getAppearedAtChainHeight() == appearedAtHeight;
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2236,6 +2449,7 @@ public class Wallet extends BaseTaggableObject
             for (TransactionInput input : tx.getInputs()) {
                 TransactionOutput output = input.getConnectedOutput();
                 if (output != null && !output.isMineOrWatched(this)) {
+                    markTransactionChanged(input.getOutpoint().getHash());
                     input.disconnect();
                 }
             }
@@ -2307,7 +2521,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeMyUnspent(output));
                 }
             }
         }
@@ -2330,7 +2544,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeMyUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2360,7 +2574,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addMyUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getHash());
                 }
                 deadInput.disconnect();
@@ -2370,7 +2584,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeMyUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2386,13 +2600,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeMyUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeMyUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2405,6 +2619,8 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever outputs of the tx got spent or unspent, which is saved too.
+        markTransactionChanged(tx.getHash());
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2434,76 +2650,7 @@ public class Wallet extends BaseTaggableObject
         try {
             if (pending.containsKey(tx.getHash()))
                 return false;
-            log.info("commitTx of {}", tx.getHashAsString());
-            Coin balance = getBalance();
-            tx.setUpdateTime(Utils.now());
-            // Put any outputs that are sending money back to us into the unspents map, and calculate their total value.
-            Coin valueSentToMe = Coin.ZERO;
-            for (TransactionOutput o : tx.getOutputs()) {
-                if (!o.isMineOrWatched(this)) continue;
-                valueSentToMe = valueSentToMe.add(o.getValue());
-            }
-            // Mark the outputs we're spending as spent so we won't try and use them in future creations. This will also
-            // move any transactions that are now fully spent to the spent map so we can skip them when creating future
-            // spends.
-            updateForSpends(tx, false);
-
-            Set<Transaction> doubleSpendPendingTxns = findDoubleSpendsAgainst(tx, pending);
-            Set<Transaction> doubleSpendUnspentTxns = findDoubleSpendsAgainst(tx, unspent);
-            Set<Transaction> doubleSpendSpentTxns = findDoubleSpendsAgainst(tx, spent);
-
-            if (!doubleSpendUnspentTxns.isEmpty() ||
-                !doubleSpendSpentTxns.isEmpty() ||
-                !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.DEAD)) {
-                // tx is a double spend against a tx already in the best chain or spends outputs of a DEAD tx.
-                // Add tx to the dead pool and schedule confidence listener notifications.
-                log.info("->dead: {}", tx.getHashAsString());
-                tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
-                addWalletTransaction(Pool.DEAD, tx);
-            } else if (!doubleSpendPendingTxns.isEmpty() ||
-                !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
-                // tx is a double spend against a pending tx or spends outputs of a tx already IN_CONFLICT.
-                // Add tx to the pending pool. Update the confidence type of tx, the txns in conflict with tx and all
-                // their dependencies to IN_CONFLICT and schedule confidence listener notifications.
-                log.info("->pending (IN_CONFLICT): {}", tx.getHashAsString());
-                addWalletTransaction(Pool.PENDING, tx);
-                doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
-                for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
-                    doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
-                    confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
-                }
-            } else {
-                // No conflict detected.
-                // Add to the pending pool and schedule confidence listener notifications.
-                log.info("->pending: {}", tx.getHashAsString());
-                tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
-                addWalletTransaction(Pool.PENDING, tx);
-            }
-            if (log.isInfoEnabled())
-                log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
-
-            // Mark any keys used in the outputs as "used", this allows wallet UI's to auto-advance the current key
-            // they are showing to the user in qr codes etc.
-            markKeysAsUsed(tx);
-            try {
-                Coin valueSentFromMe = tx.getValueSentFromMe(this);
-                Coin newBalance = balance.add(valueSentToMe).subtract(valueSentFromMe);
-                if (valueSentToMe.signum() > 0) {
-                    checkBalanceFuturesLocked(null);
-                    queueOnCoinsReceived(tx, balance, newBalance);
-                }
-                if (valueSentFromMe.signum() > 0)
-                    queueOnCoinsSent(tx, balance, newBalance);
-
-                maybeQueueOnWalletChanged();
-            } catch (ScriptException e) {
-                // Cannot happen as we just created this transaction ourselves.
-                throw new RuntimeException(e);
-            }
-
+            commitTxLocked(tx);
             isConsistentOrThrow();
             informConfidenceListenersIfNotReorganizing();
             saveNow();
@@ -2513,6 +2660,80 @@ public class Wallet extends BaseTaggableObject
         return true;
     }
 
+    /** Adds the given transaction to the wallet, see {@link #commitTx(Transaction)}, but doesn't save the wallet. */
+    private void commitTxLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        log.info("commitTx of {}", tx.getHashAsString());
+        Coin balance = getBalance();
+        tx.setUpdateTime(Utils.now());
+        // Put any outputs that are sending money back to us into the unspents map, and calculate their total value.
+        Coin valueSentToMe = Coin.ZERO;
+        for (TransactionOutput o : tx.getOutputs()) {
+            if (!o.isMineOrWatched(this)) continue;
+            valueSentToMe = valueSentToMe.add(o.getValue());
+        }
+        // Mark the outputs we're spending as spent so we won't try and use them in future creations. This will also
+        // move any transactions that are now fully spent to the spent map so we can skip them when creating future
+        // spends.
+        updateForSpends(tx, false);
+
+        Set<Transaction> doubleSpendPendingTxns = findDoubleSpendsAgainst(tx, pending);
+        Set<Transaction> doubleSpendUnspentTxns = findDoubleSpendsAgainst(tx, unspent);
+        Set<Transaction> doubleSpendSpentTxns = findDoubleSpendsAgainst(tx, spent);
+
+        if (!doubleSpendUnspentTxns.isEmpty() ||
+            !doubleSpendSpentTxns.isEmpty() ||
+            !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.DEAD)) {
+            // tx is a double spend against a tx already in the best chain or spends outputs of a DEAD tx.
+            // Add tx to the dead pool and schedule confidence listener notifications.
+            log.info("->dead: {}", tx.getHashAsString());
+            tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
+            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            addWalletTransaction(Pool.DEAD, tx);
+        } else if (!doubleSpendPendingTxns.isEmpty() ||
+            !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
+            // tx is a double spend against a pending tx or spends outputs of a tx already IN_CONFLICT.
+            // Add tx to the pending pool. Update the confidence type of tx, the txns in conflict with tx and all
+            // their dependencies to IN_CONFLICT and schedule confidence listener notifications.
+            log.info("->pending (IN_CONFLICT): {}", tx.getHashAsString());
+            addWalletTransaction(Pool.PENDING, tx);
+            doubleSpendPendingTxns.add(tx);
+            addTransactionsDependingOn(doubleSpendPendingTxns);
+            for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
+                doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
+                confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            }
+        } else {
+            // No conflict detected.
+            // Add to the pending pool and schedule confidence listener notifications.
+            log.info("->pending: {}", tx.getHashAsString());
+            tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
+            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            addWalletTransaction(Pool.PENDING, tx);
+        }
+        if (log.isInfoEnabled())
+            log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
+
+        // Mark any keys used in the outputs as "used", this allows wallet UI's to auto-advance the current key
+        // they are showing to the user in qr codes etc.
+        markKeysAsUsed(tx);
+        try {
+            Coin valueSentFromMe = tx.getValueSentFromMe(this);
+            Coin newBalance = balance.add(valueSentToMe).subtract(valueSentFromMe);
+            if (valueSentToMe.signum() > 0) {
+                checkBalanceFuturesLocked(null);
+                queueOnCoinsReceived(tx, balance, newBalance);
+            }
+            if (valueSentFromMe.signum() > 0)
+                queueOnCoinsSent(tx, balance, newBalance);
+
+            maybeQueueOnWalletChanged();
+        } catch (ScriptException e) {
+            // Cannot happen as we just created this transaction ourselves.
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * <p>Updates the wallet with the given transaction: puts it into the pending pool, sets the spent flags and runs
      * the onCoinsSent/onCoinsReceived event listener. Used in two situations:</p>
@@ -2637,7 +2858,9 @@ public class Wallet extends BaseTaggableObject
 
     /**
      * Adds an event listener object. Methods on this object are called when confidence
-     * of a transaction changes. Runs the listener methods in the user thread.
+     * of a transaction changes. Runs the listener methods in the user thread. Note that new blocks are only reported
+     * for transactions that aren't buried deeper than the event horizon of the {@link Context} yet. To hear about
+     * every block for a particular transaction, add a listener to its {@link TransactionConfidence} instead.
      */
     public void addTransactionConfidenceEventListener(TransactionConfidenceEventListener listener) {
         addTransactionConfidenceEventListener(Threading.USER_THREAD, listener);
@@ -2830,6 +3053,22 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Returns the transaction with the given hash and the pool it's in, or null if it isn't in the wallet. */
+    @Nullable
+    WalletTransaction getWalletTransactionLocked(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx;
+        if ((tx = unspent.get(hash)) != null)
+            return new WalletTransaction(Pool.UNSPENT, tx);
+        if ((tx = spent.get(hash)) != null)
+            return new WalletTransaction(Pool.SPENT, tx);
+        if ((tx = dead.get(hash)) != null)
+            return new WalletTransaction(Pool.DEAD, tx);
+        if ((tx = pending.get(hash)) != null)
+            return new WalletTransaction(Pool.PENDING, tx);
+        return null;
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -2851,12 +3090,65 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Makes the wallet record what changes in the given object from now on, for {@link WalletJournal} to save, or
+     * stops recording if it's null.
+     */
+    void setJournalChanges(@Nullable WalletJournal.Changes changes) {
+        lock.lock();
+        keyChainGroupLock.lock();
+        try {
+            journalChanges = changes;
+        } finally {
+            keyChainGroupLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    /** Returns the object the wallet records its changes in, see {@link #setJournalChanges(WalletJournal.Changes)}. */
+    @Nullable
+    WalletJournal.Changes getJournalChanges() {
+        return journalChanges;
+    }
+
+    private void markTransactionChanged(Sha256Hash hash) {
+        WalletJournal.Changes changes = journalChanges;
+        if (changes != null)
+            changes.transactionChanged(hash);
+    }
+
+    @GuardedBy("keyChainGroupLock")
+    private void markKeysChanged() {
+        WalletJournal.Changes changes = journalChanges;
+        if (changes != null)
+            changes.keysChanged();
+    }
+
+    private void markExtensionChangedLocked(String id) {
+        WalletJournal.Changes changes = journalChanges;
+        if (changes != null)
+            changes.extensionChanged(id);
+    }
+
+    // For changes the journal can't express, like removals, so the wallet is written in full at the next save.
+    private void markNeedsCompaction() {
+        WalletJournal.Changes changes = journalChanges;
+        if (changes != null)
+            changes.needsCompaction();
+    }
+
     /**
      * Adds the given transaction to the given pools and registers a confidence change listener on it.
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getHash(), tx);
+        markTransactionChanged(tx.getHash());
+        Transaction previous = transactions.put(tx.getHash(), tx);
+        if (previous != tx) {
+            if (previous != null)
+                removeFromSpendIndex(previous);
+            addToSpendIndex(tx);
+        }
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2876,12 +3168,16 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addMyUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        // Another wallet may share this confidence object, then it follows the chain heights of both.
+        tx.getConfidence().setChainHeight(chainHeight);
+        addUnburiedTransactionLocked(tx);
+        history.put(tx, pool == Pool.DEAD);
     }
 
     /**
@@ -2894,31 +3190,23 @@ public class Wallet extends BaseTaggableObject
     /**
      * <p>Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included.</p>
-     * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).</p>
+     * <p>Transactions are kept in this order as they are added, so the cost depends on the number of transactions
+     * requested rather than on the size of the wallet. See {@link #getTransactionHistory()} to read them page by
+     * page.</p>
+     * @param numTransactions The number of transactions to return, or 0 for all of them.
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
-        try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = unspent.size() + spent.size() + pending.size();
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
-        } finally {
-            lock.unlock();
-        }
+        checkArgument(numTransactions >= 0);
+        int pageSize = numTransactions == 0 ? Integer.MAX_VALUE : numTransactions;
+        return new ArrayList<>(history.getByTime(null, pageSize, includeDead).getTransactions());
+    }
+
+    /**
+     * Returns the transaction history of this wallet, which can be read page by page by time, height or script
+     * without waiting for the wallet lock.
+     */
+    public TransactionHistory getTransactionHistory() {
+        return history;
     }
 
     /**
@@ -2966,6 +3254,7 @@ public class Wallet extends BaseTaggableObject
             clearTransactions();
             lastBlockSeenHash = null;
             lastBlockSeenHeight = -1; // Magic value for 'never'.
+            chainHeight.set(-1);
             lastBlockSeenTimeSecs = 0;
             saveLater();
             maybeQueueOnWalletChanged();
@@ -2994,12 +3283,20 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        // Other wallets sharing the confidence objects keep them attached to their own chain heights.
+        for (Transaction tx : transactions.values())
+            tx.getConfidence().clearChainHeight(chainHeight);
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        spendCandidates.clear();
+        unburiedTransactions.clear();
+        spendsByOutPoint.clear();
+        history.clear();
+        markNeedsCompaction();
     }
 
     /**
@@ -3050,14 +3347,18 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addMyUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeMyUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        markNeedsCompaction();
+                        tx.getConfidence().clearChainHeight(chainHeight);
+                        removeFromSpendIndex(tx);
+                        history.remove(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3338,6 +3639,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            chainHeight.set(lastBlockSeenHeight);
         } finally {
             lock.unlock();
         }
@@ -3482,6 +3784,14 @@ public class Wallet extends BaseTaggableObject
     public Coin getBalance(BalanceType balanceType) {
         lock.lock();
         try {
+            if (vUTXOProvider == null) {
+                // Answer from the running totals where possible. Other coin selectors may select anything, so they
+                // still get to look at all candidates.
+                if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE)
+                    return spendCandidates.getEstimatedBalance(balanceType == BalanceType.ESTIMATED_SPENDABLE);
+                if (coinSelector.getClass() == DefaultCoinSelector.class)
+                    return spendCandidates.getAvailableBalance(balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            }
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
                 List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
                 CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
@@ -3868,6 +4178,226 @@ public class Wallet extends BaseTaggableObject
         return tx;
     }
 
+    /**
+     * <p>Completes the given requests and commits their transactions to the wallet as one batch, see
+     * {@link SendRequest#toMany(NetworkParameters, List)}. This is like calling
+     * {@link #sendCoinsOffline(SendRequest)} for each request, but much faster for many of them: the wallet lock is
+     * taken once, the spend candidates are calculated once, the transactions are signed in parallel and the wallet is
+     * saved once at the end. Coins selected for one request are not selected for another.</p>
+     *
+     * <p>Either all requests are committed or none is. If a request can't be completed, its exception is thrown, no
+     * transaction is committed and all requests are put back the way they were, so they can be completed again.
+     * Requests without a change address, except the first one, get a fresh one.</p>
+     *
+     * @return the transactions that were created, in the order of the requests
+     * @throws InsufficientMoneyException if the requests could not be completed due to not enough balance.
+     * @throws IllegalArgumentException if you try and complete the same SendRequest twice
+     * @throws DustySendRequested if a resultant transaction would violate the dust rules.
+     * @throws CouldNotAdjustDownwards if emptying the wallet was requested and the output can't be shrunk for fees without violating a protocol rule.
+     * @throws ExceededMaxTransactionSize if a resultant transaction is too big for Bitcoin to process.
+     * @throws MultipleOpReturnRequested if there is more than one OP_RETURN output for a resultant transaction.
+     */
+    public List<Transaction> sendCoinsOffline(List<SendRequest> requests) throws InsufficientMoneyException {
+        lock.lock();
+        try {
+            List<CompletionSnapshot> snapshots = new ArrayList<>(requests.size());
+            boolean completed = false;
+            try {
+                // Spend candidates by whether unsignable outputs are excluded, minus the ones used by earlier requests.
+                Map<Boolean, Set<TransactionOutput>> candidates = new HashMap<>();
+                Set<SendRequest> seen = Sets.newIdentityHashSet();
+                boolean currentChangeAddressTaken = false;
+                for (SendRequest req : requests) {
+                    checkArgument(!req.completed, "Given SendRequest has already been completed.");
+                    checkArgument(seen.add(req), "Batch contains the same SendRequest twice");
+                    snapshots.add(new CompletionSnapshot(req));
+                    // Don't let the requests share a change address. Keys are only marked as used once the batch is
+                    // committed, so the current change address stays the same until then.
+                    if (req.changeAddress == null) {
+                        if (currentChangeAddressTaken) {
+                            // The wallet is saved once the batch is committed, not for every fresh key.
+                            keyChainGroupLock.lock();
+                            try {
+                                req.changeAddress = keyChainGroup.freshAddress(KeyChain.KeyPurpose.CHANGE);
+                                markKeysChanged();
+                            } finally {
+                                keyChainGroupLock.unlock();
+                            }
+                        }
+                        currentChangeAddressTaken = true;
+                    }
+                    boolean excludeUnsignable = req.missingSigsMode == MissingSigsMode.THROW;
+                    Set<TransactionOutput> available = candidates.get(excludeUnsignable);
+                    if (available == null) {
+                        available = new LinkedHashSet<>(calculateAllSpendCandidates(true, excludeUnsignable));
+                        candidates.put(excludeUnsignable, available);
+                    }
+                    // Coin selection works on copies, so the remaining candidates can be handed over as they are.
+                    addInputsLocked(req, Collections.unmodifiableSet(available));
+                    for (TransactionInput input : req.tx.getInputs()) {
+                        TransactionOutput output = input.getConnectedOutput();
+                        for (Set<TransactionOutput> set : candidates.values())
+                            set.remove(output);
+                    }
+                }
+                signInputsInParallel(requests);
+                Set<Sha256Hash> hashes = new HashSet<>();
+                for (SendRequest req : requests) {
+                    finishTxLocked(req);
+                    req.tx.verify();
+                    Sha256Hash hash = req.tx.getHash();
+                    checkArgument(!pending.containsKey(hash) && hashes.add(hash),
+                            "Batch contains the same transaction twice");
+                }
+                completed = true;
+            } finally {
+                if (!completed) {
+                    for (CompletionSnapshot snapshot : snapshots)
+                        snapshot.restore();
+                }
+            }
+
+            List<Transaction> transactions = new ArrayList<>(requests.size());
+            for (SendRequest req : requests) {
+                commitTxLocked(req.tx);
+                transactions.add(req.tx);
+            }
+            isConsistentOrThrow();
+            informConfidenceListenersIfNotReorganizing();
+            saveNow();
+            return transactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // What completing a request changes, so a batch that fails can put its requests back the way they were.
+    private static class CompletionSnapshot {
+        private final SendRequest req;
+        @Nullable private final Address changeAddress;
+        private final List<TransactionInput> inputs;
+        private final List<byte[]> inputScripts = new ArrayList<>();
+        private final List<TransactionWitness> inputWitnesses = new ArrayList<>();
+        private final List<TransactionOutput> outputs;
+        private final List<Coin> outputValues = new ArrayList<>();
+        private final Transaction.Purpose purpose;
+        @Nullable private final ExchangeRate exchangeRate;
+        @Nullable private final String memo;
+        private final TransactionConfidence.Source source;
+
+        private CompletionSnapshot(SendRequest req) {
+            this.req = req;
+            Transaction tx = req.tx;
+            changeAddress = req.changeAddress;
+            inputs = new ArrayList<>(tx.getInputs());
+            for (TransactionInput input : inputs) {
+                inputScripts.add(input.getScriptBytes());
+                inputWitnesses.add(input.getWitness());
+            }
+            outputs = new ArrayList<>(tx.getOutputs());
+            for (TransactionOutput output : outputs)
+                outputValues.add(output.getValue());
+            purpose = tx.getPurpose();
+            exchangeRate = tx.getExchangeRate();
+            memo = tx.getMemo();
+            source = tx.getConfidence().getSource();
+        }
+
+        private void restore() {
+            Transaction tx = req.tx;
+            tx.clearInputs();
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                input.setScriptSig(new Script(inputScripts.get(i)));
+                input.setWitness(inputWitnesses.get(i));
+                tx.addInput(input);
+            }
+            tx.clearOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                TransactionOutput output = outputs.get(i);
+                output.setValue(outputValues.get(i));
+                tx.addOutput(output);
+            }
+            tx.setPurpose(purpose);
+            tx.setExchangeRate(exchangeRate);
+            tx.setMemo(memo);
+            tx.getConfidence().setSource(source);
+            req.changeAddress = changeAddress;
+            req.completed = false;
+        }
+    }
+
+    /**
+     * Sends a batch of requests via the given {@link TransactionBroadcaster}. The requests are completed and committed
+     * as described in {@link #sendCoinsOffline(List)}, then each of the transactions is broadcast.
+     */
+    public List<SendResult> sendCoins(TransactionBroadcaster broadcaster, List<SendRequest> requests)
+            throws InsufficientMoneyException {
+        // Should not be locked here, as we're going to call into the broadcaster and that might want to hold its
+        // own lock. sendCoinsOffline handles everything that needs to be locked.
+        checkState(!lock.isHeldByCurrentThread());
+        List<SendResult> results = new ArrayList<>(requests.size());
+        for (Transaction tx : sendCoinsOffline(requests)) {
+            SendResult result = new SendResult();
+            result.tx = tx;
+            result.broadcast = broadcaster.broadcastTransaction(tx);
+            result.broadcastComplete = result.broadcast.future();
+            results.add(result);
+        }
+        return results;
+    }
+
+    // Signs the transactions of the given requests on all cores. Transactions are independent of each other and the
+    // local signer keeps no state, but other signers may not expect to be called concurrently, so they are called one
+    // transaction at a time.
+    private void signInputsInParallel(List<SendRequest> requests) {
+        checkState(lock.isHeldByCurrentThread());
+        final List<TransactionSigner> signers = new ArrayList<>(this.signers);
+        final List<SendRequest> toSign = new ArrayList<>(requests.size());
+        for (SendRequest req : requests)
+            if (req.signInputs)
+                toSign.add(req);
+        boolean parallel = toSign.size() > 1 && Runtime.getRuntime().availableProcessors() > 1;
+        for (TransactionSigner signer : signers)
+            if (signer.getClass() != LocalTransactionSigner.class)
+                parallel = false;
+        if (!parallel) {
+            for (SendRequest req : toSign)
+                signInputs(req, signers);
+            return;
+        }
+        if (batchSigningExecutor == null) {
+            // Threads are started when needed and shut down when idle, so a wallet that is thrown away leaves none.
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ContextPropagatingThreadFactory("Wallet signing"));
+            executor.allowCoreThreadTimeOut(true);
+            batchSigningExecutor = executor;
+        }
+        List<Future<Void>> futures = new ArrayList<>(toSign.size());
+        for (final SendRequest req : toSign) {
+            futures.add(batchSigningExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    signInputs(req, signers);
+                    return null;
+                }
+            }));
+        }
+        // Wait for all of them even if one fails, so nothing touches the transactions once the batch is rolled back.
+        ExecutionException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw Throwables.propagate(failure.getCause());
+    }
+
     /**
      * Class of exceptions thrown in {@link Wallet#completeTx(SendRequest)}.
      */
@@ -3906,115 +4436,130 @@ public class Wallet extends BaseTaggableObject
     public void completeTx(SendRequest req) throws InsufficientMoneyException {
         lock.lock();
         try {
-            checkArgument(!req.completed, "Given SendRequest has already been completed.");
-            // Calculate the amount of value we need to import.
-            Coin value = Coin.ZERO;
-            for (TransactionOutput output : req.tx.getOutputs()) {
-                value = value.add(output.getValue());
-            }
+            addInputsLocked(req, null);
+            // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
+            if (req.signInputs)
+                signTransaction(req);
+            finishTxLocked(req);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            log.info("Completing send tx with {} outputs totalling {} and a fee of {}/kB", req.tx.getOutputs().size(),
-                    value.toFriendlyString(), req.feePerKb.toFriendlyString());
-
-            // If any inputs have already been added, we don't need to get their value from wallet
-            Coin totalInput = Coin.ZERO;
-            for (TransactionInput input : req.tx.getInputs())
-                if (input.getConnectedOutput() != null)
-                    totalInput = totalInput.add(input.getConnectedOutput().getValue());
-                else
-                    log.warn("SendRequest transaction already has inputs but we don't know how much they are worth - they will be added to fee.");
-            value = value.subtract(totalInput);
-
-            List<TransactionInput> originalInputs = new ArrayList<>(req.tx.getInputs());
-
-            // Check for dusty sends and the OP_RETURN limit.
-            if (req.ensureMinRequiredFee && !req.emptyWallet) { // Min fee checking is handled later for emptyWallet.
-                int opReturnCount = 0;
-                for (TransactionOutput output : req.tx.getOutputs()) {
-                    if (output.isDust())
-                        throw new DustySendRequested();
-                    if (ScriptPattern.isOpReturn(output.getScriptPubKey()))
-                        ++opReturnCount;
-                }
-                if (opReturnCount > 1) // Only 1 OP_RETURN per transaction allowed.
-                    throw new MultipleOpReturnRequested();
-            }
+    /**
+     * Adds inputs, change and fee to the transaction of the given request, see {@link #completeTx(SendRequest)}.
+     * @param candidates The outputs that may be spent, or null to use all that can be. They are not modified.
+     */
+    private void addInputsLocked(SendRequest req, @Nullable Collection<TransactionOutput> candidates)
+            throws InsufficientMoneyException {
+        checkState(lock.isHeldByCurrentThread());
+        checkArgument(!req.completed, "Given SendRequest has already been completed.");
+        // Calculate the amount of value we need to import.
+        Coin value = Coin.ZERO;
+        for (TransactionOutput output : req.tx.getOutputs()) {
+            value = value.add(output.getValue());
+        }
 
-            // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
-            // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies. The call below will ignore immature coinbases and outputs
-            // we don't have the keys for.
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
-
-            CoinSelection bestCoinSelection;
-            TransactionOutput bestChangeOutput = null;
-            List<Coin> updatedOutputValues = null;
-            if (!req.emptyWallet) {
-                // This can throw InsufficientMoneyException.
-                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, candidates);
-                bestCoinSelection = feeCalculation.bestCoinSelection;
-                bestChangeOutput = feeCalculation.bestChangeOutput;
-                updatedOutputValues = feeCalculation.updatedOutputValues;
-            } else {
-                // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
-                // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
-                checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(params.getMaxMoney(), candidates);
-                candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
-                req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
-                log.info("  emptying {}", bestCoinSelection.valueGathered.toFriendlyString());
-            }
+        log.info("Completing send tx with {} outputs totalling {} and a fee of {}/kB", req.tx.getOutputs().size(),
+                value.toFriendlyString(), req.feePerKb.toFriendlyString());
 
-            for (TransactionOutput output : bestCoinSelection.gathered)
-                req.tx.addInput(output);
+        // If any inputs have already been added, we don't need to get their value from wallet
+        Coin totalInput = Coin.ZERO;
+        for (TransactionInput input : req.tx.getInputs())
+            if (input.getConnectedOutput() != null)
+                totalInput = totalInput.add(input.getConnectedOutput().getValue());
+            else
+                log.warn("SendRequest transaction already has inputs but we don't know how much they are worth - they will be added to fee.");
+        value = value.subtract(totalInput);
 
-            if (req.emptyWallet) {
-                final Coin feePerKb = req.feePerKb == null ? Coin.ZERO : req.feePerKb;
-                if (!adjustOutputDownwardsForFee(req.tx, bestCoinSelection, feePerKb, req.ensureMinRequiredFee))
-                    throw new CouldNotAdjustDownwards();
-            }
+        List<TransactionInput> originalInputs = new ArrayList<>(req.tx.getInputs());
 
-            if (updatedOutputValues != null) {
-                for (int i = 0; i < updatedOutputValues.size(); i++) {
-                    req.tx.getOutput(i).setValue(updatedOutputValues.get(i));
-                }
+        // Check for dusty sends and the OP_RETURN limit.
+        if (req.ensureMinRequiredFee && !req.emptyWallet) { // Min fee checking is handled later for emptyWallet.
+            int opReturnCount = 0;
+            for (TransactionOutput output : req.tx.getOutputs()) {
+                if (output.isDust())
+                    throw new DustySendRequested();
+                if (ScriptPattern.isOpReturn(output.getScriptPubKey()))
+                    ++opReturnCount;
             }
+            if (opReturnCount > 1) // Only 1 OP_RETURN per transaction allowed.
+                throw new MultipleOpReturnRequested();
+        }
+
+        // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
+        // with the actual outputs that'll be used to gather the required amount of value. In this way, users
+        // can customize coin selection policies. The call below will ignore immature coinbases and outputs
+        // we don't have the keys for.
+        if (candidates == null)
+            candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+
+        CoinSelection bestCoinSelection;
+        TransactionOutput bestChangeOutput = null;
+        List<Coin> updatedOutputValues = null;
+        if (!req.emptyWallet) {
+            // This can throw InsufficientMoneyException.
+            FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, candidates);
+            bestCoinSelection = feeCalculation.bestCoinSelection;
+            bestChangeOutput = feeCalculation.bestChangeOutput;
+            updatedOutputValues = feeCalculation.updatedOutputValues;
+        } else {
+            // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
+            // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
+            checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            // The selector is allowed to modify the candidates list.
+            bestCoinSelection = selector.select(params.getMaxMoney(), new ArrayList<>(candidates));
+            req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
+            log.info("  emptying {}", bestCoinSelection.valueGathered.toFriendlyString());
+        }
 
-            if (bestChangeOutput != null) {
-                req.tx.addOutput(bestChangeOutput);
-                log.info("  with {} change", bestChangeOutput.getValue().toFriendlyString());
-            }
+        for (TransactionOutput output : bestCoinSelection.gathered)
+            req.tx.addInput(output);
 
-            // Now shuffle the outputs to obfuscate which is the change.
-            if (req.shuffleOutputs)
-                req.tx.shuffleOutputs();
+        if (req.emptyWallet) {
+            final Coin feePerKb = req.feePerKb == null ? Coin.ZERO : req.feePerKb;
+            if (!adjustOutputDownwardsForFee(req.tx, bestCoinSelection, feePerKb, req.ensureMinRequiredFee))
+                throw new CouldNotAdjustDownwards();
+        }
 
-            // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
-            if (req.signInputs)
-                signTransaction(req);
+        if (updatedOutputValues != null) {
+            for (int i = 0; i < updatedOutputValues.size(); i++) {
+                req.tx.getOutput(i).setValue(updatedOutputValues.get(i));
+            }
+        }
 
-            // Check size.
-            final int size = req.tx.unsafeBitcoinSerialize().length;
-            if (size > Transaction.MAX_STANDARD_TX_SIZE)
-                throw new ExceededMaxTransactionSize();
-
-            // Label the transaction as being self created. We can use this later to spend its change output even before
-            // the transaction is confirmed. We deliberately won't bother notifying listeners here as there's not much
-            // point - the user isn't interested in a confidence transition they made themselves.
-            req.tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
-            // Label the transaction as being a user requested payment. This can be used to render GUI wallet
-            // transaction lists more appropriately, especially when the wallet starts to generate transactions itself
-            // for internal purposes.
-            req.tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
-            // Record the exchange rate that was valid when the transaction was completed.
-            req.tx.setExchangeRate(req.exchangeRate);
-            req.tx.setMemo(req.memo);
-            req.completed = true;
-            log.info("  completed: {}", req.tx);
-        } finally {
-            lock.unlock();
+        if (bestChangeOutput != null) {
+            req.tx.addOutput(bestChangeOutput);
+            log.info("  with {} change", bestChangeOutput.getValue().toFriendlyString());
         }
+
+        // Now shuffle the outputs to obfuscate which is the change.
+        if (req.shuffleOutputs)
+            req.tx.shuffleOutputs();
+    }
+
+    /** Checks the size of the signed transaction of the given request and labels it as completed. */
+    private void finishTxLocked(SendRequest req) {
+        checkState(lock.isHeldByCurrentThread());
+        // Check size.
+        final int size = req.tx.unsafeBitcoinSerialize().length;
+        if (size > Transaction.MAX_STANDARD_TX_SIZE)
+            throw new ExceededMaxTransactionSize();
+
+        // Label the transaction as being self created. We can use this later to spend its change output even before
+        // the transaction is confirmed. We deliberately won't bother notifying listeners here as there's not much
+        // point - the user isn't interested in a confidence transition they made themselves.
+        req.tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        // Label the transaction as being a user requested payment. This can be used to render GUI wallet
+        // transaction lists more appropriately, especially when the wallet starts to generate transactions itself
+        // for internal purposes.
+        req.tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
+        // Record the exchange rate that was valid when the transaction was completed.
+        req.tx.setExchangeRate(req.exchangeRate);
+        req.tx.setMemo(req.memo);
+        req.completed = true;
+        log.info("  completed: {}", req.tx);
     }
 
     /**
@@ -4026,51 +4571,59 @@ public class Wallet extends BaseTaggableObject
     public void signTransaction(SendRequest req) {
         lock.lock();
         try {
-            Transaction tx = req.tx;
-            List<TransactionInput> inputs = tx.getInputs();
-            List<TransactionOutput> outputs = tx.getOutputs();
-            checkState(inputs.size() > 0);
-            checkState(outputs.size() > 0);
-
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
-
-            int numInputs = tx.getInputs().size();
-            for (int i = 0; i < numInputs; i++) {
-                TransactionInput txIn = tx.getInput(i);
-                if (txIn.getConnectedOutput() == null) {
-                    // Missing connected output, assuming already signed.
-                    continue;
-                }
+            signInputs(req, signers);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                try {
-                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                    // we sign missing pieces (to check this would require either assuming any signatures are signing
-                    // standard output types or a way to get processed signatures out of script execution)
-                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
-                    log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
-                    continue;
-                } catch (ScriptException e) {
-                    log.debug("Input contained an incorrect signature", e);
-                    // Expected.
-                }
+    /**
+     * Signs the inputs of the transaction of the given request with the given signers. Doesn't take the wallet lock,
+     * so the caller has to make sure the wallet doesn't change the outputs the inputs are connected to meanwhile.
+     */
+    private void signInputs(SendRequest req, List<TransactionSigner> signers) {
+        Transaction tx = req.tx;
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        checkState(inputs.size() > 0);
+        checkState(outputs.size() > 0);
+
+        KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
 
-                Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
-                RedeemData redeemData = txIn.getConnectedRedeemData(maybeDecryptingKeyBag);
-                checkNotNull(redeemData, "Transaction exists in wallet that we cannot redeem: %s", txIn.getOutpoint().getHash());
-                txIn.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
+        int numInputs = tx.getInputs().size();
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput txIn = tx.getInput(i);
+            if (txIn.getConnectedOutput() == null) {
+                // Missing connected output, assuming already signed.
+                continue;
             }
 
-            TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
-            for (TransactionSigner signer : signers) {
-                if (!signer.signInputs(proposal, maybeDecryptingKeyBag))
-                    log.info("{} returned false for the tx", signer.getClass().getName());
+            try {
+                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                // we sign missing pieces (to check this would require either assuming any signatures are signing
+                // standard output types or a way to get processed signatures out of script execution)
+                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+                log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
+                continue;
+            } catch (ScriptException e) {
+                log.debug("Input contained an incorrect signature", e);
+                // Expected.
             }
 
-            // resolve missing sigs if any
-            new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
-        } finally {
-            lock.unlock();
+            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            RedeemData redeemData = txIn.getConnectedRedeemData(maybeDecryptingKeyBag);
+            checkNotNull(redeemData, "Transaction exists in wallet that we cannot redeem: %s", txIn.getOutpoint().getHash());
+            txIn.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
+        }
+
+        TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
+        for (TransactionSigner signer : signers) {
+            if (!signer.signInputs(proposal, maybeDecryptingKeyBag))
+                log.info("{} returned false for the tx", signer.getClass().getName());
         }
+
+        // resolve missing sigs if any
+        new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
     }
 
     /** Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size. */
@@ -4106,14 +4659,7 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
-                }
+                candidates = spendCandidates.getCandidates(excludeImmatureCoinbases, excludeUnsignable);
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
             }
@@ -4433,7 +4979,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addMyUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -4464,18 +5010,12 @@ public class Wallet extends BaseTaggableObject
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
-            subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
-
-            // The effective last seen block is now the split point so set the lastSeenBlockHash.
+            // The effective last seen block is now the split point so set the lastSeenBlockHash. The depth of the
+            // transactions in blocks up to and including the split point is derived from the height, so moving it
+            // back takes the old blocks out of their depth.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
+            queueDepthChangesLocked();
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -4494,6 +5034,8 @@ public class Wallet extends BaseTaggableObject
                 notifyNewBestBlock(block);
             }
             isConsistentOrThrow();
+            // Transactions moved between the chain and pending, so sort all spend candidates again.
+            spendCandidates.rebuild(myUnspents);
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
@@ -4509,18 +5051,6 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
-    /**
-     * Subtract the supplied depth from the given transactions.
-     */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
-        }
-    }
-
     //endregion
 
     /******************************************************************************************************************/
@@ -4701,6 +5231,7 @@ public class Wallet extends BaseTaggableObject
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            markExtensionChangedLocked(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -4718,6 +5249,7 @@ public class Wallet extends BaseTaggableObject
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            markExtensionChangedLocked(id);
             saveNow();
             return extension;
         } finally {
@@ -4735,6 +5267,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             extensions.put(id, extension);
+            markExtensionChangedLocked(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -4795,43 +5328,51 @@ public class Wallet extends BaseTaggableObject
     //region Fee calculation code
 
     private FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
-                                       boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
+                                       boolean needAtLeastReferenceFee, Collection<TransactionOutput> candidates) throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
+        // Only the selected inputs and the change differ between the rounds below, so rather than building and
+        // serializing a transaction in each round, the size of the rest is added up once.
+        List<TransactionOutput> outputs = req.tx.getOutputs();
+        int numOutputs = outputs.size();
+        int fixedSize = 4 + 4; // version and lock time
+        for (TransactionInput input : originalInputs)
+            fixedSize += input.unsafeBitcoinSerialize().length;
+        for (TransactionOutput output : outputs)
+            fixedSize += output.unsafeBitcoinSerialize().length;
+        Map<TransactionOutput, Integer> bytesForSigning = new HashMap<>();
+        CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+        Coin feePerKb = req.feePerKb;
+        if (needAtLeastReferenceFee && feePerKb.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0) {
+            feePerKb = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        }
         FeeCalculation result;
         Coin fee = Coin.ZERO;
         while (true) {
             result = new FeeCalculation();
-            Transaction tx = new Transaction(params);
-            addSuppliedInputs(tx, req.tx.getInputs());
 
             Coin valueNeeded = value;
             if (!req.recipientsPayFees) {
                 valueNeeded = valueNeeded.add(fee);
             }
             if (req.recipientsPayFees) {
-                result.updatedOutputValues = new ArrayList<Coin>();
-            }
-            for (int i = 0; i < req.tx.getOutputs().size(); i++) {
-                TransactionOutput output = new TransactionOutput(params, tx,
-                        req.tx.getOutputs().get(i).bitcoinSerialize(), 0);
-                if (req.recipientsPayFees) {
+                result.updatedOutputValues = new ArrayList<Coin>(numOutputs);
+                for (int i = 0; i < numOutputs; i++) {
+                    TransactionOutput output = outputs.get(i);
                     // Subtract fee equally from each selected recipient
-                    output.setValue(output.getValue().subtract(fee.divide(req.tx.getOutputs().size())));
+                    Coin outputValue = output.getValue().subtract(fee.divide(numOutputs));
                     // first receiver pays the remainder not divisible by output count
                     if (i == 0) {
-                        output.setValue(
-                                output.getValue().subtract(fee.divideAndRemainder(req.tx.getOutputs().size())[1])); // Subtract fee equally from each selected recipient
+                        outputValue = outputValue.subtract(fee.divideAndRemainder(numOutputs)[1]);
                     }
-                    result.updatedOutputValues.add(output.getValue());
-                    if (output.getMinNonDustValue().isGreaterThan(output.getValue())) {
+                    result.updatedOutputValues.add(outputValue);
+                    // The dust limit depends on the script only, so the original output can tell.
+                    if (output.getMinNonDustValue().isGreaterThan(outputValue)) {
                         throw new CouldNotAdjustDownwards();
                     }
                 }
-                tx.addOutput(output);
             }
-            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selector.select(valueNeeded, new ArrayList<>(candidates));
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
@@ -4846,17 +5387,18 @@ public class Wallet extends BaseTaggableObject
                 Address changeAddress = req.changeAddress;
                 if (changeAddress == null)
                     changeAddress = currentChangeAddress();
-                TransactionOutput changeOutput = new TransactionOutput(params, tx, change, changeAddress);
+                TransactionOutput changeOutput = new TransactionOutput(params, null, change, changeAddress);
                 if (req.recipientsPayFees && changeOutput.isDust()) {
                     // We do not move dust-change to fees, because the sender would end up paying more than requested.
                     // This would be against the purpose of the all-inclusive feature.
                     // So instead we raise the change and deduct from the first recipient.
                     Coin missingToNotBeDust = changeOutput.getMinNonDustValue().subtract(changeOutput.getValue());
                     changeOutput.setValue(changeOutput.getValue().add(missingToNotBeDust));
-                    TransactionOutput firstOutput = tx.getOutputs().get(0);
-                    firstOutput.setValue(firstOutput.getValue().subtract(missingToNotBeDust));
-                    result.updatedOutputValues.set(0, firstOutput.getValue());
-                    if (firstOutput.isDust()) {
+                    TransactionOutput firstOutput = outputs.get(0);
+                    Coin firstValue = result.updatedOutputValues.get(0).subtract(missingToNotBeDust);
+                    result.updatedOutputValues.set(0, firstValue);
+                    if (!ScriptPattern.isOpReturn(firstOutput.getScriptPubKey())
+                            && firstValue.isLessThan(firstOutput.getMinNonDustValue())) {
                         throw new CouldNotAdjustDownwards();
                     }
                 }
@@ -4869,24 +5411,25 @@ public class Wallet extends BaseTaggableObject
                     // Maybe there are other effects I am missing
                     fee = fee.add(changeOutput.getValue());
                 } else {
-                    tx.addOutput(changeOutput);
                     result.bestChangeOutput = changeOutput;
                 }
             }
 
+            int numInputs = originalInputs.size() + selection.gathered.size();
+            int size = fixedSize + VarInt.sizeOf(numInputs)
+                    + VarInt.sizeOf(numOutputs + (result.bestChangeOutput != null ? 1 : 0));
+            if (result.bestChangeOutput != null)
+                size += result.bestChangeOutput.unsafeBitcoinSerialize().length;
             for (TransactionOutput selectedOutput : selection.gathered) {
-                TransactionInput input = tx.addInput(selectedOutput);
-                // If the scriptBytes don't default to none, our size calculations will be thrown off.
-                checkState(input.getScriptBytes().length == 0);
+                Integer signingBytes = bytesForSigning.get(selectedOutput);
+                if (signingBytes == null) {
+                    signingBytes = estimateBytesForSigning(selectedOutput);
+                    bytesForSigning.put(selectedOutput, signingBytes);
+                }
+                // Outpoint, script length and sequence number of an unsigned input, plus the signature.
+                size += 36 + 1 + 4 + signingBytes;
             }
 
-            int size = tx.unsafeBitcoinSerialize().length;
-            size += estimateBytesForSigning(selection);
-
-            Coin feePerKb = req.feePerKb;
-            if (needAtLeastReferenceFee && feePerKb.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0) {
-                feePerKb = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
-            }
             Coin feeNeeded = feePerKb.multiply(size).divide(1000);
 
             if (!fee.isLessThan(feeNeeded)) {
@@ -4901,33 +5444,31 @@ public class Wallet extends BaseTaggableObject
 
     }
 
-    private void addSuppliedInputs(Transaction tx, List<TransactionInput> originalInputs) {
-        for (TransactionInput input : originalInputs)
-            tx.addInput(new TransactionInput(params, tx, input.bitcoinSerialize()));
-    }
-
     private int estimateBytesForSigning(CoinSelection selection) {
         int size = 0;
-        for (TransactionOutput output : selection.gathered) {
-            try {
-                Script script = output.getScriptPubKey();
-                ECKey key = null;
-                Script redeemScript = null;
-                if (ScriptPattern.isPayToPubKeyHash(script)) {
-                    key = findKeyFromPubHash(ScriptPattern.extractHashFromPayToPubKeyHash(script));
-                    checkNotNull(key, "Coin selection includes unspendable outputs");
-                } else if (ScriptPattern.isPayToScriptHash(script)) {
-                    redeemScript = findRedeemDataFromScriptHash(ScriptPattern.extractHashFromPayToScriptHash(script)).redeemScript;
-                    checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
-                }
-                size += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
-            } catch (ScriptException e) {
-                // If this happens it means an output script in a wallet tx could not be understood. That should never
-                // happen, if it does it means the wallet has got into an inconsistent state.
-                throw new IllegalStateException(e);
+        for (TransactionOutput output : selection.gathered)
+            size += estimateBytesForSigning(output);
+        return size;
+    }
+
+    private int estimateBytesForSigning(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            ECKey key = null;
+            Script redeemScript = null;
+            if (ScriptPattern.isPayToPubKeyHash(script)) {
+                key = findKeyFromPubHash(ScriptPattern.extractHashFromPayToPubKeyHash(script));
+                checkNotNull(key, "Coin selection includes unspendable outputs");
+            } else if (ScriptPattern.isPayToScriptHash(script)) {
+                redeemScript = findRedeemDataFromScriptHash(ScriptPattern.extractHashFromPayToScriptHash(script)).redeemScript;
+                checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
             }
+            return script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+        } catch (ScriptException e) {
+            // If this happens it means an output script in a wallet tx could not be understood. That should never
+            // happen, if it does it means the wallet has got into an inconsistent state.
+            throw new IllegalStateException(e);
         }
-        return size;
     }
 
     //endregion
@@ -5115,6 +5656,7 @@ public class Wallet extends BaseTaggableObject
                 log.info(" ... no non-rotating random keys available, generating entirely new HD tree: backup required after this.");
                 keyChainGroup.createAndActivateNewHDChain();
             }
+            markKeysChanged();
             saveNow();
         }
 
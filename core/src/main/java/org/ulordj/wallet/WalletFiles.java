@@ -49,6 +49,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -114,6 +115,16 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * Makes saves append what changed to a {@link WalletJournal} next to the wallet file, instead of writing the
+     * whole wallet, which is much faster for large wallets. The wallet file is still written in full now and then.
+     * Wallets saved this way must be loaded with {@link Wallet#loadFromFile(File, WalletExtension...)}, which
+     * applies the journal.
+     */
+    public void setJournaled(boolean journaled) {
+        this.vJournal = journaled ? new WalletJournal(wallet, file) : null;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,12 +140,20 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        final WalletJournal journal = vJournal;
+        if (journal != null && journal.append()) {
+            log.info("Save completed in {}", watch);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            journal.compact(temp);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
@@ -0,0 +1,424 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.wallet;
+
+import org.ulordj.core.NetworkParameters;
+import org.ulordj.core.Sha256Hash;
+import org.ulordj.core.Utils;
+import org.ulordj.script.Script;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Saves a wallet by appending what changed since the previous save to a journal next to the wallet file, instead of
+ * writing the whole wallet each time. Once the journal grows beyond a quarter of the wallet file, the wallet is written
+ * in full again and the journal starts over, which is called compacting.</p>
+ *
+ * <p>The journal starts with the SHA-256 hash of the wallet file it belongs to, followed by length delimited
+ * {@link Protos.Wallet} messages. Each of them holds the transactions, extensions and keys that changed, the watched
+ * scripts that were added, and the rest of the wallet state like the last seen block. They are written and synced one
+ * at a time, so a crash loses at most the save in progress. {@link #loadFromFile(File, WalletExtension...)} applies
+ * the journal to the wallet file; a journal that doesn't belong to it, because the wallet was saved in full
+ * afterwards, is ignored.</p>
+ *
+ * <p>The wallet records what changes as it happens, see {@link Changes}, so saving doesn't have to look at the rest of
+ * it. The keys are written in full whenever any of them changed, as the serialized key chains hold counters that
+ * can't be patched. Removed transactions, keys and scripts can't be expressed in the journal, so those are saved by
+ * compacting. So are changes made behind the back of the wallet, like setting the memo of one of its transactions or
+ * changing an extension without passing it to {@link Wallet#addOrUpdateExtension(WalletExtension)}.</p>
+ *
+ * <p>This is used by {@link WalletFiles#setJournaled(boolean)}.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The journal is compacted once it's larger than the wallet file divided by this. */
+    public static final int COMPACTION_DIVISOR = 4;
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private final Wallet wallet;
+    private final ReentrantLock lock;
+    private final File file;
+    private final File journalFile;
+
+    // What the wallet records its changes in since the last save. Null until the wallet was compacted once.
+    @GuardedBy("lock") @Nullable private Changes changes;
+    // To notice the files being changed by something else, like Wallet.saveToFile().
+    @GuardedBy("lock") private long fileLength = -1, fileLastModified, journalLength;
+
+    public WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.lock = wallet.lock;
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+    }
+
+    /**
+     * <p>What changed in a wallet since it was last saved to its journal. The wallet records its changes here as they
+     * happen.</p>
+     *
+     * <p>Transactions can be recorded from any thread, as confidence changes are. The keys and watched scripts are
+     * recorded holding the key chain group lock of the wallet, the extensions holding the wallet lock.</p>
+     */
+    static class Changes {
+        private final Set<Sha256Hash> transactions =
+                Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+        private boolean keys;
+        private final List<Script> addedScripts = new ArrayList<>();
+        private final Set<String> extensions = new HashSet<>();
+        private volatile boolean needsCompaction;
+
+        void transactionChanged(Sha256Hash hash) {
+            transactions.add(hash);
+        }
+
+        void keysChanged() {
+            keys = true;
+        }
+
+        void scriptsAdded(Collection<Script> scripts) {
+            addedScripts.addAll(scripts);
+        }
+
+        void extensionChanged(String id) {
+            extensions.add(id);
+        }
+
+        /** Makes the next save write the whole wallet, for changes that can't be expressed in the journal. */
+        void needsCompaction() {
+            needsCompaction = true;
+        }
+    }
+
+    /** Returns the file the journal of the given wallet file is kept in. */
+    public static File getJournalFile(File file) {
+        return new File(file.getPath() + ".journal");
+    }
+
+    /**
+     * Appends the changes since the previous save to the journal. Returns false without writing anything if the wallet
+     * needs to be compacted instead.
+     */
+    public boolean append() throws IOException {
+        lock.lock();
+        try {
+            Changes changes = this.changes;
+            if (changes == null || wallet.getJournalChanges() != changes || changes.needsCompaction
+                    || file.length() != fileLength || file.lastModified() != fileLastModified
+                    || journalFile.length() != journalLength
+                    || journalLength > Math.max(MIN_COMPACTION_BYTES, fileLength / COMPACTION_DIVISOR))
+                return false;
+            Protos.Wallet.Builder record = WalletProtobufSerializer.walletStateToProto(wallet);
+            wallet.keyChainGroupLock.lock();
+            try {
+                if (changes.keys) {
+                    List<Protos.Key> keys = wallet.serializeKeyChainGroupToProtobuf();
+                    if (keys.isEmpty())
+                        return false; // All were removed.
+                    record.addAllKey(keys);
+                    changes.keys = false;
+                }
+                for (Script script : changes.addedScripts)
+                    record.addWatchedScript(WalletProtobufSerializer.makeScriptProto(script));
+                changes.addedScripts.clear();
+            } finally {
+                wallet.keyChainGroupLock.unlock();
+            }
+            // Taken off the set before being serialized, so a change made meanwhile is recorded again.
+            Iterator<Sha256Hash> it = changes.transactions.iterator();
+            while (it.hasNext()) {
+                Sha256Hash hash = it.next();
+                it.remove();
+                WalletTransaction wtx = wallet.getWalletTransactionLocked(hash);
+                if (wtx != null)
+                    record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+            }
+            if (!changes.extensions.isEmpty()) {
+                Map<String, WalletExtension> extensions = wallet.getExtensions();
+                for (String id : changes.extensions) {
+                    WalletExtension extension = extensions.get(id);
+                    if (extension != null)
+                        record.addExtension(WalletProtobufSerializer.makeExtensionProto(extension));
+                }
+                changes.extensions.clear();
+            }
+
+            // What was taken from the changes is lost if the write fails, so the next save writes everything.
+            changes.needsCompaction = true;
+            FileOutputStream stream = new FileOutputStream(journalFile, true);
+            try {
+                OutputStream buffered = new BufferedOutputStream(stream);
+                record.build().writeDelimitedTo(buffered);
+                buffered.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            changes.needsCompaction = false;
+            journalLength = journalFile.length();
+            log.info("Appended {} transactions to wallet journal, now {} bytes", record.getTransactionCount(),
+                    journalLength);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the whole wallet to the given temp file, renames it to the wallet file and starts a new journal.
+     */
+    public void compact(File temp) throws IOException {
+        lock.lock();
+        try {
+            // Changes from now on go into the journal, even if some of them make it into the wallet file too.
+            Changes newChanges = new Changes();
+            wallet.setJournalChanges(newChanges);
+            Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(wallet);
+
+            MessageDigest digest = Sha256Hash.newDigest();
+            writeAndSync(temp, walletProto, digest);
+            File journalTemp = File.createTempFile("journal", null, file.getAbsoluteFile().getParentFile());
+            try {
+                writeAndSync(journalTemp, null, digest);
+                // Once the wallet file is replaced, the old journal doesn't belong to it anymore and is ignored.
+                replace(temp, file);
+                replace(journalTemp, journalFile);
+            } finally {
+                if (journalTemp.exists() && !journalTemp.delete())
+                    log.warn("Could not delete {}", journalTemp);
+            }
+
+            changes = newChanges;
+            fileLength = file.length();
+            fileLastModified = file.lastModified();
+            journalLength = journalFile.length();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes the wallet and updates the digest, or writes the hash of the digest if the wallet is null.
+    private static void writeAndSync(File target, @Nullable Protos.Wallet walletProto, MessageDigest digest)
+            throws IOException {
+        FileOutputStream stream = new FileOutputStream(target);
+        try {
+            if (walletProto != null) {
+                OutputStream out = new BufferedOutputStream(new DigestOutputStream(stream, digest));
+                walletProto.writeTo(out);
+                out.flush();
+            } else {
+                stream.write(digest.digest());
+            }
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void replace(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file and the journal next to it, if there is one that belongs to
+     * the file. A journal that ends in the middle of a change, because writing it was interrupted, is read up to that
+     * change.
+     */
+    public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto = readWithJournal(file);
+            String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            return new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet file and journal", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse wallet file and journal", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse wallet file and journal", e);
+        }
+    }
+
+    private static Protos.Wallet readWithJournal(File file) throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest);
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+            // Make sure all of the file went into the hash.
+            ByteStreams.exhaust(stream);
+        } finally {
+            stream.close();
+        }
+        File journalFile = getJournalFile(file);
+        if (!journalFile.exists())
+            return snapshot;
+
+        stream = new BufferedInputStream(new FileInputStream(journalFile));
+        try {
+            byte[] base = new byte[Sha256Hash.LENGTH];
+            try {
+                ByteStreams.readFully(stream, base);
+            } catch (EOFException e) {
+                log.warn("Ignoring incomplete wallet journal {}", journalFile);
+                return snapshot;
+            }
+            if (!Arrays.equals(base, digest.digest())) {
+                log.info("Ignoring wallet journal {} of an older wallet file", journalFile);
+                return snapshot;
+            }
+            Protos.Wallet.Builder builder = snapshot.toBuilder();
+            Map<ByteString, Integer> transactions = new HashMap<>();
+            for (int i = 0; i < builder.getTransactionCount(); i++)
+                transactions.put(builder.getTransaction(i).getHash(), i);
+            int records = 0;
+            while (true) {
+                Protos.Wallet record;
+                try {
+                    record = Protos.Wallet.parseDelimitedFrom(stream);
+                } catch (IOException e) {
+                    log.warn("Wallet journal {} ends with an incomplete change, ignoring it", journalFile);
+                    break;
+                }
+                if (record == null)
+                    break;
+                apply(builder, transactions, record);
+                records++;
+            }
+            log.info("Applied {} changes from wallet journal {}", records, journalFile);
+            return builder.build();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void apply(Protos.Wallet.Builder builder, Map<ByteString, Integer> transactions,
+                              Protos.Wallet record) {
+        for (Protos.Transaction tx : record.getTransactionList()) {
+            Integer index = transactions.get(tx.getHash());
+            if (index != null) {
+                builder.setTransaction(index, tx);
+            } else {
+                transactions.put(tx.getHash(), builder.getTransactionCount());
+                builder.addTransaction(tx);
+            }
+        }
+        if (record.getKeyCount() > 0)
+            builder.clearKey().addAllKey(record.getKeyList());
+        if (record.getWatchedScriptCount() > 0) {
+            // Only added scripts are recorded. One that is added again replaces the old one, like in the wallet.
+            Map<ByteString, Integer> scripts = new HashMap<>();
+            for (int i = 0; i < builder.getWatchedScriptCount(); i++)
+                scripts.put(builder.getWatchedScript(i).getProgram(), i);
+            for (Protos.Script script : record.getWatchedScriptList()) {
+                Integer index = scripts.get(script.getProgram());
+                if (index != null) {
+                    builder.setWatchedScript(index, script);
+                } else {
+                    scripts.put(script.getProgram(), builder.getWatchedScriptCount());
+                    builder.addWatchedScript(script);
+                }
+            }
+        }
+        for (Protos.Extension extension : record.getExtensionList()) {
+            boolean replaced = false;
+            for (int i = 0; i < builder.getExtensionCount() && !replaced; i++) {
+                if (builder.getExtension(i).getId().equals(extension.getId())) {
+                    builder.setExtension(i, extension);
+                    replaced = true;
+                }
+            }
+            if (!replaced)
+                builder.addExtension(extension);
+        }
+
+        // The rest is always recorded in full.
+        builder.setNetworkIdentifier(record.getNetworkIdentifier());
+        if (record.hasDescription())
+            builder.setDescription(record.getDescription());
+        else
+            builder.clearDescription();
+        if (record.hasLastSeenBlockHash())
+            builder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+        else
+            builder.clearLastSeenBlockHash();
+        if (record.hasLastSeenBlockHeight())
+            builder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+        else
+            builder.clearLastSeenBlockHeight();
+        if (record.hasLastSeenBlockTimeSecs())
+            builder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+        else
+            builder.clearLastSeenBlockTimeSecs();
+        builder.setEncryptionType(record.getEncryptionType());
+        if (record.hasEncryptionParameters())
+            builder.setEncryptionParameters(record.getEncryptionParameters());
+        else
+            builder.clearEncryptionParameters();
+        if (record.hasKeyRotationTime())
+            builder.setKeyRotationTime(record.getKeyRotationTime());
+        else
+            builder.clearKeyRotationTime();
+        builder.clearTags().addAllTags(record.getTagsList());
+        builder.setVersion(record.getVersion());
+    }
+}
@@ -33,14 +33,18 @@ import org.ulordj.crypto.KeyCrypter;
 import org.ulordj.crypto.KeyCrypterScrypt;
 import org.ulordj.script.Script;
 import org.ulordj.script.ScriptException;
+import org.ulordj.utils.ContextPropagatingThreadFactory;
 import org.ulordj.utils.ExchangeRate;
 import org.ulordj.utils.Fiat;
 import org.ulordj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -58,7 +62,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -93,6 +103,8 @@ public class WalletProtobufSerializer {
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private int loaderThreads = Runtime.getRuntime().availableProcessors();
+    @Nullable private ProgressListener progressListener;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -136,6 +148,26 @@ public class WalletProtobufSerializer {
         requireAllExtensionsKnown = value;
     }
 
+    /**
+     * Sets how many threads build the transactions of a wallet while it's read. The default is the number of
+     * processors.
+     */
+    public void setLoaderThreads(int loaderThreads) {
+        checkArgument(loaderThreads > 0);
+        this.loaderThreads = loaderThreads;
+    }
+
+    /** Gets told how far reading a wallet got, for example to show progress while a large wallet is loaded. */
+    public interface ProgressListener {
+        /** Called on the reading thread whenever another percent of the transactions was read. */
+        void onTransactionsRead(int read, int total);
+    }
+
+    /** Sets the listener that gets told how far reading a wallet got, or null for none. */
+    public void setProgressListener(@Nullable ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
     /**
      * Change buffer size for writing wallet to output stream. Default is {@link com.google.protobuf.CodedOutputStream#DEFAULT_BUFFER_SIZE}
      * @param walletWriteBufferSize - buffer size in bytes
@@ -173,11 +205,7 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        Protos.Wallet.Builder walletBuilder = walletStateToProto(wallet);
 
         for (WalletTransaction wtx : wallet.getWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
@@ -185,15 +213,23 @@ public class WalletProtobufSerializer {
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        walletBuilder.addAllWatchedScript(makeWatchedScriptProtos(wallet));
 
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
+        for (WalletExtension extension : wallet.getExtensions().values())
+            walletBuilder.addExtension(makeExtensionProto(extension));
 
-            walletBuilder.addWatchedScript(protoScript);
+        return walletBuilder.build();
+    }
+
+    /**
+     * Converts the parts of the given wallet that are not transactions, keys, watched scripts or extensions, like the
+     * last seen block and the tags.
+     */
+    static Protos.Wallet.Builder walletStateToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
         }
 
         // Populate the lastSeenBlockHash field.
@@ -227,8 +263,6 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
-
         for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
             walletBuilder.addTags(tag);
@@ -237,20 +271,32 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
-        }
+    static List<Protos.Script> makeWatchedScriptProtos(Wallet wallet) {
+        List<Protos.Script> protoScripts = new ArrayList<>();
+        for (Script script : wallet.getWatchedScripts())
+            protoScripts.add(makeScriptProto(script));
+        return protoScripts;
+    }
+
+    static Protos.Script makeScriptProto(Script script) {
+        return Protos.Script.newBuilder()
+                .setProgram(ByteString.copyFrom(script.getProgram()))
+                .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                .build();
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Extension makeExtensionProto(WalletExtension extension) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+        return proto.build();
+    }
+
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -438,19 +484,55 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        ExecutorService executor = newLoaderExecutor();
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            // Transactions are built on the executor as they are read, the rest of the wallet is collected and parsed
+            // at the end.
+            CodedInputStream codedInput = CodedInputStream.newInstance(input);
+            codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+            ByteString.Output rest = ByteString.newOutput();
+            CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+            NetworkParameters params = null;
+            List<ByteString> early = new ArrayList<>();
+            List<Future<LoadedTransaction>> transactions = new ArrayList<>();
+            int tag;
+            while ((tag = codedInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+                if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && lengthDelimited) {
+                    ByteString txBytes = codedInput.readBytes();
+                    if (forceReset)
+                        continue;
+                    if (params == null)
+                        early.add(txBytes); // Transactions can't be built before the network is known.
+                    else
+                        transactions.add(submitTransaction(executor, params, txBytes));
+                } else if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER && lengthDelimited) {
+                    String paramsID = codedInput.readString();
+                    restOutput.writeString(field, paramsID);
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    for (ByteString txBytes : early)
+                        transactions.add(submitTransaction(executor, params, txBytes));
+                    early.clear();
+                } else {
+                    codedInput.skipField(tag, restOutput);
+                }
+            }
+            restOutput.flush();
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(rest.toByteString());
             if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+                throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+            return readWallet(params, extensions, walletProto, transactions, forceReset);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalArgumentException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -488,6 +570,23 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        ExecutorService executor = newLoaderExecutor();
+        try {
+            List<Future<LoadedTransaction>> transactions = new ArrayList<>();
+            if (!forceReset) {
+                for (Protos.Transaction txProto : walletProto.getTransactionList())
+                    transactions.add(submitTransaction(executor, params, txProto));
+            }
+            return readWallet(params, extensions, walletProto, transactions, forceReset);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Reads the wallet from the given proto, except for the transactions, which are being built already.
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, List<Future<LoadedTransaction>> transactions,
+                              boolean forceReset) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -528,18 +627,7 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
-                wallet.addWalletTransaction(wtx);
-            }
-
-            // Update the lastBlockSeenHash.
+            // Update the lastBlockSeenHash. The height goes first, as the transactions derive their depth from it.
             if (!walletProto.hasLastSeenBlockHash()) {
                 wallet.setLastBlockSeenHash(null);
             } else {
@@ -550,6 +638,28 @@ public class WalletProtobufSerializer {
             } else {
                 wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
             }
+
+            // Collect all transactions in order and insert into the txMap.
+            List<Protos.Transaction> txProtos = new ArrayList<>(transactions.size());
+            int percent = 0;
+            for (int i = 0; i < transactions.size(); i++) {
+                LoadedTransaction loaded = getLoadedTransaction(transactions.get(i));
+                if (txMap.containsKey(loaded.proto.getHash()))
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(loaded.proto.getHash()));
+                txMap.put(loaded.proto.getHash(), loaded.tx);
+                txProtos.add(loaded.proto);
+                ProgressListener listener = progressListener;
+                if (listener != null && (i + 1) * 100L / transactions.size() > percent) {
+                    percent = (int) ((i + 1) * 100L / transactions.size());
+                    listener.onTransactionsRead(i + 1, transactions.size());
+                }
+            }
+
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : txProtos) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+                wallet.addWalletTransaction(wtx);
+            }
             // Will default to zero if not present.
             wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
 
@@ -623,7 +733,62 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    // A transaction built from its proto.
+    private static class LoadedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        LoadedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    private ExecutorService newLoaderExecutor() {
+        if (loaderThreads == 1)
+            return MoreExecutors.newDirectExecutorService();
+        return Executors.newFixedThreadPool(loaderThreads, new ContextPropagatingThreadFactory("Wallet loader"));
+    }
+
+    private static Future<LoadedTransaction> submitTransaction(ExecutorService executor, final NetworkParameters params,
+                                                               final ByteString txBytes) {
+        return executor.submit(new Callable<LoadedTransaction>() {
+            @Override
+            public LoadedTransaction call() throws Exception {
+                Protos.Transaction txProto = Protos.Transaction.parseFrom(txBytes);
+                return new LoadedTransaction(txProto, readTransaction(txProto, params));
+            }
+        });
+    }
+
+    private static Future<LoadedTransaction> submitTransaction(ExecutorService executor, final NetworkParameters params,
+                                                               final Protos.Transaction txProto) {
+        return executor.submit(new Callable<LoadedTransaction>() {
+            @Override
+            public LoadedTransaction call() throws Exception {
+                return new LoadedTransaction(txProto, readTransaction(txProto, params));
+            }
+        });
+    }
+
+    private static LoadedTransaction getLoadedTransaction(Future<LoadedTransaction> future)
+            throws UnreadableWalletException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new UnreadableWalletException("Interrupted while reading transactions", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnreadableWalletException)
+                throw (UnreadableWalletException) cause;
+            if (cause instanceof InvalidProtocolBufferException)
+                throw new UnreadableWalletException("Could not parse input stream to protobuf", cause);
+            throw Throwables.propagate(cause);
+        }
+    }
+
+    // Builds a transaction from its proto. Runs on the loader threads, so it must not touch the serializer's state.
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -702,9 +867,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
@@ -32,6 +32,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
@@ -167,6 +168,61 @@ public class BlockTest {
         assertEquals(tx.length, origTxLength + 41); // - 1 + 40 + 1 + 1
     }
 
+    @Test
+    public void largeBlockMerkleTree() throws Exception {
+        // Enough transactions for the hashing to be spread over the fork/join pool.
+        Block block = UNITTEST.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                new ECKey().getPubKey(), Block.BLOCK_HEIGHT_GENESIS);
+        for (int i = 0; i < 1000; i++) {
+            Transaction tx = new Transaction(UNITTEST);
+            tx.addOutput(new TransactionOutput(UNITTEST, null, Coin.SATOSHI, new byte[] {(byte) ScriptOpCodes.OP_TRUE}));
+            tx.addInput(new TransactionInput(UNITTEST, null, new byte[0],
+                    new TransactionOutPoint(UNITTEST, i, Sha256Hash.of(new byte[] { 1 }))));
+            block.addTransaction(tx);
+        }
+        List<Sha256Hash> txHashes = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            txHashes.add(tx.getHash());
+        Sha256Hash merkleRoot = block.getMerkleRoot();
+        assertEquals(naiveMerkleRoot(txHashes), merkleRoot);
+        List<byte[]> tree = block.getMerkleTree();
+        assertSame(tree, block.getMerkleTree());
+        assertArrayEquals(merkleRoot.getBytes(), tree.get(tree.size() - 1));
+
+        // Parsing hashes the transactions from the block bytes.
+        Block parsed = UNITTEST.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+        for (int i = 0; i < txHashes.size(); i++)
+            assertEquals(txHashes.get(i), parsed.getTransactions().get(i).getHash());
+        assertEquals(merkleRoot, parsed.getMerkleRoot());
+
+        // Filtered blocks served from the kept tree are the same as those built from the leaves.
+        byte[] bits = new byte[(txHashes.size() + 7) / 8];
+        Utils.setBitLE(bits, 3);
+        Utils.setBitLE(bits, 700);
+        assertEquals(PartialMerkleTree.buildFromLeaves(UNITTEST, bits, txHashes),
+                PartialMerkleTree.buildFromTree(UNITTEST, bits, tree, txHashes.size()));
+
+        // Changing a transaction drops the tree.
+        block.getTransactions().get(5).getInputs().get(0).setScriptBytes(new byte[] {(byte) ScriptOpCodes.OP_TRUE});
+        txHashes.set(5, block.getTransactions().get(5).getHash());
+        assertNotSame(tree, block.getMerkleTree());
+        assertEquals(naiveMerkleRoot(txHashes), block.getMerkleRoot());
+    }
+
+    private static Sha256Hash naiveMerkleRoot(List<Sha256Hash> hashes) {
+        List<Sha256Hash> level = hashes;
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] left = level.get(i).getReversedBytes();
+                byte[] right = level.get(Math.min(i + 1, level.size() - 1)).getReversedBytes();
+                next.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(left, 0, 32, right, 0, 32)));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
     @Test
     public void testCoinbaseHeightTestnet() throws Exception {
         // Testnet block 21066 (hash 0000000004053156021d8e42459d284220a7f6e087bf78f30179c3703ca4eefa)
@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.ulordj.params.UnitTestParams;
+import org.ulordj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.ulordj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class CompactBlockTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Block block;
+    private List<Transaction> transactions;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        block = UNITTEST.getGenesisBlock().createNextBlock(null);
+        for (int i = 0; i < 3; i++)
+            block.addTransaction(FakeTxBuilder.createFakeTx(UNITTEST, COIN, new ECKey()));
+        transactions = block.getTransactions();
+    }
+
+    /** Returns copies of the given transactions of the block, as if they had been relayed to us. */
+    private List<Transaction> relayed(int... indexes) {
+        List<Transaction> relayed = new ArrayList<>();
+        for (int index : indexes)
+            relayed.add(UNITTEST.getDefaultSerializer().makeTransaction(transactions.get(index).bitcoinSerialize()));
+        return relayed;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        CompactBlock compactBlock = new CompactBlock(UNITTEST, block, 42);
+        byte[] bytes = compactBlock.bitcoinSerialize();
+        CompactBlock parsed = new CompactBlock(UNITTEST, bytes);
+        assertEquals(block.getHash(), parsed.getHash());
+        assertEquals(42, parsed.getNonce());
+        assertArrayEquals(compactBlock.getShortIds(), parsed.getShortIds());
+        assertEquals(transactions.size(), parsed.getTransactionCount());
+        assertEquals(Collections.singleton(0), parsed.getPrefilledTransactions().keySet());
+        assertArrayEquals(bytes, parsed.bitcoinSerialize());
+
+        MessageSerializer serializer = UNITTEST.getDefaultSerializer();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        serializer.serialize(compactBlock, stream);
+        assertTrue(serializer.deserialize(ByteBuffer.wrap(stream.toByteArray())) instanceof CompactBlock);
+    }
+
+    @Test
+    public void shortIdsDependOnNonce() throws Exception {
+        Sha256Hash txHash = transactions.get(1).getHash();
+        long shortId = new CompactBlock(UNITTEST, block, 1).getShortId(txHash);
+        assertEquals(0, shortId >>> (8 * CompactBlock.SHORT_ID_LENGTH));
+        assertEquals(shortId, new CompactBlock(UNITTEST, block, 1).getShortId(txHash));
+        assertNotEquals(shortId, new CompactBlock(UNITTEST, block, 2).getShortId(txHash));
+    }
+
+    @Test
+    public void reconstructFromRelayedTransactions() throws Exception {
+        CompactBlock compactBlock = new CompactBlock(UNITTEST, new CompactBlock(UNITTEST, block, 7).bitcoinSerialize());
+        List<Transaction> candidates = relayed(1, 2, 3);
+        candidates.add(FakeTxBuilder.createFakeTx(UNITTEST, COIN, new ECKey()));
+        PartiallyDownloadedBlock partialBlock = new PartiallyDownloadedBlock(compactBlock, candidates);
+        assertFalse(partialBlock.hasShortIdCollision());
+        assertTrue(partialBlock.isComplete());
+        Block rebuilt = partialBlock.build();
+        assertNotNull(rebuilt);
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertEquals(block.getMerkleRoot(), rebuilt.getMerkleRoot());
+        assertEquals(transactions.size(), rebuilt.getTransactions().size());
+    }
+
+    @Test
+    public void missingTransactionsAreRequested() throws Exception {
+        CompactBlock compactBlock = new CompactBlock(UNITTEST, new CompactBlock(UNITTEST, block, 7).bitcoinSerialize());
+        PartiallyDownloadedBlock partialBlock = new PartiallyDownloadedBlock(compactBlock, relayed(2));
+        assertFalse(partialBlock.isComplete());
+        assertEquals(Arrays.asList(1, 3), partialBlock.getMissingIndexes());
+
+        GetBlockTxnMessage request = new GetBlockTxnMessage(UNITTEST, block.getHash(), partialBlock.getMissingIndexes());
+        GetBlockTxnMessage parsedRequest = new GetBlockTxnMessage(UNITTEST, request.bitcoinSerialize());
+        assertEquals(request, parsedRequest);
+
+        BlockTxnMessage response = new BlockTxnMessage(UNITTEST, block.getHash(), relayed(1, 3));
+        BlockTxnMessage parsedResponse = new BlockTxnMessage(UNITTEST, response.bitcoinSerialize());
+        assertEquals(block.getHash(), parsedResponse.getBlockHash());
+        assertFalse(partialBlock.fillMissing(parsedResponse.getTransactions().subList(0, 1)));
+        assertTrue(partialBlock.fillMissing(parsedResponse.getTransactions()));
+        Block rebuilt = partialBlock.build();
+        assertNotNull(rebuilt);
+        assertEquals(block.getHash(), rebuilt.getHash());
+    }
+
+    @Test
+    public void wrongTransactionsDontMatchMerkleRoot() throws Exception {
+        CompactBlock compactBlock = new CompactBlock(UNITTEST, block, 7);
+        PartiallyDownloadedBlock partialBlock = new PartiallyDownloadedBlock(compactBlock, relayed(1, 2));
+        assertTrue(partialBlock.fillMissing(Collections.singletonList(
+                FakeTxBuilder.createFakeTx(UNITTEST, COIN, new ECKey()))));
+        assertNull(partialBlock.build());
+    }
+
+    @Test
+    public void sendCmpctRoundTrip() throws Exception {
+        SendCmpctMessage message = new SendCmpctMessage(UNITTEST, true);
+        SendCmpctMessage parsed = new SendCmpctMessage(UNITTEST, message.bitcoinSerialize());
+        assertEquals(message, parsed);
+        assertTrue(parsed.isHighBandwidth());
+        assertEquals(SendCmpctMessage.COMPACT_BLOCKS_VERSION, parsed.getVersion());
+    }
+}
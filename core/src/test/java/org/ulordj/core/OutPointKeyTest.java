@@ -0,0 +1,57 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.ulordj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OutPointKeyTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Sha256Hash HASH =
+            Sha256Hash.wrap("0102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f20");
+
+    @Test
+    public void roundTrip() {
+        OutPointKey key = OutPointKey.of(HASH, 3);
+        assertEquals(HASH, key.getHash());
+        assertEquals(3, key.getIndex());
+        // The index is unsigned, like in outpoints.
+        assertEquals(0xFFFFFFFFL, OutPointKey.of(HASH, 0xFFFFFFFFL).getIndex());
+        assertEquals(HASH + ":3", key.toString());
+    }
+
+    @Test
+    public void equality() {
+        OutPointKey key = OutPointKey.of(new TransactionOutPoint(UNITTEST, 1, HASH));
+        assertEquals(OutPointKey.of(HASH, 1), key);
+        assertEquals(OutPointKey.of(HASH, 1).hashCode(), key.hashCode());
+        assertNotEquals(OutPointKey.of(HASH, 2), key);
+        byte[] bytes = HASH.getBytes().clone();
+        bytes[0] ^= 1;
+        assertNotEquals(OutPointKey.of(Sha256Hash.wrap(bytes), 1), key);
+
+        Map<OutPointKey, String> map = new HashMap<>();
+        map.put(key, "a");
+        assertEquals("a", map.get(OutPointKey.of(HASH, 1)));
+        assertNull(map.get(OutPointKey.of(HASH, 0)));
+    }
+}
@@ -153,6 +153,27 @@ public class ParseByteCacheTest {
         testTransaction(UNITTEST, tx2BytesWithHeader, false, false);
     }
 
+    @Test
+    public void scriptsStayInPayloadUntilModified() throws Exception {
+        MessageSerializer bs = UNITTEST.getSerializer(true);
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(tx1BytesWithHeader));
+        Transaction noRetain = (Transaction) UNITTEST.getSerializer(false).deserialize(ByteBuffer.wrap(tx1BytesWithHeader));
+        assertEquals(noRetain, tx);
+        TransactionInput input = tx.getInput(1);
+        TransactionOutput output = tx.getOutput(0);
+
+        // Changing the values keeps the scripts, even though the payload they were in is dropped.
+        input.setSequenceNumber(7);
+        output.setValue(Coin.CENT);
+        assertFalse(tx.isCached());
+        assertArrayEquals(noRetain.getInput(0).getScriptBytes(), tx.getInput(0).getScriptBytes());
+        assertArrayEquals(noRetain.getInput(1).getScriptBytes(), input.getScriptBytes());
+        assertArrayEquals(noRetain.getOutput(0).getScriptBytes(), output.getScriptBytes());
+        noRetain.getInput(1).setSequenceNumber(7);
+        noRetain.getOutput(0).setValue(Coin.CENT);
+        assertArrayEquals(noRetain.bitcoinSerialize(), tx.bitcoinSerialize());
+    }
+
     @Test
     public void testBlockAll() throws Exception {
         testBlock(b1BytesWithHeader, false, false);
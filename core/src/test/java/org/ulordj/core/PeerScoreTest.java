@@ -0,0 +1,54 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeerScoreTest {
+    @Test
+    public void unmeasuredPeer() {
+        // No pong yet is treated like the default ping time.
+        assertEquals(PeerScore.calculateScore(PeerScore.DEFAULT_PING_TIME_MSEC, 0, 0, 0),
+                PeerScore.calculateScore(Long.MAX_VALUE, 0, 0, 0), 0);
+    }
+
+    @Test
+    public void lowerLatencyIsBetter() {
+        assertTrue(PeerScore.calculateScore(50, 0, 0, 0) > PeerScore.calculateScore(500, 0, 0, 0));
+        // Latency beyond the cap doesn't make a difference any more.
+        assertEquals(PeerScore.calculateScore(PeerScore.MAX_PING_TIME_MSEC, 0, 0, 0),
+                PeerScore.calculateScore(PeerScore.MAX_PING_TIME_MSEC * 10, 0, 0, 0), 0);
+    }
+
+    @Test
+    public void higherThroughputIsBetter() {
+        assertTrue(PeerScore.calculateScore(100, 1024 * 1024, 0, 0) > PeerScore.calculateScore(100, 1024, 0, 0));
+        // Doubling the throughput is worth one point.
+        assertEquals(1.0, PeerScore.calculateScore(100, 1023 * 1024, 0, 0)
+                - PeerScore.calculateScore(100, 511 * 1024, 0, 0), 0.0001);
+    }
+
+    @Test
+    public void stallsAndMisbehaviourArePenalised() {
+        double clean = PeerScore.calculateScore(100, 100 * 1024, 0, 0);
+        assertEquals(clean - PeerScore.STALL_PENALTY, PeerScore.calculateScore(100, 100 * 1024, 1, 0), 0.0001);
+        assertEquals(clean - PeerScore.MISBEHAVIOUR_PENALTY, PeerScore.calculateScore(100, 100 * 1024, 0, 1), 0.0001);
+    }
+}
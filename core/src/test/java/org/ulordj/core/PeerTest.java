@@ -486,24 +486,50 @@ public class PeerTest extends TestWithNetworkConnections {
         // Now send all the headers.
         HeadersMessage headers = new HeadersMessage(UNITTEST, b2.cloneAsHeader(),
                 b3.cloneAsHeader(), b4.cloneAsHeader());
-        // We expect to be asked for b3 and b4 again, but this time, with a body.
-        expectedLocator.clear();
-        expectedLocator.add(b2.getHash());
-        expectedLocator.add(b1.getHash());
-        expectedLocator.add(UNITTEST.getGenesisBlock().getHash());
+        // We expect to be asked for the bodies of b3 and b4 straight away, without another getblocks/inv round-trip.
         inbound(writeTarget, headers);
-        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
-        assertEquals(expectedLocator, getblocks.getLocator());
-        assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
-        // We're supposed to get an inv here.
-        InventoryMessage inv = new InventoryMessage(UNITTEST);
-        inv.addItem(new InventoryItem(InventoryItem.Type.Block, b3.getHash()));
-        inbound(writeTarget, inv);
         GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
         assertEquals(b3.getHash(), getdata.getItems().get(0).hash);
+        assertEquals(b4.getHash(), getdata.getItems().get(1).hash);
         // All done.
         inbound(writeTarget, b3);
+        inbound(writeTarget, b4);
+        pingAndWait(writeTarget);
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+        closePeer(peer);
+    }
+
+    @Test
+    public void headersAnnouncement() throws Exception {
+        peer.setPreferHeaderAnnouncements(true);
+        connectWithVersion(UNITTEST.getProtocolVersionNum(NetworkParameters.ProtocolVersion.CURRENT),
+                VersionMessage.NODE_NETWORK);
+        // We ask the peer to announce new blocks with headers.
+        assertTrue(outbound(writeTarget) instanceof SendHeadersMessage);
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        // A header announcement connecting to our chain makes us download the block.
+        inbound(writeTarget, new HeadersMessage(UNITTEST, b2.cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b2.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, b2);
         pingAndWait(writeTarget);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        // Announcing a block we already have neither downloads nor counts it again.
+        long bestHeight = peer.getBestHeight();
+        inbound(writeTarget, new HeadersMessage(UNITTEST, b2.cloneAsHeader()));
+        assertNull(outbound(writeTarget));
+        assertEquals(bestHeight, peer.getBestHeight());
+        // One that doesn't connect makes us catch up using getblocks.
+        Block b3 = makeSolvedTestBlock(b2);
+        Block b4 = makeSolvedTestBlock(b3);
+        inbound(writeTarget, new HeadersMessage(UNITTEST, b4.cloneAsHeader()));
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getblocks.getLocator().get(0));
+        assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
         closePeer(peer);
     }
 
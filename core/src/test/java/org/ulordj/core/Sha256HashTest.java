@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.ulordj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class Sha256HashTest {
+    @Test
+    public void knownHashes() {
+        byte[] abc = "abc".getBytes();
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                HEX.encode(Sha256Hash.hash(abc)));
+        assertEquals("4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358",
+                HEX.encode(Sha256Hash.hashTwice(abc)));
+        assertEquals("5df6e0e2761359d30a8275058e299fcc0381534545f55cf43e41983f5d4c9456",
+                HEX.encode(Sha256Hash.hashTwice(new byte[0])));
+        assertEquals("b472a266d0bd89c13706a4132ccfb16f7c3b9fcb", HEX.encode(Utils.sha256hash160(new byte[0])));
+    }
+
+    @Test
+    public void ranges() {
+        byte[] input = new byte[300];
+        new Random(1).nextBytes(input);
+        byte[] range = Arrays.copyOfRange(input, 7, 207);
+        assertArrayEquals(Sha256Hash.hash(range), Sha256Hash.hash(input, 7, 200));
+        assertArrayEquals(Sha256Hash.hashTwice(range), Sha256Hash.hashTwice(input, 7, 200));
+        assertArrayEquals(Sha256Hash.hashTwice(range), Sha256Hash.hashTwice(input, 7, 100, input, 107, 100));
+        assertArrayEquals(Utils.sha256hash160(range), Sha256Hash.hash160(input, 7, 200));
+        try {
+            Sha256Hash.hashTwice(input, 250, 51);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        // A failed call doesn't leave anything behind for the next one.
+        assertArrayEquals(Sha256Hash.hashTwice(range), Sha256Hash.hashTwice(input, 7, 200));
+    }
+
+    @Test
+    public void hashTwiceEach() {
+        byte[] input = new byte[64 * 5 + 10];
+        new Random(2).nextBytes(input);
+        byte[] hashes = Sha256Hash.hashTwiceEach(input, 64, 5);
+        assertEquals(5 * 32, hashes.length);
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(Sha256Hash.hashTwice(input, i * 64, 64), Arrays.copyOfRange(hashes, i * 32, i * 32 + 32));
+        assertEquals(0, Sha256Hash.hashTwiceEach(input, 64, 0).length);
+        try {
+            Sha256Hash.hashTwiceEach(input, 64, 6);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void concurrentHashing() throws Exception {
+        final byte[] input = new byte[1000];
+        new Random(3).nextBytes(input);
+        final byte[] expected = Sha256Hash.hashTwice(input);
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++)
+                        if (!Arrays.equals(expected, Sha256Hash.hashTwice(input)))
+                            failed[0] = true;
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertFalse(failed[0]);
+    }
+}
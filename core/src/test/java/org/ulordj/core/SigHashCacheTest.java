@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.ulordj.core.Transaction.SigHash;
+import org.ulordj.params.UnitTestParams;
+import org.ulordj.script.Script;
+import org.ulordj.script.ScriptBuilder;
+import org.ulordj.script.ScriptOpCodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SigHashCacheTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Transaction tx;
+    private Script script;
+
+    @Before
+    public void setUp() throws Exception {
+        tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 5; i++) {
+            TransactionInput input = tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i,
+                    new ScriptBuilder().data(new byte[] { 1, 2, 3 }).build());
+            input.setSequenceNumber(TransactionInput.NO_SEQUENCE - i);
+        }
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.addOutput(Coin.CENT, new ECKey());
+        tx.setLockTime(1000);
+        script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+    }
+
+    @Test
+    public void sameHashAsTransaction() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            assertEquals(tx.hashForSignature(i, script, SigHash.ALL, false),
+                    cache.hashForSignature(i, script, SigHash.ALL, false));
+    }
+
+    @Test
+    public void ignoresInputScripts() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        Sha256Hash hash = cache.hashForSignature(2, script, SigHash.ALL, false);
+        tx.getInput(2).setScriptSig(new ScriptBuilder().data(new byte[72]).build());
+        assertEquals(hash, cache.hashForSignature(2, script, SigHash.ALL, false));
+        assertEquals(tx.hashForSignature(2, script, SigHash.ALL, false), hash);
+    }
+
+    @Test
+    public void removesCodeSeparators() throws Exception {
+        Script withSeparator = new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR).data(new byte[20])
+                .op(ScriptOpCodes.OP_DROP).build();
+        SigHashCache cache = new SigHashCache(tx);
+        assertEquals(tx.hashForSignature(1, withSeparator, SigHash.ALL, false),
+                cache.hashForSignature(1, withSeparator, SigHash.ALL, false));
+    }
+
+    @Test
+    public void otherModes() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        // All combinations of the hash type bits, including types that aren't defined like 0.
+        byte[] types = { 0, 1, 2, 3, 4, (byte) 0x80, (byte) 0x81, (byte) 0x82, (byte) 0x83, (byte) 0xc3 };
+        for (byte type : types)
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                assertEquals(tx.hashForSignatureWithCopy(i, script.getProgram(), type),
+                        cache.hashForSignature(i, script.getProgram(), type));
+    }
+
+    @Test
+    public void midstatesInAnyOrder() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        for (int i = tx.getInputs().size() - 1; i >= 0; i--)
+            assertEquals(tx.hashForSignatureWithCopy(i, script.getProgram(), SigHash.ALL.byteValue()),
+                    cache.hashForSignature(i, script, SigHash.ALL, false));
+        assertEquals(tx.hashForSignatureWithCopy(2, script.getProgram(), SigHash.ALL.byteValue()),
+                cache.hashForSignature(2, script, SigHash.ALL, false));
+    }
+
+    @Test
+    public void transactionDropsCacheWhenChanged() throws Exception {
+        Sha256Hash hash = tx.hashForSignature(1, script, SigHash.ALL, false);
+        tx.setLockTime(2000);
+        Sha256Hash changed = tx.hashForSignature(1, script, SigHash.ALL, false);
+        assertNotEquals(hash, changed);
+        assertEquals(tx.hashForSignatureWithCopy(1, script.getProgram(), SigHash.ALL.byteValue()), changed);
+        tx.getOutput(0).setValue(Coin.CENT);
+        assertEquals(tx.hashForSignatureWithCopy(1, script.getProgram(), SigHash.ALL.byteValue()),
+                tx.hashForSignature(1, script, SigHash.ALL, false));
+    }
+
+    @Test
+    public void transactionDropsCacheWhenOutputsShuffled() throws Exception {
+        Sha256Hash hash = tx.hashForSignature(1, script, SigHash.ALL, false);
+        // Shuffle until the order changes.
+        TransactionOutput first = tx.getOutput(0);
+        while (tx.getOutput(0) == first)
+            tx.shuffleOutputs();
+        Sha256Hash changed = tx.hashForSignature(1, script, SigHash.ALL, false);
+        assertNotEquals(hash, changed);
+        assertEquals(tx.hashForSignatureWithCopy(1, script.getProgram(), SigHash.ALL.byteValue()), changed);
+    }
+
+    @Test
+    public void transactionDropsCacheWhenInputsChanged() throws Exception {
+        Sha256Hash hash = tx.hashForSignature(1, script, SigHash.ALL, false);
+        tx.getInput(3).getOutpoint().setIndex(7);
+        Sha256Hash changed = tx.hashForSignature(1, script, SigHash.ALL, false);
+        assertNotEquals(hash, changed);
+        assertEquals(tx.hashForSignatureWithCopy(1, script.getProgram(), SigHash.ALL.byteValue()), changed);
+    }
+}
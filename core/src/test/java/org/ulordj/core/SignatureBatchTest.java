@@ -0,0 +1,69 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.core;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SignatureBatchTest {
+    @Test
+    public void reportsFailedEntries() throws Exception {
+        ECKey key = new ECKey(), otherKey = new ECKey();
+        SignatureBatch batch = fill(key, otherKey, 100);
+        BitSet expected = new BitSet();
+        for (int i = 0; i < 100; i += 7)
+            expected.set(i);
+        assertEquals(expected, batch.verify());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(expected, batch.verify(executor));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void badPublicKeyFails() throws Exception {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        SignatureBatch batch = new SignatureBatch();
+        batch.add(hash.getBytes(), key.sign(hash), key.getPubKey());
+        byte[] badPubKey = key.getPubKey();
+        badPubKey[0] = 5;
+        batch.add(hash.getBytes(), key.sign(hash), badPubKey);
+        BitSet failed = batch.verify();
+        assertFalse(failed.get(0));
+        assertTrue(failed.get(1));
+    }
+
+    // Every seventh entry is signed by the other key.
+    private static SignatureBatch fill(ECKey key, ECKey otherKey, int size) {
+        SignatureBatch batch = new SignatureBatch();
+        for (int i = 0; i < size; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            ECKey signer = i % 7 == 0 ? otherKey : key;
+            assertEquals(i, batch.add(hash.getBytes(), signer.sign(hash), key.getPubKey()));
+        }
+        return batch;
+    }
+}
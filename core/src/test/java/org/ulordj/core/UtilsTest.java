@@ -111,4 +111,15 @@ public class UtilsTest {
         byte[] actual = Utils.bigIntegerToBytes(b, 1);
         assertTrue(Arrays.equals(expected, actual));
     }
+
+    @Test
+    public void readUint256() {
+        byte[] bytes = new byte[34];
+        bytes[2] = 1;
+        bytes[33] = (byte) 0x80;
+        assertEquals(BigInteger.ONE.add(BigInteger.ONE.shiftLeft(255)), Utils.readUint256(bytes, 2));
+        // Bytes missing at the end read as zeros.
+        assertEquals(BigInteger.valueOf(0x8000), Utils.readUint256(bytes, 32));
+        assertEquals(BigInteger.ZERO, Utils.readUint256(bytes, 34));
+    }
 }
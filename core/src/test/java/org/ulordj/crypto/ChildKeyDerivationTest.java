@@ -22,6 +22,8 @@ import org.ulordj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.*;
+
 import static org.ulordj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -189,6 +191,36 @@ public class ChildKeyDerivationTest {
         assertEquals(key3.getPubKeyPoint(), pubkey3.getPubKeyPoint());
     }
 
+    @Test
+    public void bulkPublicDerivation() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey parent = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        DeterministicKey pubParent = parent.dropPrivateBytes().dropParent();
+        for (DeterministicKey from : new DeterministicKey[] { parent, pubParent }) {
+            List<DeterministicKey> keys = HDKeyDerivation.derivePublicChildKeys(from, 5, 40);
+            assertEquals(40, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                DeterministicKey key = keys.get(i);
+                DeterministicKey expected = HDKeyDerivation.deriveChildKey(pubParent, 5 + i);
+                assertEquals(expected.getPath(), key.getPath());
+                assertArrayEquals(expected.getChainCode(), key.getChainCode());
+                assertArrayEquals(expected.getPubKey(), key.getPubKey());
+                assertEquals(from.hasPrivKey(), key.hasPrivKey()); // Through the parent only.
+                assertSame(from, key.getParent());
+            }
+        }
+        assertArrayEquals(HDKeyDerivation.deriveChildKey(parent, 7).getPubKey(),
+                HDKeyDerivation.derivePublicChildKeys(parent, 5, 40).get(2).getPubKey());
+        assertTrue(HDKeyDerivation.derivePublicChildKeys(parent, 0, 0).isEmpty());
+        assertEquals(1, HDKeyDerivation.derivePublicChildKeys(parent, Integer.MAX_VALUE, 1).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bulkPublicDerivationRejectsHardenedChildren() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        HDKeyDerivation.derivePublicChildKeys(master, Integer.MAX_VALUE, 2);
+    }
+
     @Test
     public void testSerializationMainAndTestNetworks() {
         DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
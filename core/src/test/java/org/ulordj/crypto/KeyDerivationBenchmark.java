@@ -0,0 +1,52 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.crypto;
+
+/**
+ * Times {@link HDKeyDerivation#derivePublicChildKeys(DeterministicKey, int, int)} against deriving the same public
+ * keys one by one with {@link HDKeyDerivation#deriveChildKey(DeterministicKey, int)}, from a watching key like a
+ * merchant would use. Run it from the test classpath, there are no arguments.
+ */
+public class KeyDerivationBenchmark {
+    private static final int ROUNDS = 10;
+    private static final int KEYS = 2000;
+
+    public static void main(String[] args) {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey parent = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED)
+                .dropPrivateBytes().dropParent();
+        long single = Long.MAX_VALUE, bulk = Long.MAX_VALUE;
+        // The first rounds double as warm up, the best round is reported.
+        for (int round = 0; round < ROUNDS; round++) {
+            single = Math.min(single, time(parent, false));
+            bulk = Math.min(bulk, time(parent, true));
+        }
+        System.out.printf("%8d ns/key (one by one) %8d ns/key (bulk)%n", single / KEYS, bulk / KEYS);
+    }
+
+    private static long time(DeterministicKey parent, boolean bulk) {
+        long start = System.nanoTime();
+        if (bulk) {
+            for (DeterministicKey key : HDKeyDerivation.derivePublicChildKeys(parent, 0, KEYS))
+                key.getPubKey();
+        } else {
+            for (int i = 0; i < KEYS; i++)
+                HDKeyDerivation.deriveChildKey(parent, i).getPubKey();
+        }
+        return System.nanoTime() - start;
+    }
+}
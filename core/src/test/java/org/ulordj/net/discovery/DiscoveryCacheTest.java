@@ -0,0 +1,124 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.net.discovery;
+
+import org.ulordj.core.Utils;
+
+import com.google.common.net.InetAddresses;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryCacheTest {
+    private static final InetSocketAddress[] ADDRESSES = {
+            new InetSocketAddress(InetAddresses.forString("10.0.0.1"), 9888),
+            new InetSocketAddress(InetAddresses.forString("2001:db8::1"), 9889)
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+    private StubDiscovery seed;
+
+    /** Counts lookups, and fails them once told to. */
+    private static class StubDiscovery implements PeerDiscovery {
+        int lookups;
+        boolean broken;
+
+        @Override
+        public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit)
+                throws PeerDiscoveryException {
+            lookups++;
+            if (broken)
+                throw new PeerDiscoveryException("broken");
+            return ADDRESSES.clone();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public String toString() {
+            return "seed.example.com";
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        file = new File(folder.getRoot(), "seeds.cache");
+        seed = new StubDiscovery();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void freshResultsAreReused() throws Exception {
+        PeerDiscovery discovery = new DiscoveryCache(file, TimeUnit.HOURS.toMillis(1)).wrap(seed);
+        assertArrayEquals(ADDRESSES, discovery.getPeers(0, 1, TimeUnit.SECONDS));
+        assertArrayEquals(ADDRESSES, discovery.getPeers(0, 1, TimeUnit.SECONDS));
+        assertEquals(1, seed.lookups);
+        // Other services are cached separately.
+        discovery.getPeers(1, 1, TimeUnit.SECONDS);
+        assertEquals(2, seed.lookups);
+    }
+
+    @Test
+    public void expiredResultsAreRefreshed() throws Exception {
+        PeerDiscovery discovery = new DiscoveryCache(file, TimeUnit.HOURS.toMillis(1)).wrap(seed);
+        discovery.getPeers(0, 1, TimeUnit.SECONDS);
+        Utils.rollMockClock((int) TimeUnit.HOURS.toSeconds(2));
+        discovery.getPeers(0, 1, TimeUnit.SECONDS);
+        assertEquals(2, seed.lookups);
+    }
+
+    @Test
+    public void expiredResultsAreUsedWhenSeedFails() throws Exception {
+        PeerDiscovery discovery = new DiscoveryCache(file, TimeUnit.HOURS.toMillis(1)).wrap(seed);
+        discovery.getPeers(0, 1, TimeUnit.SECONDS);
+        Utils.rollMockClock((int) TimeUnit.HOURS.toSeconds(2));
+        seed.broken = true;
+        assertArrayEquals(ADDRESSES, discovery.getPeers(0, 1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = PeerDiscoveryException.class)
+    public void failureWithoutCachedResults() throws Exception {
+        seed.broken = true;
+        new DiscoveryCache(file).wrap(seed).getPeers(0, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void resultsSurviveRestart() throws Exception {
+        new DiscoveryCache(file).wrap(seed).getPeers(0, 1, TimeUnit.SECONDS);
+        DiscoveryCache reloaded = new DiscoveryCache(file);
+        assertArrayEquals(ADDRESSES, reloaded.get("seed.example.com/0"));
+        assertArrayEquals(ADDRESSES, reloaded.wrap(seed).getPeers(0, 1, TimeUnit.SECONDS));
+        assertEquals(1, seed.lookups);
+    }
+}
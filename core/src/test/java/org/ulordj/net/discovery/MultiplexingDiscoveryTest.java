@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.net.discovery;
+
+import org.ulordj.core.NetworkParameters;
+import org.ulordj.net.discovery.DnsDiscovery.DnsSeedDiscovery;
+import org.ulordj.params.UnitTestParams;
+
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultiplexingDiscoveryTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final CountDownLatch slowSeedLatch = new CountDownLatch(1);
+
+    // A stand-in for DNS that answers immediately for "fast" seeds and only once released for "slow" ones.
+    private final DnsDiscovery.Resolver resolver = new DnsDiscovery.Resolver() {
+        @Override
+        public InetAddress[] resolve(String hostname) throws UnknownHostException {
+            if (hostname.startsWith("slow")) {
+                try {
+                    slowSeedLatch.await();
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException(hostname);
+                }
+                return new InetAddress[] { InetAddresses.forString("10.0.1.1") };
+            } else if (hostname.startsWith("fast")) {
+                return new InetAddress[] { InetAddresses.forString("10.0.0.1"), InetAddresses.forString("10.0.0.2") };
+            } else {
+                throw new UnknownHostException(hostname);
+            }
+        }
+    };
+
+    private MultiplexingDiscovery discovery(String... hostnames) {
+        PeerDiscovery[] seeds = new PeerDiscovery[hostnames.length];
+        for (int i = 0; i < hostnames.length; i++)
+            seeds[i] = new DnsSeedDiscovery(UNITTEST, hostnames[i], resolver);
+        return new MultiplexingDiscovery(UNITTEST, Arrays.asList(seeds));
+    }
+
+    @After
+    public void tearDown() {
+        slowSeedLatch.countDown();
+    }
+
+    @Test
+    public void waitsForAllSeeds() throws Exception {
+        InetSocketAddress[] peers = discovery("fast1", "fast2", "broken").getPeers(0, 10, TimeUnit.SECONDS);
+        assertEquals(4, peers.length);
+    }
+
+    @Test
+    public void returnsFirstResultsEarly() throws Exception {
+        final SettableFuture<InetSocketAddress[]> late = SettableFuture.create();
+        MultiplexingDiscovery discovery = discovery("fast", "slow");
+        InetSocketAddress[] peers = discovery.getPeers(0, 10, TimeUnit.SECONDS, 2,
+                new MultiplexingDiscovery.Listener() {
+                    @Override
+                    public void onPeersDiscovered(PeerDiscovery seed, InetSocketAddress[] addresses) {
+                        late.set(addresses);
+                    }
+                });
+        assertEquals(2, peers.length);
+        assertFalse(late.isDone());
+        slowSeedLatch.countDown();
+        List<InetSocketAddress> lateAddresses = Arrays.asList(late.get(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(new InetSocketAddress(InetAddresses.forString("10.0.1.1"), UNITTEST.getPort())),
+                lateAddresses);
+    }
+
+    @Test
+    public void slowSeedsTimeOut() throws Exception {
+        InetSocketAddress[] peers = discovery("fast", "slow").getPeers(0, 200, TimeUnit.MILLISECONDS);
+        assertEquals(2, peers.length);
+    }
+
+    @Test(expected = PeerDiscoveryException.class)
+    public void noResults() throws Exception {
+        discovery("broken1", "broken2").getPeers(0, 10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.net.discovery;
+
+import org.ulordj.core.PeerAddress;
+import org.ulordj.params.UnitTestParams;
+
+import com.google.common.net.InetAddresses;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressDatabaseTest {
+    private static final InetSocketAddress A = address("10.0.0.1");
+    private static final InetSocketAddress B = address("10.0.0.2");
+    private static final InetSocketAddress C = address("192.168.1.1");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "peers.db");
+    }
+
+    private static InetSocketAddress address(String ip) {
+        return new InetSocketAddress(InetAddresses.forString(ip), 9888);
+    }
+
+    private static InetSocketAddress address(int i) {
+        return address("10.0." + (i >> 8) + "." + (i & 0xff));
+    }
+
+    @Test
+    public void triedAddressesComeFirst() {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        db.addAddress(A, 0);
+        db.addAddress(B, 0);
+        db.recordSuccess(B);
+        InetSocketAddress[] peers = db.getPeers(0, 0, TimeUnit.SECONDS);
+        assertEquals(2, peers.length);
+        assertEquals(B, peers[0]);
+        assertEquals(A, peers[1]);
+    }
+
+    @Test
+    public void bucketsAreInterleaved() {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        db.addAddress(A, 0);
+        db.addAddress(B, 0);
+        db.addAddress(C, 0);
+        // A and B share a network group, so C has to be returned before the second of them.
+        InetSocketAddress[] peers = db.getPeers(0, 0, TimeUnit.SECONDS);
+        assertEquals(3, peers.length);
+        assertTrue(Arrays.asList(peers[0], peers[1]).contains(C));
+    }
+
+    @Test
+    public void servicesAreFiltered() {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        db.addAddress(A, 1);
+        db.addAddress(B, 1 | 4);
+        db.addAddress(C, 0); // Unknown services are not filtered.
+        assertEquals(2, db.getPeers(4, 0, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void weightPrefersFastReliablePeers() {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        db.recordSuccess(A);
+        db.recordDisconnect(A, TimeUnit.HOURS.toMillis(5), 50);
+        db.recordSuccess(B);
+        db.recordDisconnect(B, TimeUnit.HOURS.toMillis(5), 800);
+        db.recordSuccess(C);
+        db.recordFailure(C);
+        db.recordFailure(C);
+        db.recordDisconnect(C, TimeUnit.HOURS.toMillis(5), 50);
+        assertTrue(db.getWeight(A) > db.getWeight(B));
+        assertTrue(db.getWeight(A) > db.getWeight(C));
+        assertEquals(0, db.getWeight(address("1.2.3.4")), 0);
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenUntriedAddress() {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        for (int i = 0; i < PeerAddressDatabase.MAX_ADDRESSES; i++)
+            db.addAddress(address(i), 0);
+        db.recordSuccess(address(0));
+        db.addAddress(C, 0);
+        assertEquals(PeerAddressDatabase.MAX_ADDRESSES, db.size());
+        // The first address was tried, so the second one goes.
+        assertTrue(db.getWeight(address(0)) > 0);
+        assertEquals(0, db.getWeight(address(1)), 0);
+        assertTrue(db.getWeight(address(2)) > 0);
+        assertTrue(db.getWeight(C) > 0);
+    }
+
+    @Test
+    public void newAddressesPerCallAreLimited() {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        db.addAddress(address(999), 0);
+        List<PeerAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            addresses.add(new PeerAddress(UnitTestParams.get(), address(i)));
+        db.addAddresses(addresses);
+        assertEquals(PeerAddressDatabase.MAX_NEW_ADDRESSES_PER_CALL + 1, db.size());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        db.addAddress(A, 1);
+        db.recordSuccess(B);
+        db.recordDisconnect(B, TimeUnit.HOURS.toMillis(1), 100);
+        db.addAddress(address("2001:db8::1"), 0);
+        db.save();
+
+        PeerAddressDatabase loaded = new PeerAddressDatabase(file);
+        assertEquals(3, loaded.size());
+        // Nothing changed since, so there is nothing to save.
+        assertTrue(file.delete());
+        loaded.saveIfDirty();
+        assertFalse(file.exists());
+        assertEquals(db.getWeight(A), loaded.getWeight(A), 0);
+        assertEquals(db.getWeight(B), loaded.getWeight(B), 0);
+        assertEquals(B, loaded.getPeers(0, 0, TimeUnit.SECONDS)[0]);
+    }
+
+    @Test
+    public void corruptFileIsIgnored() throws Exception {
+        Files.write(file.toPath(), "garbage".getBytes(StandardCharsets.UTF_8));
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        assertEquals(0, db.size());
+    }
+
+    @Test
+    public void networkGroup() {
+        assertEquals(PeerAddressDatabase.networkGroup(A.getAddress()), PeerAddressDatabase.networkGroup(B.getAddress()));
+        assertNotEquals(PeerAddressDatabase.networkGroup(A.getAddress()), PeerAddressDatabase.networkGroup(C.getAddress()));
+    }
+}
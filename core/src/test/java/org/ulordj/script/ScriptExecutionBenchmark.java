@@ -0,0 +1,70 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.script;
+
+import java.util.LinkedList;
+
+import static org.ulordj.script.ScriptOpCodes.*;
+
+/**
+ * Times the script interpreter against {@link LinkedListScriptInterpreter} on scripts that spend their time in the
+ * interpreter itself rather than in signature checking. Run it from the test classpath, there are no arguments.
+ */
+public class ScriptExecutionBenchmark {
+    private static final int ROUNDS = 10;
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) {
+        ScriptBuilder arithmetic = new ScriptBuilder();
+        for (int i = 0; i < 50; i++)
+            arithmetic.number(1000).number(2345).op(OP_ADD).number(3345).op(OP_NUMEQUALVERIFY);
+        run("arithmetic", arithmetic.op(OP_1).build());
+
+        ScriptBuilder conditionals = new ScriptBuilder();
+        for (int i = 0; i < 40; i++)
+            conditionals.op(OP_1).op(OP_IF).op(OP_1).op(OP_ELSE).op(OP_0).op(OP_ENDIF).op(OP_VERIFY);
+        run("conditionals", conditionals.op(OP_1).build());
+
+        ScriptBuilder stackOps = new ScriptBuilder().op(OP_1).op(OP_2).op(OP_3);
+        for (int i = 0; i < 30; i++)
+            stackOps.op(OP_ROT).op(OP_SWAP).op(OP_OVER).op(OP_DROP).op(OP_2DUP).op(OP_2DROP);
+        run("stack", stackOps.build());
+    }
+
+    private static void run(String name, Script script) {
+        long reference = Long.MAX_VALUE, current = Long.MAX_VALUE;
+        // The first rounds double as warm up, the best round is reported.
+        for (int round = 0; round < ROUNDS; round++) {
+            reference = Math.min(reference, time(script, false));
+            current = Math.min(current, time(script, true));
+        }
+        System.out.printf("%-14s %8d ns/op (linked list) %8d ns/op (array)%n", name, reference / ITERATIONS,
+                current / ITERATIONS);
+    }
+
+    private static long time(Script script, boolean current) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (current)
+                Script.executeScript(null, 0, script, new ScriptStack(0), Script.ALL_VERIFY_FLAGS);
+            else
+                LinkedListScriptInterpreter.executeScript(null, 0, script, new LinkedList<byte[]>(),
+                        Script.ALL_VERIFY_FLAGS);
+        }
+        return System.nanoTime() - start;
+    }
+}
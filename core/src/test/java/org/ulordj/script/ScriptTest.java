@@ -43,6 +43,7 @@ import java.util.*;
 
 import static org.ulordj.core.Utils.HEX;
 import static org.ulordj.script.ScriptOpCodes.OP_0;
+import static org.ulordj.script.ScriptOpCodes.OP_CHECKSIG;
 import static org.ulordj.script.ScriptOpCodes.OP_INVALIDOPCODE;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.*;
@@ -233,6 +234,49 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
+    @Test
+    public void chunkViews() throws Exception {
+        // PUSHDATA1 and PUSHDATA2 pushes, DUP and OP_0.
+        Script script = new Script(HEX.decode("4c03aabbcc4d0200ddee7600"));
+        List<ScriptChunk> chunks = script.getChunks();
+        assertEquals(chunks.size(), script.getChunkCount());
+        for (int i = 0; i < chunks.size(); i++) {
+            ScriptChunk chunk = chunks.get(i);
+            assertEquals(chunk.opcode, script.getChunkOpcode(i));
+            assertEquals(chunk.data == null ? -1 : chunk.data.length, script.getChunkDataLength(i));
+            assertArrayEquals(chunk.data, script.getChunkData(i));
+        }
+        assertEquals(2, script.getChunkDataOffset(0));
+        assertEquals(8, script.getChunkDataOffset(1));
+        assertEquals(-1, script.getChunkDataOffset(2));
+        assertEquals(12, script.getChunkDataOffset(3));
+
+        // Built scripts are walked once serialized.
+        Script built = new ScriptBuilder().data(new byte[] { 1, 2, 3 }).op(OP_CHECKSIG).build();
+        assertEquals(2, built.getChunkCount());
+        assertEquals(1, built.getChunkDataOffset(0));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, built.getChunkData(0));
+        assertEquals(OP_CHECKSIG, built.getChunkOpcode(1));
+    }
+
+    @Test
+    public void malformedPrograms() throws Exception {
+        try {
+            new Script(HEX.decode("4c"));
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, e.getError());
+        }
+        try {
+            new Script(HEX.decode("4c05aabb"));
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_BAD_OPCODE, e.getError());
+        }
+        // Sigops are counted up to the malformed push.
+        assertEquals(1, Script.getSigOpCount(HEX.decode("ac4c05aabbac")));
+    }
+
     private Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
         
@@ -355,6 +399,174 @@ public class ScriptTest {
         return tx;
     }
 
+    @Test
+    public void scriptNumbers() throws Exception {
+        long[] values = { 0, 1, -1, 16, 127, -127, 128, -128, 255, -255, 256, 32767, -32768, 0x7fffffffL, -0x7fffffffL,
+                0x80000000L, 0xffffffffL, 0x7fffffffffL, -0x7fffffffffL };
+        for (long value : values) {
+            byte[] encoded = Script.encodeScriptNumber(value);
+            assertArrayEquals(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false)), encoded);
+            assertEquals(value, Script.castToLong(encoded, 5, true));
+            assertEquals(BigInteger.valueOf(value), Script.castToBigInteger(encoded, 5, true));
+        }
+        // Negative zero
+        assertEquals(0, Script.castToLong(new byte[] { (byte) 0x80 }, 4, false));
+    }
+
+    @Test
+    public void dataDrivenScriptsMatchReferenceInterpreter() throws Exception {
+        JsonNode json = new ObjectMapper()
+                .readTree(new InputStreamReader(getClass().getResourceAsStream("script_tests.json"), StandardCharsets.UTF_8));
+        for (JsonNode test : json) {
+            if (test.size() == 1)
+                continue; // skip comment
+            Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+            Script scriptSig, scriptPubKey;
+            try {
+                scriptSig = parseScriptString(test.get(0).asText());
+                scriptPubKey = parseScriptString(test.get(1).asText());
+            } catch (ScriptException e) {
+                continue; // unparseable, never reaches either interpreter
+            }
+            Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), scriptSig);
+            LinkedList<byte[]> stack = new LinkedList<>();
+            LinkedList<byte[]> referenceStack = new LinkedList<>();
+            assertEquals(test.toString(), execute(false, txSpend, scriptSig, scriptPubKey, referenceStack, verifyFlags),
+                    execute(true, txSpend, scriptSig, scriptPubKey, stack, verifyFlags));
+            assertEquals(test.toString(), referenceStack.size(), stack.size());
+            for (int i = 0; i < stack.size(); i++)
+                assertArrayEquals(test.toString(), referenceStack.get(i), stack.get(i));
+        }
+    }
+
+    private ScriptError execute(boolean current, Transaction tx, Script scriptSig, Script scriptPubKey,
+                                LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) {
+        try {
+            for (Script script : new Script[] { scriptSig, scriptPubKey }) {
+                if (current)
+                    Script.executeScript(tx, 0, script, stack, verifyFlags);
+                else
+                    LinkedListScriptInterpreter.executeScript(tx, 0, script, stack, verifyFlags);
+            }
+            return ScriptError.SCRIPT_ERR_OK;
+        } catch (ScriptException e) {
+            return e.getError();
+        }
+    }
+
+    @Test
+    public void templateFastPath() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(TESTNET, key));
+        Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), new Script(new byte[] {}));
+        TransactionSignature sig = txSpend.calculateSignature(0, key, scriptPubKey, SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(sig, key);
+        assertTrue(scriptSig.correctlySpendsTemplate(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, null));
+        scriptSig.correctlySpends(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        // A signature by the wrong key is left to the interpreter, which reports why it fails.
+        Script wrongScriptSig = ScriptBuilder.createInputScript(
+                txSpend.calculateSignature(0, new ECKey(), scriptPubKey, SigHash.ALL, false), key);
+        assertFalse(wrongScriptSig.correctlySpendsTemplate(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, null));
+        try {
+            wrongScriptSig.correctlySpends(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, e.getError());
+        }
+
+        List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey());
+        Collections.sort(keys, ECKey.PUBKEY_COMPARATOR);
+        Script redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+        scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), new Script(new byte[] {}));
+        List<TransactionSignature> sigs = new ArrayList<>();
+        for (ECKey signer : keys.subList(1, 3))
+            sigs.add(txSpend.calculateSignature(0, signer, redeemScript, SigHash.ALL, false));
+        scriptSig = ScriptBuilder.createP2SHMultiSigInputScript(sigs, redeemScript);
+        assertTrue(scriptSig.correctlySpendsTemplate(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, null));
+        scriptSig.correctlySpends(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        // Signatures out of key order fail.
+        Collections.reverse(sigs);
+        wrongScriptSig = ScriptBuilder.createP2SHMultiSigInputScript(sigs, redeemScript);
+        assertFalse(wrongScriptSig.correctlySpendsTemplate(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, null));
+        assertTemplateAgrees(wrongScriptSig, txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+    }
+
+    @Test
+    public void batchedSignature() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(TESTNET, key));
+        Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), new Script(new byte[] {}));
+        Script scriptSig = ScriptBuilder.createInputScript(
+                txSpend.calculateSignature(0, key, scriptPubKey, SigHash.ALL, false), key);
+        Script wrongScriptSig = ScriptBuilder.createInputScript(
+                txSpend.calculateSignature(0, new ECKey(), scriptPubKey, SigHash.ALL, false), key);
+        SignatureBatch batch = new SignatureBatch();
+        scriptSig.correctlySpends(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, batch);
+        // The wrong signature only shows up when the batch is verified.
+        wrongScriptSig.correctlySpends(txSpend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, batch);
+        assertEquals(2, batch.size());
+        BitSet failed = batch.verify();
+        assertFalse(failed.get(0));
+        assertTrue(failed.get(1));
+    }
+
+    @Test
+    public void dataDrivenScriptsTemplateAgreesWithInterpreter() throws Exception {
+        JsonNode json = new ObjectMapper()
+                .readTree(new InputStreamReader(getClass().getResourceAsStream("script_tests.json"), StandardCharsets.UTF_8));
+        for (JsonNode test : json) {
+            if (test.size() == 1)
+                continue; // skip comment
+            Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+            Script scriptSig, scriptPubKey;
+            try {
+                scriptSig = parseScriptString(test.get(0).asText());
+                scriptPubKey = parseScriptString(test.get(1).asText());
+            } catch (ScriptException e) {
+                continue; // unparseable, never reaches either path
+            }
+            Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), scriptSig);
+            assertTemplateAgrees(scriptSig, txSpend, 0, scriptPubKey, verifyFlags);
+        }
+        json = new ObjectMapper().readTree(new InputStreamReader(getClass().getResourceAsStream(
+                "tx_valid.json"), StandardCharsets.UTF_8));
+        for (JsonNode test : json) {
+            if (test.isArray() && test.size() == 1 && test.get(0).isTextual())
+                continue; // This is a comment.
+            Map<TransactionOutPoint, Script> scriptPubKeys = parseScriptPubKeys(test.get(0));
+            Transaction transaction = TESTNET.getDefaultSerializer().makeTransaction(HEX.decode(test.get(1).asText().toLowerCase()));
+            Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+            for (int i = 0; i < transaction.getInputs().size(); i++) {
+                TransactionInput input = transaction.getInputs().get(i);
+                if (input.getOutpoint().getIndex() == 0xffffffffL)
+                    input.getOutpoint().setIndex(-1);
+                assertTemplateAgrees(input.getScriptSig(), transaction, i, scriptPubKeys.get(input.getOutpoint()),
+                        verifyFlags);
+            }
+        }
+    }
+
+    /** The template fast path may only accept spends the interpreter accepts, and the overall outcome is unchanged. */
+    private void assertTemplateAgrees(Script scriptSig, Transaction tx, int index, Script scriptPubKey,
+                                      Set<VerifyFlag> verifyFlags) {
+        ScriptError interpreted = ScriptError.SCRIPT_ERR_OK;
+        try {
+            scriptSig.correctlySpendsInterpreted(tx, index, scriptPubKey, verifyFlags);
+        } catch (ScriptException e) {
+            interpreted = e.getError();
+        }
+        if (scriptSig.correctlySpendsTemplate(tx, index, scriptPubKey, verifyFlags, null))
+            assertEquals(scriptSig + " / " + scriptPubKey, ScriptError.SCRIPT_ERR_OK, interpreted);
+        ScriptError error = ScriptError.SCRIPT_ERR_OK;
+        try {
+            scriptSig.correctlySpends(tx, index, scriptPubKey, verifyFlags);
+        } catch (ScriptException e) {
+            error = e.getError();
+        }
+        assertEquals(scriptSig + " / " + scriptPubKey, interpreted, error);
+    }
+
     @Test
     public void dataDrivenValidTransactions() throws Exception {
         JsonNode json = new ObjectMapper().readTree(new InputStreamReader(getClass().getResourceAsStream(
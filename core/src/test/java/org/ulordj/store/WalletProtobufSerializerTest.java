@@ -407,6 +407,36 @@ public class WalletProtobufSerializerTest {
         assertTrue(wallet2.getTransaction(coinbase.getHash()).isCoinBase());
     }
 
+    @Test
+    public void parallelLoading() throws Exception {
+        for (int i = 0; i < 50; i++)
+            myWallet.receivePending(createFakeTx(UNITTEST, COIN, myAddress), null);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoaderThreads(4);
+        final int[] progress = new int[2];
+        serializer.setProgressListener(new WalletProtobufSerializer.ProgressListener() {
+            @Override
+            public void onTransactionsRead(int read, int total) {
+                assertTrue(read > progress[0]);
+                progress[0] = read;
+                progress[1] = total;
+            }
+        });
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(50, progress[0]);
+        assertEquals(50, progress[1]);
+        assertEquals(myWallet.getTransactions(true), wallet1.getTransactions(true));
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // Reading from the proto gives the same.
+        Protos.Wallet walletProto = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(output.toByteArray()));
+        Wallet wallet2 = serializer.readWallet(UNITTEST, null, walletProto);
+        assertEquals(myWallet.getTransactions(true), wallet2.getTransactions(true));
+    }
+
     @Test
     public void tags() throws Exception {
         myWallet.setTag("foo", ByteString.copyFromUtf8("bar"));
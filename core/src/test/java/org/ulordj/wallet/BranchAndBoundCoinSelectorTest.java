@@ -0,0 +1,124 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.wallet;
+
+import org.ulordj.core.*;
+import org.ulordj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.ulordj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        tx = new Transaction(UNITTEST);
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+    }
+
+    private List<TransactionOutput> outputs(long... values) {
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (long value : values)
+            outputs.add(tx.addOutput(COIN.multiply(value), new ECKey()));
+        return outputs;
+    }
+
+    private static Set<Coin> values(CoinSelection selection) {
+        Set<Coin> values = new HashSet<>();
+        for (TransactionOutput output : selection.gathered)
+            values.add(output.getValue());
+        return values;
+    }
+
+    private static Set<Coin> coins(long... values) {
+        Set<Coin> coins = new HashSet<>();
+        for (long value : values)
+            coins.add(COIN.multiply(value));
+        return coins;
+    }
+
+    @Test
+    public void findsExactMatch() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        CoinSelection selection = selector.select(COIN.multiply(6), outputs(5, 4, 3, 2));
+        assertEquals(COIN.multiply(6), selection.valueGathered);
+        assertEquals(coins(4, 2), values(selection));
+    }
+
+    @Test
+    public void acceptsSmallExcess() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(COIN, 1000, 1000);
+        CoinSelection selection = selector.select(COIN.multiply(6), outputs(10, 4, 3));
+        assertEquals(COIN.multiply(7), selection.valueGathered);
+    }
+
+    @Test
+    public void fallsBackToSmallestSufficientOutput() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, 1000);
+        CoinSelection selection = selector.select(COIN.multiply(8), outputs(7, 10, 20, 3));
+        assertEquals(coins(10), values(selection));
+    }
+
+    @Test
+    public void fallsBackToLargestOutputs() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, 1000);
+        CoinSelection selection = selector.select(COIN.multiply(13), outputs(4, 6, 6));
+        assertEquals(COIN.multiply(16), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+    }
+
+    @Test
+    public void insufficientValue() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        CoinSelection selection = selector.select(COIN.multiply(100), outputs(5, 4));
+        assertEquals(COIN.multiply(9), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void ignoresUnselectableOutputs() throws Exception {
+        List<TransactionOutput> candidates = outputs(5);
+        Transaction pending = new Transaction(UNITTEST);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        candidates.add(pending.addOutput(COIN.multiply(3), new ECKey()));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(3), candidates);
+        assertEquals(coins(5), values(selection));
+    }
+
+    @Test
+    public void manyEqualOutputs() throws Exception {
+        long[] values = new long[2000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = 2;
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        CoinSelection selection = selector.select(COIN.multiply(11), outputs(values));
+        // An odd target can't be matched, so the largest outputs are taken.
+        assertEquals(COIN.multiply(12), selection.valueGathered);
+        assertEquals(6, selection.gathered.size());
+    }
+}
@@ -102,6 +102,21 @@ public class DeterministicKeyChainTest {
         assertEquals(2, chain.getKeys(false, false).size());
     }
 
+    @Test
+    public void parallelLookahead() throws Exception {
+        DeterministicKeyChain chain1 = new DeterministicKeyChain(ENTROPY, "", 1389353062L);
+        chain1.setLookaheadSize(200);
+        chain1.maybeLookAhead();
+        DeterministicKey parent = chain1.getKeyByPath(HDUtils.append(chain1.getAccountPath(), ChildNumber.ZERO), false);
+        for (int i = 0; i < 200 + chain1.getLookaheadThreshold(); i++) {
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, i);
+            DeterministicKey key = chain1.getKeyByPath(expected.getPath(), false);
+            assertTrue(key.isPubKeyOnly());
+            assertArrayEquals(expected.getPubKey(), key.getPubKey());
+            assertEquals(key, chain1.findKeyFromPubHash(expected.getPubKeyHash()));
+        }
+    }
+
     @Test
     public void deriveAccountOne() throws Exception {
         long secs = 1389353062L;
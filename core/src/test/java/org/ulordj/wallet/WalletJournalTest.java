@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ulordj.wallet;
+
+import org.ulordj.core.*;
+import org.ulordj.testing.*;
+import org.junit.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.ulordj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file, journal;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("ulordj-unit-test", null);
+        journal = WalletJournal.getJournalFile(file);
+        files = new WalletFiles(wallet, file, 1, TimeUnit.DAYS);
+        files.setJournaled(true);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        files.shutdownAndWait();
+        file.delete();
+        journal.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void appendsChanges() throws Exception {
+        files.saveNow();
+        long length = file.length();
+        assertEquals(Sha256Hash.LENGTH, journal.length());
+
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // Saved along with the transaction, which changed since the previous save.
+        tx.setMemo("journaled");
+        wallet.setDescription("journaled");
+        files.saveNow();
+        ECKey key = wallet.freshReceiveKey();
+        files.saveNow();
+        // Only the journal was written.
+        assertEquals(length, file.length());
+        assertTrue(journal.length() > Sha256Hash.LENGTH);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(COIN, loaded.getBalance());
+        assertEquals("journaled", loaded.getTransaction(tx.getHash()).getMemo());
+        assertEquals("journaled", loaded.getDescription());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertTrue(loaded.isPubKeyHashMine(key.getPubKeyHash()));
+        assertEquals(wallet.getIssuedReceiveKeys().size(), loaded.getIssuedReceiveKeys().size());
+    }
+
+    @Test
+    public void ignoresJournalOfOlderWalletFile() throws Exception {
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        // Saving in full leaves the journal behind, which no longer belongs to the wallet file.
+        wallet.saveToFile(file);
+        assertTrue(journal.length() > Sha256Hash.LENGTH);
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+
+        // The next save notices and compacts.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        assertEquals(Sha256Hash.LENGTH, journal.length());
+        assertEquals(valueOf(2, 0), Wallet.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void ignoresIncompleteChange() throws Exception {
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        // Cut off the end of the last change, as if the process died while writing it.
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+    }
+}
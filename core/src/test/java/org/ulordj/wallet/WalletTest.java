@@ -76,6 +76,8 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -1193,6 +1195,82 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void spendIndexFindsDoubleSpendOfPending() throws Exception {
+        FakeTxBuilder.DoubleSpends doubleSpends = FakeTxBuilder.createFakeDoubleSpendTxns(UNITTEST, myAddress);
+        // t2 doesn't touch our keys, only the outpoint it spends makes it relevant.
+        assertFalse(wallet.isTransactionRelevant(doubleSpends.t2));
+        wallet.receivePending(doubleSpends.t1, null);
+        assertTrue(wallet.isPendingTransactionRelevant(doubleSpends.t2));
+        wallet.receivePending(doubleSpends.t2, null);
+        assertInConflict(doubleSpends.t1);
+        assertInConflict(doubleSpends.t2);
+    }
+
+    @Test
+    public void spendIndexFindsDoubleSpendOfDead() throws Exception {
+        Address someBadGuy = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Transaction prevTx = new Transaction(UNITTEST);
+        prevTx.addOutput(COIN, someBadGuy);
+        prevTx.addOutput(COIN, someBadGuy);
+        Transaction t1 = new Transaction(UNITTEST);
+        t1.addInput(prevTx.getOutput(0));
+        t1.addOutput(COIN, myAddress);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(prevTx.getOutput(0));
+        t2.addInput(prevTx.getOutput(1));
+        t2.addOutput(COIN, someBadGuy);
+        wallet.receivePending(t1, null);
+        wallet.receivePending(t2, null);
+
+        FakeTxBuilder.BlockPair blockPair = createFakeBlock(blockStore, 1, t1);
+        wallet.receiveFromBlock(t1, blockPair.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(blockPair.storedBlock);
+        assertUnspent(t1);
+        assertDead(t2);
+
+        // Only the dead t2 spends the second output of prevTx.
+        Transaction t3 = new Transaction(UNITTEST);
+        t3.addInput(prevTx.getOutput(1));
+        t3.addOutput(COIN, someBadGuy);
+        assertTrue(wallet.isTransactionRelevant(t3));
+        // Once the dead transaction is gone, so is its entry in the index.
+        wallet.reset();
+        assertFalse(wallet.isTransactionRelevant(t3));
+    }
+
+    @Test
+    public void spendIndexFindsDependentsAfterReorg() throws Exception {
+        FakeTxBuilder.DoubleSpends doubleSpends = FakeTxBuilder.createFakeDoubleSpendTxns(UNITTEST, myAddress);
+        Transaction t1b = new Transaction(UNITTEST);
+        t1b.addOutput(valueOf(0, 50), OTHER_ADDRESS);
+        t1b.addInput(doubleSpends.t1.getOutput(0));
+        wallet.receivePending(doubleSpends.t1, null);
+        wallet.receivePending(t1b, null);
+
+        FakeTxBuilder.BlockPair blockPair0 = createFakeBlock(blockStore, 1);
+        FakeTxBuilder.BlockPair blockPair1 = createFakeBlock(blockStore, 2, doubleSpends.t1);
+        wallet.receiveFromBlock(doubleSpends.t1, blockPair1.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(blockPair1.storedBlock);
+        assertSpent(doubleSpends.t1);
+        assertPending(t1b);
+
+        // A reorg to a chain with t2 moves t1 and everything depending on it to the dead pool.
+        FakeTxBuilder.BlockPair blockPair2 = createFakeBlock(blockStore, blockPair0.storedBlock, 2, doubleSpends.t2);
+        wallet.receiveFromBlock(doubleSpends.t2, blockPair2.storedBlock, AbstractBlockChain.NewBlockType.SIDE_CHAIN, 0);
+        wallet.reorganize(blockPair0.storedBlock, Lists.newArrayList(blockPair1.storedBlock),
+                Lists.newArrayList(blockPair2.storedBlock));
+        assertDead(doubleSpends.t1);
+        assertDead(t1b);
+
+        // The index still links the dead transactions after they moved between pools.
+        Set<Transaction> txns = new HashSet<>();
+        txns.add(doubleSpends.t1);
+        wallet.addTransactionsDependingOn(txns, wallet.getTransactions(true));
+        assertEquals(2, txns.size());
+        assertTrue(txns.contains(t1b));
+    }
+
     private void assertInConflict(Transaction tx) {
         assertEquals(ConfidenceType.IN_CONFLICT, tx.getConfidence().getConfidenceType());
         assertTrue(wallet.poolContainsTxHash(WalletTransaction.Pool.PENDING, tx.getHash()));
@@ -1504,6 +1582,153 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionHistoryPaging() throws Exception {
+        Utils.setMockClock();
+        Address address2 = wallet.freshReceiveAddress();
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Utils.rollMockClock(60);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, address2);
+        Utils.rollMockClock(60);
+        Transaction tx3 = sendMoneyToWallet(null, COIN);
+
+        TransactionHistory history = wallet.getTransactionHistory();
+        TransactionHistory.Page page = history.getByTime(null, 2, false);
+        assertEquals(Arrays.asList(tx3, tx2), page.getTransactions());
+        assertNotNull(page.getNext());
+        page = history.getByTime(page.getNext(), 2, false);
+        assertEquals(Collections.singletonList(tx1), page.getTransactions());
+        assertNull(page.getNext());
+
+        // Unconfirmed transactions come last when ordered by height.
+        List<Transaction> byHeight = history.getByHeight(null, 10, false).getTransactions();
+        assertEquals(3, byHeight.size());
+        assertEquals(tx3, byHeight.get(2));
+
+        assertEquals(Collections.singletonList(tx2), history.getForAddress(address2, null, 10, false).getTransactions());
+        assertEquals(Arrays.asList(tx3, tx1), history.getForAddress(myAddress, null, 10, false).getTransactions());
+        assertTrue(history.getForAddress(OTHER_ADDRESS, null, 10, false).getTransactions().isEmpty());
+    }
+
+    @Test
+    public void transactionHistoryRepairsWithoutWalletLock() throws Exception {
+        Utils.setMockClock();
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Utils.rollMockClock(60);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // Changed behind the wallet's back, so the entry of tx1 is stale.
+        tx1.setUpdateTime(new Date(tx2.getUpdateTime().getTime() + 1000));
+
+        final TransactionHistory history = wallet.getTransactionHistory();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    done.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        try {
+            locked.await();
+            assertEquals(Arrays.asList(tx1, tx2), history.getByTime(null, 10, false).getTransactions());
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void sendCoinsOfflineBatch() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+
+        // Not enough for all three, so none is committed.
+        List<SendRequest> requests = Arrays.asList(SendRequest.to(OTHER_ADDRESS, valueOf(0, 90)),
+                SendRequest.to(OTHER_ADDRESS, valueOf(0, 90)), SendRequest.to(OTHER_ADDRESS, valueOf(0, 90)));
+        try {
+            wallet.sendCoinsOffline(requests);
+            fail();
+        } catch (InsufficientMoneyException e) {
+            // Expected.
+        }
+        assertTrue(wallet.getPendingTransactions().isEmpty());
+        assertEquals(valueOf(2, 0), wallet.getBalance());
+        // The requests are put back the way they were, so they can be completed again.
+        Address changeAddress = wallet.currentChangeAddress();
+        for (SendRequest req : requests) {
+            assertFalse(req.completed);
+            assertNull(req.changeAddress);
+            assertTrue(req.tx.getInputs().isEmpty());
+            assertEquals(1, req.tx.getOutputs().size());
+            assertEquals(valueOf(0, 90), req.tx.getOutput(0).getValue());
+        }
+
+        requests = Arrays.asList(requests.get(0), SendRequest.to(OTHER_ADDRESS, valueOf(0, 50)));
+        List<Transaction> transactions = wallet.sendCoinsOffline(requests);
+        assertEquals(2, transactions.size());
+        assertEquals(2, wallet.getPendingTransactions().size());
+        // The requests don't share a change address, and the keys are marked as used once committed.
+        List<Script> changeScripts = new ArrayList<>();
+        for (SendRequest req : requests) {
+            for (TransactionOutput output : req.tx.getOutputs())
+                if (output.isMine(wallet))
+                    changeScripts.add(output.getScriptPubKey());
+        }
+        assertEquals(2, changeScripts.size());
+        assertNotEquals(changeScripts.get(0), changeScripts.get(1));
+        assertNotEquals(changeAddress, wallet.currentChangeAddress());
+        Set<TransactionOutPoint> spent = new HashSet<>();
+        for (Transaction tx : transactions) {
+            assertEquals(TransactionConfidence.ConfidenceType.PENDING, tx.getConfidence().getConfidenceType());
+            for (TransactionInput input : tx.getInputs()) {
+                assertTrue(spent.add(input.getOutpoint()));
+                input.verify();
+            }
+        }
+    }
+
+    @Test
+    public void signInputsOnExecutor() throws Exception {
+        for (int i = 0; i < 4; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            wallet.setSigningExecutor(executor);
+            assertEquals(1, wallet.getTransactionSigners().size());
+            SendRequest req = SendRequest.to(OTHER_ADDRESS, valueOf(3, 50));
+            wallet.completeTx(req);
+            assertEquals(4, req.tx.getInputs().size());
+            for (TransactionInput input : req.tx.getInputs())
+                input.verify();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sendRequestToMany() throws Exception {
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            outputs.add(new TransactionOutput(UNITTEST, null, CENT, OTHER_ADDRESS));
+        List<SendRequest> requests = SendRequest.toMany(UNITTEST, outputs);
+        // A P2PKH output takes 34 bytes.
+        int perRequest = SendRequest.MAX_BATCH_OUTPUT_BYTES / 34;
+        assertEquals((2000 + perRequest - 1) / perRequest, requests.size());
+        int total = 0;
+        for (SendRequest req : requests)
+            total += req.tx.getOutputs().size();
+        assertEquals(2000, total);
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();
@@ -2366,6 +2591,106 @@ public class WalletTest extends TestWithWallet {
         assertEquals(COIN, spend3.getInput(0).getValue());
     }
 
+    @Test
+    public void depthDerivedFromChainHeight() throws Exception {
+        Transaction watched = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        Transaction unwatched = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final AtomicInteger depthChanges = new AtomicInteger();
+        watched.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    depthChanges.incrementAndGet();
+            }
+        });
+        assertEquals(Collections.singletonList(watched.getConfidence()),
+                watched.getConfidence().getChainHeights().get(0).getSubscribed());
+
+        for (int i = 0; i < 3; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(5, watched.getConfidence().getDepthInBlocks());
+        assertEquals(4, unwatched.getConfidence().getDepthInBlocks());
+        assertEquals(3, depthChanges.get());
+
+        // The depth survives a round trip, relative to the last seen block of the wallet.
+        Wallet reborn = roundTrip(wallet);
+        assertEquals(wallet.getLastBlockSeenHeight(), reborn.getLastBlockSeenHeight());
+        assertEquals(4, reborn.getTransaction(unwatched.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void walletConfidenceListenersHearEveryBlock() throws Exception {
+        final Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        final Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final List<Transaction> depthChanges = new ArrayList<>();
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                depthChanges.add(tx);
+            }
+        });
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(depthChanges.contains(tx1));
+        assertTrue(depthChanges.contains(tx2));
+        assertEquals(3, tx1.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void sharedConfidenceFollowsBothWallets() throws Exception {
+        // A transaction paying two wallets on the same chain, which share its confidence object.
+        Wallet wallet2 = new Wallet(UNITTEST);
+        Transaction tx = createFakeTx(UNITTEST, CENT, myAddress);
+        tx.addOutput(COIN, wallet2.currentReceiveAddress());
+        FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx);
+        wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        Transaction copy = UNITTEST.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        wallet2.receiveFromBlock(copy, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet2.notifyNewBestBlock(bp.storedBlock);
+        TransactionConfidence confidence = wallet.getTransaction(tx.getHash()).getConfidence();
+        assertSame(confidence, wallet2.getTransaction(tx.getHash()).getConfidence());
+        assertEquals(2, confidence.getChainHeights().size());
+        assertEquals(1, confidence.getDepthInBlocks());
+
+        // The wallet that saw the most blocks decides the depth, whichever of them is told first.
+        bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+        wallet2.notifyNewBestBlock(bp.storedBlock);
+        assertEquals(2, confidence.getDepthInBlocks());
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        assertEquals(2, confidence.getDepthInBlocks());
+
+        // Once one wallet lets go, the depth keeps following the other one.
+        wallet.reset();
+        assertEquals(1, confidence.getChainHeights().size());
+        bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+        wallet2.notifyNewBestBlock(bp.storedBlock);
+        assertEquals(3, confidence.getDepthInBlocks());
+
+        // And once the last one lets go, it is kept as it was.
+        wallet2.reset();
+        assertTrue(confidence.getChainHeights().isEmpty());
+        assertEquals(3, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void spendableBalanceFollowsKeyImport() throws Exception {
+        ECKey key = new ECKey();
+        Address watchedAddress = LegacyAddress.fromKey(UNITTEST, key);
+        wallet.addWatchedAddress(watchedAddress);
+        sendMoneyToWallet(wallet, AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, watchedAddress);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(1, wallet.calculateAllSpendCandidates(true, true).size());
+
+        wallet.importKey(key);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(2, wallet.calculateAllSpendCandidates(true, true).size());
+    }
+
     @Test
     public void feeSolverAndCoinSelectionTests2() throws Exception {
         Transaction tx5 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);